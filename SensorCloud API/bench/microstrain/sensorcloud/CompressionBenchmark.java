@@ -0,0 +1,218 @@
+package microstrain.sensorcloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import microstrain.sensorcloud.http.BandwidthLimiter;
+import microstrain.sensorcloud.http.ConnectionPool;
+import microstrain.sensorcloud.http.ContentEncoding;
+import microstrain.sensorcloud.io.BufferPool;
+import microstrain.sensorcloud.xdr.XDROutStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Uploads and downloads time-series data through a local server with and without compression,
+ * reporting the bytes that crossed the wire and the end to end throughput. The server throttles
+ * its side of the link so that the run resembles a device on a constrained uplink rather than loopback.
+ *
+ * Usage: CompressionBenchmark [uploads] [downloads] [link bytes/s, 0 for unlimited]
+ */
+public class CompressionBenchmark {
+	private static final int UPLOAD_POINTS = 1000;
+	private static final int DOWNLOAD_POINTS = 50000;
+	private static final int THREADS = 4;
+
+	private static AtomicLong wireIn = new AtomicLong(), wireOut = new AtomicLong(), decodedIn = new AtomicLong();
+
+	public static void main (String [] args) throws Exception {
+		int uploads = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+		int downloads = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+		long linkRate = args.length > 2 ? Long.parseLong(args[2]) : 1250000; // 10 Mbit/s
+
+		final BandwidthLimiter link = linkRate > 0 ? new BandwidthLimiter(linkRate, 64 * 1024) : null;
+		final byte [] download = timeSeries(DOWNLOAD_POINTS, 2);
+		final byte [] downloadGzip = ContentEncoding.gzip(download, BufferPool.getDefault());
+
+		HttpServer server = HttpServer.create( new InetSocketAddress("localhost", 0), 0 );
+		final int port = server.getAddress().getPort();
+
+		server.createContext( "/", new HttpHandler() {
+			@Override
+			public void handle (HttpExchange exchange) throws IOException {
+				InputStream body = exchange.getRequestBody();
+				if (link != null) {
+					body = link.wrap(body);
+				}
+				byte [] raw = readAll(body);
+				wireIn.addAndGet( raw.length );
+
+				byte [] decoded = raw;
+				if ("gzip".equals( exchange.getRequestHeaders().getFirst("Content-Encoding") )) {
+					decoded = readAll( new GZIPInputStream( new ByteArrayInputStream(raw) ));
+				}
+				decodedIn.addAndGet( decoded.length );
+
+				if (exchange.getRequestURI().getPath().endsWith("/authenticate/")) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					XDROutStream xdr = new XDROutStream(bytes);
+					xdr.writeString("token");
+					xdr.writeString("localhost:" + port);
+					respond(exchange, 200, bytes.toByteArray());
+				} else if (exchange.getRequestMethod().equals("POST")) {
+					exchange.sendResponseHeaders(201, -1);
+					exchange.close();
+				} else {
+					String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+					if (accept != null && accept.contains("gzip")) {
+						exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+						respond(exchange, 200, downloadGzip);
+					} else {
+						respond(exchange, 200, download);
+					}
+				}
+			}
+
+			private void respond (HttpExchange exchange, int code, byte [] data) throws IOException {
+				exchange.sendResponseHeaders(code, data.length);
+				wireOut.addAndGet( data.length );
+				OutputStream out = exchange.getResponseBody();
+				for (int off = 0; off < data.length; off += 8192) {
+					int len = Math.min(8192, data.length - off);
+					if (link != null) {
+						link.acquire(len);
+					}
+					out.write(data, off, len);
+				}
+				out.close();
+			}
+		});
+		server.setExecutor( Executors.newFixedThreadPool(THREADS * 2) );
+		server.start();
+
+		byte [] upload = timeSeries(UPLOAD_POINTS, 1);
+
+		try {
+			System.out.println( "uploads=" + uploads + " of " + upload.length + " bytes, downloads=" + downloads
+					+ " of " + download.length + " bytes, link=" + (linkRate > 0 ? linkRate + " bytes/s" : "unlimited") );
+
+			// warm up both paths before measuring
+			run(false, port, uploads / 10, downloads / 10, upload);
+			run(true, port, uploads / 10, downloads / 10, upload);
+
+			run(false, port, uploads, downloads, upload);
+			run(true, port, uploads, downloads, upload);
+		} finally {
+			server.stop(0);
+			((ExecutorService)server.getExecutor()).shutdown();
+		}
+	}
+
+	private static void run (boolean compression, int port, int uploads, int downloads, final byte [] upload) throws Exception {
+		final SCRequester requester = new SCRequester("BENCH", "key", "localhost:" + port, new ConnectionPool(), false);
+		requester.setCompression(compression);
+		final AtomicLong received = new AtomicLong();
+		wireIn.set(0);
+		wireOut.set(0);
+		decodedIn.set(0);
+
+		// uploads
+		ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		long start = System.nanoTime();
+		for (int i = 0; i < uploads; i++) {
+			final String url = "sensors/bench/channels/ch" + (i % THREADS) + "/streams/timeseries/data/";
+			threads.execute( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						requester.post(url, upload);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		threads.shutdown();
+		threads.awaitTermination(10, TimeUnit.MINUTES);
+		double uploadSeconds = (System.nanoTime() - start) / 1e9;
+		long uploadWire = wireIn.get(), uploadDecoded = decodedIn.get();
+
+		// downloads, read through the streaming inflater
+		threads = Executors.newFixedThreadPool(THREADS);
+		long downloadWireStart = wireOut.get();
+		start = System.nanoTime();
+		for (int i = 0; i < downloads; i++) {
+			final String url = "sensors/bench/channels/ch" + (i % THREADS) + "/streams/timeseries/data/";
+			threads.execute( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						InputStream in = requester.getStream(url);
+						byte [] buf = new byte [8192];
+						int read;
+						try {
+							while ((read = in.read(buf)) != -1) {
+								received.addAndGet(read);
+							}
+						} finally {
+							in.close();
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		threads.shutdown();
+		threads.awaitTermination(10, TimeUnit.MINUTES);
+		double downloadSeconds = (System.nanoTime() - start) / 1e9;
+		long downloadWire = wireOut.get() - downloadWireStart;
+		requester.getConnectionPool().close();
+
+		String name = compression ? "gzip" : "identity";
+		System.out.println( String.format( "%-8s upload   wire=%,d bytes data=%,d bytes ratio=%.2f  %.0f uploads/s",
+				name, uploadWire, uploadDecoded, (double)uploadDecoded / uploadWire, uploads / uploadSeconds ));
+		System.out.println( String.format( "%-8s download wire=%,d bytes data=%,d bytes ratio=%.2f  %.1f MB/s of data",
+				name, downloadWire, received.get(), (double)received.get() / downloadWire, received.get() / downloadSeconds / 1e6 ));
+	}
+
+	/* evenly spaced timestamps and a slowly moving signal quantized to 0.01, like a real sensor */
+	private static byte [] timeSeries (int points, long seed) throws IOException {
+		Random random = new Random(seed);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		XDROutStream xdr = new XDROutStream(bytes);
+		xdr.writeInt(1);
+		xdr.writeInt( SampleRate.HERTZ );
+		xdr.writeInt(100);
+		xdr.writeInt(points);
+		for (int i = 0; i < points; i++) {
+			xdr.writeHyper( 1000000000L + i * 10000000L );
+			double value = 20 + 5 * Math.sin(i / 200.0) + random.nextGaussian() * 0.05;
+			xdr.writeFloat( (float)(Math.round(value * 100) / 100.0) );
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte [] readAll (InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte [] buf = new byte [8192];
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			bytes.write(buf, 0, read);
+		}
+		in.close();
+		return bytes.toByteArray();
+	}
+}
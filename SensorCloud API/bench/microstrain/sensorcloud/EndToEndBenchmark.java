@@ -0,0 +1,136 @@
+package microstrain.sensorcloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import microstrain.sensorcloud.http.ConnectionPool;
+
+/**
+ * Uploads time-series data through <b>TimeSeriesStream</b> and reads it back through <b>TimeSeriesIter</b>
+ * against a <b>StandInServer</b>, first on a clean link and then with latency, a bandwidth limit and
+ * injected failures, reporting points per second in each direction. The failure run goes through a
+ * <b>RetryingRequester</b> and checks that every point still arrived.
+ *
+ * Usage: EndToEndBenchmark [channels] [points per channel, a multiple of 1000]
+ */
+public class EndToEndBenchmark {
+	private static final long START = 1356998400000000000L;
+	private static final long INTERVAL = 10000000L; // 100 Hz
+
+	private static int run = 0;
+
+	public static void main (String [] args) throws Exception {
+		int channels = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int points = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+		StandInServer server = new StandInServer();
+		server.start();
+		try {
+			System.out.println( channels + " channels, " + points + " points each" );
+
+			run(server, "warmup", channels, points);
+			run(server, "clean", channels, points);
+
+			server.setLatency(20);
+			run(server, "20 ms latency", channels, points);
+			server.setLatency(0);
+
+			server.setBandwidth(4 * 1024 * 1024);
+			run(server, "4 MB/s link", channels, points);
+			server.setBandwidth(0);
+
+			server.setErrorRate(0.05);
+			run(server, "5% 503s, retried", channels, points);
+			server.setErrorRate(0);
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static void run (final StandInServer server, String name, int channels, final int points) throws Exception {
+		final String serial = "BENCH" + (run++);
+		server.addDevice(serial, "key");
+		long requestsBefore = server.getRequestCount(), injectedBefore = server.getInjectedFailures();
+
+		// an upload sent twice is answered 409 the second time and counted as accepted, so uploads can be retried too
+		Requester requester = new RetryingRequester( server.getRequester(serial, "key", new ConnectionPool()), new RetryPolicy(8, 10, 200).setRetryUnsafe(true) );
+		Device device = new Device(serial, requester);
+		Sensor sensor = device.createSensor("bench", "Bench", "bench", "benchmark sensor");
+		final List<Channel> created = new ArrayList<Channel>();
+		for (int i = 0; i < channels; i++) {
+			created.add( sensor.createChannel("ch" + i, "Channel " + i, "benchmark channel") );
+		}
+
+		// upload, closing each stream waits until its points are accepted
+		final SampleRate rate = new SampleRate(100, SampleRate.HERTZ);
+		ExecutorService threads = Executors.newFixedThreadPool(channels);
+		long start = System.nanoTime();
+		for (final Channel channel : created) {
+			threads.execute( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						TimeSeriesStream stream = channel.getTimeSeriesStream();
+						for (int i = 0; i < points; i++) {
+							stream.addData( new Point(START + i * INTERVAL, (float)Math.sin(i / 100.0)), rate );
+						}
+						stream.close();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		threads.shutdown();
+		threads.awaitTermination(10, TimeUnit.MINUTES);
+		long expected = (long)points * channels, stored = 0;
+		long deadline = System.currentTimeMillis() + 600000;
+		while (System.currentTimeMillis() < deadline) {
+			stored = 0;
+			for (Channel channel : created) {
+				stored += server.getPointCount(serial, "bench", channel.getName());
+			}
+			if (stored >= expected) {
+				break;
+			}
+			Thread.sleep(5);
+		}
+		double uploadSeconds = (System.nanoTime() - start) / 1e9;
+
+		// download every channel at once
+		final AtomicLong read = new AtomicLong();
+		threads = Executors.newFixedThreadPool(channels);
+		start = System.nanoTime();
+		for (final Channel channel : created) {
+			threads.execute( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						TimeSeriesIter itr = channel.getTimeSeriesStream().getData();
+						long count = 0;
+						while (itr.hasNext()) {
+							itr.next();
+							count++;
+						}
+						read.addAndGet(count);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		threads.shutdown();
+		threads.awaitTermination(10, TimeUnit.MINUTES);
+		double downloadSeconds = (System.nanoTime() - start) / 1e9;
+
+		if (!name.equals("warmup")) {
+			System.out.println( String.format( "%-18s upload %,10.0f points/s  download %,10.0f points/s  stored %d/%d read %d  requests %d injected %d",
+					name, stored / uploadSeconds, read.get() / downloadSeconds, stored, expected, read.get(),
+					server.getRequestCount() - requestsBefore, server.getInjectedFailures() - injectedBefore ));
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package microstrain.sensorcloud;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes samples into <b>TimeSeriesStream</b>s as fast as the producing threads can, one thread per
+ * channel, with uploads going to a requester that only counts the points it is sent. Each way of adding
+ * samples is run in turn: a <b>Point</b> each, a timestamp and value each, and arrays of a burst at a time. Reports samples
+ * per second from the first sample added to the last one uploaded, and the heap allocated per sample
+ * by the producing threads and by every thread together. Allocation is read from the HotSpot thread MXBean.
+ * A paced run adds the samples at a fixed rate in bursts every 10 ms, as a driver reading a device would,
+ * to show the steady state where the uploads keep up. Every run shares the default <b>UploadScheduler</b>.
+ *
+ * Usage: IngestBenchmark [channels] [samples per channel, a multiple of 1000] [runs] [paced rate per channel in Hz] [point|primitive|bulk]
+ */
+public class IngestBenchmark {
+	private static final long START = 1356998400000000000L;
+	private static final long INTERVAL = 100000L; // 10 kHz
+
+	public static void main (String [] args) throws Exception {
+		int channels = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int samples = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		int paced = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+
+		System.out.println( channels + " channels, " + samples + " samples each" );
+		Mode [] modes = args.length > 4 ? new Mode [] { Mode.valueOf( args[4].toUpperCase() ) } : Mode.values();
+		for (Mode mode : modes) {
+			for (int i = 0; i <= runs; i++) {
+				run( mode, i == 0 ? "warmup" : "run " + i, channels, samples, 0 );
+			}
+			if (paced > 0) {
+				run( mode, "paced", channels, Math.min(samples, paced * 10), paced );
+			}
+		}
+	}
+
+	private static void run (final Mode mode, String name, int channels, final int samples, final int paced) throws Exception {
+		final CountingRequester requester = new CountingRequester();
+		final SampleRate rate = new SampleRate(10000, SampleRate.HERTZ);
+		final List<TimeSeriesStream> streams = new ArrayList<TimeSeriesStream>();
+		for (int i = 0; i < channels; i++) {
+			streams.add( TimeSeriesStream.getEmptyInstanceOf("bench", "ch" + i, requester) );
+		}
+
+		final AtomicLong producerBytes = new AtomicLong();
+		List<Thread> producers = new ArrayList<Thread>();
+		for (final TimeSeriesStream stream : streams) {
+			producers.add( new Thread() {
+				@Override
+				public void run() {
+					// a paced run adds a burst every 10 ms
+					int burst = paced > 0 ? paced / 100 : 100;
+					long [] timestamps = new long [burst];
+					float [] values = new float [burst];
+					long before = allocated( getId() );
+					try {
+						long next = System.nanoTime();
+						for (int i = 0; i < samples; i += burst) {
+							int len = Math.min(burst, samples - i);
+							for (int j = 0; j < len; j++) {
+								timestamps[j] = START + (i + j) * INTERVAL;
+								values[j] = i + j;
+							}
+							mode.add(stream, timestamps, values, len, rate);
+							if (paced > 0) {
+								next += 10000000L;
+								long wait = next - System.nanoTime();
+								if (wait > 0) {
+									Thread.sleep( wait / 1000000, (int)(wait % 1000000) );
+								}
+							}
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					producerBytes.addAndGet( allocated( getId() ) - before );
+				}
+			});
+		}
+
+		long expected = (long)samples * channels;
+		long processBefore = processAllocated();
+		long start = System.nanoTime();
+		for (Thread producer : producers) {
+			producer.start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		double produceSeconds = (System.nanoTime() - start) / 1e9;
+		while (requester.points.get() < expected) {
+			Thread.sleep(1);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		// the producers have ended, so they are no longer in the sum
+		long totalBytes = processAllocated() - processBefore + producerBytes.get();
+
+		if (!name.equals("warmup")) {
+			System.out.println( String.format( "%-9s %-7s added %,12.0f samples/s  uploaded %,12.0f samples/s  producer %6.2f bytes/sample  total %6.2f bytes/sample",
+					mode.name().toLowerCase(), name, expected / produceSeconds, expected / seconds,
+					(double)producerBytes.get() / expected, (double)totalBytes / expected ));
+		}
+	}
+
+	/**
+	 * A way of adding a burst of samples to a stream
+	 */
+	private enum Mode {
+		POINT {
+			@Override
+			void add (TimeSeriesStream stream, long [] timestamps, float [] values, int len, SampleRate rate) throws Exception {
+				for (int i = 0; i < len; i++) {
+					stream.addData( new Point(timestamps[i], values[i]), rate );
+				}
+			}
+		},
+		PRIMITIVE {
+			@Override
+			void add (TimeSeriesStream stream, long [] timestamps, float [] values, int len, SampleRate rate) throws Exception {
+				for (int i = 0; i < len; i++) {
+					stream.addData(timestamps[i], values[i], rate);
+				}
+			}
+		},
+		BULK {
+			@Override
+			void add (TimeSeriesStream stream, long [] timestamps, float [] values, int len, SampleRate rate) throws Exception {
+				stream.addData(timestamps, values, 0, len, rate);
+			}
+		};
+
+		abstract void add (TimeSeriesStream stream, long [] timestamps, float [] values, int len, SampleRate rate) throws Exception;
+	}
+
+	private static long allocated (long thread) {
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(thread);
+	}
+
+	/* bytes allocated by the threads alive now, threads that have ended are not counted */
+	private static long processAllocated() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for (long bytes : threads.getThreadAllocatedBytes( threads.getAllThreadIds() )) {
+			if (bytes > 0) {
+				total += bytes;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Accepts every upload and counts the points in it
+	 */
+	private static class CountingRequester implements Requester {
+		final AtomicLong points = new AtomicLong();
+
+		@Override
+		public void post (String url, byte [] data) {
+			points.addAndGet( ((data[12] & 0xff) << 24) | ((data[13] & 0xff) << 16) | ((data[14] & 0xff) << 8) | (data[15] & 0xff) );
+		}
+
+		@Override
+		public void post (String url, Map<String, String> params, byte [] data) {
+			post(url, data);
+		}
+
+		@Override
+		public byte [] get (String url) throws IOException {
+			throw new IOException( "not served" );
+		}
+
+		@Override
+		public byte [] get (String url, Map<String, String> params) throws IOException {
+			throw new IOException( "not served" );
+		}
+
+		@Override
+		public void put (String url, byte [] data) {
+		}
+
+		@Override
+		public void put (String url, Map<String, String> params, byte [] data) {
+		}
+
+		@Override
+		public void delete (String url) {
+		}
+
+		@Override
+		public String getSerial() {
+			return "BENCH";
+		}
+	}
+}
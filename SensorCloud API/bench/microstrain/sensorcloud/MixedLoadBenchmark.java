@@ -0,0 +1,206 @@
+package microstrain.sensorcloud;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import microstrain.sensorcloud.http.ConnectionPool;
+import microstrain.sensorcloud.xdr.XDROutStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs several devices against a local server at once, each uploading as fast as it can while also
+ * querying for data, and reports how long the queries took and how many connections were opened.
+ * The server holds each upload for a while as a slow uplink would, so with every connection busy
+ * uploading a query has to wait for one of them unless a connection is held back for queries.
+ * Compares a pool per device, the old behaviour, with a single pool shared by all of the devices.
+ *
+ * Usage: MixedLoadBenchmark [devices] [seconds per run] [upload delay ms]
+ */
+public class MixedLoadBenchmark {
+	private static final int UPLOADERS_PER_DEVICE = 6;
+	private static final int UPLOAD_BYTES = 12000;
+	private static final int QUERY_BYTES = 2000;
+
+	public static void main (String [] args) throws Exception {
+		int devices = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 5;
+		final long uploadDelay = args.length > 2 ? Long.parseLong(args[2]) : 25;
+
+		// otherwise the server's small writes sit out the delayed ack and every query takes 40 ms
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		final byte [] query = new byte [QUERY_BYTES];
+		HttpServer server = HttpServer.create( new InetSocketAddress("localhost", 0), 0 );
+		final int port = server.getAddress().getPort();
+
+		server.createContext( "/", new HttpHandler() {
+			@Override
+			public void handle (HttpExchange exchange) throws IOException {
+				drain( exchange.getRequestBody() );
+
+				if (exchange.getRequestURI().getPath().endsWith("/authenticate/")) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					XDROutStream xdr = new XDROutStream(bytes);
+					xdr.writeString("token");
+					xdr.writeString("localhost:" + port);
+					respond(exchange, bytes.toByteArray());
+				} else if (exchange.getRequestMethod().equals("POST")) {
+					pause(uploadDelay);
+					exchange.sendResponseHeaders(201, -1);
+					exchange.close();
+				} else {
+					pause(1);
+					respond(exchange, query);
+				}
+			}
+		});
+		server.setExecutor( Executors.newCachedThreadPool() );
+		server.start();
+
+		try {
+			System.out.println( devices + " devices, " + UPLOADERS_PER_DEVICE + " upload threads and 1 query thread each, uploads held "
+					+ uploadDelay + " ms" );
+
+			// warm up
+			run("warmup", devices, port, seconds * 1000 / 5, false, 0, 0);
+
+			run("pool per device, 4 each", devices, port, seconds * 1000, false, 4, 0);
+			run("pool per device, 4 each, 1 for queries", devices, port, seconds * 1000, false, 4, 1);
+			run("shared pool, 8 connections", devices, port, seconds * 1000, true, 8, 0);
+			run("shared pool, 8 connections, 1 for queries", devices, port, seconds * 1000, true, 8, 1);
+		} finally {
+			server.stop(0);
+			((ExecutorService)server.getExecutor()).shutdown();
+		}
+	}
+
+	private static void run (String name, int devices, int port, long millis, boolean shared, int connections, int reserved) throws Exception {
+		if (connections == 0) {
+			connections = ConnectionPool.DEFAULT_MAX_CONNECTIONS;
+		}
+
+		List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+		List<SCRequester> requesters = new ArrayList<SCRequester>();
+		for (int i = 0; i < devices; i++) {
+			if (!shared || pools.isEmpty()) {
+				pools.add( new ConnectionPool(connections, ConnectionPool.DEFAULT_IDLE_TIMEOUT, reserved) );
+			}
+			requesters.add( new SCRequester("BENCH" + i, "key", "localhost:" + port, pools.get( pools.size() - 1 ), false) );
+		}
+
+		final byte [] upload = new byte [UPLOAD_BYTES];
+		final long end = System.nanoTime() + millis * 1000000;
+		final AtomicLong uploads = new AtomicLong();
+		final long [][] latencies = new long [devices][];
+		final int [] queries = new int [devices];
+
+		ExecutorService threads = Executors.newCachedThreadPool();
+		long start = System.nanoTime();
+		for (int d = 0; d < devices; d++) {
+			final SCRequester requester = requesters.get(d);
+			for (int u = 0; u < UPLOADERS_PER_DEVICE; u++) {
+				final String url = "sensors/bench/channels/ch" + u + "/streams/timeseries/data/";
+				threads.execute( new Runnable() {
+					@Override
+					public void run() {
+						try {
+							while (System.nanoTime() < end) {
+								requester.post(url, upload);
+								uploads.incrementAndGet();
+							}
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				});
+			}
+
+			final int device = d;
+			threads.execute( new Runnable() {
+				@Override
+				public void run() {
+					long [] times = new long [1024];
+					int count = 0;
+					try {
+						while (System.nanoTime() < end) {
+							long begin = System.nanoTime();
+							requester.get("sensors/bench/channels/ch0/streams/timeseries/data/");
+							if (count == times.length) {
+								times = Arrays.copyOf(times, count * 2);
+							}
+							times[count++] = System.nanoTime() - begin;
+							pause(10);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					latencies[device] = times;
+					queries[device] = count;
+				}
+			});
+		}
+		threads.shutdown();
+		threads.awaitTermination(10, TimeUnit.MINUTES);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		// combine every device's query times
+		int total = 0;
+		for (int count : queries) {
+			total += count;
+		}
+		long [] all = new long [total];
+		int off = 0;
+		for (int d = 0; d < devices; d++) {
+			System.arraycopy(latencies[d], 0, all, off, queries[d]);
+			off += queries[d];
+		}
+		Arrays.sort(all);
+
+		long opened = 0;
+		for (ConnectionPool pool : pools) {
+			opened += pool.getConnectionsOpened();
+			pool.close();
+		}
+
+		if (!name.equals("warmup") && total > 0) {
+			System.out.println( String.format( "%-44s query p50=%6.1f ms p99=%6.1f ms max=%6.1f ms  %5.0f uploads/s  %3d connections",
+					name, all[total / 2] / 1e6, all[(int)(total * 0.99)] / 1e6, all[total - 1] / 1e6, uploads.get() / elapsed, opened ));
+		}
+	}
+
+	private static void respond (HttpExchange exchange, byte [] data) throws IOException {
+		exchange.sendResponseHeaders(200, data.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(data);
+		out.close();
+	}
+
+	private static void drain (InputStream in) throws IOException {
+		byte [] buf = new byte [8192];
+		while (in.read(buf) != -1) {
+			// discard
+		}
+		in.close();
+	}
+
+	private static void pause (long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package microstrain.sensorcloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import microstrain.sensorcloud.http.ConnectionPool;
+import microstrain.sensorcloud.http.NioTransport;
+
+/**
+ * Measures requests per second against a <b>StandInServer</b> through a blocking <b>SCRequester</b>,
+ * which needs a thread per call in flight, and through an <b>NioRequester</b>, which keeps every call
+ * in flight on the transport's few threads. Both are given the same number of threads and the same
+ * number of devices, the calls are small metadata GETs so the client is what is being measured.
+ *
+ * Usage: NioBenchmark [devices] [threads] [calls in flight] [seconds]
+ */
+public class NioBenchmark {
+	private static final String URL = "sensors/";
+
+	public static void main (String [] args) throws Exception {
+		int devices = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int inFlight = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		StandInServer server = new StandInServer();
+		server.start();
+		try {
+			System.out.println( devices + " devices, " + threads + " threads, " + inFlight + " calls in flight, " + seconds + " s per run" );
+			List<String> serials = new ArrayList<String>();
+			for (int i = 0; i < devices; i++) {
+				String serial = "NIO" + i;
+				server.addDevice(serial, "key");
+				serials.add(serial);
+			}
+
+			ConnectionPool pool = new ConnectionPool();
+			List<Requester> blocking = new ArrayList<Requester>();
+			for (String serial : serials) {
+				blocking.add( server.getRequester(serial, "key", pool) );
+			}
+			runBlocking(blocking, threads, 1);
+			report( "blocking", runBlocking(blocking, threads, seconds), seconds, server );
+
+			// the same threads, but each one only hands calls over
+			NioTransport transport = new NioTransport(threads / 2 > 0 ? threads / 2 : 1, inFlight);
+			ExecutorService executor = Executors.newFixedThreadPool(threads - transport.getThreadCount() > 0 ? threads - transport.getThreadCount() : 1);
+			List<AsyncRequester> async = new ArrayList<AsyncRequester>();
+			for (String serial : serials) {
+				NioRequester requester = server.getNioRequester(serial, "key", transport);
+				requester.setExecutor(executor);
+				async.add( requester.async() );
+			}
+			runAsync(async, inFlight, 1);
+			report( "nio", runAsync(async, inFlight, seconds), seconds, server );
+			System.out.println( "nio connections opened " + transport.getConnectionsOpened() );
+
+			transport.close();
+			executor.shutdown();
+		} finally {
+			server.stop();
+		}
+	}
+
+	/* one blocking call per thread at a time */
+	private static long runBlocking (final List<Requester> requesters, int threads, int seconds) throws Exception {
+		final AtomicLong calls = new AtomicLong();
+		final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++) {
+			final int offset = t;
+			pool.execute( new Runnable() {
+				@Override
+				public void run() {
+					int i = offset;
+					try {
+						while (System.nanoTime() < end) {
+							requesters.get( i++ % requesters.size() ).get(URL);
+							calls.incrementAndGet();
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+		return calls.get();
+	}
+
+	/* keeps a fixed number of calls in flight from a single thread */
+	private static long runAsync (List<AsyncRequester> requesters, int inFlight, int seconds) throws Exception {
+		final AtomicLong calls = new AtomicLong(), failures = new AtomicLong();
+		final Semaphore permits = new Semaphore(inFlight);
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		RequestCallback<byte []> callback = new RequestCallback<byte []>() {
+			@Override
+			public void completed (byte [] result) {
+				calls.incrementAndGet();
+				permits.release();
+			}
+
+			@Override
+			public void failed (Exception e) {
+				if (failures.getAndIncrement() == 0) {
+					e.printStackTrace();
+				}
+				permits.release();
+			}
+		};
+		int i = 0;
+		while (System.nanoTime() < end) {
+			permits.acquire();
+			requesters.get( i++ % requesters.size() ).get(URL).addCallback(callback);
+		}
+		permits.acquire(inFlight);
+		if (failures.get() > 0) {
+			System.out.println( failures.get() + " calls failed" );
+		}
+		return calls.get();
+	}
+
+	private static void report (String name, long calls, int seconds, StandInServer server) {
+		System.out.println( String.format( "%-10s %,10.0f requests/s  (%d calls)", name, (double)calls / seconds, calls ) );
+	}
+}
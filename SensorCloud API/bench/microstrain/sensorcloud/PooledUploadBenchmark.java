@@ -0,0 +1,138 @@
+package microstrain.sensorcloud;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import microstrain.sensorcloud.http.ConnectionPool;
+import microstrain.sensorcloud.xdr.XDROutStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Sustained upload run against a local server, comparing a pool that never reuses
+ * connections with a pooled keep-alive transport. Every connection opened would
+ * cost a TLS handshake against the real service.
+ * 
+ * Usage: PooledUploadBenchmark [uploads] [channels] [connections]
+ */
+public class PooledUploadBenchmark {
+	
+	public static void main (String [] args) throws Exception {
+		int uploads = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int channels = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int connections = args.length > 2 ? Integer.parseInt(args[2]) : ConnectionPool.DEFAULT_MAX_CONNECTIONS;
+		
+		final Set<String> clients = Collections.synchronizedSet( new HashSet<String>() );
+		HttpServer server = HttpServer.create( new InetSocketAddress("localhost", 0), 0 );
+		final int port = server.getAddress().getPort();
+		
+		server.createContext( "/", new HttpHandler() {
+			@Override
+			public void handle (HttpExchange exchange) throws IOException {
+				clients.add( exchange.getRemoteAddress().toString() );
+				drain( exchange.getRequestBody() );
+				
+				if (exchange.getRequestURI().getPath().endsWith("/authenticate/")) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					XDROutStream xdr = new XDROutStream(bytes);
+					xdr.writeString("token");
+					xdr.writeString("localhost:" + port);
+					exchange.sendResponseHeaders(200, bytes.size());
+					OutputStream out = exchange.getResponseBody();
+					out.write( bytes.toByteArray() );
+					out.close();
+				} else {
+					exchange.sendResponseHeaders(201, -1);
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor( Executors.newFixedThreadPool(channels) );
+		server.start();
+		
+		byte [] payload = uploadPayload(1000);
+		
+		try {
+			System.out.println( "uploads=" + uploads + " channels=" + channels + " payload=" + payload.length + " bytes" );
+			
+			// warm up both paths before measuring
+			run( new ConnectionPool(connections, 0), port, uploads / 10, channels, payload, clients );
+			run( new ConnectionPool(connections, ConnectionPool.DEFAULT_IDLE_TIMEOUT), port, uploads / 10, channels, payload, clients );
+			
+			long [] fresh = run( new ConnectionPool(connections, 0), port, uploads, channels, payload, clients );
+			long [] pooled = run( new ConnectionPool(connections, ConnectionPool.DEFAULT_IDLE_TIMEOUT), port, uploads, channels, payload, clients );
+			
+			report( "no reuse", fresh, uploads );
+			report( "pooled", pooled, uploads );
+			System.out.println( "handshakes saved: " + (fresh[0] - pooled[0]) );
+		} finally {
+			server.stop(0);
+			((ExecutorService)server.getExecutor()).shutdown();
+		}
+	}
+	
+	/* returns connections opened by the client, connections seen by the server, elapsed nanos */
+	private static long [] run (ConnectionPool pool, int port, int uploads, int channels, final byte [] payload, Set<String> clients) throws Exception {
+		clients.clear();
+		final SCRequester requester = new SCRequester("BENCH", "key", "localhost:" + port, pool, false);
+		ExecutorService threads = Executors.newFixedThreadPool(channels);
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < uploads; i++) {
+			final String url = "sensors/bench/channels/ch" + (i % channels) + "/streams/timeseries/data/";
+			threads.execute( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						requester.post(url, payload);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		threads.shutdown();
+		threads.awaitTermination(10, TimeUnit.MINUTES);
+		long elapsed = System.nanoTime() - start;
+		pool.close();
+		
+		return new long [] { pool.getConnectionsOpened(), clients.size(), elapsed };
+	}
+	
+	private static void report (String name, long [] result, int uploads) {
+		double seconds = result[2] / 1e9;
+		System.out.println( String.format( "%-9s connections opened=%d seen by server=%d  %.0f uploads/s",
+				name, result[0], result[1], uploads / seconds ));
+	}
+	
+	private static byte [] uploadPayload (int points) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		XDROutStream xdr = new XDROutStream(bytes);
+		xdr.writeInt(1);
+		xdr.writeInt( SampleRate.HERTZ );
+		xdr.writeInt(100);
+		xdr.writeInt(points);
+		for (int i = 0; i < points; i++) {
+			xdr.writeHyper( 1000000000L + i * 10000000L );
+			xdr.writeFloat( i );
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static void drain (InputStream in) throws IOException {
+		byte [] buf = new byte [4096];
+		while (in.read(buf) != -1) {}
+		in.close();
+	}
+}
@@ -0,0 +1,167 @@
+package microstrain.sensorcloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures what an <b>UploadSpool</b> costs on the path that adds samples. Samples are appended straight to
+ * a spool log, a sample at a time and in bursts, and then added to a <b>TimeSeriesStream</b> with and without
+ * a spool, with uploads going to a requester that only counts the points. Finally a spool left with
+ * unacknowledged samples is replayed, as a process starting after a crash would.
+ *
+ * Usage: SpoolBenchmark [samples] [burst] [runs] [directory]
+ */
+public class SpoolBenchmark {
+	private static final long START = 1356998400000000000L;
+	private static final long INTERVAL = 100000L; // 10 kHz
+
+	public static void main (String [] args) throws Exception {
+		int samples = args.length > 0 ? Integer.parseInt(args[0]) : 20000000;
+		int burst = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		File directory = args.length > 3 ? new File(args[3]) : new File( System.getProperty("java.io.tmpdir"), "spool-bench" );
+
+		SampleRate rate = new SampleRate(10000, SampleRate.HERTZ);
+		System.out.println( samples + " samples, bursts of " + burst + ", spool in " + directory );
+		for (int i = 0; i <= runs; i++) {
+			String name = i == 0 ? "warmup" : "run " + i;
+			boolean report = i > 0;
+
+			delete(directory);
+			UploadSpool spool = new UploadSpool(directory);
+			SpoolLog log = spool.open("BENCH", "append", "single");
+			long start = System.nanoTime();
+			for (int j = 0; j < samples; j++) {
+				log.append(START + j * INTERVAL, j, rate);
+			}
+			report( report, name, "log, a sample at a time", samples, start );
+
+			log = spool.open("BENCH", "append", "burst");
+			long [] timestamps = new long [burst];
+			float [] values = new float [burst];
+			start = System.nanoTime();
+			for (int j = 0; j < samples; j += burst) {
+				fill(timestamps, values, j);
+				log.append(timestamps, values, 0, burst, rate);
+			}
+			report( report, name, "log, in bursts", samples, start );
+			spool.close();
+
+			delete(directory);
+			spool = new UploadSpool(directory);
+			for (boolean spooled : new boolean [] { false, true }) {
+				CountingRequester requester = new CountingRequester();
+				TimeSeriesStream stream = TimeSeriesStream.getEmptyInstanceOf("bench", spooled ? "spooled" : "plain", requester);
+				if (spooled) {
+					stream.setUploadSpool(spool);
+				}
+				start = System.nanoTime();
+				for (int j = 0; j < samples; j++) {
+					stream.addData(START + j * INTERVAL, j, rate);
+				}
+				report( report, name, "stream" + (spooled ? ", spooled" : "") + ", a sample at a time", samples, start );
+
+				start = System.nanoTime();
+				for (int j = 0; j < samples; j += burst) {
+					fill(timestamps, values, samples + j);
+					stream.addData(timestamps, values, 0, burst, rate);
+				}
+				report( report, name, "stream" + (spooled ? ", spooled" : "") + ", in bursts", samples, start );
+				stream.close();
+			}
+			spool.close();
+		}
+
+		// a spool the uploads never got to, read back by a new process
+		delete(directory);
+		UploadSpool spool = new UploadSpool(directory);
+		SpoolLog log = spool.open("BENCH", "bench", "replay");
+		long [] timestamps = new long [burst];
+		float [] values = new float [burst];
+		for (int j = 0; j < samples; j += burst) {
+			fill(timestamps, values, j);
+			log.append(timestamps, values, 0, burst, rate);
+		}
+		spool.close();
+		spool = new UploadSpool(directory);
+		CountingRequester requester = new CountingRequester();
+		TimeSeriesStream stream = TimeSeriesStream.getEmptyInstanceOf("bench", "replay", requester);
+		long start = System.nanoTime();
+		stream.setUploadSpool(spool);
+		report( true, "replay", "queued from the spool", samples, start );
+		stream.close();
+		report( true, "replay", "uploaded and deleted", (int)requester.points.get(), start );
+		spool.close();
+		delete(directory);
+	}
+
+	private static void fill (long [] timestamps, float [] values, int first) {
+		for (int i = 0; i < timestamps.length; i++) {
+			timestamps[i] = START + (first + i) * INTERVAL;
+			values[i] = first + i;
+		}
+	}
+
+	private static void report (boolean report, String name, String test, int samples, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (report) {
+			System.out.println( String.format( "%-7s %-38s %,14.0f samples/s", name, test, samples / seconds ) );
+		}
+	}
+
+	private static void delete (File file) {
+		File [] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Accepts every upload and counts the points in it
+	 */
+	private static class CountingRequester implements Requester {
+		final AtomicLong points = new AtomicLong();
+
+		@Override
+		public void post (String url, byte [] data) {
+			points.addAndGet( ((data[12] & 0xff) << 24) | ((data[13] & 0xff) << 16) | ((data[14] & 0xff) << 8) | (data[15] & 0xff) );
+		}
+
+		@Override
+		public void post (String url, Map<String, String> params, byte [] data) {
+			post(url, data);
+		}
+
+		@Override
+		public byte [] get (String url) throws IOException {
+			throw new IOException( "not served" );
+		}
+
+		@Override
+		public byte [] get (String url, Map<String, String> params) throws IOException {
+			throw new IOException( "not served" );
+		}
+
+		@Override
+		public void put (String url, byte [] data) {
+		}
+
+		@Override
+		public void put (String url, Map<String, String> params, byte [] data) {
+		}
+
+		@Override
+		public void delete (String url) {
+		}
+
+		@Override
+		public String getSerial() {
+			return "BENCH";
+		}
+	}
+}
@@ -0,0 +1,962 @@
+package microstrain.sensorcloud;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import microstrain.sensorcloud.http.BandwidthLimiter;
+import microstrain.sensorcloud.http.ConnectionPool;
+import microstrain.sensorcloud.http.NioTransport;
+import microstrain.sensorcloud.xdr.XDRInStream;
+import microstrain.sensorcloud.xdr.XDROutStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for SensorCloud that serves the XDR API this library uses from memory,
+ * so that <b>Device</b>, <b>Sensor</b>, <b>Channel</b>, <b>TimeSeriesStream</b> and <b>TimeSeriesIter</b>
+ * can be driven end to end on a single machine. It covers authentication, sensors, channels,
+ * attributes at every level and time-series data, answering errors with the same codes the
+ * real service uses so the library's exception mapping is exercised as well.
+ * <pre>
+ * StandInServer server = new StandInServer();
+ * server.addDevice("OAPI00TEST", "key");
+ * server.start();
+ * Device device = server.getDevice("OAPI00TEST", "key");
+ * ...
+ * server.stop();
+ * </pre>
+ * Faults can be injected to benchmark throughput and resilience: a fixed latency on every request,
+ * a bandwidth limit shared by all connections, a random failure rate and a number of failures in a row.
+ * Authentication is only ever slowed down, never failed, so that devices can always be retrieved.
+ * <p>
+ * Points within an upload are expected in time order, as <b>TimeSeriesStream</b> sends them.
+ * An upload whose time range overlaps points already stored is turned away with a 409 and stores nothing,
+ * the way the real service refuses to overwrite data.
+ */
+public class StandInServer {
+	private static final String ROOT = "/SensorCloud/devices/";
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private Map<String, DeviceState> devices;
+	private AtomicInteger tokens;
+
+	private volatile long latency;
+	private volatile BandwidthLimiter link;
+	private volatile double errorRate;
+	private volatile int errorStatus = 503;
+	private AtomicInteger failures;
+	private Random random;
+
+	private AtomicLong requests, bytesIn, bytesOut, injected;
+
+	/**
+	 * Creates a server on a free port of the loopback interface
+	 *
+	 * @throws IOException if the port cannot be bound
+	 */
+	public StandInServer() throws IOException {
+		this(0);
+	}
+
+	/**
+	 * @param port  port to listen on, zero for any free port
+	 *
+	 * @throws IOException if the port cannot be bound
+	 */
+	public StandInServer (int port) throws IOException {
+		// without it small responses sit out the delayed ack
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		devices = new HashMap<String, DeviceState>();
+		tokens = new AtomicInteger();
+		failures = new AtomicInteger();
+		random = new Random();
+		requests = new AtomicLong();
+		bytesIn = new AtomicLong();
+		bytesOut = new AtomicLong();
+		injected = new AtomicLong();
+
+		server = HttpServer.create( new InetSocketAddress("localhost", port), 0 );
+		server.createContext( ROOT, new HttpHandler() {
+			@Override
+			public void handle (HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				} catch (Exception e) {
+					try {
+						respondError(exchange, 500, "500-0", "stand-in failure: " + e);
+					} catch (IOException excep) {
+						// the response had already been started
+					}
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+	}
+
+	/**
+	 * Starts answering requests
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops the server, dropping any requests in progress
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return Address devices authenticate with, host and port
+	 */
+	public String getAddress() {
+		return "localhost:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Registers a device that can authenticate with the given key
+	 *
+	 * @param serial  device serial
+	 * @param key  authentication key
+	 */
+	public synchronized void addDevice (String serial, String key) {
+		devices.put( serial, new DeviceState(key) );
+	}
+
+	/**
+	 * Authenticates a device over plain HTTP, using a pool of its own
+	 *
+	 * @param serial  device serial
+	 * @param key  authentication key
+	 * @return The device
+	 *
+	 * @throws IOException
+	 */
+	public Device getDevice (String serial, String key) throws IOException {
+		return new Device( serial, getRequester(serial, key, new ConnectionPool()) );
+	}
+
+	/**
+	 * Authenticates a device over plain HTTP, for wrapping in decorators or sharing a pool
+	 *
+	 * @param serial  device serial
+	 * @param key  authentication key
+	 * @param pool  pool the requests are sent over
+	 * @return Requester for the device
+	 *
+	 * @throws IOException
+	 */
+	public SCRequester getRequester (String serial, String key, ConnectionPool pool) throws IOException {
+		return new SCRequester( serial, key, getAddress(), pool, false );
+	}
+
+	/**
+	 * Starts a device over plain HTTP with its cached token, authenticating only if there is none
+	 *
+	 * @param serial  device serial
+	 * @param key  authentication key
+	 * @param pool  pool the requests are sent over
+	 * @param cache  cache the device's tokens are kept in
+	 * @return Requester for the device
+	 *
+	 * @throws IOException
+	 */
+	public SCRequester getRequester (String serial, String key, ConnectionPool pool, TokenCache cache) throws IOException {
+		return new SCRequester( serial, key, getAddress(), pool, false, cache );
+	}
+
+	/**
+	 * Authenticates a device over plain HTTP through a non-blocking transport
+	 *
+	 * @param serial  device serial
+	 * @param key  authentication key
+	 * @param transport  transport the requests are sent through
+	 * @return Requester for the device
+	 *
+	 * @throws IOException
+	 */
+	public NioRequester getNioRequester (String serial, String key, NioTransport transport) throws IOException {
+		return new NioRequester( serial, key, getAddress(), transport, false );
+	}
+
+	/**
+	 * Makes every request take at least this long before it is answered
+	 *
+	 * @param millis  added latency in milliseconds, zero for none
+	 */
+	public void setLatency (long millis) {
+		this.latency = millis;
+	}
+
+	/**
+	 * Limits the combined rate of request and response bodies across every connection
+	 *
+	 * @param bytesPerSecond  link rate, zero for no limit
+	 */
+	public void setBandwidth (long bytesPerSecond) {
+		this.link = bytesPerSecond > 0 ? new BandwidthLimiter(bytesPerSecond, Math.min(bytesPerSecond, 64 * 1024)) : null;
+	}
+
+	/**
+	 * Fails a random fraction of the requests with the error status
+	 *
+	 * @param rate  fraction of requests that fail, zero for none
+	 */
+	public void setErrorRate (double rate) {
+		this.errorRate = rate;
+	}
+
+	/**
+	 * @param status  HTTP status injected failures are answered with, 503 by default
+	 */
+	public void setErrorStatus (int status) {
+		this.errorStatus = status;
+	}
+
+	/**
+	 * Fails the next requests with the error status, on top of any random failures
+	 *
+	 * @param count  number of requests to fail
+	 */
+	public void failNext (int count) {
+		failures.set(count);
+	}
+
+	/**
+	 * Invalidates every token handed out so far, the next request of each device is rejected with 401
+	 */
+	public synchronized void expireTokens() {
+		for (DeviceState device : devices.values()) {
+			device.token = null;
+		}
+	}
+
+	/**
+	 * @return Number of requests answered, authentication included
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return Number of requests failed on purpose
+	 */
+	public long getInjectedFailures() {
+		return injected.get();
+	}
+
+	/**
+	 * @return Bytes of request bodies received as sent, compressed or not
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	/**
+	 * @return Bytes of response bodies sent as sent, compressed or not
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * @param serial  device serial
+	 * @param sensor  sensor name
+	 * @param channel  channel name
+	 * @return Number of points stored for the channel, zero if it does not exist
+	 */
+	public long getPointCount (String serial, String sensor, String channel) {
+		ChannelState state;
+		synchronized (this) {
+			DeviceState device = devices.get(serial);
+			SensorState sensorState = device != null ? device.sensors.get(sensor) : null;
+			state = sensorState != null ? sensorState.channels.get(channel) : null;
+		}
+		if (state == null) {
+			return 0;
+		}
+		synchronized (state) {
+			long count = 0;
+			for (Segment segment : state.data.values()) {
+				count += segment.timestamps.length;
+			}
+			return count;
+		}
+	}
+
+	private void serve (HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		String method = exchange.getRequestMethod();
+		String [] path = split( exchange.getRequestURI().getPath().substring( ROOT.length() ));
+		Map<String, String> query = parseQuery( exchange.getRequestURI().getRawQuery() );
+		byte [] body = readBody(exchange);
+
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		if (path.length == 0) {
+			respondError(exchange, 404, "404-0", "resource not found");
+			return;
+		}
+		DeviceState device;
+		synchronized (this) {
+			device = devices.get(path[0]);
+		}
+		if (device == null) {
+			respondError(exchange, 404, "404-0", "device not found");
+			return;
+		}
+
+		if (path.length == 2 && path[1].equals("authenticate")) {
+			authenticate(exchange, device, query);
+			return;
+		}
+		if (shouldFail()) {
+			injected.incrementAndGet();
+			respondError(exchange, errorStatus, errorStatus + "-0", "injected failure");
+			return;
+		}
+		boolean authorized;
+		synchronized (this) {
+			authorized = device.token != null && device.token.equals( query.get("auth_token") );
+		}
+		if (!authorized) {
+			respondError(exchange, 401, "401-0", "invalid authentication token");
+			return;
+		}
+
+		if (path.length >= 2 && path[1].equals("attributes")) {
+			attributes(exchange, method, device.attributes, path, 2, body);
+		} else if (path.length >= 2 && path[1].equals("sensors")) {
+			sensors(exchange, method, device, path, body, query);
+		} else {
+			respondError(exchange, 404, "404-0", "resource not found");
+		}
+	}
+
+	private boolean shouldFail() {
+		while (true) {
+			int remaining = failures.get();
+			if (remaining <= 0) {
+				break;
+			}
+			if (failures.compareAndSet(remaining, remaining - 1)) {
+				return true;
+			}
+		}
+		double errorRate = this.errorRate;
+		if (errorRate <= 0) {
+			return false;
+		}
+		synchronized (random) {
+			return random.nextDouble() < errorRate;
+		}
+	}
+
+	private void authenticate (HttpExchange exchange, DeviceState device, Map<String, String> query) throws IOException {
+		if (!device.key.equals( query.get("key") )) {
+			respondError(exchange, 401, "401-1", "invalid authentication key");
+			return;
+		}
+		String token = "standin-" + tokens.incrementAndGet();
+		synchronized (this) {
+			device.token = token;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		XDROutStream xdr = new XDROutStream(bytes);
+		xdr.writeString(token);
+		xdr.writeString( getAddress() );
+		respond(exchange, 200, bytes.toByteArray());
+	}
+
+	/* everything under sensors/ */
+	private void sensors (HttpExchange exchange, String method, DeviceState device, String [] path, byte [] body, Map<String, String> query) throws IOException {
+		if (path.length == 2) {
+			if (!method.equals("GET")) {
+				respondError(exchange, 405, "405-0", "method not allowed");
+				return;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			XDROutStream xdr = new XDROutStream(bytes);
+			synchronized (this) {
+				xdr.writeInt(1);
+				xdr.writeInt( device.sensors.size() );
+				for (Map.Entry<String, SensorState> entry : device.sensors.entrySet()) {
+					SensorState sensor = entry.getValue();
+					xdr.writeString( entry.getKey() );
+					xdr.writeString( sensor.type );
+					xdr.writeString( sensor.label );
+					xdr.writeString( sensor.description );
+					writeChannels(xdr, sensor);
+				}
+			}
+			respond(exchange, 200, bytes.toByteArray());
+			return;
+		}
+
+		String name = path[2];
+		SensorState sensor;
+		synchronized (this) {
+			sensor = device.sensors.get(name);
+		}
+
+		if (path.length == 3) {
+			if (method.equals("PUT")) {
+				XDRInStream xdr = version(body);
+				SensorState created = new SensorState( xdr.readString(), xdr.readString(), xdr.readString() );
+				if (putIfAbsent(device.sensors, name, created)) {
+					respond(exchange, 201, null);
+				} else {
+					respondError(exchange, 400, "400-1", "sensor " + name + " already exists");
+				}
+			} else if (sensor == null) {
+				respondError(exchange, 404, "404-1", "sensor " + name + " not found");
+			} else if (method.equals("GET")) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				XDROutStream xdr = new XDROutStream(bytes);
+				synchronized (this) {
+					xdr.writeInt(1);
+					xdr.writeString( sensor.type );
+					xdr.writeString( sensor.label );
+					xdr.writeString( sensor.description );
+				}
+				respond(exchange, 200, bytes.toByteArray());
+			} else if (method.equals("POST")) {
+				XDRInStream xdr = version(body);
+				synchronized (this) {
+					sensor.type = xdr.readString();
+					sensor.label = xdr.readString();
+					sensor.description = xdr.readString();
+				}
+				respond(exchange, 201, null);
+			} else if (method.equals("DELETE")) {
+				boolean empty;
+				synchronized (this) {
+					empty = sensor.channels.isEmpty();
+					if (empty) {
+						device.sensors.remove(name);
+					}
+				}
+				if (empty) {
+					respond(exchange, 204, null);
+				} else {
+					respondError(exchange, 400, "400-9", "sensor " + name + " contains channels");
+				}
+			} else {
+				respondError(exchange, 405, "405-0", "method not allowed");
+			}
+			return;
+		}
+
+		if (sensor == null) {
+			respondError(exchange, 404, "404-1", "sensor " + name + " not found");
+		} else if (path[3].equals("attributes")) {
+			attributes(exchange, method, sensor.attributes, path, 4, body);
+		} else if (path[3].equals("channels")) {
+			channels(exchange, method, sensor, path, body, query);
+		} else {
+			respondError(exchange, 404, "404-0", "resource not found");
+		}
+	}
+
+	/* everything under sensors/<sensor>/channels/ */
+	private void channels (HttpExchange exchange, String method, SensorState sensor, String [] path, byte [] body, Map<String, String> query) throws IOException {
+		if (path.length == 4) {
+			if (!method.equals("GET")) {
+				respondError(exchange, 405, "405-0", "method not allowed");
+				return;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			XDROutStream xdr = new XDROutStream(bytes);
+			synchronized (this) {
+				xdr.writeInt(1);
+				writeChannels(xdr, sensor);
+			}
+			respond(exchange, 200, bytes.toByteArray());
+			return;
+		}
+
+		String name = path[4];
+		ChannelState channel;
+		synchronized (this) {
+			channel = sensor.channels.get(name);
+		}
+
+		if (path.length == 5) {
+			if (method.equals("PUT")) {
+				XDRInStream xdr = version(body);
+				ChannelState created = new ChannelState( xdr.readString(), xdr.readString() );
+				if (putIfAbsent(sensor.channels, name, created)) {
+					respond(exchange, 201, null);
+				} else {
+					respondError(exchange, 400, "400-2", "channel " + name + " already exists");
+				}
+			} else if (channel == null) {
+				respondError(exchange, 404, "404-2", "channel " + name + " not found");
+			} else if (method.equals("POST")) {
+				XDRInStream xdr = version(body);
+				synchronized (this) {
+					channel.label = xdr.readString();
+					channel.description = xdr.readString();
+				}
+				respond(exchange, 201, null);
+			} else if (method.equals("DELETE")) {
+				synchronized (this) {
+					sensor.channels.remove(name);
+				}
+				respond(exchange, 204, null);
+			} else {
+				respondError(exchange, 405, "405-0", "method not allowed");
+			}
+			return;
+		}
+
+		if (channel == null) {
+			respondError(exchange, 404, "404-2", "channel " + name + " not found");
+		} else if (path[5].equals("attributes")) {
+			attributes(exchange, method, channel.attributes, path, 6, body);
+		} else if (path.length >= 7 && path[5].equals("streams") && path[6].equals("timeseries")) {
+			if (path.length == 7 && method.equals("GET")) {
+				timeSeries(exchange, channel);
+			} else if (path.length == 8 && path[7].equals("data") && method.equals("POST")) {
+				addData(exchange, channel, body);
+			} else if (path.length == 8 && path[7].equals("data") && method.equals("GET")) {
+				getData(exchange, channel, query);
+			} else {
+				respondError(exchange, 405, "405-0", "method not allowed");
+			}
+		} else {
+			respondError(exchange, 404, "404-0", "resource not found");
+		}
+	}
+
+	/* the channel list shared by the sensors and channels responses, each channel's stream info is its time series header */
+	private void writeChannels (XDROutStream xdr, SensorState sensor) throws IOException {
+		xdr.writeInt( sensor.channels.size() );
+		for (Map.Entry<String, ChannelState> entry : sensor.channels.entrySet()) {
+			ChannelState channel = entry.getValue();
+			xdr.writeString( entry.getKey() );
+			xdr.writeString( channel.label );
+			xdr.writeString( channel.description );
+
+			byte [] info = channel.timeSeriesInfo();
+			if (info == null) {
+				xdr.writeInt(0);
+			} else {
+				xdr.writeInt(1);
+				xdr.writeString("TS_K");
+				xdr.writeOpaque(info);
+			}
+		}
+	}
+
+	/* attributes of a device, sensor or channel, path[index] is the attribute name if there is one */
+	private void attributes (HttpExchange exchange, String method, Map<String, Attribute> attributes, String [] path, int index, byte [] body) throws IOException {
+		if (path.length == index) {
+			if (method.equals("GET")) {
+				AttributeMap map = new AttributeMap();
+				synchronized (this) {
+					map.putAll(attributes);
+				}
+				respond(exchange, 200, map.toXDR());
+			} else if (method.equals("POST")) {
+				AttributeMap map = AttributeMap.getInstanceOf(body);
+				synchronized (this) {
+					attributes.putAll(map);
+				}
+				respond(exchange, 201, null);
+			} else {
+				respondError(exchange, 405, "405-0", "method not allowed");
+			}
+			return;
+		}
+
+		String name = path[index];
+		Attribute attribute;
+		synchronized (this) {
+			attribute = attributes.get(name);
+		}
+		if (method.equals("POST")) {
+			if (putIfAbsent(attributes, name, Attribute.getInstanceOf(body))) {
+				respond(exchange, 201, null);
+			} else {
+				respondError(exchange, 400, "400-3", "attribute " + name + " already exists");
+			}
+		} else if (attribute == null) {
+			respondError(exchange, 404, "404-4", "attribute " + name + " not found");
+		} else if (method.equals("GET")) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			XDROutStream xdr = new XDROutStream(bytes);
+			xdr.writeInt(1);
+			xdr.writeInt( attribute.getType() );
+			xdr.writeOpaque( attribute.getValueBytes() );
+			respond(exchange, 200, bytes.toByteArray());
+		} else if (method.equals("DELETE")) {
+			synchronized (this) {
+				attributes.remove(name);
+			}
+			respond(exchange, 204, null);
+		} else {
+			respondError(exchange, 405, "405-0", "method not allowed");
+		}
+	}
+
+	private void timeSeries (HttpExchange exchange, ChannelState channel) throws IOException {
+		byte [] info = channel.timeSeriesInfo();
+		if (info == null) {
+			respondError(exchange, 404, "404-3", "channel has no time series");
+		} else {
+			respond(exchange, 200, info);
+		}
+	}
+
+	/* an upload, a header giving the sample rate and point count followed by the points */
+	private void addData (HttpExchange exchange, ChannelState channel, byte [] body) throws IOException {
+		XDRInStream xdr = version(body);
+		int rateType = xdr.readInt();
+		int rate = xdr.readInt();
+		int count = xdr.readInt();
+
+		Segment segment = new Segment(rateType, rate, count);
+		for (int i = 0; i < count; i++) {
+			segment.timestamps[i] = xdr.readHyper();
+			segment.values[i] = xdr.readFloat();
+		}
+		boolean stored = true;
+		if (count > 0) {
+			synchronized (channel) {
+				stored = !channel.overlaps(segment);
+				if (stored) {
+					channel.data.put( segment.timestamps[0], segment );
+				}
+			}
+		}
+		if (stored) {
+			respond(exchange, 201, null);
+		} else {
+			respondError(exchange, 409, "409-0", "data already exists between " + segment.timestamps[0] + " and " + segment.last());
+		}
+	}
+
+	/* the points in range, with a zero timestamp followed by the rate type and rate wherever the sample rate changes */
+	private void getData (HttpExchange exchange, ChannelState channel, Map<String, String> query) throws IOException {
+		long start = parseLong( query.get("starttime"), 0 );
+		long end = parseLong( query.get("endtime"), Long.MAX_VALUE );
+		int [] only = parseRate( query.get("specificsamplerate") );
+
+		// segments are immutable once stored, only the map needs the lock
+		List<Segment> segments = new ArrayList<Segment>();
+		synchronized (channel) {
+			Long first = channel.data.floorKey(start);
+			for (Segment segment : channel.data.tailMap( first != null ? first : start ).values()) {
+				if (segment.timestamps[0] > end) {
+					break;
+				}
+				if (only == null || (segment.rateType == only[0] && segment.rate == only[1])) {
+					segments.add(segment);
+				}
+			}
+		}
+
+		boolean any = false;
+		for (Segment segment : segments) {
+			if (segment.last() >= start && segment.timestamps[0] <= end) {
+				any = true;
+				break;
+			}
+		}
+		if (!any) {
+			respondError(exchange, 404, "404-3", "no data between " + start + " and " + end);
+			return;
+		}
+
+		OutputStream out = openResponse(exchange, 200);
+		try {
+			XDROutStream xdr = new XDROutStream(out);
+			int rateType = -1, rate = -1;
+			for (Segment segment : segments) {
+				for (int i = 0; i < segment.timestamps.length; i++) {
+					long timestamp = segment.timestamps[i];
+					if (timestamp < start || timestamp > end) {
+						continue;
+					}
+					if (segment.rateType != rateType || segment.rate != rate) {
+						rateType = segment.rateType;
+						rate = segment.rate;
+						xdr.writeHyper(0);
+						xdr.writeInt(rateType);
+						xdr.writeInt(rate);
+					}
+					xdr.writeHyper(timestamp);
+					xdr.writeFloat( segment.values[i] );
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private byte [] readBody (HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		BandwidthLimiter link = this.link;
+		if (link != null) {
+			in = link.wrap(in);
+		}
+		byte [] raw = readAll(in);
+		bytesIn.addAndGet( raw.length );
+
+		if ("gzip".equals( exchange.getRequestHeaders().getFirst("Content-Encoding") )) {
+			return readAll( new GZIPInputStream( new ByteArrayInputStream(raw) ));
+		}
+		return raw;
+	}
+
+	/* a response with a small body, or none if data is null */
+	private void respond (HttpExchange exchange, int status, byte [] data) throws IOException {
+		if (data == null) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		OutputStream out = openResponse(exchange, status);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void respondError (HttpExchange exchange, int status, String code, String message) throws IOException {
+		String json = "{\"errorcode\":\"" + code + "\",\"message\":\"" + message.replace("\"", "'") + "\"}";
+		respond(exchange, status, json.getBytes("UTF-8"));
+	}
+
+	/* a chunked body, gzipped if the client accepts it and throttled by the link */
+	private OutputStream openResponse (HttpExchange exchange, int status) throws IOException {
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		boolean gzip = accept != null && accept.contains("gzip");
+		if (gzip) {
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.sendResponseHeaders(status, 0);
+
+		OutputStream out = new WireOutputStream( exchange.getResponseBody() );
+		if (gzip) {
+			out = new GZIPOutputStream(out, 8192);
+		}
+		return new BufferedOutputStream(out, 8192);
+	}
+
+	/* every map of the stored state is guarded by the server */
+	private synchronized <V> boolean putIfAbsent (Map<String, V> map, String name, V value) {
+		if (map.containsKey(name)) {
+			return false;
+		}
+		map.put(name, value);
+		return true;
+	}
+
+	private static XDRInStream version (byte [] body) throws IOException {
+		XDRInStream xdr = new XDRInStream( new ByteArrayInputStream(body) );
+		int version = xdr.readInt();
+		if (version != 1) {
+			throw new IOException( "Version " + version + " is not supported" );
+		}
+		return xdr;
+	}
+
+	private static String [] split (String path) {
+		List<String> parts = new ArrayList<String>();
+		for (String part : path.split("/")) {
+			if (part.length() > 0) {
+				parts.add(part);
+			}
+		}
+		return parts.toArray( new String [parts.size()] );
+	}
+
+	private static Map<String, String> parseQuery (String query) {
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null) {
+			return params;
+		}
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) {
+				params.put( pair.substring(0, eq), pair.substring(eq + 1) );
+			}
+		}
+		return params;
+	}
+
+	private static long parseLong (String value, long missing) {
+		return value == null ? missing : Long.parseLong(value);
+	}
+
+	/* "10-hertz" or "5-seconds" as the rate type and rate */
+	private static int [] parseRate (String value) {
+		if (value == null) {
+			return null;
+		}
+		int dash = value.indexOf('-');
+		int rate = Integer.parseInt( value.substring(0, dash) );
+		int type = value.substring(dash + 1).equals("hertz") ? SampleRate.HERTZ : SampleRate.SECONDS;
+		return new int [] {type, rate};
+	}
+
+	private static byte [] readAll (InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte [] buf = new byte [8192];
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			bytes.write(buf, 0, read);
+		}
+		in.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Counts and throttles the bytes of a response as they are written
+	 */
+	private class WireOutputStream extends FilterOutputStream {
+		WireOutputStream (OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write (int b) throws IOException {
+			write( new byte [] {(byte)b}, 0, 1 );
+		}
+
+		@Override
+		public void write (byte [] b, int off, int len) throws IOException {
+			BandwidthLimiter link = StandInServer.this.link;
+			for (int end = off + len; off < end; ) {
+				int chunk = Math.min(8192, end - off);
+				if (link != null) {
+					link.acquire(chunk);
+				}
+				out.write(b, off, chunk);
+				bytesOut.addAndGet(chunk);
+				off += chunk;
+			}
+		}
+	}
+
+	private static class DeviceState {
+		String key, token;
+		Map<String, Attribute> attributes = new TreeMap<String, Attribute>();
+		Map<String, SensorState> sensors = new LinkedHashMap<String, SensorState>();
+
+		DeviceState (String key) {
+			this.key = key;
+		}
+	}
+
+	private static class SensorState {
+		String type, label, description;
+		Map<String, Attribute> attributes = new TreeMap<String, Attribute>();
+		Map<String, ChannelState> channels = new LinkedHashMap<String, ChannelState>();
+
+		SensorState (String type, String label, String description) {
+			this.type = type;
+			this.label = label;
+			this.description = description;
+		}
+	}
+
+	private static class ChannelState {
+		String label, description;
+		Map<String, Attribute> attributes = new TreeMap<String, Attribute>();
+		TreeMap<Long, Segment> data = new TreeMap<Long, Segment>();
+
+		ChannelState (String label, String description) {
+			this.label = label;
+			this.description = description;
+		}
+
+		/* whether a stored upload shares any of the time range of another, called holding the lock */
+		boolean overlaps (Segment segment) {
+			Map.Entry<Long, Segment> before = data.floorEntry( segment.timestamps[0] );
+			if (before != null && before.getValue().last() >= segment.timestamps[0]) {
+				return true;
+			}
+			Long after = data.ceilingKey( segment.timestamps[0] );
+			return after != null && after <= segment.last();
+		}
+
+		/* version, start and end time of the stored points, null if there are none */
+		byte [] timeSeriesInfo() throws IOException {
+			long start, end = 0;
+			synchronized (this) {
+				if (data.isEmpty()) {
+					return null;
+				}
+				start = data.firstKey();
+				for (Segment segment : data.values()) {
+					end = Math.max( end, segment.last() );
+				}
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			XDROutStream xdr = new XDROutStream(bytes);
+			xdr.writeInt(1);
+			xdr.writeHyper(start);
+			xdr.writeHyper(end);
+			return bytes.toByteArray();
+		}
+	}
+
+	/**
+	 * The points of a single upload, all at one sample rate
+	 */
+	private static class Segment {
+		int rateType, rate;
+		long [] timestamps;
+		float [] values;
+
+		Segment (int rateType, int rate, int count) {
+			this.rateType = rateType;
+			this.rate = rate;
+			this.timestamps = new long [count];
+			this.values = new float [count];
+		}
+
+		long last() {
+			return timestamps[ timestamps.length - 1 ];
+		}
+	}
+}
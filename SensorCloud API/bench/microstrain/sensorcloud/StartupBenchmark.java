@@ -0,0 +1,101 @@
+package microstrain.sensorcloud;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import microstrain.sensorcloud.http.ConnectionPool;
+
+/**
+ * Measures how long a gateway takes to bring its devices up against a <b>StandInServer</b> with
+ * a fixed latency on every request: once without a <b>TokenCache</b>, authenticating each device in
+ * turn, and once with the cache the first run filled, starting every device from its cached token.
+ * The tokens are then expired on the server to time the devices authenticating again on their
+ * first rejected request, all at once.
+ *
+ * Usage: StartupBenchmark [devices] [latency ms] [threads]
+ */
+public class StartupBenchmark {
+	public static void main (String [] args) throws Exception {
+		int devices = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		long latency = args.length > 1 ? Long.parseLong(args[1]) : 5;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+
+		File file = File.createTempFile("startup", ".sccache");
+		file.delete();
+		char [] passphrase = "benchmark".toCharArray();
+
+		StandInServer server = new StandInServer();
+		server.start();
+		try {
+			List<String> serials = new ArrayList<String>();
+			for (int i = 0; i < devices; i++) {
+				serials.add("START" + i);
+				server.addDevice("START" + i, "key");
+			}
+			server.setLatency(latency);
+			System.out.println( devices + " devices, " + latency + " ms latency" );
+
+			// a cold start fills the cache
+			TokenCache cache = new TokenCache(file, passphrase);
+			long start = System.nanoTime(), before = server.getRequestCount();
+			ConnectionPool pool = new ConnectionPool();
+			for (String serial : serials) {
+				server.getRequester(serial, "key", pool, cache);
+			}
+			report( "cold start", start, server.getRequestCount() - before );
+			cache.save();
+
+			// a restart, the cache is read back from the file
+			start = System.nanoTime();
+			before = server.getRequestCount();
+			cache = new TokenCache(file, passphrase);
+			pool = new ConnectionPool();
+			final List<Requester> requesters = new ArrayList<Requester>();
+			for (String serial : serials) {
+				requesters.add( server.getRequester(serial, "key", pool, cache) );
+			}
+			report( "cached start", start, server.getRequestCount() - before );
+
+			start = System.nanoTime();
+			before = server.getRequestCount();
+			firstRequests(requesters, threads);
+			report( "first requests", start, server.getRequestCount() - before );
+
+			server.expireTokens();
+			start = System.nanoTime();
+			before = server.getRequestCount();
+			firstRequests(requesters, threads);
+			report( "reauthenticated", start, server.getRequestCount() - before );
+		} finally {
+			server.stop();
+			file.delete();
+		}
+	}
+
+	/* one GET per device spread over the threads */
+	private static void firstRequests (final List<Requester> requesters, int threads) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for (final Requester requester : requesters) {
+			pool.execute( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						requester.get("sensors/");
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(10, TimeUnit.MINUTES);
+	}
+
+	private static void report (String name, long start, long requests) {
+		System.out.println( String.format( "%-16s %8.0f ms  %d requests", name, (System.nanoTime() - start) / 1e6, requests ) );
+	}
+}
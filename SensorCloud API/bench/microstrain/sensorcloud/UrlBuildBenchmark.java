@@ -0,0 +1,124 @@
+package microstrain.sensorcloud;
+
+import java.net.URL;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Cost of building the request target on the upload hot path, comparing the old per call concatenation
+ * and <b>java.net.URL</b> parse with the prebuilt path and single pass builder <b>SCRequester</b> now uses.
+ * Each case is warmed up and then timed over several iterations, the results are consumed so the JIT cannot drop the work.
+ *
+ * Usage: UrlBuildBenchmark [iterations] [milliseconds per iteration]
+ */
+public class UrlBuildBenchmark {
+	private static final String SERIAL = "OAPI00Q8VL4UA17Z";
+	private static final String SENSOR = "accel-node-42";
+	private static final String CHANNEL = "ch1";
+	private static final String TOKEN = "cd1b1d7a3f52400e8a4ec1ee3bca5c4b";
+
+	private static long sink;
+
+	public static void main (String [] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+		final String baseURL = "https://dsx.sensorcloud.microstrain.com/SensorCloud/devices/" + SERIAL + "/";
+		final String authURL = "version=1&auth_token=" + TOKEN;
+		final TokenManager.Token token = new TokenManager.Token( TOKEN, "dsx.sensorcloud.microstrain.com", 443,
+				"/SensorCloud/devices/" + SERIAL + "/", authURL );
+		final String dataPath = "sensors/" + SENSOR + "/channels/" + CHANNEL + "/streams/timeseries/data/";
+		final Map<String, String> params = new TreeMap<String, String>();
+		params.put("starttime", "1356998400000000000");
+		params.put("endtime", "1357084800000000000");
+		params.put("showSampleRateBoundary", "true");
+
+		Case [] cases = new Case [] {
+			new Case("upload target, concat + URL parse") {
+				@Override
+				long run() throws Exception {
+					String url = "sensors/" + SENSOR + "/channels/" + CHANNEL + "/streams/timeseries/data/";
+					URL parsed = new URL( baseURL + url + "?" + authURL );
+					int port = parsed.getPort() != -1 ? parsed.getPort() : parsed.getDefaultPort();
+					return parsed.getHost().length() + port + parsed.getFile().length();
+				}
+			},
+			new Case("upload target, prebuilt path") {
+				@Override
+				long run() {
+					String target = SCRequester.buildTarget(token, dataPath);
+					return token.host.length() + token.port + target.length();
+				}
+			},
+			new Case("query params, += loop") {
+				@Override
+				long run() {
+					return oldAppendParams(dataPath, params).length();
+				}
+			},
+			new Case("query params, StringBuilder") {
+				@Override
+				long run() {
+					return SCRequester.appendParams(dataPath, params).length();
+				}
+			},
+		};
+
+		for (Case c : cases) {
+			c.measure(millis); // warm up
+		}
+		for (Case c : cases) {
+			double best = Double.MAX_VALUE, total = 0;
+			for (int i = 0; i < iterations; i++) {
+				double ns = c.measure(millis);
+				best = Math.min(best, ns);
+				total += ns;
+			}
+			System.out.println( String.format( "%-36s %8.1f ns/op avg  %8.1f ns/op best", c.name, total / iterations, best ));
+		}
+		System.out.println( "(sink " + sink + ")" );
+	}
+
+	/* the implementation SCRequester used before */
+	private static String oldAppendParams (String url, Map<String, String> params) {
+		url += "?";
+
+		Set<String> keys = params.keySet();
+		boolean first = true;
+		for (String key: keys) {
+			if (first) {
+				first = false;
+			} else {
+				url += "&";
+			}
+			url += key + "=" + params.get(key);
+		}
+
+		return url;
+	}
+
+	private static abstract class Case {
+		String name;
+
+		Case (String name) {
+			this.name = name;
+		}
+
+		abstract long run() throws Exception;
+
+		/* nanoseconds per call, calls are made in batches to keep the clock out of the measurement */
+		double measure (long millis) throws Exception {
+			long end = System.nanoTime() + millis * 1000000;
+			long calls = 0, result = 0, start = System.nanoTime(), now;
+			do {
+				for (int i = 0; i < 1000; i++) {
+					result += run();
+				}
+				calls += 1000;
+			} while ((now = System.nanoTime()) < end);
+			sink += result;
+			return (double)(now - start) / calls;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package microstrain.sensorcloud;
+
+import java.util.Map;
+
+/**
+ * Asynchronous counterpart to the <b>Requester</b>.
+ * Each call returns immediately with a future that completes once the server has responded.
+ * Failures are delivered through the future, an HTTP error is reported as an <b>SCHTTPException</b>.
+ */
+public interface AsyncRequester {
+	
+	/**
+	 * Performs an HTTP GET request at the given URL
+	 * 
+	 * @param url  address for the request starting after /devices/<device_name>/
+	 * @return Future for the data from the request
+	 */
+	public SCFuture<byte []> get (String url);
+	
+	
+	/**
+	 * Performs an HTTP GET request at the given URL with the included parameters
+	 * 
+	 * @param url  address for the request starting after /devices/<device_name>/
+	 * @param params  key-value pairs
+	 * @return Future for the data from the request
+	 */
+	public SCFuture<byte []> get (String url, Map <String,String> params);
+	
+	
+	/**
+	 * Performs an HTTP POST request at the given URL
+	 * 
+	 * @param url  address for the request starting after /devices/<device_name>/
+	 * @param data  data to be posted to the URL
+	 * @return Future that completes when the data has been accepted
+	 */
+	public SCFuture<Void> post (String url, byte [] data);
+	
+	
+	/**
+	 * Performs an HTTP POST request at the given URL with the included parameters
+	 * 
+	 * @param url  address for the request starting after /devices/<device_name>/
+	 * @param params  key-value pairs
+	 * @param data  data to be posted to the URL
+	 * @return Future that completes when the data has been accepted
+	 */
+	public SCFuture<Void> post (String url, Map <String,String> params, byte [] data);
+	
+	
+	/**
+	 * Performs an HTTP PUT request at the given URL
+	 * 
+	 * @param url  address for the request starting after /devices/<device_name>/
+	 * @param data  data to be put at the URL
+	 * @return Future that completes when the data has been accepted
+	 */
+	public SCFuture<Void> put (String url, byte [] data);
+	
+	
+	/**
+	 * Performs an HTTP PUT request at the given URL with the included parameters
+	 * 
+	 * @param url  address for the request starting after /devices/<device_name>/
+	 * @param params  key-value pairs
+	 * @param data  data to be put at the URL
+	 * @return Future that completes when the data has been accepted
+	 */
+	public SCFuture<Void> put (String url, Map <String,String> params, byte [] data);
+	
+	
+	/**
+	 * Performs an HTTP DELETE request at the given URL
+	 * 
+	 * @param url  address for the request starting after /devices/<device_name>/
+	 * @return Future that completes when the resource has been deleted
+	 */
+	public SCFuture<Void> delete (String url);
+	
+	
+	/**
+	 * @return Serial of the authorized device
+	 */
+	String getSerial();
+}
@@ -8,6 +8,8 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import microstrain.sensorcloud.exception.VersionNotSupportedException;
+import microstrain.sensorcloud.io.BufferPool;
+import microstrain.sensorcloud.io.PooledOutputStream;
 import microstrain.sensorcloud.xdr.XDRInStream;
 import microstrain.sensorcloud.xdr.XDROutStream;
 /**
@@ -183,14 +185,18 @@ public class Attribute {
 	 * @throws IOException
 	 */
 	public byte [] toXDR() throws IOException {
-		ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+		PooledOutputStream byteStream = new PooledOutputStream( BufferPool.getDefault(), 16 + value.length );
 		XDROutStream xdrStream = new XDROutStream(byteStream);
 		
-		xdrStream.writeInt(1);
-		xdrStream.writeInt( type );
-		xdrStream.writeOpaque(value);
+		try {
+			xdrStream.writeInt(1);
+			xdrStream.writeInt( type );
+			xdrStream.writeOpaque(value);
 			
-		return byteStream.toByteArray();
+			return byteStream.toByteArray();
+		} finally {
+			byteStream.close();
+		}
 	}
 	
 	 /**
@@ -1,12 +1,13 @@
 package microstrain.sensorcloud;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Set;
 import java.util.TreeMap;
 
 import microstrain.sensorcloud.exception.VersionNotSupportedException;
+import microstrain.sensorcloud.io.BufferPool;
+import microstrain.sensorcloud.io.PooledOutputStream;
 import microstrain.sensorcloud.xdr.XDRInStream;
 import microstrain.sensorcloud.xdr.XDROutStream;
 
@@ -31,18 +32,22 @@ public class AttributeMap extends TreeMap<String, Attribute> {
 		// iterating over the key set
 		Set <String> keys = super.keySet();
 		
-		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+		PooledOutputStream outStream = new PooledOutputStream( BufferPool.getDefault(), 1024 );
 		XDROutStream xdrStream = new XDROutStream( outStream );
 		
-		xdrStream.writeInt(1);
-		xdrStream.writeInt(keys.size()); // number of attributes
-		
-		for (String key : keys) {
-			xdrStream.writeInt( super.get(key).getType() );
-			xdrStream.writeString( key );
-			xdrStream.writeOpaque( super.get(key).getValueBytes() );
+		try {
+			xdrStream.writeInt(1);
+			xdrStream.writeInt(keys.size()); // number of attributes
+			
+			for (String key : keys) {
+				xdrStream.writeInt( super.get(key).getType() );
+				xdrStream.writeString( key );
+				xdrStream.writeOpaque( super.get(key).getValueBytes() );
+			}
+			return outStream.toByteArray();
+		} finally {
+			outStream.close();
 		}
-		return outStream.toByteArray();
 	}
 	
 	/**
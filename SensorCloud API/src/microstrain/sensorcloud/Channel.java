@@ -47,6 +47,11 @@ public class Channel {
 	 */
 	private String sensorName;
 	
+	/**
+	 * Path of the <b>Channel</b> relative to the device, built once since it is part of every request
+	 */
+	private String path;
+	
 	/** 
 	 * <b>Requester</b> authorized with the parent <b>Device</b> 
 	 */
@@ -67,6 +72,7 @@ public class Channel {
 		this.description = description;
 		this.sensorName = sensorName;
 		this.requester = requester;
+		this.path = "sensors/" + sensorName + "/channels/" + name + "/";
 	}
 	
 	/**
@@ -81,7 +87,7 @@ public class Channel {
 	 */
 	public TimeSeriesStream getTimeSeriesStream() throws IOException, InvalidRequestException {
 		try {
-			return TimeSeriesStream.getInstanceOf(requester.get("sensors/" + sensorName + "/channels/" + name + "/streams/timeseries/"), sensorName, name, requester);
+			return TimeSeriesStream.getInstanceOf(requester.get(path + "streams/timeseries/"), sensorName, name, requester);
 		} catch (SCHTTPException e) {
 			if (e.getStatusCode() == 404) {
 				return TimeSeriesStream.getEmptyInstanceOf(sensorName, name, requester);
@@ -93,6 +99,45 @@ public class Channel {
 		
 	}
 	
+	/**
+	 * Asynchronously get the <b>TimeSeriesStream</b> of the <b>Channel</b>.
+	 * Behaves like <b>getTimeSeriesStream</b>, failures are delivered through the future.
+	 * 
+	 * @return Future for the <b>Channel</b>'s data stream
+	 */
+	public SCFuture<TimeSeriesStream> getTimeSeriesStreamAsync() {
+		final SCFuture<TimeSeriesStream> future = new SCFuture<TimeSeriesStream>();
+		
+		ExecutorAsyncRequester.of(requester).get(path + "streams/timeseries/").addCallback( new RequestCallback<byte []>() {
+			@Override
+			public void completed (byte [] xdr) {
+				try {
+					future.complete( TimeSeriesStream.getInstanceOf(xdr, sensorName, name, requester) );
+				} catch (Exception e) {
+					future.fail(e);
+				}
+			}
+
+			@Override
+			public void failed (Exception e) {
+				if (!(e instanceof SCHTTPException)) {
+					future.fail(e);
+				} else if (((SCHTTPException)e).getStatusCode() == 404) {
+					future.complete( TimeSeriesStream.getEmptyInstanceOf(sensorName, name, requester) );
+				} else {
+					List<String> params = new LinkedList<String>();
+					params.add(name);
+					try {
+						future.fail( parseException((SCHTTPException)e, params) );
+					} catch (VersionNotSupportedException excep) {
+						future.fail(excep);
+					}
+				}
+			}
+		});
+		return future;
+	}
+	
 	/**
 	 * @return Unique identifier of the <b>Channel</b>
 	 */
@@ -147,7 +192,7 @@ public class Channel {
 	 */
 	public Attribute getAttribute (String name) throws IOException, InvalidRequestException {
 		try {
-			return Attribute.getInstanceOf( requester.get( "sensors/" + sensorName + "/channels/" + this.name + "/attributes/" + name + "/" ));
+			return Attribute.getInstanceOf( requester.get( path + "attributes/" + name + "/" ));
 		} catch (SCHTTPException e) {
 			List<String> params = new LinkedList<String>();
 			params.add(name);
@@ -166,7 +211,7 @@ public class Channel {
 	public AttributeMap getAllAttributes() throws IOException, InvalidRequestException {
 		AttributeMap map = null;
 		try {
-			map = AttributeMap.getInstanceOf( requester.get( "sensors/" + sensorName + "/channels/" + this.name + "/attributes/" ) );
+			map = AttributeMap.getInstanceOf( requester.get( path + "attributes/" ) );
 		} catch (SCHTTPException e) {
 			List<String> params = new LinkedList<String>();
 			params.add(name);
@@ -192,7 +237,7 @@ public class Channel {
 	 */
 	public void addAttribute (String name, Attribute attribute) throws IOException, InvalidRequestException {
 		try {
-			requester.post( "sensors/" + sensorName + "/channels/" + this.name + "/attributes/" + name + "/", attribute.toXDR() );
+			requester.post( path + "attributes/" + name + "/", attribute.toXDR() );
 		} catch (SCHTTPException e) {
 			List<String> params = new LinkedList<String>();
 			params.add( name );
@@ -210,7 +255,7 @@ public class Channel {
 	 */
 	public void bulkAddAttribute (AttributeMap attributes) throws IOException, InvalidRequestException {
 		try {
-			requester.post( "sensors/" + sensorName + "/channels/" + this.name + "/attributes/", attributes.toXDR() );
+			requester.post( path + "attributes/", attributes.toXDR() );
 		} catch (SCHTTPException e) {
 			List<String> params = new LinkedList<String>();
 			throw parseException(e, params);
@@ -227,7 +272,7 @@ public class Channel {
 	 */
 	public void deleteAttribute (String name) throws IOException, InvalidRequestException {
 		try {
-			requester.delete( "sensors/" + sensorName + "/channels/" + this.name + "/attributes/" + name + "/" );
+			requester.delete( path + "attributes/" + name + "/" );
 		} catch (SCHTTPException e) {
 			List<String> params = new LinkedList<String>();
 			params.add( name );
@@ -251,7 +296,7 @@ public class Channel {
 		xdrStream.writeString(description);
 
 		try {
-			requester.post( "sensors/" + sensorName + "/channels/" + name + "/", byteStream.toByteArray() );
+			requester.post( path, byteStream.toByteArray() );
 		} catch (SCHTTPException e) {
 			List<String> params = new LinkedList<String>();
 			params.add( name );
@@ -0,0 +1,133 @@
+package microstrain.sensorcloud;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+import microstrain.sensorcloud.exception.CircuitOpenException;
+import microstrain.sensorcloud.exception.SCHTTPException;
+
+/**
+ * A <b>Requester</b> that stops calling SensorCloud once it appears to be down.
+ * After a run of consecutive failures the circuit opens and every call fails straight away
+ * with a <b>CircuitOpenException</b>. Once the open time has passed a single call is let
+ * through as a probe, closing the circuit if it succeeds and opening it again if it fails.
+ * Only connection failures and 5xx or 429 responses count as failures, a rejected request
+ * says nothing about the health of the service.
+ */
+public class CircuitBreakerRequester extends RequesterDecorator {
+	/** Default number of consecutive failures that open the circuit */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+	/** Default milliseconds the circuit stays open before it is probed */
+	public static final long DEFAULT_OPEN_TIME = 30000;
+
+	private enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private int failureThreshold;
+	private long openTime;
+	private State state = State.CLOSED;
+	private int failures = 0;
+	private long retryAt = 0;
+
+	/**
+	 * Uses the default failure threshold and open time
+	 *
+	 * @param requester  requester the calls are passed on to
+	 */
+	public CircuitBreakerRequester (Requester requester) {
+		this(requester, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME);
+	}
+
+	/**
+	 * @param requester  requester the calls are passed on to
+	 * @param failureThreshold  number of consecutive failures that open the circuit
+	 * @param openTime  milliseconds the circuit stays open before it is probed
+	 */
+	public CircuitBreakerRequester (Requester requester, int failureThreshold, long openTime) {
+		super(requester);
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException( "Failure threshold must be at least 1" );
+		}
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+	}
+
+	/**
+	 * @return True if calls are currently being failed without being made
+	 */
+	public synchronized boolean isOpen() {
+		return state != State.CLOSED;
+	}
+
+	@Override
+	protected <T> T invoke (Call<T> call) throws IOException {
+		acquire();
+
+		// stays null if the call ends without saying anything about the service
+		Boolean failed = null;
+		try {
+			T result = call.execute( getRequester() );
+			failed = Boolean.FALSE;
+			return result;
+		} catch (IOException e) {
+			failed = isFailure(e);
+			throw e;
+		} catch (SCHTTPException e) {
+			failed = isFailure(e);
+			throw e;
+		} finally {
+			record(failed);
+		}
+	}
+
+	/* lets the call through or fails it, moving an expired open circuit to half open for one probe */
+	private synchronized void acquire() throws CircuitOpenException {
+		switch (state) {
+		case CLOSED:
+			return;
+		case OPEN:
+			if (System.currentTimeMillis() >= retryAt) {
+				state = State.HALF_OPEN;
+				return;
+			}
+			throw new CircuitOpenException(retryAt);
+		default:
+			// a probe is already on the wire
+			throw new CircuitOpenException(retryAt);
+		}
+	}
+
+	private synchronized void record (Boolean failed) {
+		if (failed == null) {
+			// let the next call probe instead
+			if (state == State.HALF_OPEN) {
+				state = State.OPEN;
+			}
+			return;
+		}
+		if (!failed) {
+			state = State.CLOSED;
+			failures = 0;
+			return;
+		}
+
+		failures++;
+		if (state == State.HALF_OPEN || failures >= failureThreshold) {
+			state = State.OPEN;
+			retryAt = System.currentTimeMillis() + openTime;
+		}
+	}
+
+	private static Boolean isFailure (Exception e) {
+		if (e instanceof SCHTTPException) {
+			int status = ((SCHTTPException)e).getStatusCode();
+			return status >= 500 || status == 429;
+		}
+		// the caller giving up says nothing about the service, a read timing out does
+		if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+			return null;
+		}
+		return Boolean.TRUE;
+	}
+}
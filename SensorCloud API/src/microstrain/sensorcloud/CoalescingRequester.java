@@ -0,0 +1,133 @@
+package microstrain.sensorcloud;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import microstrain.sensorcloud.exception.DeadlineExceededException;
+import microstrain.sensorcloud.http.Deadline;
+
+/**
+ * A <b>Requester</b> that merges identical GETs made at the same time into a single request.
+ * The first caller makes the request, anyone asking for the same url and parameters while it is
+ * in flight waits for it and gets a copy of the same response, or the same failure. Once the request
+ * has finished the next identical GET goes to the server again, nothing is cached.
+ * Dashboards polling the same channels from several threads then cost one request per poll.
+ * <p>
+ * Only whole-body GETs are merged, streamed downloads and every other method pass straight through.
+ * Wrap it around any retries so that the callers sharing a request share its retries as well.
+ */
+public class CoalescingRequester extends RequesterDecorator {
+	private ConcurrentMap<String, SCFuture<byte []>> inFlight;
+	private AtomicLong coalesced;
+
+	/**
+	 * @param requester  requester the calls are passed on to
+	 */
+	public CoalescingRequester (Requester requester) {
+		super(requester);
+		this.inFlight = new ConcurrentHashMap<String, SCFuture<byte []>>();
+		this.coalesced = new AtomicLong();
+	}
+
+	/**
+	 * @return Number of GETs answered by a request another caller made
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	@Override
+	public byte [] get (final String url) throws IOException {
+		return coalesce( url, new Call<byte []>("GET", url) {
+			@Override
+			public byte [] execute (Requester requester) throws IOException {
+				return requester.get(url);
+			}
+		});
+	}
+
+	@Override
+	public byte [] get (final String url, final Map<String, String> params) throws IOException {
+		return coalesce( Recording.target(url, params), new Call<byte []>("GET", url, params, null) {
+			@Override
+			public byte [] execute (Requester requester) throws IOException {
+				return requester.get(url, params);
+			}
+		});
+	}
+
+	@Override
+	protected <T> T invoke (Call<T> call) throws IOException {
+		return call.execute( getRequester() );
+	}
+
+	private byte [] coalesce (String target, Call<byte []> call) throws IOException {
+		SCFuture<byte []> flight = new SCFuture<byte []>();
+		SCFuture<byte []> existing = inFlight.putIfAbsent(target, flight);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			return copy( await(existing, target) );
+		}
+
+		byte [] result;
+		try {
+			result = call.execute( getRequester() );
+		} catch (IOException e) {
+			land(target, flight);
+			flight.fail(e);
+			throw e;
+		} catch (RuntimeException e) {
+			land(target, flight);
+			flight.fail(e);
+			throw e;
+		} catch (Error e) {
+			land(target, flight);
+			flight.fail( new IOException( "GET " + target + " failed", e ) );
+			throw e;
+		}
+
+		// the waiters share a copy so the caller is free to change the one it gets
+		land(target, flight);
+		flight.complete( copy(result) );
+		return result;
+	}
+
+	/* taken out before it completes so nobody joins a request that has already finished */
+	private void land (String target, SCFuture<byte []> flight) {
+		inFlight.remove(target, flight);
+	}
+
+	private static byte [] await (SCFuture<byte []> flight, String target) throws IOException {
+		Deadline deadline = Deadline.current();
+		try {
+			if (deadline == null) {
+				return flight.get();
+			}
+			return flight.get( deadline.remainingMillis(), TimeUnit.MILLISECONDS );
+		} catch (TimeoutException e) {
+			throw new DeadlineExceededException( "Deadline passed while waiting for GET " + target );
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while waiting for GET " + target );
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new IOException( cause.getMessage() );
+		}
+	}
+
+	private static byte [] copy (byte [] body) {
+		return body == null ? null : body.clone();
+	}
+}
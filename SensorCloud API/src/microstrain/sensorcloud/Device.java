@@ -168,6 +168,36 @@ public class Device {
 		}
 	}
 	
+	/**
+	 * Takes a snapshot of every sensor, channel and channel attribute on the device.
+	 * As many requests are made at once as the device's <b>GoverningRequester</b> lets through,
+	 * or <b>DeviceSnapshot.DEFAULT_CONCURRENCY</b> if it has none.
+	 * 
+	 * @return Snapshot of the device
+	 * 
+	 * @throws IOException
+	 * @throws InvalidRequestException
+	 */
+	public DeviceSnapshot snapshot() throws IOException, InvalidRequestException {
+		return snapshot( DeviceSnapshot.concurrencyOf(requester) );
+	}
+	
+	/**
+	 * Takes a snapshot of every sensor, channel and channel attribute on the device.
+	 * The channels of each sensor and the attributes of each channel are requested concurrently,
+	 * on the executor the device's asynchronous calls run on. Requests beyond what the device's
+	 * <b>GoverningRequester</b> lets through wait in its queue, asking for more gains nothing.
+	 * 
+	 * @param maxConcurrent  maximum number of requests in flight at once
+	 * @return Snapshot of the device
+	 * 
+	 * @throws IOException
+	 * @throws InvalidRequestException
+	 */
+	public DeviceSnapshot snapshot (int maxConcurrent) throws IOException, InvalidRequestException {
+		return DeviceSnapshot.take( this, maxConcurrent, ExecutorAsyncRequester.executorOf(requester) );
+	}
+	
 	/** 
 	 * @return Serial string
 	 */
@@ -0,0 +1,242 @@
+package microstrain.sensorcloud;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import microstrain.sensorcloud.exception.ChannelHasNoAttributesException;
+import microstrain.sensorcloud.exception.InvalidRequestException;
+
+/**
+ * The sensors, channels and channel attributes of a <b>Device</b> at one point in time.
+ * The walk that builds a snapshot runs the per sensor and per channel requests concurrently,
+ * so the time it takes is close to the depth of the tree in round trips rather than its size.
+ */
+public class DeviceSnapshot {
+	/** Number of requests a snapshot has in flight unless told otherwise, when the device has no <b>GoverningRequester</b> to follow */
+	public static final int DEFAULT_CONCURRENCY = 16;
+
+	private String serial;
+	private List<Sensor> sensors;
+	private Map<String, List<Channel>> channels;
+	private Map<String, AttributeMap> attributes;
+
+	private DeviceSnapshot (String serial, List<Sensor> sensors) {
+		this.serial = serial;
+		this.sensors = sensors;
+		this.channels = Collections.synchronizedMap( new HashMap<String, List<Channel>>() );
+		this.attributes = Collections.synchronizedMap( new HashMap<String, AttributeMap>() );
+	}
+
+	/**
+	 * @return Serial of the device
+	 */
+	public String getSerial() {
+		return serial;
+	}
+
+	/**
+	 * @return Every sensor on the device
+	 */
+	public List<Sensor> getSensors() {
+		return sensors;
+	}
+
+	/**
+	 * @param sensorName  name of the <b>Sensor</b>
+	 * @return The sensor's channels, null if the sensor was not part of the snapshot
+	 */
+	public List<Channel> getChannels (String sensorName) {
+		return channels.get(sensorName);
+	}
+
+	/**
+	 * @param sensorName  name of the parent <b>Sensor</b>
+	 * @param channelName  name of the <b>Channel</b>
+	 * @return The channel's attributes, empty if it has none and null if the channel was not part of the snapshot
+	 */
+	public AttributeMap getAttributes (String sensorName, String channelName) {
+		return attributes.get( sensorName + "/" + channelName );
+	}
+
+	/**
+	 * @return Total number of channels across all sensors
+	 */
+	public int getChannelCount() {
+		return attributes.size();
+	}
+
+	/* as many requests as the device's governor lets through, any more would only wait in its queue */
+	static int concurrencyOf (Requester requester) {
+		Requester inner = requester;
+		while (inner instanceof RequesterDecorator) {
+			if (inner instanceof GoverningRequester) {
+				return ((GoverningRequester)inner).getMaxInFlight();
+			}
+			inner = ((RequesterDecorator)inner).getRequester();
+		}
+		return DEFAULT_CONCURRENCY;
+	}
+
+	/**
+	 * Walks a device, running up to <b>concurrency</b> requests at once on the given executor.
+	 * The executor may be shared, the walk never has more than <b>concurrency</b> tasks on it.
+	 *
+	 * @param device  device to walk
+	 * @param concurrency  maximum number of requests in flight
+	 * @param executor  executor the requests run on
+	 * @return Snapshot of the device
+	 *
+	 * @throws IOException
+	 * @throws InvalidRequestException
+	 */
+	static DeviceSnapshot take (Device device, int concurrency, Executor executor) throws IOException, InvalidRequestException {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException( "Concurrency must be at least 1" );
+		}
+
+		DeviceSnapshot snapshot = new DeviceSnapshot( device.getSerial(), device.getAllSensors() );
+		new Walk(snapshot, concurrency, executor).run();
+		return snapshot;
+	}
+
+	/**
+	 * One walk over the tree. Each finished request schedules the requests below it,
+	 * no task ever waits on another so a small or busy executor cannot deadlock.
+	 * Steps past the concurrency limit wait in the walk's own queue, not the executor's.
+	 */
+	private static class Walk {
+		private DeviceSnapshot snapshot;
+		private Executor executor;
+		private int concurrency;
+		private LinkedList<Step> queued = new LinkedList<Step>();
+		private int running = 0;
+		private boolean stopped = false;
+		private Throwable error;
+
+		Walk (DeviceSnapshot snapshot, int concurrency, Executor executor) {
+			this.snapshot = snapshot;
+			this.concurrency = concurrency;
+			this.executor = executor;
+		}
+
+		void run() throws IOException, InvalidRequestException {
+			try {
+				for (final Sensor sensor : snapshot.sensors) {
+					submit( new Step() {
+						@Override
+						void run() throws Exception {
+							List<Channel> channels = sensor.getAllChannels();
+							snapshot.channels.put( sensor.getName(), channels );
+
+							for (final Channel channel : channels) {
+								submit( new Step() {
+									@Override
+									void run() throws Exception {
+										AttributeMap map;
+										try {
+											map = channel.getAllAttributes();
+										} catch (ChannelHasNoAttributesException e) {
+											map = new AttributeMap();
+										}
+										snapshot.attributes.put( sensor.getName() + "/" + channel.getName(), map );
+									}
+								});
+							}
+						}
+					});
+				}
+
+				synchronized (this) {
+					while ((running > 0 || !queued.isEmpty()) && error == null) {
+						wait();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException( "Interrupted while walking device " + snapshot.serial );
+			} finally {
+				// steps already running finish on their own, nothing more is started
+				synchronized (this) {
+					stopped = true;
+					queued.clear();
+				}
+			}
+
+			if (error instanceof IOException) {
+				throw (IOException)error;
+			} else if (error instanceof InvalidRequestException) {
+				throw (InvalidRequestException)error;
+			} else if (error instanceof RuntimeException) {
+				throw (RuntimeException)error;
+			} else if (error instanceof Error) {
+				throw (Error)error;
+			} else if (error != null) {
+				throw new IOException( error.getMessage() );
+			}
+		}
+
+		private void submit (Step step) {
+			synchronized (this) {
+				if (stopped || error != null) {
+					return;
+				}
+				if (running >= concurrency) {
+					queued.add(step);
+					return;
+				}
+				running++;
+			}
+			start(step);
+		}
+
+		private void start (final Step step) {
+			try {
+				executor.execute( new Runnable() {
+					@Override
+					public void run() {
+						Throwable failure = null;
+						try {
+							step.run();
+						} catch (Throwable t) {
+							failure = t;
+						} finally {
+							finish(failure);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				finish( new IOException( "Executor rejected a request while walking device " + snapshot.serial ) );
+			}
+		}
+
+		/* a step has ended, its slot goes to the next one queued */
+		private void finish (Throwable failure) {
+			Step next = null;
+			synchronized (this) {
+				if (failure != null && error == null) {
+					error = failure;
+				}
+				if (stopped || error != null || queued.isEmpty()) {
+					running--;
+				} else {
+					next = queued.poll();
+				}
+				notifyAll();
+			}
+			if (next != null) {
+				start(next);
+			}
+		}
+	}
+
+	private static abstract class Step {
+		abstract void run() throws Exception;
+	}
+}
@@ -0,0 +1,207 @@
+package microstrain.sensorcloud;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import microstrain.sensorcloud.http.Deadline;
+
+/**
+ * An <b>AsyncRequester</b> that runs the calls of a blocking <b>Requester</b> on an <b>Executor</b>.
+ * Every outstanding call occupies one of the executor's threads while it is on the wire,
+ * so the executor's size bounds how many calls are in flight at once.
+ * A <b>Deadline</b> in effect when a call is made also applies to it on the executor's thread.
+ */
+public class ExecutorAsyncRequester implements AsyncRequester {
+	/** Number of threads in the executor shared by requesters that are not given one */
+	public static final int DEFAULT_THREADS = 16;
+	
+	private static Executor defaultExecutor;
+	
+	private Requester requester;
+	private Executor executor;
+	
+	/**
+	 * Runs calls on the shared default executor
+	 * 
+	 * @param requester  authorized <b>Requester</b> that performs the calls
+	 */
+	public ExecutorAsyncRequester (Requester requester) {
+		this(requester, getDefaultExecutor());
+	}
+	
+	/**
+	 * @param requester  authorized <b>Requester</b> that performs the calls
+	 * @param executor  executor the calls run on
+	 */
+	public ExecutorAsyncRequester (Requester requester, Executor executor) {
+		this.requester = requester;
+		this.executor = executor;
+	}
+	
+	/**
+	 * Returns the asynchronous view of a <b>Requester</b> used by the async methods of the object model.
+	 * An <b>NioRequester</b> gives its own view, which holds no thread while a call is on the wire.
+	 * Otherwise the calls run on the executor of the requester underneath any decorators, or on the
+	 * shared default executor if it has none.
+	 * 
+	 * @param requester  authorized <b>Requester</b>
+	 * @return Asynchronous requester for the same device
+	 */
+	public static AsyncRequester of (Requester requester) {
+		if (requester instanceof NioRequester) {
+			return ((NioRequester)requester).async();
+		}
+		
+		return new ExecutorAsyncRequester( requester, executorOf(requester) );
+	}
+	
+	/**
+	 * @param requester  authorized <b>Requester</b>
+	 * @return Executor of the requester underneath any decorators, or the shared default executor if it has none
+	 */
+	static Executor executorOf (Requester requester) {
+		Requester inner = requester;
+		while (inner instanceof RequesterDecorator) {
+			inner = ((RequesterDecorator)inner).getRequester();
+		}
+		Executor executor = null;
+		if (inner instanceof SCRequester) {
+			executor = ((SCRequester)inner).getExecutor();
+		} else if (inner instanceof NioRequester) {
+			executor = ((NioRequester)inner).getExecutor();
+		}
+		return executor != null ? executor : getDefaultExecutor();
+	}
+
+	@Override
+	public SCFuture<byte []> get (final String url) {
+		return submit( new Callable<byte []>() {
+			@Override
+			public byte [] call() throws Exception {
+				return requester.get(url);
+			}
+		});
+	}
+
+	@Override
+	public SCFuture<byte []> get (final String url, final Map<String, String> params) {
+		return submit( new Callable<byte []>() {
+			@Override
+			public byte [] call() throws Exception {
+				return requester.get(url, params);
+			}
+		});
+	}
+
+	@Override
+	public SCFuture<Void> post (final String url, final byte [] data) {
+		return submit( new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				requester.post(url, data);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public SCFuture<Void> post (final String url, final Map<String, String> params, final byte [] data) {
+		return submit( new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				requester.post(url, params, data);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public SCFuture<Void> put (final String url, final byte [] data) {
+		return submit( new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				requester.put(url, data);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public SCFuture<Void> put (final String url, final Map<String, String> params, final byte [] data) {
+		return submit( new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				requester.put(url, params, data);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public SCFuture<Void> delete (final String url) {
+		return submit( new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				requester.delete(url);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public String getSerial() {
+		return requester.getSerial();
+	}
+	
+	private <T> SCFuture<T> submit (final Callable<T> call) {
+		final SCFuture<T> future = new SCFuture<T>();
+		final Deadline deadline = Deadline.current();
+		executor.execute( new Runnable() {
+			@Override
+			public void run() {
+				if (future.isDone()) {
+					return; // cancelled before it started
+				}
+				Deadline inherited = deadline != null ? deadline.inherit() : null;
+				try {
+					future.complete( call.call() );
+				} catch (Exception e) {
+					future.fail(e);
+				} finally {
+					if (inherited != null) {
+						inherited.end();
+					}
+				}
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * @return Executor shared by the requesters that are not given one, started on first use
+	 */
+	public static synchronized Executor getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private AtomicInteger count = new AtomicInteger();
+				
+				@Override
+				public Thread newThread (Runnable r) {
+					Thread thread = new Thread(r, "SensorCloud async " + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			defaultExecutor = executor;
+		}
+		return defaultExecutor;
+	}
+}
@@ -0,0 +1,370 @@
+package microstrain.sensorcloud;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import microstrain.sensorcloud.exception.DeadlineExceededException;
+import microstrain.sensorcloud.http.Deadline;
+
+/**
+ * A <b>Requester</b> that caps how many requests a device has in flight at once and decides which
+ * waiting request goes next, so that a few channels backfilling old data cannot starve live uploads
+ * and interactive reads. Requests are sorted into <b>Priority</b> classes, each class getting a share
+ * of the device's requests in proportion to its weight while it has any waiting. Within a class the
+ * channels take turns, one request each, so a channel with a long backlog does not hold up the rest.
+ * <p>
+ * The class of a call is worked out from its method and url unless the calling thread has set one
+ * with <b>setThreadPriority</b>. A streamed download holds its place until the response starts,
+ * the connection pool bounds how many bodies are read at once.
+ * The queue can be watched over JMX once <b>register</b> has been called.
+ */
+public class GoverningRequester extends RequesterDecorator implements GoverningRequesterMXBean {
+	/** Default number of requests a device has in flight at once */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+	/* divisible by every weight, a class moves on by STRIDE / weight each time it is served */
+	private static final long STRIDE = 840;
+
+	private static final ThreadLocal<Priority> threadPriority = new ThreadLocal<Priority>();
+
+	private int maxInFlight;
+	private int inFlight = 0;
+	private int queued = 0;
+	private long virtualTime = 0;
+	private Map<Priority, Lanes> queues;
+	private ObjectName registered;
+
+	/**
+	 * Uses the default cap on requests in flight
+	 *
+	 * @param requester  requester the calls are passed on to
+	 */
+	public GoverningRequester (Requester requester) {
+		this(requester, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param requester  requester the calls are passed on to
+	 * @param maxInFlight  most requests let through at once
+	 */
+	public GoverningRequester (Requester requester, int maxInFlight) {
+		super(requester);
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException( "At least one request must be allowed in flight" );
+		}
+		this.maxInFlight = maxInFlight;
+		this.queues = new EnumMap<Priority, Lanes>(Priority.class);
+		for (Priority priority : Priority.values()) {
+			queues.put( priority, new Lanes() );
+		}
+	}
+
+	/**
+	 * Sets the class of every request made on the current thread, for example to mark a
+	 * thread loading old data as backfill
+	 * <pre>
+	 * Priority previous = GoverningRequester.setThreadPriority(Priority.BACKFILL);
+	 * try {
+	 *     ...
+	 * } finally {
+	 *     GoverningRequester.setThreadPriority(previous);
+	 * }
+	 * </pre>
+	 *
+	 * @param priority  class of the thread's requests, null to work it out for each request
+	 * @return Class the thread had before
+	 */
+	public static Priority setThreadPriority (Priority priority) {
+		Priority previous = threadPriority.get();
+		if (priority == null) {
+			threadPriority.remove();
+		} else {
+			threadPriority.set(priority);
+		}
+		return previous;
+	}
+
+	/**
+	 * @return Class of every request made on the current thread, null if it is worked out for each request
+	 */
+	public static Priority getThreadPriority() {
+		return threadPriority.get();
+	}
+
+	@Override
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	@Override
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	@Override
+	public synchronized int getQueueDepth() {
+		return queued;
+	}
+
+	/**
+	 * @param priority  class of request
+	 * @return Requests of that class waiting to be let through
+	 */
+	public synchronized int getQueueDepth (Priority priority) {
+		return queues.get(priority).size;
+	}
+
+	@Override
+	public int getLiveQueueDepth() {
+		return getQueueDepth(Priority.LIVE);
+	}
+
+	@Override
+	public int getQueryQueueDepth() {
+		return getQueueDepth(Priority.QUERY);
+	}
+
+	@Override
+	public int getMetadataQueueDepth() {
+		return getQueueDepth(Priority.METADATA);
+	}
+
+	@Override
+	public int getBackfillQueueDepth() {
+		return getQueueDepth(Priority.BACKFILL);
+	}
+
+	/**
+	 * Publishes the queue on the platform MBean server as
+	 * <b>microstrain.sensorcloud:type=RequestGovernor,name=&lt;name&gt;</b>,
+	 * replacing anything published under the same name
+	 *
+	 * @param name  name identifying the queue, usually the device serial
+	 *
+	 * @throws JMException
+	 */
+	public synchronized void register (String name) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		unregister();
+
+		ObjectName objectName = new ObjectName( "microstrain.sensorcloud:type=RequestGovernor,name=" + ObjectName.quote(name) );
+		try {
+			server.registerMBean( this, objectName );
+		} catch (InstanceAlreadyExistsException e) {
+			server.unregisterMBean(objectName);
+			server.registerMBean( this, objectName );
+		}
+		registered = objectName;
+	}
+
+	/**
+	 * Removes the queue from the platform MBean server if it was published
+	 */
+	public synchronized void unregister() {
+		if (registered == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+		} catch (JMException e) {
+			// already gone
+		}
+		registered = null;
+	}
+
+	@Override
+	protected <T> T invoke (Call<T> call) throws IOException {
+		Priority priority = threadPriority.get();
+		if (priority == null) {
+			priority = Priority.of( call.getMethod(), call.getUrl() );
+		}
+
+		acquire( priority, laneOf(call.getUrl()), call );
+		try {
+			return call.execute( getRequester() );
+		} finally {
+			release();
+		}
+	}
+
+	/* returns once the call has a place in flight */
+	private void acquire (Priority priority, String lane, Call<?> call) throws IOException {
+		Waiter waiter;
+		synchronized (this) {
+			// straight through only if nobody is waiting, otherwise it would jump the queue
+			if (inFlight < maxInFlight && queued == 0) {
+				inFlight++;
+				return;
+			}
+			waiter = new Waiter(priority, lane);
+			Lanes lanes = queues.get(priority);
+			if (lanes.size == 0) {
+				// a class that sat idle does not get to save up its share
+				lanes.pass = Math.max(lanes.pass, virtualTime);
+			}
+			lanes.add(waiter);
+			queued++;
+		}
+
+		boolean admitted = false;
+		try {
+			await(waiter, call);
+			admitted = true;
+		} finally {
+			if (!admitted) {
+				abandon(waiter);
+			}
+		}
+	}
+
+	private static void await (Waiter waiter, Call<?> call) throws IOException {
+		Deadline deadline = Deadline.current();
+		try {
+			synchronized (waiter) {
+				while (!waiter.admitted) {
+					if (deadline == null) {
+						waiter.wait();
+						continue;
+					}
+					long remaining = deadline.remainingMillis();
+					if (remaining <= 0) {
+						throw new DeadlineExceededException( "Deadline passed while " + call.getMethod() + " " + call.getUrl() + " was queued" );
+					}
+					waiter.wait(remaining);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while " + call.getMethod() + " " + call.getUrl() + " was queued" );
+		}
+	}
+
+	/* a waiter that gave up, its place is passed on if it was let through in the meantime */
+	private synchronized void abandon (Waiter waiter) {
+		if (waiter.admitted) {
+			inFlight--;
+			dispatch();
+		} else if (queues.get(waiter.priority).remove(waiter)) {
+			queued--;
+		}
+	}
+
+	private synchronized void release() {
+		inFlight--;
+		dispatch();
+	}
+
+	/* lets waiters through while there is room, the class furthest behind its share goes first */
+	private void dispatch() {
+		while (inFlight < maxInFlight && queued > 0) {
+			Priority next = null;
+			Lanes nextLanes = null;
+			// ties go to the more urgent class, the map iterates in declaration order
+			for (Map.Entry<Priority, Lanes> entry : queues.entrySet()) {
+				Lanes lanes = entry.getValue();
+				if (lanes.size > 0 && (nextLanes == null || lanes.pass < nextLanes.pass)) {
+					next = entry.getKey();
+					nextLanes = lanes;
+				}
+			}
+
+			virtualTime = nextLanes.pass;
+			nextLanes.pass += STRIDE / next.getWeight();
+			Waiter waiter = nextLanes.poll();
+			queued--;
+			inFlight++;
+			synchronized (waiter) {
+				waiter.admitted = true;
+				waiter.notify();
+			}
+		}
+	}
+
+	/* the channel or sensor a url belongs to, the requests of each take turns within a class */
+	static String laneOf (String url) {
+		if (!url.startsWith("sensors/")) {
+			return "";
+		}
+		int end = url.indexOf('/', 8);
+		if (end < 0) {
+			return url;
+		}
+		if (url.startsWith("channels/", end + 1)) {
+			int channelEnd = url.indexOf('/', end + 10);
+			if (channelEnd > 0) {
+				end = channelEnd;
+			}
+		}
+		return url.substring(0, end);
+	}
+
+	/**
+	 * A request waiting to be let through
+	 */
+	private static class Waiter {
+		final Priority priority;
+		final String lane;
+		boolean admitted = false;
+
+		Waiter (Priority priority, String lane) {
+			this.priority = priority;
+			this.lane = lane;
+		}
+	}
+
+	/**
+	 * The requests of one class waiting to be let through, kept per channel and served a channel at a time
+	 */
+	private static class Lanes {
+		private LinkedHashMap<String, LinkedList<Waiter>> waiting = new LinkedHashMap<String, LinkedList<Waiter>>();
+		long pass = 0;
+		int size = 0;
+
+		void add (Waiter waiter) {
+			LinkedList<Waiter> lane = waiting.get(waiter.lane);
+			if (lane == null) {
+				lane = new LinkedList<Waiter>();
+				waiting.put(waiter.lane, lane);
+			}
+			lane.add(waiter);
+			size++;
+		}
+
+		/* the head of the first lane, which then goes to the back of the line if it has more waiting */
+		Waiter poll() {
+			Iterator<Map.Entry<String, LinkedList<Waiter>>> lanes = waiting.entrySet().iterator();
+			Map.Entry<String, LinkedList<Waiter>> first = lanes.next();
+			lanes.remove();
+			LinkedList<Waiter> lane = first.getValue();
+			Waiter waiter = lane.poll();
+			if (!lane.isEmpty()) {
+				waiting.put(first.getKey(), lane);
+			}
+			size--;
+			return waiter;
+		}
+
+		boolean remove (Waiter waiter) {
+			LinkedList<Waiter> lane = waiting.get(waiter.lane);
+			if (lane == null || !lane.remove(waiter)) {
+				return false;
+			}
+			if (lane.isEmpty()) {
+				waiting.remove(waiter.lane);
+			}
+			size--;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package microstrain.sensorcloud;
+
+/**
+ * JMX view of the requests a <b>GoverningRequester</b> is holding back
+ */
+public interface GoverningRequesterMXBean {
+	
+	/**
+	 * @return Most requests let through at once
+	 */
+	public int getMaxInFlight();
+	
+	/**
+	 * @return Requests currently let through
+	 */
+	public int getInFlight();
+	
+	/**
+	 * @return Requests waiting to be let through, every class together
+	 */
+	public int getQueueDepth();
+	
+	/**
+	 * @return Live uploads waiting to be let through
+	 */
+	public int getLiveQueueDepth();
+	
+	/**
+	 * @return Queries waiting to be let through
+	 */
+	public int getQueryQueueDepth();
+	
+	/**
+	 * @return Metadata requests waiting to be let through
+	 */
+	public int getMetadataQueueDepth();
+	
+	/**
+	 * @return Backfill uploads waiting to be let through
+	 */
+	public int getBackfillQueueDepth();
+}
@@ -0,0 +1,106 @@
+package microstrain.sensorcloud;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import microstrain.sensorcloud.exception.SCHTTPException;
+import microstrain.sensorcloud.metrics.Operation;
+import microstrain.sensorcloud.metrics.OperationMetrics;
+import microstrain.sensorcloud.metrics.RequestMetrics;
+
+/**
+ * A <b>Requester</b> that records the latency, traffic and outcome of every call it passes on.
+ * Calls are grouped by <b>Operation</b>, and the metrics can be published over JMX with
+ * <b>RequestMetrics.register</b>. The latency of a streamed download is the time taken to open it,
+ * its bytes are counted as the body is read.
+ */
+public class InstrumentedRequester extends RequesterDecorator {
+	private RequestMetrics metrics;
+
+	/**
+	 * @param requester  requester the calls are passed on to
+	 */
+	public InstrumentedRequester (Requester requester) {
+		this(requester, new RequestMetrics());
+	}
+
+	/**
+	 * @param requester  requester the calls are passed on to
+	 * @param metrics  metrics the calls are recorded into
+	 */
+	public InstrumentedRequester (Requester requester, RequestMetrics metrics) {
+		super(requester);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return Metrics the calls are recorded into
+	 */
+	public RequestMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected <T> T invoke (Call<T> call) throws IOException {
+		OperationMetrics operation = metrics.get( Operation.of(call.getMethod(), call.getUrl()) );
+		long sent = call.getBody() != null ? call.getBody().length : 0;
+		long received = 0;
+		int status = 0;
+
+		long start = System.nanoTime();
+		try {
+			T result = call.execute( getRequester() );
+			status = successStatus( call.getMethod() );
+			if (result instanceof byte []) {
+				received = ((byte [])result).length;
+			} else if (result instanceof InputStream) {
+				result = (T)new CountingInputStream( (InputStream)result, operation );
+			}
+			return result;
+		} catch (SCHTTPException e) {
+			status = e.getStatusCode();
+			throw e;
+		} finally {
+			operation.record( System.nanoTime() - start, status, sent, received );
+		}
+	}
+
+	/* the status SCRequester requires for each method to succeed */
+	private static int successStatus (String method) {
+		if (method.equals("POST") || method.equals("PUT")) {
+			return 201;
+		} else if (method.equals("DELETE")) {
+			return 204;
+		}
+		return 200;
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		private OperationMetrics metrics;
+
+		CountingInputStream (InputStream in, OperationMetrics metrics) {
+			super(in);
+			this.metrics = metrics;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1) {
+				metrics.addBytesIn(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read (byte [] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if (read > 0) {
+				metrics.addBytesIn(read);
+			}
+			return read;
+		}
+	}
+}
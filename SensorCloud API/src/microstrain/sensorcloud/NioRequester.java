@@ -0,0 +1,412 @@
+package microstrain.sensorcloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import microstrain.sensorcloud.exception.DeadlineExceededException;
+import microstrain.sensorcloud.exception.SCHTTPException;
+import microstrain.sensorcloud.http.ContentEncoding;
+import microstrain.sensorcloud.http.Deadline;
+import microstrain.sensorcloud.http.HttpResponse;
+import microstrain.sensorcloud.http.NioTransport;
+import microstrain.sensorcloud.http.ResponseHandler;
+
+/**
+ * A <b>Requester</b> that makes its calls through an <b>NioTransport</b>, so that a gateway serving
+ * thousands of devices keeps tens of thousands of calls in flight on a handful of threads.
+ * Authentication and token refreshes work as they do for an <b>SCRequester</b>.
+ * <p>
+ * The blocking methods park the caller until the response is in. The view returned by <b>async</b>,
+ * which <b>ExecutorAsyncRequester.of</b> hands out for this requester, does not hold a thread at all
+ * while a call is on the wire. Responses are read in full before they are handed over, a streamed
+ * download is served from memory. Futures are completed on the requester's executor rather than on
+ * the transport's threads, so their callbacks are free to block.
+ */
+public class NioRequester implements StreamingRequester {
+	/** Times a call rejected with a stale token is replayed with a fresh one */
+	private static final int MAX_REPLAYS = 1;
+
+	private String serial, authKey, authServer, authHost, authTarget;
+	private int authPort;
+	private boolean secure;
+	private NioTransport transport;
+	private TokenManager tokens;
+	private Map<String, String> xdrHeaders, acceptHeaders;
+	private volatile boolean compression;
+	private volatile Executor executor;
+	private AsyncRequester async;
+	private TokenCache cache;
+
+	/**
+	 * Authenticates the device before returning
+	 *
+	 * @param serial  device serial
+	 * @param authKey  authentication key associated with the serial
+	 * @param authServer  server to authorize with
+	 * @param transport  transport every call is sent through, usually shared by many devices
+	 *
+	 * @throws IOException
+	 */
+	public NioRequester (String serial, String authKey, String authServer, NioTransport transport) throws IOException {
+		this(serial, authKey, authServer, transport, true);
+	}
+
+	/**
+	 * Allows calls to be made without TLS, used to talk to local servers
+	 *
+	 * @param serial  device serial
+	 * @param authKey  authentication key associated with the serial
+	 * @param authServer  server to authorize with
+	 * @param transport  transport every call is sent through
+	 * @param secure  false to use plain HTTP
+	 *
+	 * @throws IOException
+	 */
+	NioRequester (String serial, String authKey, String authServer, NioTransport transport, boolean secure) throws IOException {
+		this(serial, authKey, authServer, transport, secure, null);
+	}
+
+	/**
+	 * Starts with the device's cached token if there is one, authenticating only once the server rejects it
+	 *
+	 * @param serial  device serial
+	 * @param authKey  authentication key associated with the serial
+	 * @param authServer  server to authorize with
+	 * @param transport  transport every call is sent through
+	 * @param cache  cache the device's tokens are kept in, null to always authenticate
+	 *
+	 * @throws IOException
+	 */
+	public NioRequester (String serial, String authKey, String authServer, NioTransport transport, TokenCache cache) throws IOException {
+		this(serial, authKey, authServer, transport, true, cache);
+	}
+
+	/**
+	 * @param serial  device serial
+	 * @param authKey  authentication key associated with the serial
+	 * @param authServer  server to authorize with
+	 * @param transport  transport every call is sent through
+	 * @param secure  false to use plain HTTP
+	 * @param cache  cache the device's tokens are kept in, null to always authenticate
+	 *
+	 * @throws IOException
+	 */
+	NioRequester (String serial, String authKey, String authServer, NioTransport transport, boolean secure, TokenCache cache) throws IOException {
+		this.serial = serial;
+		this.authKey = authKey;
+		this.authServer = authServer;
+		this.cache = cache;
+		this.transport = transport;
+		this.secure = secure;
+		this.authHost = SCRequester.hostOf(authServer);
+		this.authPort = SCRequester.portOf(authServer, secure);
+		this.authTarget = "/SensorCloud/devices/" + serial + "/authenticate/?version=1&key=" + authKey;
+
+		xdrHeaders = new HashMap<String, String>();
+		xdrHeaders.put( "Accept", "application/xdr" );
+		xdrHeaders.put( "Content-Type", "application/xdr" );
+		acceptHeaders = new HashMap<String, String>(xdrHeaders);
+		acceptHeaders.put( "Accept-Encoding", ContentEncoding.ACCEPTED );
+
+		tokens = new TokenManager(SCRequester.DEFAULT_TOKEN_REFRESH_AGE) {
+			@Override
+			protected Token fetch() throws IOException {
+				return authenticate();
+			}
+		};
+		async = new Async();
+		TokenManager.Token cached = cache != null ? cache.get(serial, authKey, authServer, secure) : null;
+		if (cached != null) {
+			tokens.seed(cached);
+		} else {
+			tokens.refresh(null);
+		}
+	}
+
+	@Override
+	public String getSerial() {
+		return serial;
+	}
+
+	/**
+	 * @return Transport the calls are sent through
+	 */
+	public NioTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * @return Asynchronous view of this requester, its calls hold no thread while they are on the wire
+	 */
+	public AsyncRequester async() {
+		return async;
+	}
+
+	/**
+	 * Sets the executor futures are completed and token refreshes are run on
+	 *
+	 * @param executor  executor to run on, null for the shared default
+	 */
+	public void setExecutor (Executor executor) {
+		this.executor = executor;
+		tokens.setExecutor(executor);
+	}
+
+	/**
+	 * @return Executor futures are completed on, null if they use the shared default
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Asks for responses to be compressed, request bodies are always sent as they are. Off by default.
+	 *
+	 * @param compression  true to accept gzip or deflate responses
+	 */
+	public void setCompression (boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Sets how old a token may get before a new one is fetched in the background
+	 *
+	 * @param refreshAge  age in milliseconds, zero to only fetch a new token once the server rejects the old one
+	 */
+	public void setTokenRefreshAge (long refreshAge) {
+		tokens.setRefreshAge(refreshAge);
+	}
+
+	@Override
+	public byte [] get (String url) throws IOException {
+		return await( call("GET", url, null, 200) );
+	}
+
+	@Override
+	public byte [] get (String url, Map<String, String> params) throws IOException {
+		return get( SCRequester.appendParams(url, params) );
+	}
+
+	@Override
+	public InputStream getStream (String url) throws IOException {
+		return new ByteArrayInputStream( get(url) );
+	}
+
+	@Override
+	public InputStream getStream (String url, Map<String, String> params) throws IOException {
+		return new ByteArrayInputStream( get(url, params) );
+	}
+
+	@Override
+	public void post (String url, byte [] data) throws IOException {
+		await( call("POST", url, data, 201) );
+	}
+
+	@Override
+	public void post (String url, Map<String, String> params, byte [] data) throws IOException {
+		post( SCRequester.appendParams(url, params), data );
+	}
+
+	@Override
+	public void put (String url, byte [] data) throws IOException {
+		await( call("PUT", url, data, 201) );
+	}
+
+	@Override
+	public void put (String url, Map<String, String> params, byte [] data) throws IOException {
+		put( SCRequester.appendParams(url, params), data );
+	}
+
+	@Override
+	public void delete (String url) throws IOException {
+		await( call("DELETE", url, null, 204) );
+	}
+
+	/* Only ever called by the token manager, which keeps it to one call at a time */
+	private TokenManager.Token authenticate() throws IOException {
+		HttpResponse response = transport.execute(authHost, authPort, secure, "GET", authTarget, xdrHeaders, null);
+		if (response.getStatusCode() != 200) {
+			if (response.getStatusCode() == 401 && cache != null) {
+				cache.remove(serial, authKey, secure);
+			}
+			throw new SCHTTPException( response.getStatusCode(), response.getMessage() + "\n" + response.readString() );
+		}
+		TokenManager.Token token = SCRequester.readToken( serial, readBody(response), secure );
+		if (cache != null) {
+			cache.put(serial, authKey, authServer, secure, token);
+		}
+		return token;
+	}
+
+	/* starts a call, the future completes with the body of the response or the reason it failed */
+	private SCFuture<byte []> call (String method, String url, byte [] data, int expected) {
+		SCFuture<byte []> future = new SCFuture<byte []>();
+		TokenManager.Token token = tokens.get();
+		send(method, url, data, expected, token, 0, future);
+		return future;
+	}
+
+	private void send (final String method, final String url, final byte [] data, final int expected,
+			final TokenManager.Token token, final int replays, final SCFuture<byte []> future) {
+		transport.execute(token.host, token.port, secure, method, SCRequester.buildTarget(token, url),
+				compression ? acceptHeaders : xdrHeaders, data, new ResponseHandler() {
+			@Override
+			public void completed (final HttpResponse response) {
+				// decoding and whatever the callbacks do stay off the transport's threads
+				executor().execute( new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (response.getStatusCode() == expected) {
+								future.complete( readBody(response) );
+							} else if (response.getStatusCode() == 401 && replays < MAX_REPLAYS) {
+								// wait for a fresh token and replay
+								TokenManager.Token fresh = tokens.refresh(token);
+								send(method, url, data, expected, fresh, replays + 1, future);
+							} else {
+								future.fail( new SCHTTPException( response.getStatusCode(), new String( readBody(response), "UTF-8" ) ) );
+							}
+						} catch (Exception e) {
+							future.fail(e);
+						}
+					}
+				});
+			}
+
+			@Override
+			public void failed (final IOException e) {
+				executor().execute( new Runnable() {
+					@Override
+					public void run() {
+						future.fail(e);
+					}
+				});
+			}
+		});
+	}
+
+	private Executor executor() {
+		Executor executor = this.executor;
+		return executor != null ? executor : ExecutorAsyncRequester.getDefaultExecutor();
+	}
+
+	/* the body of a response that was read in full, decoded if the server compressed it */
+	private static byte [] readBody (HttpResponse response) throws IOException {
+		InputStream is = ContentEncoding.decode( response.getHeader("Content-Encoding"), response.getBody() );
+		try {
+			byte [] buf = new byte [ Math.max(is.available(), 8192) ];
+			int length = 0, read;
+			while ((read = is.read(buf, length, buf.length - length)) != -1) {
+				length += read;
+				if (length == buf.length) {
+					byte [] grown = new byte [buf.length * 2];
+					System.arraycopy(buf, 0, grown, 0, length);
+					buf = grown;
+				}
+			}
+			if (length == buf.length) {
+				return buf;
+			}
+			byte [] body = new byte [length];
+			System.arraycopy(buf, 0, body, 0, length);
+			return body;
+		} finally {
+			is.close();
+		}
+	}
+
+	/* blocks on a call, honouring the deadline and throwing its failure as it would have been thrown */
+	private static byte [] await (SCFuture<byte []> future) throws IOException {
+		Deadline deadline = Deadline.current();
+		try {
+			if (deadline == null) {
+				return future.get();
+			}
+			// the transport fails the call at the deadline, this only covers a refresh that overruns it
+			return future.get( deadline.remainingMillis() + 1000, TimeUnit.MILLISECONDS );
+		} catch (TimeoutException e) {
+			throw new DeadlineExceededException( "Deadline passed while waiting for a response" );
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while waiting for a response" );
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new IOException( cause.getMessage() );
+		}
+	}
+
+	/**
+	 * The asynchronous view, each call goes straight to the transport
+	 */
+	private class Async implements AsyncRequester {
+		@Override
+		public SCFuture<byte []> get (String url) {
+			return call("GET", url, null, 200);
+		}
+
+		@Override
+		public SCFuture<byte []> get (String url, Map<String, String> params) {
+			return call("GET", SCRequester.appendParams(url, params), null, 200);
+		}
+
+		@Override
+		public SCFuture<Void> post (String url, byte [] data) {
+			return discard( call("POST", url, data, 201) );
+		}
+
+		@Override
+		public SCFuture<Void> post (String url, Map<String, String> params, byte [] data) {
+			return discard( call("POST", SCRequester.appendParams(url, params), data, 201) );
+		}
+
+		@Override
+		public SCFuture<Void> put (String url, byte [] data) {
+			return discard( call("PUT", url, data, 201) );
+		}
+
+		@Override
+		public SCFuture<Void> put (String url, Map<String, String> params, byte [] data) {
+			return discard( call("PUT", SCRequester.appendParams(url, params), data, 201) );
+		}
+
+		@Override
+		public SCFuture<Void> delete (String url) {
+			return discard( call("DELETE", url, null, 204) );
+		}
+
+		@Override
+		public String getSerial() {
+			return serial;
+		}
+
+		/* the same outcome without the empty body */
+		private SCFuture<Void> discard (SCFuture<byte []> call) {
+			final SCFuture<Void> future = new SCFuture<Void>();
+			call.addCallback( new RequestCallback<byte []>() {
+				@Override
+				public void completed (byte [] result) {
+					future.complete(null);
+				}
+
+				@Override
+				public void failed (Exception e) {
+					future.fail(e);
+				}
+			});
+			return future;
+		}
+	}
+}
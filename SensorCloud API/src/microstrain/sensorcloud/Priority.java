@@ -0,0 +1,48 @@
+package microstrain.sensorcloud;
+
+/**
+ * The classes of request a <b>GoverningRequester</b> schedules, from most to least urgent.
+ * Each class gets a share of the device's requests in proportion to its weight while it has
+ * requests waiting, so a busy class slows the others down but never stops them.
+ */
+public enum Priority {
+	/** Uploads of data as it is collected */
+	LIVE(8),
+	
+	/** Downloads of time-series data */
+	QUERY(4),
+	
+	/** Reads and writes of sensors, channels, streams and attributes */
+	METADATA(2),
+	
+	/** Uploads of data collected earlier, see <b>TimeSeriesStream.setPriority</b> */
+	BACKFILL(1);
+	
+	private int weight;
+	
+	private Priority (int weight) {
+		this.weight = weight;
+	}
+	
+	/**
+	 * @return Share of the requests this class gets relative to the others
+	 */
+	public int getWeight() {
+		return weight;
+	}
+	
+	/**
+	 * Works out the class of a call from its method and url, backfill is never
+	 * worked out this way since it looks the same as a live upload
+	 * 
+	 * @param method  HTTP method
+	 * @param url  address relative to the device
+	 * @return Class of the call
+	 */
+	public static Priority of (String method, String url) {
+		if (url.contains("/timeseries/data")) {
+			return method.equals("GET") ? QUERY : LIVE;
+		}
+		return METADATA;
+	}
+}
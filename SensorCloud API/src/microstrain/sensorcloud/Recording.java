@@ -0,0 +1,153 @@
+package microstrain.sensorcloud;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The file format shared by <b>RecordingRequester</b> and <b>ReplayingRequester</b>.
+ * A recording is a gzipped stream starting with a magic number, a version and the device serial,
+ * followed by one record per call:
+ * <pre>
+ * string  method
+ * string  target, the url with its parameters in sorted order
+ * int     bytes sent
+ * long    nanoseconds the call took
+ * byte    outcome, SUCCESS, HTTP_ERROR or IO_ERROR
+ *   SUCCESS     int length of the response body, -1 if the call has none, then the body
+ *   HTTP_ERROR  int status code, string message
+ *   IO_ERROR    string exception class, string message
+ * </pre>
+ * Strings are an int length followed by that many bytes of UTF-8, a null string has length -1.
+ * Only the size of a request body is kept, the point of a recording is to play back what the server said.
+ */
+final class Recording {
+	static final int MAGIC = 0x53435252; // SCRR
+	static final int VERSION = 1;
+
+	static final byte SUCCESS = 0;
+	static final byte HTTP_ERROR = 1;
+	static final byte IO_ERROR = 2;
+
+	private Recording() {}
+
+	/* the key a call is recorded and looked up under, sorted so the order of a HashMap does not matter */
+	static String target (String url, Map<String, String> params) {
+		if (params == null) {
+			return url;
+		}
+		return SCRequester.appendParams( url, new TreeMap<String, String>(params) );
+	}
+
+	static void writeString (DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte [] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString (DataInputStream in) throws IOException {
+		byte [] bytes = readBytes(in);
+		return bytes == null ? null : new String(bytes, "UTF-8");
+	}
+
+	static void writeBytes (DataOutputStream out, byte [] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	static byte [] readBytes (DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < -1) {
+			throw new IOException( "Corrupt recording, negative length " + length );
+		}
+		if (length == -1) {
+			return null;
+		}
+		byte [] bytes = new byte [length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * A single recorded call
+	 */
+	static class Record {
+		String method, target;
+		int sent;
+		long nanos;
+		byte outcome;
+		byte [] body;
+		int status;
+		String errorClass, message;
+
+		void write (DataOutputStream out) throws IOException {
+			writeString(out, method);
+			writeString(out, target);
+			out.writeInt(sent);
+			out.writeLong(nanos);
+			out.writeByte(outcome);
+			switch (outcome) {
+			case SUCCESS:
+				writeBytes(out, body);
+				break;
+			case HTTP_ERROR:
+				out.writeInt(status);
+				writeString(out, message);
+				break;
+			default:
+				writeString(out, errorClass);
+				writeString(out, message);
+			}
+		}
+
+		static Record read (DataInputStream in) throws IOException {
+			Record record = new Record();
+			record.method = readString(in);
+			record.target = readString(in);
+			record.sent = in.readInt();
+			record.nanos = in.readLong();
+			record.outcome = in.readByte();
+			switch (record.outcome) {
+			case SUCCESS:
+				record.body = readBytes(in);
+				break;
+			case HTTP_ERROR:
+				record.status = in.readInt();
+				record.message = readString(in);
+				break;
+			case IO_ERROR:
+				record.errorClass = readString(in);
+				record.message = readString(in);
+				break;
+			default:
+				throw new IOException( "Corrupt recording, unknown outcome " + record.outcome );
+			}
+			return record;
+		}
+
+		/* the failure as it was first thrown, as near as it can be rebuilt */
+		IOException toIOException() {
+			try {
+				Class<?> type = Class.forName(errorClass);
+				if (IOException.class.isAssignableFrom(type)) {
+					Constructor<?> constructor = type.getConstructor(String.class);
+					return (IOException)constructor.newInstance(message);
+				}
+			} catch (Exception e) {
+				// fall back to a plain IOException below
+			}
+			return new IOException( errorClass + ": " + message );
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package microstrain.sensorcloud;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import microstrain.sensorcloud.exception.SCHTTPException;
+import microstrain.sensorcloud.io.BufferPool;
+import microstrain.sensorcloud.io.PooledOutputStream;
+
+/**
+ * A <b>Requester</b> that writes every call it passes on, along with what came back, to a recording
+ * that a <b>ReplayingRequester</b> can serve back later without a network. Wrap the <b>SCRequester</b>
+ * directly so that each attempt is recorded as the server answered it.
+ * <pre>
+ * RecordingRequester recorder = new RecordingRequester(requester, new File("session.screc"));
+ * Device device = new Device(serial, recorder);
+ * ...
+ * recorder.close();
+ * </pre>
+ * A streamed download is recorded once its body has been read to the end or closed, so the recording
+ * holds the bytes the caller actually read. Request bodies are not kept, only their size.
+ * The recording is only complete once the requester has been closed.
+ */
+public class RecordingRequester extends RequesterDecorator {
+	private DataOutputStream out;
+	private BufferPool bufferPool;
+	private int records;
+
+	/**
+	 * @param requester  requester the calls are passed on to
+	 * @param file  file the recording is written to, replacing anything already there
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	public RecordingRequester (Requester requester, File file) throws IOException {
+		this(requester, new FileOutputStream(file));
+	}
+
+	/**
+	 * @param requester  requester the calls are passed on to
+	 * @param out  stream the recording is written to, closed along with the requester
+	 *
+	 * @throws IOException if the stream cannot be written
+	 */
+	public RecordingRequester (Requester requester, OutputStream out) throws IOException {
+		super(requester);
+		this.out = new DataOutputStream( new BufferedOutputStream( new GZIPOutputStream(out, 8192), 65536 ));
+		this.bufferPool = BufferPool.getDefault();
+
+		this.out.writeInt( Recording.MAGIC );
+		this.out.writeInt( Recording.VERSION );
+		Recording.writeString( this.out, requester.getSerial() );
+	}
+
+	/**
+	 * @return Number of calls recorded so far
+	 */
+	public synchronized int getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * Pushes the calls recorded so far out to the file.
+	 * A flushed recording can be replayed, although any streams still being read are left out.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Finishes the recording. Calls made afterwards are still passed on but no longer recorded.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected <T> T invoke (Call<T> call) throws IOException {
+		Recording.Record record = new Recording.Record();
+		record.method = call.getMethod();
+		record.target = Recording.target( call.getUrl(), call.getParams() );
+		record.sent = call.getBody() != null ? call.getBody().length : 0;
+
+		long start = System.nanoTime();
+		try {
+			T result = call.execute( getRequester() );
+			record.nanos = System.nanoTime() - start;
+			record.outcome = Recording.SUCCESS;
+			if (result instanceof InputStream) {
+				// written once the caller is done with the body
+				return (T)new RecordingInputStream( (InputStream)result, record );
+			}
+			record.body = (byte [])result;
+			write(record);
+			return result;
+		} catch (SCHTTPException e) {
+			record.nanos = System.nanoTime() - start;
+			record.outcome = Recording.HTTP_ERROR;
+			record.status = e.getStatusCode();
+			record.message = e.getMessage();
+			write(record);
+			throw e;
+		} catch (IOException e) {
+			record.nanos = System.nanoTime() - start;
+			record.outcome = Recording.IO_ERROR;
+			record.errorClass = e.getClass().getName();
+			record.message = e.getMessage();
+			write(record);
+			throw e;
+		}
+	}
+
+	private synchronized void write (Recording.Record record) throws IOException {
+		if (out != null) {
+			record.write(out);
+			records++;
+		}
+	}
+
+	/**
+	 * Keeps a copy of everything read from a streamed download and records it when the stream ends
+	 */
+	private class RecordingInputStream extends FilterInputStream {
+		private Recording.Record record;
+		private PooledOutputStream copy;
+
+		RecordingInputStream (InputStream in, Recording.Record record) {
+			super(in);
+			this.record = record;
+			this.copy = new PooledOutputStream(bufferPool, 8192);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b == -1) {
+				finish();
+			} else if (copy != null) {
+				copy.write(b);
+			}
+			return b;
+		}
+
+		@Override
+		public int read (byte [] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if (read == -1) {
+				finish();
+			} else if (copy != null) {
+				copy.write(b, off, read);
+			}
+			return read;
+		}
+
+		/* skipped bytes are read through the copy, or the recorded body would be missing them */
+		@Override
+		public long skip (long n) throws IOException {
+			byte [] buf = new byte [(int)Math.min( Math.max(n, 0), 8192 )];
+			long skipped = 0;
+			while (skipped < n) {
+				int read = read( buf, 0, (int)Math.min(buf.length, n - skipped) );
+				if (read == -1) {
+					break;
+				}
+				skipped += read;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				in.close();
+			} finally {
+				finish();
+			}
+		}
+
+		private void finish() throws IOException {
+			if (copy == null) {
+				return;
+			}
+			try {
+				record.body = copy.toByteArray();
+			} finally {
+				copy.close();
+				copy = null;
+			}
+			write(record);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package microstrain.sensorcloud;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import microstrain.sensorcloud.exception.SCHTTPException;
+
+/**
+ * A <b>Requester</b> that serves back the calls held in a recording made by a <b>RecordingRequester</b>,
+ * so that parsing, iteration and the upload pipeline can be exercised and benchmarked without a network.
+ * Each call is matched by its method and url, parameters included. Repeats of the same call get the
+ * recorded responses in the order they were recorded, starting over once they run out, so a replay
+ * always gives the same answers in the same order. Failures are thrown again as they were recorded.
+ * <p>
+ * By default every call returns straight away. A time scale replays the recorded latency as well,
+ * 1 for the speed the recording was made at, 0.5 for twice as fast.
+ */
+public class ReplayingRequester implements StreamingRequester {
+	private String serial;
+	private Map<String, Responses> responses;
+	private volatile double timeScale;
+	private int recordCount;
+
+	/**
+	 * @param file  recording to replay
+	 *
+	 * @throws IOException if the file cannot be read or is not a recording
+	 */
+	public ReplayingRequester (File file) throws IOException {
+		this( new FileInputStream(file) );
+	}
+
+	/**
+	 * Reads the whole recording into memory, a recording cut short keeps every complete call
+	 *
+	 * @param in  stream holding the recording, closed once it has been read
+	 *
+	 * @throws IOException if the stream cannot be read or is not a recording
+	 */
+	public ReplayingRequester (InputStream in) throws IOException {
+		responses = new HashMap<String, Responses>();
+		DataInputStream data = new DataInputStream( new BufferedInputStream( new GZIPInputStream(in, 8192), 65536 ));
+		try {
+			if (data.readInt() != Recording.MAGIC) {
+				throw new IOException( "Not a SensorCloud recording" );
+			}
+			int version = data.readInt();
+			if (version != Recording.VERSION) {
+				throw new IOException( "Unsupported recording version " + version );
+			}
+			serial = Recording.readString(data);
+
+			while (true) {
+				Recording.Record record;
+				try {
+					record = Recording.Record.read(data);
+				} catch (EOFException e) {
+					break;
+				}
+
+				String key = key(record.method, record.target);
+				Responses list = responses.get(key);
+				if (list == null) {
+					list = new Responses();
+					responses.put(key, list);
+				}
+				list.records.add(record);
+				recordCount++;
+			}
+		} finally {
+			data.close();
+		}
+	}
+
+	/**
+	 * Sets how much of the recorded latency each call waits before it returns
+	 *
+	 * @param timeScale  fraction of the recorded latency, zero to return straight away
+	 */
+	public void setTimeScale (double timeScale) {
+		if (timeScale < 0) {
+			throw new IllegalArgumentException( "The time scale cannot be negative" );
+		}
+		this.timeScale = timeScale;
+	}
+
+	/**
+	 * @return Fraction of the recorded latency each call waits
+	 */
+	public double getTimeScale() {
+		return timeScale;
+	}
+
+	/**
+	 * @return Number of calls held in the recording
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Starts every call over from the first of its recorded responses
+	 */
+	public void rewind() {
+		for (Responses list : responses.values()) {
+			synchronized (list) {
+				list.next = 0;
+			}
+		}
+	}
+
+	@Override
+	public String getSerial() {
+		return serial;
+	}
+
+	@Override
+	public byte [] get (String url) throws IOException {
+		return copy( replay("GET", url, null) );
+	}
+
+	@Override
+	public byte [] get (String url, Map<String, String> params) throws IOException {
+		return copy( replay("GET", url, params) );
+	}
+
+	@Override
+	public InputStream getStream (String url) throws IOException {
+		return new ByteArrayInputStream( replay("GET", url, null) );
+	}
+
+	@Override
+	public InputStream getStream (String url, Map<String, String> params) throws IOException {
+		return new ByteArrayInputStream( replay("GET", url, params) );
+	}
+
+	@Override
+	public void post (String url, byte [] data) throws IOException {
+		replay("POST", url, null);
+	}
+
+	@Override
+	public void post (String url, Map<String, String> params, byte [] data) throws IOException {
+		replay("POST", url, params);
+	}
+
+	@Override
+	public void put (String url, byte [] data) throws IOException {
+		replay("PUT", url, null);
+	}
+
+	@Override
+	public void put (String url, Map<String, String> params, byte [] data) throws IOException {
+		replay("PUT", url, params);
+	}
+
+	@Override
+	public void delete (String url) throws IOException {
+		replay("DELETE", url, null);
+	}
+
+	/* the next recorded outcome of the call, returned or thrown */
+	private byte [] replay (String method, String url, Map<String, String> params) throws IOException {
+		String target = Recording.target(url, params);
+		Responses list = responses.get( key(method, target) );
+		if (list == null) {
+			throw new IOException( "No recorded response for " + method + " " + target );
+		}
+
+		Recording.Record record;
+		synchronized (list) {
+			record = list.records.get(list.next);
+			list.next = (list.next + 1) % list.records.size();
+		}
+
+		double timeScale = this.timeScale;
+		if (timeScale > 0) {
+			long nanos = (long)(record.nanos * timeScale);
+			try {
+				Thread.sleep( nanos / 1000000, (int)(nanos % 1000000) );
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException( "Interrupted while replaying " + method + " " + target );
+			}
+		}
+
+		switch (record.outcome) {
+		case Recording.SUCCESS:
+			return record.body;
+		case Recording.HTTP_ERROR:
+			throw new SCHTTPException( record.status, record.message );
+		default:
+			throw record.toIOException();
+		}
+	}
+
+	/* the recorded body is served again, the caller gets an array of its own */
+	private static byte [] copy (byte [] body) {
+		return body == null ? null : body.clone();
+	}
+
+	private static String key (String method, String target) {
+		return method + " " + target;
+	}
+
+	/**
+	 * The recorded responses to one call and the one to serve next
+	 */
+	private static class Responses {
+		List<Recording.Record> records = new ArrayList<Recording.Record>();
+		int next;
+	}
+}
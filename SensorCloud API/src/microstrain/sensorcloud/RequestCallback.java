@@ -0,0 +1,25 @@
+package microstrain.sensorcloud;
+
+/**
+ * Notified when an asynchronous request finishes.
+ * Callbacks run on the thread that completed the request, so they should not block.
+ * 
+ * @param <T>  result type of the request
+ */
+public interface RequestCallback<T> {
+	
+	/**
+	 * Called when the request succeeds
+	 * 
+	 * @param result  result of the request
+	 */
+	public void completed (T result);
+	
+	
+	/**
+	 * Called when the request fails or is cancelled
+	 * 
+	 * @param e  cause of the failure
+	 */
+	public void failed (Exception e);
+}
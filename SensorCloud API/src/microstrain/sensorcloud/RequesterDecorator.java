@@ -0,0 +1,208 @@
+package microstrain.sensorcloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Base for <b>Requester</b>s that wrap another one to add behaviour around every call.
+ * Each call is handed to <b>invoke</b> as a <b>Call</b> that can be run against the
+ * wrapped requester any number of times, so a subclass only has to implement that one method.
+ * Decorators can be stacked, each one treats the next as an ordinary <b>Requester</b>.
+ */
+public abstract class RequesterDecorator implements StreamingRequester {
+	private Requester requester;
+
+	/**
+	 * @param requester  requester the calls are passed on to
+	 */
+	protected RequesterDecorator (Requester requester) {
+		this.requester = requester;
+	}
+
+	/**
+	 * @return Requester the calls are passed on to
+	 */
+	public Requester getRequester() {
+		return requester;
+	}
+
+	/**
+	 * Runs a call against the wrapped requester
+	 *
+	 * @param call  the call being made
+	 * @return Result of the call
+	 *
+	 * @throws IOException
+	 */
+	protected abstract <T> T invoke (Call<T> call) throws IOException;
+
+	@Override
+	public byte [] get (final String url) throws IOException {
+		return invoke( new Call<byte []>("GET", url) {
+			@Override
+			public byte [] execute (Requester requester) throws IOException {
+				return requester.get(url);
+			}
+		});
+	}
+
+	@Override
+	public byte [] get (final String url, final Map<String, String> params) throws IOException {
+		return invoke( new Call<byte []>("GET", url, params, null) {
+			@Override
+			public byte [] execute (Requester requester) throws IOException {
+				return requester.get(url, params);
+			}
+		});
+	}
+
+	@Override
+	public InputStream getStream (final String url) throws IOException {
+		return invoke( new Call<InputStream>("GET", url) {
+			@Override
+			public InputStream execute (Requester requester) throws IOException {
+				if (requester instanceof StreamingRequester) {
+					return ((StreamingRequester)requester).getStream(url);
+				}
+				return new ByteArrayInputStream( requester.get(url) );
+			}
+		});
+	}
+
+	@Override
+	public InputStream getStream (final String url, final Map<String, String> params) throws IOException {
+		return invoke( new Call<InputStream>("GET", url, params, null) {
+			@Override
+			public InputStream execute (Requester requester) throws IOException {
+				if (requester instanceof StreamingRequester) {
+					return ((StreamingRequester)requester).getStream(url, params);
+				}
+				return new ByteArrayInputStream( requester.get(url, params) );
+			}
+		});
+	}
+
+	@Override
+	public void post (final String url, final byte [] data) throws IOException {
+		invoke( new Call<Void>("POST", url, data) {
+			@Override
+			public Void execute (Requester requester) throws IOException {
+				requester.post(url, data);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void post (final String url, final Map<String, String> params, final byte [] data) throws IOException {
+		invoke( new Call<Void>("POST", url, params, data) {
+			@Override
+			public Void execute (Requester requester) throws IOException {
+				requester.post(url, params, data);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void put (final String url, final byte [] data) throws IOException {
+		invoke( new Call<Void>("PUT", url, data) {
+			@Override
+			public Void execute (Requester requester) throws IOException {
+				requester.put(url, data);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void put (final String url, final Map<String, String> params, final byte [] data) throws IOException {
+		invoke( new Call<Void>("PUT", url, params, data) {
+			@Override
+			public Void execute (Requester requester) throws IOException {
+				requester.put(url, params, data);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void delete (final String url) throws IOException {
+		invoke( new Call<Void>("DELETE", url) {
+			@Override
+			public Void execute (Requester requester) throws IOException {
+				requester.delete(url);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public String getSerial() {
+		return requester.getSerial();
+	}
+
+	/**
+	 * A single call on a <b>Requester</b>, along with its method and url for decorators that care about them
+	 */
+	public static abstract class Call<T> {
+		private String method, url;
+		private Map<String, String> params;
+		private byte [] body;
+
+		Call (String method, String url) {
+			this(method, url, null, null);
+		}
+
+		Call (String method, String url, byte [] body) {
+			this(method, url, null, body);
+		}
+
+		Call (String method, String url, Map<String, String> params, byte [] body) {
+			this.method = method;
+			this.url = url;
+			this.params = params;
+			this.body = body;
+		}
+
+		/**
+		 * @return HTTP method of the call
+		 */
+		public String getMethod() {
+			return method;
+		}
+
+		/**
+		 * @return Address of the call relative to the device
+		 */
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * @return Query parameters of the call, null if it has none
+		 */
+		public Map<String, String> getParams() {
+			return params;
+		}
+
+		/**
+		 * @return Body sent with the call, null if it has none
+		 */
+		public byte [] getBody() {
+			return body;
+		}
+
+		/**
+		 * Makes the call
+		 *
+		 * @param requester  requester the call is made on
+		 * @return Result of the call
+		 *
+		 * @throws IOException
+		 */
+		public abstract T execute (Requester requester) throws IOException;
+	}
+}
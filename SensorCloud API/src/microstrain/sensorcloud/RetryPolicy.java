@@ -0,0 +1,165 @@
+package microstrain.sensorcloud;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import microstrain.sensorcloud.exception.CircuitOpenException;
+import microstrain.sensorcloud.exception.SCHTTPException;
+import microstrain.sensorcloud.http.HttpConnection;
+
+/**
+ * Decides which failed requests are tried again and how long to wait before each attempt.
+ * Delays grow exponentially from the base delay up to the maximum, and each one is drawn at random
+ * from zero up to that bound so that clients which failed together do not all retry together.
+ * Connection failures and read timeouts are retried, HTTP errors are only retried for the statuses marked as retryable.
+ * A call cut off by its <b>Deadline</b> is never retried.
+ * Requests that change something on the server, such as a POST, are only retried when they never reached it:
+ * the connection could not be made, or the server answered 408 or 429 without acting on them.
+ * A request that failed after it was sent may already have been applied, and sending it again would apply it twice,
+ * unless retrying such requests is turned on with <b>setRetryUnsafe</b>.
+ */
+public class RetryPolicy {
+	/** Default number of attempts, including the first */
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+	/** Default bound on the first retry delay in milliseconds */
+	public static final long DEFAULT_BASE_DELAY = 250;
+
+	/** Default bound on any retry delay in milliseconds */
+	public static final long DEFAULT_MAX_DELAY = 30000;
+
+	private static final Random random = new Random();
+
+	private int maxAttempts;
+	private long baseDelay, maxDelay;
+	private Set<Integer> retryableStatuses;
+	private boolean retryUnsafe = false;
+
+	/**
+	 * Creates a policy using the default attempts and delays that retries
+	 * 408, 429 and 5xx statuses other than 501
+	 */
+	public RetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * @param maxAttempts  number of attempts including the first, one disables retrying
+	 * @param baseDelay  bound on the first retry delay in milliseconds
+	 * @param maxDelay  bound on any retry delay in milliseconds
+	 */
+	public RetryPolicy (int maxAttempts, long baseDelay, long maxDelay) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException( "At least one attempt is required" );
+		}
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+
+		retryableStatuses = new HashSet<Integer>();
+		retryableStatuses.add(408);
+		retryableStatuses.add(429);
+		retryableStatuses.add(500);
+		retryableStatuses.add(502);
+		retryableStatuses.add(503);
+		retryableStatuses.add(504);
+	}
+
+	/**
+	 * A policy that never retries
+	 *
+	 * @return The policy
+	 */
+	public static RetryPolicy never() {
+		return new RetryPolicy(1, 0, 0);
+	}
+
+	/**
+	 * Sets whether requests that fail with the given HTTP status are retried
+	 *
+	 * @param statusCode  HTTP status code
+	 * @param retryable  true to retry the status
+	 * @return This policy
+	 */
+	public synchronized RetryPolicy setRetryable (int statusCode, boolean retryable) {
+		if (retryable) {
+			retryableStatuses.add(statusCode);
+		} else {
+			retryableStatuses.remove(statusCode);
+		}
+		return this;
+	}
+
+	/**
+	 * Sets whether requests that change something on the server are retried on the same failures as reads.
+	 * Only safe to turn on when every such request can be applied twice without harm.
+	 *
+	 * @param retryUnsafe  true to retry them after they were sent, false to only retry them when they never reached the server
+	 * @return This policy
+	 */
+	public synchronized RetryPolicy setRetryUnsafe (boolean retryUnsafe) {
+		this.retryUnsafe = retryUnsafe;
+		return this;
+	}
+
+	/**
+	 * @return Number of attempts including the first
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @param method  HTTP method of the request
+	 * @param e  failure of the last attempt
+	 * @param attempt  number of attempts made so far
+	 * @return True if another attempt should be made
+	 */
+	public synchronized boolean shouldRetry (String method, Exception e, int attempt) {
+		if (attempt >= maxAttempts) {
+			return false;
+		}
+		boolean repeatable = retryUnsafe || HttpConnection.isSafe(method);
+		if (e instanceof SCHTTPException) {
+			int status = ((SCHTTPException)e).getStatusCode();
+			return retryableStatuses.contains(status) && (repeatable || status == 408 || status == 429);
+		}
+
+		// an open circuit has already decided not to try, and an interrupt or deadline means the caller gave up
+		if (e instanceof CircuitOpenException || (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException))) {
+			return false;
+		}
+		return e instanceof IOException && (repeatable || neverSent(e));
+	}
+
+	/* failures that come before any of the request is written, a connect timeout cannot be told apart from a read timeout so is not among them */
+	private static boolean neverSent (Exception e) {
+		return e instanceof ConnectException || e instanceof NoRouteToHostException || e instanceof UnknownHostException;
+	}
+
+	/**
+	 * @param attempt  number of attempts made so far
+	 * @return Milliseconds to wait before the next attempt
+	 */
+	public long getDelay (int attempt) {
+		long bound = baseDelay;
+		for (int i = 1; i < attempt && bound < maxDelay; i++) {
+			bound *= 2;
+		}
+		bound = Math.min(bound, maxDelay);
+		if (bound <= 0) {
+			return 0;
+		}
+
+		synchronized (random) {
+			return (long)(random.nextDouble() * bound);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package microstrain.sensorcloud;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import microstrain.sensorcloud.exception.DeadlineExceededException;
+import microstrain.sensorcloud.exception.SCHTTPException;
+import microstrain.sensorcloud.http.Deadline;
+
+/**
+ * A <b>Requester</b> that retries failed calls according to a <b>RetryPolicy</b>.
+ * The thread making the call sleeps between attempts and can be interrupted to give up early.
+ * A streamed download is only retried while it is being opened, not once its body is being read.
+ * The policy is told each call's method, so that a request that may already have been applied is not sent again.
+ * If the <b>Deadline</b> in effect would pass during the wait the call fails straight away instead.
+ */
+public class RetryingRequester extends RequesterDecorator {
+	private RetryPolicy policy;
+
+	/**
+	 * Retries using the default <b>RetryPolicy</b>
+	 *
+	 * @param requester  requester the calls are passed on to
+	 */
+	public RetryingRequester (Requester requester) {
+		this(requester, new RetryPolicy());
+	}
+
+	/**
+	 * @param requester  requester the calls are passed on to
+	 * @param policy  decides which calls are retried and when
+	 */
+	public RetryingRequester (Requester requester, RetryPolicy policy) {
+		super(requester);
+		this.policy = policy;
+	}
+
+	/**
+	 * @return Policy deciding which calls are retried
+	 */
+	public RetryPolicy getPolicy() {
+		return policy;
+	}
+
+	@Override
+	protected <T> T invoke (Call<T> call) throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			Exception failure;
+			try {
+				return call.execute( getRequester() );
+			} catch (IOException e) {
+				if (!policy.shouldRetry(call.getMethod(), e, attempt)) {
+					throw e;
+				}
+				failure = e;
+			} catch (SCHTTPException e) {
+				if (!policy.shouldRetry(call.getMethod(), e, attempt)) {
+					throw e;
+				}
+				failure = e;
+			}
+
+			long delay = policy.getDelay(attempt);
+			Deadline deadline = Deadline.current();
+			if (deadline != null && deadline.remainingMillis() <= delay) {
+				throw new DeadlineExceededException( "Deadline would pass before " + call.getMethod() + " " + call.getUrl() + " could be retried", failure );
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				InterruptedIOException interrupted = new InterruptedIOException( "Interrupted while waiting to retry " + call.getMethod() + " " + call.getUrl() );
+				interrupted.initCause(failure);
+				throw interrupted;
+			}
+		}
+	}
+}
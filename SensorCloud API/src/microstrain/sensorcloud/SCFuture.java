@@ -0,0 +1,170 @@
+package microstrain.sensorcloud;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous SensorCloud request.
+ * Besides blocking on <b>get</b>, callers can register <b>RequestCallbacks</b>
+ * that are run as soon as the result is available.
+ * 
+ * @param <T>  result type
+ */
+public class SCFuture<T> implements Future<T> {
+	private CountDownLatch done;
+	private T result;
+	private Exception exception;
+	private boolean cancelled;
+	private List<RequestCallback<? super T>> callbacks;
+	
+	/**
+	 * Creates a future that has not been completed
+	 */
+	public SCFuture() {
+		done = new CountDownLatch(1);
+		callbacks = new LinkedList<RequestCallback<? super T>>();
+	}
+	
+	/**
+	 * @param result  result of the request
+	 * @return An already completed future
+	 */
+	public static <T> SCFuture<T> completed (T result) {
+		SCFuture<T> future = new SCFuture<T>();
+		future.complete(result);
+		return future;
+	}
+	
+	/**
+	 * @param e  cause of the failure
+	 * @return An already failed future
+	 */
+	public static <T> SCFuture<T> failed (Exception e) {
+		SCFuture<T> future = new SCFuture<T>();
+		future.fail(e);
+		return future;
+	}
+	
+	/**
+	 * Completes the future, has no effect if it is already done
+	 * 
+	 * @param result  result of the request
+	 * @return True if this call completed the future
+	 */
+	public boolean complete (T result) {
+		return finish(result, null, false);
+	}
+	
+	/**
+	 * Fails the future, has no effect if it is already done
+	 * 
+	 * @param e  cause of the failure
+	 * @return True if this call completed the future
+	 */
+	public boolean fail (Exception e) {
+		return finish(null, e, false);
+	}
+	
+	/**
+	 * Registers a callback, it is run immediately if the future is already done
+	 * 
+	 * @param callback  notified when the future completes
+	 */
+	public void addCallback (RequestCallback<? super T> callback) {
+		synchronized (this) {
+			if (callbacks != null) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		
+		if (exception != null) {
+			callback.failed(exception);
+		} else {
+			callback.completed(result);
+		}
+	}
+	
+	/**
+	 * Cancelling marks the future as done, a request that is already on the wire is not interrupted.
+	 */
+	@Override
+	public boolean cancel (boolean mayInterruptIfRunning) {
+		return finish(null, new CancellationException(), true);
+	}
+
+	@Override
+	public boolean isCancelled() {
+		synchronized (this) {
+			return cancelled;
+		}
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return getResult();
+	}
+
+	@Override
+	public T get (long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return getResult();
+	}
+	
+	private boolean finish (T result, Exception e, boolean cancel) {
+		List<RequestCallback<? super T>> pending;
+		synchronized (this) {
+			if (callbacks == null) {
+				return false;
+			}
+			this.result = result;
+			this.exception = e;
+			this.cancelled = cancel;
+			pending = callbacks;
+			callbacks = null;
+		}
+		done.countDown();
+		
+		// every callback runs even if one of them throws
+		RuntimeException thrown = null;
+		for (RequestCallback<? super T> callback : pending) {
+			try {
+				if (e != null) {
+					callback.failed(e);
+				} else {
+					callback.completed(result);
+				}
+			} catch (RuntimeException ex) {
+				thrown = thrown == null ? ex : thrown;
+			}
+		}
+		if (thrown != null) {
+			throw thrown;
+		}
+		return true;
+	}
+	
+	private T getResult() throws ExecutionException {
+		if (cancelled) {
+			throw (CancellationException)exception;
+		}
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		return result;
+	}
+}
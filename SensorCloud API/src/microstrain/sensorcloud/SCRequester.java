@@ -1,33 +1,59 @@
 package microstrain.sensorcloud;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.EOFException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.Semaphore;
-
-import javax.xml.ws.http.HTTPException;
+import java.util.concurrent.Executor;
 
 import microstrain.sensorcloud.exception.SCHTTPException;
 import microstrain.sensorcloud.exception.SensorCloudRuntimeException;
+import microstrain.sensorcloud.http.BandwidthLimiter;
+import microstrain.sensorcloud.http.ConnectionPool;
+import microstrain.sensorcloud.http.ContentEncoding;
+import microstrain.sensorcloud.http.HttpResponse;
+import microstrain.sensorcloud.io.BufferPool;
+import microstrain.sensorcloud.io.PooledOutputStream;
+import microstrain.sensorcloud.metrics.Operation;
+import microstrain.sensorcloud.metrics.RequestMetrics;
 import microstrain.sensorcloud.xdr.XDRInStream;
 
 /**
- * The standard <b>Requester</b> for making API calls to SensorCloud
+ * The standard <b>Requester</b> for making API calls to SensorCloud.
+ * Requests are sent over persistent connections held in a <b>ConnectionPool</b>
+ * that is shared by every object created from the same <b>Device</b>, and by default
+ * with every other device retrieved from the same <b>SensorCloud</b>.
  * 
  * @author Colin Cavanaugh
  *
  */
-public class SCRequester implements Requester{
-	private String serial, authKey, authServer, authToken, baseURL, authURL;
-	private Semaphore unAuth;
+public class SCRequester implements StreamingRequester{
+	/** Request bodies smaller than this are sent uncompressed, the gzip framing would outweigh the savings */
+	public static final int MIN_COMPRESSED_SIZE = 512;
+	
+	/** Default age in milliseconds at which a token is replaced ahead of time */
+	public static final long DEFAULT_TOKEN_REFRESH_AGE = 30 * 60 * 1000;
+	
+	/** Times a request rejected with a stale token is replayed with a fresh one */
+	private static final int MAX_REPLAYS = 1;
+	
+	/* largest body read into an array sized from the Content-Length up front, past that it grows as data arrives */
+	private static final int MAX_PRESIZED_BODY = 1024 * 1024;
+	
+	private String serial, authKey, authServer, authHost, authTarget;
+	private int authPort;
+	private TokenManager tokens;
+	private ConnectionPool pool;
+	private boolean secure;
+	private Map<String, String> xdrHeaders, acceptHeaders, gzipHeaders;
+	private volatile boolean compression, compressUploads;
+	private volatile BandwidthLimiter limiter;
+	private BufferPool bufferPool;
+	private volatile RequestMetrics metrics;
+	private volatile Executor executor;
+	private TokenCache cache;
 
 	/**
 	 * @param serial  device serial 
@@ -36,422 +62,402 @@ public class SCRequester implements Requester{
 	 * @throws IOException
 	 */
 	protected SCRequester (String serial, String authKey, String authServer) throws IOException {
+		this(serial, authKey, authServer, new ConnectionPool());
+	}
+	
+	/**
+	 * @param serial  device serial 
+	 * @param authKey  authentication key associated with the serial
+	 * @param authServer  server to authorize with
+	 * @param pool  pool of connections used for every request
+	 * @throws IOException
+	 */
+	protected SCRequester (String serial, String authKey, String authServer, ConnectionPool pool) throws IOException {
+		this(serial, authKey, authServer, pool, true);
+	}
+	
+	/**
+	 * Allows requests to be made without TLS, used to talk to local servers
+	 * 
+	 * @param serial  device serial 
+	 * @param authKey  authentication key associated with the serial
+	 * @param authServer  server to authorize with
+	 * @param pool  pool of connections used for every request
+	 * @param secure  false to use plain HTTP
+	 * @throws IOException
+	 */
+	SCRequester (String serial, String authKey, String authServer, ConnectionPool pool, boolean secure) throws IOException {
+		this(serial, authKey, authServer, pool, secure, null);
+	}
+	
+	/**
+	 * Starts with the device's cached token if there is one, authenticating only once the server rejects it
+	 * 
+	 * @param serial  device serial 
+	 * @param authKey  authentication key associated with the serial
+	 * @param authServer  server to authorize with
+	 * @param pool  pool of connections used for every request
+	 * @param cache  cache the device's tokens are kept in, null to always authenticate
+	 * @throws IOException
+	 */
+	protected SCRequester (String serial, String authKey, String authServer, ConnectionPool pool, TokenCache cache) throws IOException {
+		this(serial, authKey, authServer, pool, true, cache);
+	}
+	
+	/**
+	 * @param serial  device serial 
+	 * @param authKey  authentication key associated with the serial
+	 * @param authServer  server to authorize with
+	 * @param pool  pool of connections used for every request
+	 * @param secure  false to use plain HTTP
+	 * @param cache  cache the device's tokens are kept in, null to always authenticate
+	 * @throws IOException
+	 */
+	SCRequester (String serial, String authKey, String authServer, ConnectionPool pool, boolean secure, TokenCache cache) throws IOException {
 		this.serial = serial;
 		this.authKey = authKey;
 		this.authServer = authServer;
-		unAuth = new Semaphore(1000);
-		authenticate(authToken);
+		this.pool = pool;
+		this.secure = secure;
+		this.bufferPool = BufferPool.getDefault();
+		
+		// the authentication request never changes, work it out once
+		authHost = hostOf(authServer);
+		authPort = portOf(authServer, secure);
+		authTarget = "/SensorCloud/devices/" + serial + "/authenticate/?version=1&key=" + authKey;
 		
-		System.setProperty( "https.proxyHost", "localhost" );
-		System.setProperty( "https.proxyPort", "8888");
+		xdrHeaders = new HashMap<String, String>();
+		xdrHeaders.put( "Accept", "application/xdr" );
+		xdrHeaders.put( "Content-Type", "application/xdr" );
+		acceptHeaders = new HashMap<String, String>(xdrHeaders);
+		acceptHeaders.put( "Accept-Encoding", ContentEncoding.ACCEPTED );
+		gzipHeaders = new HashMap<String, String>(acceptHeaders);
+		gzipHeaders.put( "Content-Encoding", ContentEncoding.GZIP );
+		tokens = new TokenManager(DEFAULT_TOKEN_REFRESH_AGE) {
+			@Override
+			protected Token fetch() throws IOException {
+				return authenticate();
+			}
+		};
+		this.cache = cache;
+		TokenManager.Token cached = cache != null ? cache.get(serial, authKey, authServer, secure) : null;
+		if (cached != null) {
+			tokens.seed(cached);
+		} else {
+			tokens.refresh(null);
 		}
+	}
 
 	@Override
 	public String getSerial() {
 		return serial;
 	}
 	
-	private void authenticate (String auth_token) throws IOException {
-		try {
-			unAuth.acquire();
-		} catch (InterruptedException e1) {
-			return;
-		}
-		if (auth_token != this.authToken) {
-			unAuth.release();
-			return;
-		}
-		
+	/**
+	 * @return Pool of connections this <b>Requester</b> sends its requests over
+	 */
+	public ConnectionPool getConnectionPool() {
+		return pool;
+	}
+	
+	/**
+	 * Limits how fast response bodies are read for this device.
+	 * Downloads are not throttled unless a limiter is set.
+	 * 
+	 * @param limiter  limiter shared by all of the device's requests, null to remove the limit
+	 */
+	public void setBandwidthLimiter (BandwidthLimiter limiter) {
+		this.limiter = limiter;
+	}
+	
+	/**
+	 * @return Limiter throttling this device's downloads, null if they are not throttled
+	 */
+	public BandwidthLimiter getBandwidthLimiter() {
+		return limiter;
+	}
+	
+	/**
+	 * Turns on compression in both directions.
+	 * Responses are requested with gzip or deflate and inflated as they are read, request bodies of
+	 * at least <b>MIN_COMPRESSED_SIZE</b> bytes are gzipped. If the server rejects a compressed body
+	 * with 415 the body is resent as is and later requests are no longer compressed.
+	 * Off by default.
+	 * 
+	 * @param compression  true to compress traffic
+	 */
+	public void setCompression (boolean compression) {
+		this.compression = compression;
+		this.compressUploads = compression;
+	}
+	
+	/**
+	 * @return True if compression has been turned on
+	 */
+	public boolean isCompressionEnabled() {
+		return compression;
+	}
+	
+	/**
+	 * Sets how old a token may get before a new one is fetched in the background.
+	 * Requests carry on with the old token while the new one is fetched.
+	 * 
+	 * @param refreshAge  age in milliseconds, zero to only fetch a new token once the server rejects the old one
+	 */
+	public void setTokenRefreshAge (long refreshAge) {
+		tokens.setRefreshAge(refreshAge);
+	}
+	
+	/**
+	 * Sets the executor this device's asynchronous calls and background token refreshes run on,
+	 * so that many devices can share a fixed number of threads
+	 * 
+	 * @param executor  executor to run on, null for the shared default
+	 */
+	public void setExecutor (Executor executor) {
+		this.executor = executor;
+		tokens.setExecutor(executor);
+	}
+	
+	/**
+	 * @return Executor this device's asynchronous calls run on, null if they use the shared default
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * Records the authentication calls this requester makes, the other calls are recorded by an <b>InstrumentedRequester</b>
+	 * 
+	 * @param metrics  metrics to record into, null to stop recording
+	 */
+	public void setMetrics (RequestMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/* Only ever called by the token manager, which keeps it to one call at a time */
+	private TokenManager.Token authenticate() throws IOException {
+		long start = System.nanoTime();
+		int status = 0;
 		byte [] data = null;
-		String url = "https://" + authServer + "/SensorCloud/devices/" + serial 
-		+ "/authenticate/?version=1&key=" + authKey;
-		
-		URL urlObj = null;
 		try {
-			urlObj = new URL(url);
-		} catch (MalformedURLException e) {
-			// this exception cannot be recovered from and is indicitave of outdated code
-			throw new SensorCloudRuntimeException( "Malformed Url, please update your API" );
-		}
-		
-		HttpURLConnection conn = null;
-		try {
-			// Open up a connection to the URL and prepare a buffered reader to read data back
-			conn = (HttpURLConnection) urlObj.openConnection();
-			conn.setRequestMethod("GET");
-			conn.setDoInput(true);
-			conn.setRequestProperty( "Accept", "application/xdr");
-			
-			InputStream is = conn.getInputStream();
-			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-			
-			byte [] buf = new byte [1024]; // buffer for reading in from server	
-			int read; // bytes read
-			
-			while ((read = is.read(buf, 0, buf.length)) != -1) {
-				buffer.write(buf, 0, read);
-			}
-			
-			buffer.flush();
-			data = buffer.toByteArray();
+			HttpResponse response = execute("GET", authHost, authPort, authTarget, null);
+			status = response.getStatusCode();
 			
 			// check the response code for success
-			if (conn.getResponseCode() != 200) {
-				throw new SCHTTPException( conn.getResponseCode(), conn.getResponseMessage() );
+			if (status != 200) {
+				if (status == 401 && cache != null) {
+					cache.remove(serial, authKey, secure);
+				}
+				throw new SCHTTPException( status, response.getMessage() + "\n" + response.readString() );
 			}
-			
-			unAuth.release();
-		} catch (IOException e) {
-			unAuth.release();
-			if (conn.getResponseCode() != -1) {
-				throw new SCHTTPException(conn.getResponseCode(), conn.getResponseMessage() + "\n" + e.getMessage());
-			} else {
-				throw e; // exception is not a sensorcloud exception
+			data = readBody(response);
+		} finally {
+			RequestMetrics metrics = this.metrics;
+			if (metrics != null) {
+				metrics.get(Operation.AUTH).record( System.nanoTime() - start, status, 0, data != null ? data.length : 0 );
 			}
 		}
 				
+		TokenManager.Token token = readToken(serial, data, secure);
+		if (cache != null) {
+			cache.put(serial, authKey, authServer, secure, token);
+		}
+		return token;
+	}
+	
+	/* the token and data server from the body of an authentication response */
+	static TokenManager.Token readToken (String serial, byte [] data, boolean secure) throws IOException {
 		XDRInStream xdrStream = new XDRInStream( new ByteArrayInputStream( data ));
 		
 		// Extract the authentication token and server from the response
-		authToken = xdrStream.readString();
+		String authToken = xdrStream.readString();
 		String server = xdrStream.readString();
-		baseURL = "https://" + server + "/SensorCloud/devices/" + serial + "/";
-		authURL = "version=1&auth_token=" + authToken;
+		return newToken( serial, authToken, hostOf(server), portOf(server, secure), System.currentTimeMillis() );
+	}
+	
+	/* a token for the device, along with the path and query it is sent with */
+	static TokenManager.Token newToken (String serial, String authToken, String host, int port, long issued) {
+		return new TokenManager.Token( authToken, host, port, "/SensorCloud/devices/" + serial + "/",
+				"version=1&auth_token=" + authToken, issued );
 	}
 	
 	@Override
 	public byte [] get (String url) throws IOException {
-		// Get the URL from the url string
-		String urlStr;
-		if (url.endsWith("/")) {
-			urlStr = baseURL + url + "?" + authURL; // the url does not contain any parameters
-		} else {
-			urlStr = baseURL + url + "&" + authURL; // the url has parameters 
-		}
-		
-		URL urlObj = null;
-		try {
-			urlObj = new URL(urlStr);
-		} catch (MalformedURLException e) {
-			// this exception cannot be recovered from and is indicitave of outdated code
-			throw new SensorCloudRuntimeException( "Malformed Url, please update your API" );
-		}
-		
-		
-		
-		HttpURLConnection conn = null;
-		try {
-			// Open up a connection to the URL and prepare a buffered reader to read data back
-			 conn = (HttpURLConnection) urlObj.openConnection();
-			conn.setDoInput(true);
-			conn.setRequestProperty( "Accept", "application/xdr");
-			
-			// Read the servers response
-			InputStream is = conn.getInputStream();
-			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-			byte [] buf = new byte [1024]; // buffer for reading in from server			
-			int read; // bytes read
-			
-			// write bytes from input stream to buffer until stream is empty
-			while ((read = is.read(buf, 0, buf.length)) != -1) {
-				long time = System.currentTimeMillis();
-				while (System.currentTimeMillis() < time + 100) {}
-				buffer.write(buf, 0, read);
-			}
-			
-			buffer.flush();
+		return readBody( open(url) );
+	}
+	
+	@Override
+	public InputStream getStream (String url) throws IOException {
+		return openBody( open(url) );
+	}
+	
+	@Override
+	public InputStream getStream (String url, Map<String, String> params) throws IOException {
+		return getStream( appendParams(url, params) );
+	}
+	
+	/* Performs a GET request, returning the response once it is known to be successful */
+	private HttpResponse open (String url) throws IOException {
+		TokenManager.Token token = tokens.get();
+		for (int replays = 0; ; replays++) {
+			HttpResponse response = execute("GET", token.host, token.port, buildTarget(token, url), null);
 			
 			// check the response code for success
-			if (conn.getResponseCode() != 200) {
-				if (conn.getResponseCode() == 401) {
-					authenticate(this.authToken);
-					return get(url);
-				} else {
-					throw new SCHTTPException( conn.getResponseCode(), conn.getResponseMessage() + buffer.toString() );
-				}
+			if (response.getStatusCode() == 200) {
+				return response;
 			}
-			
-			// return contents of the buffer
-			return buffer.toByteArray();
-			
-		} catch (IOException e) {
-			if (conn.getResponseCode() != -1) {
-				if (conn.getResponseCode() == 401) {
-					authenticate(this.authToken);
-					return get(url);
-				} else {
-					InputStream in = conn.getErrorStream();
-					InputStreamReader reader = new InputStreamReader(in);
-					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-					byte [] buf = new byte [1024]; // buffer for reading in from server			
-					int read; // bytes read
-					
-					// write bytes from input stream to buffer until stream is empty
-					while ((read = in.read(buf, 0, buf.length)) != -1) {
-						buffer.write(buf, 0, read);
-						long time = System.currentTimeMillis();
-						while (System.currentTimeMillis() < time + 100) {}
-					}
-					
-					throw new SCHTTPException(conn.getResponseCode(), buffer.toString() );//conn.getResponseMessage() + "\n" + e.getMessage());
-				}
-			} else {
-				throw e; // exception is not a sensorcloud exception
+			if (response.getStatusCode() == 401 && replays < MAX_REPLAYS) {
+				// wait for a fresh token and replay
+				response.close();
+				token = tokens.refresh(token);
+				continue;
 			}
-		} catch (HTTPException e) {
-			throw (SCHTTPException)e;
+			throw new SCHTTPException( response.getStatusCode(), readError(response) );
 		}
 	}
 	
 	@Override
 	public void post (String url, byte [] data) throws IOException {
-		// Get the URL from the url string
-		String urlStr;
-		if (url.endsWith("/")) {
-			urlStr = baseURL + url + "?" + authURL; // the url does not contain any parameters
-		} else {
-			urlStr = baseURL + url + "&" + authURL; // the url has parameters 
-		}
-		
-		URL urlObj = null;
-		try {
-			urlObj = new URL(urlStr);
-		} catch (MalformedURLException e) {
-			// this exception cannot be recovered from and is indicitave of outdated code
-			throw new SensorCloudRuntimeException( "Malformed Url, please update your API" );
-		}
-		
-		HttpURLConnection conn = null;
-		
-		try {
-			// Open up a connection to the URL and prepare a buffered reader to read data back
-			conn = (HttpURLConnection)urlObj.openConnection();
-			conn.setRequestMethod("POST");
-			conn.setDoInput(true);
-			conn.setDoOutput(true);
-			conn.setRequestProperty("Content-type", "application/xdr");
-			conn.connect();
-			OutputStream writer = conn.getOutputStream();
-			writer.write(data);
-			writer.flush();
-			int resp = conn.getResponseCode();
-			if (resp != 201) {
-				if (conn.getResponseCode() == 401) {
-					authenticate(this.authToken);
-					post(url,data);
-				} else {
-					InputStream in = conn.getErrorStream();
-					InputStreamReader reader = new InputStreamReader(in);
-					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		send("POST", url, data, 201);
+	}
 
-					byte [] buf = new byte [1024]; // buffer for reading in from server			
-					int read; // bytes read
-					
-					// write bytes from input stream to buffer until stream is empty
-					while ((read = in.read(buf, 0, buf.length)) != -1) {
-						buffer.write(buf, 0, read);
-						long time = System.currentTimeMillis();
-						while (System.currentTimeMillis() < time + 100) {}
-					}
-					
-					throw new SCHTTPException(conn.getResponseCode(), buffer.toString() );
-				}
-			}
-		} catch (IOException e) {
-			if (conn.getResponseCode() != -1) {
-				if (conn.getResponseCode() == 401) {
-					authenticate(this.authToken);
-					post(url, data);
-				} else {
-					InputStream in = conn.getErrorStream();
-					InputStreamReader reader = new InputStreamReader(in);
-					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	@Override
+	public void put(String url, byte [] data) throws IOException {
+		send("PUT", url, data, 201);
+	}
 
-					byte [] buf = new byte [1024]; // buffer for reading in from server			
-					int read; // bytes read
-					
-					// write bytes from input stream to buffer until stream is empty
-					while ((read = in.read(buf, 0, buf.length)) != -1) {
-						buffer.write(buf, 0, read);
-						long time = System.currentTimeMillis();
-						while (System.currentTimeMillis() < time + 100) {}
-					}
-					
-					throw new SCHTTPException(conn.getResponseCode(), buffer.toString() );
-				}
-			} else {
-				throw e;
+	public void delete (String url) throws IOException {
+		send("DELETE", url, null, 204);
+	}
+	
+	/* Sends a request that does not return data and validates the response code */
+	private void send (String method, String url, byte [] data, int expected) throws IOException {
+		TokenManager.Token token = tokens.get();
+		int replays = 0;
+		while (true) {
+			boolean compressed = isCompressed(data);
+			HttpResponse response = execute(method, token.host, token.port, buildTarget(token, url), data);
+			
+			if (response.getStatusCode() == expected) {
+				response.close();
+				return;
 			}
+			if (response.getStatusCode() == 415 && compressed) {
+				// the server does not take gzipped bodies, stop sending them
+				response.close();
+				compressUploads = false;
+				continue;
+			}
+			if (response.getStatusCode() == 401 && replays++ < MAX_REPLAYS) {
+				// wait for a fresh token and replay
+				response.close();
+				token = tokens.refresh(token);
+				continue;
+			}
+			throw new SCHTTPException( response.getStatusCode(), readError(response) );
 		}
 	}
-
-	@Override
-	public void put(String url, byte [] data) throws IOException {
-		// Get the URL from the url string
-		String urlStr;
+	
+	/* Get the request target from a url relative to the device, sized up front so it is built in one pass */
+	static String buildTarget (TokenManager.Token token, String url) {
+		StringBuilder target = new StringBuilder( token.basePath.length() + url.length() + token.authQuery.length() + 1 );
+		target.append(token.basePath).append(url);
 		if (url.endsWith("/")) {
-			urlStr = baseURL + url + "?" + authURL; // the url does not contain any parameters
+			target.append('?'); // the url does not contain any parameters
 		} else {
-			urlStr = baseURL + url + "&" + authURL; // the url has parameters 
+			target.append('&'); // the url has parameters 
 		}
-		
-		
-		URL urlObj = null;
-		try {
-			urlObj = new URL(urlStr);
-		} catch (MalformedURLException e) {
-			// this exception cannot be recovered from and is indicitave of outdated code
-			throw new SensorCloudRuntimeException( "Malformed Url, please update your API" );
+		return target.append(token.authQuery).toString();
+	}
+	
+	/* Sends the request over a pooled connection */
+	private HttpResponse execute (String method, String host, int port, String target, byte [] data) throws IOException {
+		Map<String, String> headers = xdrHeaders;
+		if (isCompressed(data)) {
+			data = ContentEncoding.gzip(data, bufferPool);
+			headers = gzipHeaders;
+		} else if (compression) {
+			headers = acceptHeaders;
 		}
+		return pool.execute(host, port, secure, method, target, headers, data);
+	}
+	
+	private boolean isCompressed (byte [] data) {
+		return compressUploads && data != null && data.length >= MIN_COMPRESSED_SIZE;
+	}
+	
+	/* Body of a response, throttled on the wire bytes and then decoded */
+	private InputStream openBody (HttpResponse response) throws IOException {
+		InputStream is = response.getBody();
+		BandwidthLimiter limiter = this.limiter;
+		if (limiter != null) {
+			is = limiter.wrap(is);
+		}
+		return ContentEncoding.decode( response.getHeader("Content-Encoding"), is );
+	}
+	
+	/* Reads the whole body of a response, releasing its connection */
+	private byte [] readBody (HttpResponse response) throws IOException {
+		InputStream is = openBody(response);
 		
-		HttpURLConnection conn = null;
-		
+		// with a content coding the length is that of the compressed body
+		long length = response.getHeader("Content-Encoding") == null ? response.getContentLength() : -1;
 		try {
-			// Open up a connection to the URL and prepare a buffered reader to read data back
-			conn = (HttpURLConnection)urlObj.openConnection();
-			conn.setRequestProperty("Content-Type", "application/xdr");
-			conn.setDoInput(true);
-			conn.setDoOutput(true);
-			conn.setRequestMethod("PUT");
-
-			// write the data out to the server
-			OutputStream writer = conn.getOutputStream();
-			writer.write(data);
-			writer.close();
-			
-			// veryify server response
-			int resp = conn.getResponseCode();
-			if (resp != 201) {
-				if (conn.getResponseCode() == 401) {
-					authenticate(this.authToken);
-					put(url,data);
-				} else {
-					InputStream in = conn.getErrorStream();
-					if (in != null) {
-						InputStreamReader reader = new InputStreamReader(in);
-						ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-	
-						byte [] buf = new byte [1024]; // buffer for reading in from server			
-						int read; // bytes read
-						
-						// write bytes from input stream to buffer until stream is empty
-						while ((read = in.read(buf, 0, buf.length)) != -1) {
-							buffer.write(buf, 0, read);
-							long time = System.currentTimeMillis();
-							while (System.currentTimeMillis() < time + 100) {}
-						}
-						
-						throw new SCHTTPException(conn.getResponseCode(), buffer.toString() );
+			if (length >= 0 && length <= MAX_PRESIZED_BODY) {
+				// the size is known, read straight into the array that is returned
+				byte [] data = new byte [(int)length];
+				int off = 0;
+				while (off < data.length) {
+					int read = is.read(data, off, data.length - off);
+					if (read == -1) {
+						throw new EOFException( "Response ended " + (data.length - off) + " bytes early" );
 					}
-					throw new SCHTTPException( conn.getResponseCode(), conn.getResponseMessage() );
+					off += read;
 				}
+				return data;
 			}
 			
-		} catch (IOException e) {
-			if (conn.getResponseCode() != -1) {
-				if (conn.getResponseCode() == 401) {
-					authenticate(this.authToken);
-					put(url, data);
-				} else {
-					InputStream in = conn.getErrorStream();
-					InputStreamReader reader = new InputStreamReader(in);
-					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-					byte [] buf = new byte [1024]; // buffer for reading in from server			
-					int read; // bytes read
-					
-					// write bytes from input stream to buffer until stream is empty
-					while ((read = in.read(buf, 0, buf.length)) != -1) {
-						buffer.write(buf, 0, read);
-						long time = System.currentTimeMillis();
-						while (System.currentTimeMillis() < time + 100) {}
-					}
-					
-					throw new SCHTTPException(conn.getResponseCode(), buffer.toString() );
+			// a length the server claims is not trusted with more than the cap until the data shows up
+			PooledOutputStream buffer = new PooledOutputStream(bufferPool, length > 0 ? MAX_PRESIZED_BODY : 8192);
+			byte [] buf = bufferPool.acquire(8192); // buffer for reading in from server
+			try {
+				int read; // bytes read
+				
+				// write bytes from input stream to buffer until stream is empty
+				while ((read = is.read(buf, 0, buf.length)) != -1) {
+					buffer.write(buf, 0, read);
 				}
-			} else {
-				throw e;
+				return buffer.toByteArray();
+			} finally {
+				bufferPool.release(buf);
+				buffer.close();
 			}
+		} finally {
+			is.close();
 		}
 	}
-
-	public void delete (String url) throws IOException {
-		// Get the URL from the url string
-		String urlStr;
-		if (url.endsWith("/")) {
-			urlStr = baseURL + url + "?" + authURL; // the url does not contain any parameters
-		} else {
-			urlStr = baseURL + url + "&" + authURL; // the url has parameters already 
+	
+	/* The error body is always drained so that the connection can be reused */
+	private String readError (HttpResponse response) throws IOException {
+		return new String( readBody(response), "UTF-8" );
+	}
+	
+	static String hostOf (String server) {
+		int colon = server.indexOf(':');
+		return colon < 0 ? server : server.substring(0, colon);
+	}
+	
+	static int portOf (String server, boolean secure) {
+		int colon = server.indexOf(':');
+		if (colon < 0) {
+			return secure ? 443 : 80;
 		}
-		
-		// Get the URL from the url string
-		URL urlObj = null;
 		try {
-			urlObj = new URL(urlStr);
-		} catch (MalformedURLException e) {
+			return Integer.parseInt( server.substring(colon + 1) );
+		} catch (NumberFormatException e) {
 			// this exception cannot be recovered from and is indicitave of outdated code
-			throw new SensorCloudRuntimeException( "Malformed Url, please update your API" );
-		}
-		
-		HttpURLConnection conn = null;
-		
-		try {
-			// Open up a connection to the URL and prepare a buffered reader to read data back
-			conn = (HttpURLConnection)urlObj.openConnection();
-
-			conn.setDoInput(true);
-			conn.setRequestMethod("DELETE");
-			conn.connect();
-			
-			// validate response code
-			if (conn.getResponseCode() != 204) {
-				if (conn.getResponseCode() == 401) {
-					authenticate(this.authToken);
-					delete(url);
-				} else {
-					InputStream in = conn.getErrorStream();
-					InputStreamReader reader = new InputStreamReader(in);
-					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-					byte [] buf = new byte [1024]; // buffer for reading in from server			
-					int read; // bytes read
-					
-					// write bytes from input stream to buffer until stream is empty
-					while ((read = in.read(buf, 0, buf.length)) != -1) {
-						buffer.write(buf, 0, read);
-						long time = System.currentTimeMillis();
-						while (System.currentTimeMillis() < time + 100) {}
-					}
-					
-					throw new SCHTTPException(conn.getResponseCode(), buffer.toString() );
-				}
-			}
-		} catch (IOException e) {
-			if (conn.getResponseCode() != -1) {
-				if (conn.getResponseCode() == 401) {
-					authenticate(this.authToken);
-					delete(url);
-				} else {
-					InputStream in = conn.getErrorStream();
-					InputStreamReader reader = new InputStreamReader(in);
-					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-					byte [] buf = new byte [1024]; // buffer for reading in from server			
-					int read; // bytes read
-					
-					// write bytes from input stream to buffer until stream is empty
-					while ((read = in.read(buf, 0, buf.length)) != -1) {
-						buffer.write(buf, 0, read);
-						long time = System.currentTimeMillis();
-						while (System.currentTimeMillis() < time + 100) {}
-					}
-					
-					throw new SCHTTPException(conn.getResponseCode(), buffer.toString() );
-				}
-			} else {
-				throw e;
-			}
+			throw new SensorCloudRuntimeException( "Malformed server address " + server + ", please update your API" );
 		}
 	}
 
@@ -466,21 +472,21 @@ public class SCRequester implements Requester{
 	}
 	
 	/* Append the given parameters to the url */
-	private static String appendParams(String url, Map <String, String> params) {
-		url += "?";
+	static String appendParams(String url, Map <String, String> params) {
+		StringBuilder builder = new StringBuilder( url.length() + 16 * params.size() + 1 );
+		builder.append(url).append('?');
 		
-		Set<String> keys = params.keySet();
 		boolean first = true;
-		for (String key: keys) {
+		for (Map.Entry<String, String> param : params.entrySet()) {
 			if (first) {
 				first = false;
 			} else {
-				url += "&";
+				builder.append('&');
 			} 
-			url += key + "=" + params.get(key);
+			builder.append( param.getKey() ).append('=').append( param.getValue() );
 		} 
 		
-		return url;
+		return builder.toString();
 	}
 
 	@Override
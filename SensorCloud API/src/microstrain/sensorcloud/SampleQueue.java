@@ -0,0 +1,275 @@
+package microstrain.sensorcloud;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import microstrain.sensorcloud.xdr.XDROutStream;
+
+/**
+ * The samples of a <b>TimeSeriesStream</b> on their way from the thread adding them to the thread uploading them.
+ * Timestamps and values are kept in primitive arrays rather than as a <b>Point</b> each, in chunks of
+ * <b>CHUNK_SIZE</b> samples. The producer links a new chunk when it gets a chunk ahead and the consumer hands
+ * drained chunks back, so while the uploads keep up the same two chunks go round like a ring and adding a
+ * sample allocates nothing. Neither side takes a lock, a sample becomes visible to the consumer through a
+ * single ordered write of the producer's position.
+ * <p>
+ * Sample rate changes are marked at the position they happen, the consumer never hands out samples of
+ * two rates together. Only one thread may add samples and only one may take them.
+ */
+final class SampleQueue {
+	/** Samples held by each chunk */
+	static final int CHUNK_SIZE = 1024;
+	
+	/** Drained chunks kept for reuse, enough to cover the consumer draining several at once */
+	static final int MAX_SPARE = 4;
+
+	/* written by the producer, read by the consumer */
+	private final AtomicLong published = new AtomicLong();
+	private final Queue<Mark> marks = new ConcurrentLinkedQueue<Mark>();
+	private volatile Chunk first;
+
+	/* producer only */
+	private Chunk tail;
+	private int tailIndex;
+	private long added;
+
+	/* consumer only, the position is also read by the producer */
+	private Chunk head;
+	private int headIndex;
+	private volatile long taken;
+	private SampleRate rate;
+
+	/* drained chunks on their way back to the producer, pushed by the consumer and popped by the producer */
+	private final AtomicReference<Chunk> spare = new AtomicReference<Chunk>();
+	private final AtomicInteger spareCount = new AtomicInteger();
+
+	/**
+	 * Starts a run of samples at a new rate, called by the producer before adding the first of them
+	 *
+	 * @param rate  rate of the samples added from here on
+	 */
+	void mark (SampleRate rate) {
+		marks.offer( new Mark(added, rate) );
+	}
+
+	/**
+	 * Adds a sample, called by the producer
+	 *
+	 * @param timestamp  timestamp in nanoseconds
+	 * @param value  value of the sample
+	 */
+	void add (long timestamp, float value) {
+		if (tail == null || tailIndex == CHUNK_SIZE) {
+			advance();
+		}
+		tail.timestamps[tailIndex] = timestamp;
+		tail.values[tailIndex++] = value;
+		published.lazySet(++added);
+	}
+
+	/**
+	 * Adds a run of samples from parallel arrays, called by the producer.
+	 * The samples are copied a chunk at a time and become visible to the consumer together.
+	 *
+	 * @param timestamps  timestamps in nanoseconds
+	 * @param values  values of the samples
+	 * @param off  index of the first sample in both arrays
+	 * @param len  number of samples
+	 */
+	void add (long [] timestamps, float [] values, int off, int len) {
+		int end = off + len;
+		while (off < end) {
+			if (tail == null || tailIndex == CHUNK_SIZE) {
+				advance();
+			}
+			int count = Math.min(end - off, CHUNK_SIZE - tailIndex);
+			System.arraycopy(timestamps, off, tail.timestamps, tailIndex, count);
+			System.arraycopy(values, off, tail.values, tailIndex, count);
+			tailIndex += count;
+			off += count;
+		}
+		added += len;
+		published.lazySet(added);
+	}
+
+	/**
+	 * @return Number of samples added and not yet taken, called by the producer
+	 */
+	long waiting() {
+		return added - taken;
+	}
+
+	/**
+	 * Whether a consumer has something to take, safe to call from any thread as it changes nothing.
+	 * May answer true when there turns out to be nothing, never false while a full batch is published.
+	 *
+	 * @param max  samples in a full batch
+	 * @return True if a full batch or the end of a run at one rate is waiting
+	 */
+	boolean hasWork (int max) {
+		long available = published.get() - taken;
+		Mark next = marks.peek();
+		return available >= max || (next != null && available > 0 && next.position <= taken + available);
+	}
+
+	/**
+	 * @return Number of samples added and visible to the consumer since the queue was created, safe to call from any thread
+	 */
+	long published() {
+		return published.get();
+	}
+
+	/**
+	 * @return Number of samples taken since the queue was created, safe to call from any thread
+	 */
+	long taken() {
+		return taken;
+	}
+
+	/**
+	 * @return Number of samples added and not yet taken, called by the consumer
+	 */
+	long size() {
+		return published.get() - taken;
+	}
+
+	/**
+	 * @return Drained chunks waiting to be reused by the producer, safe to call from any thread
+	 */
+	int spareChunks() {
+		return spareCount.get();
+	}
+
+	/**
+	 * Rate of the samples <b>ready</b> last counted, called by the consumer
+	 *
+	 * @return The rate, null if no samples have been added
+	 */
+	SampleRate rate() {
+		nextMark();
+		return rate;
+	}
+
+	/**
+	 * Number of samples that can be taken together, called by the consumer.
+	 * The samples are all of the rate returned by <b>rate</b>.
+	 *
+	 * @param max  most samples wanted
+	 * @return Samples ready, no more than max
+	 */
+	int ready (int max) {
+		// the position is read first, a mark is always offered before the samples after it are published
+		long available = published.get() - taken;
+		Mark next = nextMark();
+		if (next != null) {
+			available = Math.min(available, next.position - taken);
+		}
+		return (int)Math.min(available, max);
+	}
+
+	/**
+	 * @param count  samples from the head
+	 * @return True if the rate changes right after that many samples, so no more will be added at this rate
+	 */
+	boolean rateChangesAfter (int count) {
+		Mark next = marks.peek();
+		return next != null && next.position == taken + count;
+	}
+
+	/**
+	 * Packs samples as XDR and removes them from the queue, called by the consumer
+	 *
+	 * @param xdr  stream the timestamp and value of each sample are written to
+	 * @param count  number of samples, no more than <b>ready</b> returned
+	 *
+	 * @throws IOException
+	 */
+	void take (XDROutStream xdr, int count) throws IOException {
+		if (head == null) {
+			head = first;
+		}
+		for (int i = 0; i < count; i++) {
+			if (headIndex == CHUNK_SIZE) {
+				Chunk drained = head;
+				head = drained.next;
+				headIndex = 0;
+				recycle(drained);
+			}
+			xdr.writeHyper( head.timestamps[headIndex] );
+			xdr.writeFloat( head.values[headIndex++] );
+		}
+		taken = taken + count;
+	}
+
+	/* moves the producer on to a new chunk, reusing one the consumer is done with if there is one */
+	private void advance() {
+		Chunk chunk;
+		do {
+			chunk = spare.get();
+		} while (chunk != null && !spare.compareAndSet(chunk, chunk.next));
+		if (chunk == null) {
+			chunk = new Chunk();
+		} else {
+			spareCount.decrementAndGet();
+			chunk.next = null;
+		}
+		if (tail == null) {
+			first = chunk;
+		} else {
+			// ordered ahead of the consumer by the write of the position that follows
+			tail.next = chunk;
+		}
+		tail = chunk;
+		tailIndex = 0;
+	}
+
+	/* hands a chunk back to the producer, only the producer pops so a chunk cannot come back around mid pop */
+	private void recycle (Chunk drained) {
+		if (spareCount.get() >= MAX_SPARE) {
+			drained.next = null;
+			return;
+		}
+		spareCount.incrementAndGet();
+		Chunk top;
+		do {
+			top = spare.get();
+			drained.next = top;
+		} while (!spare.compareAndSet(top, drained));
+	}
+
+	/* the first rate change the consumer has not reached, applying those it has */
+	private Mark nextMark() {
+		Mark mark;
+		while ((mark = marks.peek()) != null && mark.position <= taken) {
+			rate = mark.rate;
+			marks.poll();
+		}
+		return mark;
+	}
+
+	/**
+	 * A fixed run of samples
+	 */
+	private static class Chunk {
+		final long [] timestamps = new long [CHUNK_SIZE];
+		final float [] values = new float [CHUNK_SIZE];
+		Chunk next;
+	}
+
+	/**
+	 * The position a sample rate takes effect at
+	 */
+	private static class Mark {
+		final long position;
+		final SampleRate rate;
+
+		Mark (long position, SampleRate rate) {
+			this.position = position;
+			this.rate = rate;
+		}
+	}
+}
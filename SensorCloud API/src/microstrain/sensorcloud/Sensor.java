@@ -41,6 +41,11 @@ public class Sensor {
 	
 	private String name, label, type, description;
 	
+	/**
+	 * Path of the <b>Sensor</b> relative to the device, built once since it is part of every request
+	 */
+	private String path;
+	
 	/**
 	 * A <b>Requester</b> authorized for the <b>Sensor</b>'s parent device
 	 */
@@ -62,6 +67,7 @@ public class Sensor {
 		this.type = type;
 		this.description = description;
 		this.requester = requester;
+		this.path = "sensors/" + name + "/";
 	}
 	
 	/**
@@ -104,7 +110,7 @@ public class Sensor {
 		xdrStream.close();
 		
 		// add the channel to the sensor
-		String url = "sensors/" + this.name + "/channels/" + name + "/";
+		String url = path + "channels/" + name + "/";
 		
 		try { 
 			requester.put(url, xdr); 
@@ -128,7 +134,7 @@ public class Sensor {
 	 */
 	public List <Channel> getAllChannels () throws IOException, InvalidRequestException {
 
-		String url = "sensors/" + this.name + "/channels/";
+		String url = path + "channels/";
 		try {
 			return Channel.getInstanceOfAll( requester.get(url), this.name, requester );
 		} catch (SCHTTPException e) {
@@ -138,6 +144,43 @@ public class Sensor {
 		}
 	}
 	
+	/**
+	 * Asynchronously returns all channels owned by the sensor.
+	 * Failures are delivered through the future as they would be thrown by <b>getAllChannels</b>.
+	 * 
+	 * @return Future for the list of Channels
+	 */
+	public SCFuture<List <Channel>> getAllChannelsAsync() {
+		final SCFuture<List <Channel>> future = new SCFuture<List <Channel>>();
+		
+		ExecutorAsyncRequester.of(requester).get(path + "channels/").addCallback( new RequestCallback<byte []>() {
+			@Override
+			public void completed (byte [] xdr) {
+				try {
+					future.complete( Channel.getInstanceOfAll(xdr, name, requester) );
+				} catch (Exception e) {
+					future.fail(e);
+				}
+			}
+
+			@Override
+			public void failed (Exception e) {
+				if (e instanceof SCHTTPException) {
+					List<String> params = new LinkedList<String>();
+					params.add(name);
+					try {
+						future.fail( parseException((SCHTTPException)e, params) );
+					} catch (VersionNotSupportedException excep) {
+						future.fail(excep);
+					}
+				} else {
+					future.fail(e);
+				}
+			}
+		});
+		return future;
+	}
+	
 	/**
 	 * Returns an instance of a sensors channel, throws a ChannelDoesNotExistException 
 	 * if the sensor is not found
@@ -172,7 +215,7 @@ public class Sensor {
 	 */
 	public void deleteChannel (String name) throws InvalidRequestException, IOException {
 		
-		String url = "sensors/" + this.name + "/channels/" + name + "/";
+		String url = path + "channels/" + name + "/";
 		
 		try {
 			requester.delete(url);
@@ -249,7 +292,7 @@ public class Sensor {
 	 */
 	public Attribute getAttribute (String name) throws IOException, InvalidRequestException {
 		try {
-			return Attribute.getInstanceOf( requester.get( "sensors/" + this.name + "/attributes/" + name + "/" ));
+			return Attribute.getInstanceOf( requester.get( path + "attributes/" + name + "/" ));
 		} catch (SCHTTPException e) {
 			List<String> params = new LinkedList<String>();
 			params.add(name);
@@ -268,7 +311,7 @@ public class Sensor {
 	public AttributeMap getAllAttributes() throws IOException, InvalidRequestException {
 		AttributeMap map = null;
 		try {
-			map = AttributeMap.getInstanceOf( requester.get( "sensors/" + this.name + "/attributes/" ) );
+			map = AttributeMap.getInstanceOf( requester.get( path + "attributes/" ) );
 		} catch (SCHTTPException e) {
 			List<String> params = new LinkedList<String>();
 			throw parseException(e, params);
@@ -292,7 +335,7 @@ public class Sensor {
 	 */
 	public void addAttribute (String name, Attribute attribute) throws IOException, InvalidRequestException {
 		try {
-			requester.post( "sensors/" + this.name + "/attributes/" + name + "/", attribute.toXDR() );
+			requester.post( path + "attributes/" + name + "/", attribute.toXDR() );
 		} catch (SCHTTPException e) {
 			List<String> params = new LinkedList<String>();
 			params.add( name );
@@ -310,7 +353,7 @@ public class Sensor {
 	 */
 	public void bulkAddAttribute (AttributeMap attributes) throws IOException, InvalidRequestException {
 		try {
-			requester.post( "sensors/" + this.name + "/attributes/", attributes.toXDR() );
+			requester.post( path + "attributes/", attributes.toXDR() );
 		} catch (SCHTTPException e) {
 			List<String> params = new LinkedList<String>();
 			throw parseException(e, params);
@@ -327,7 +370,7 @@ public class Sensor {
 	 */
 	public void deleteAttribute (String name) throws IOException, InvalidRequestException {
 		try {
-			requester.delete( "sensors/" + this.name + "/attributes/" + name + "/" );
+			requester.delete( path + "attributes/" + name + "/" );
 		} catch (SCHTTPException e) {
 			List<String> params = new LinkedList<String>();
 			params.add( name );
@@ -342,8 +385,6 @@ public class Sensor {
 	 * @throws IOException
 	 */
 	private void update() throws IOException {
-		String url = "sensors/" + name + "/";
-		
 		ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
 		XDROutStream xdrStream = new XDROutStream(byteStream);
 		
@@ -354,7 +395,7 @@ public class Sensor {
 		
 		byte [] data = byteStream.toByteArray();
 		xdrStream.close();
-		requester.post(url, data);
+		requester.post(path, data);
 	}
 	
 	/**
@@ -1,19 +1,59 @@
 package microstrain.sensorcloud;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import javax.management.JMException;
 
 import microstrain.sensorcloud.exception.InvalidAuthenticationCredentialsException;
 import microstrain.sensorcloud.exception.InvalidUserInputException;
 import microstrain.sensorcloud.exception.SCHTTPException;
+import microstrain.sensorcloud.http.BandwidthLimiter;
+import microstrain.sensorcloud.http.ConnectionPool;
+import microstrain.sensorcloud.metrics.RequestMetrics;
 
 /**
  * The parent to all objects.
+ * Everything a device needs beyond its own authentication is shared by the devices retrieved from
+ * the same object: the connections to each server, the threads asynchronous calls and token refreshes
+ * run on, and the buffers requests are built in. Devices are cached, asking for a serial again hands
+ * back the same <b>Device</b> without authenticating again, so one object can front thousands of
+ * devices without a thread or a socket for each.
+ * <p>
+ * Each device's requests go through a <b>GoverningRequester</b> by default, which lets 4 of them be in flight
+ * at once and queues the rest, sharing the device by weight between live uploads, queries, metadata and backfill. Calls that would run
+ * more at once, such as a <b>DeviceSnapshot</b> or many streams uploading, wait their turn rather than fail,
+ * see <b>setMaxRequestsInFlight</b> to change the limit or turn the governor off.
+ * <p>
+ * The default <b>UploadScheduler</b> grows with the pool as devices are retrieved, so the streams of
+ * every device together can keep each connection left for uploads busy.
  * 
  * @author Colin Cavanaugh
  *
  */
 public class SensorCloud {
 	private String authServer;
+	private int maxConnections, reservedForQueries, maxInFlight;
+	private long idleTimeout;
+	private long bandwidthLimit;
+	private boolean compression;
+	private long tokenRefreshAge;
+	private RetryPolicy retryPolicy;
+	private int breakerThreshold;
+	private long breakerOpenTime;
+	private boolean metricsEnabled, coalescing;
+	private int connectTimeout, readTimeout;
+	private ConnectionPool pool;
+	private Set<String> pooledDevices;
+	private Executor executor;
+	private TokenCache tokenCache;
+	private ConcurrentMap<String, Handle> devices;
 	
 	/**
 	 * Unless you know that you need to use another server you should authenticate with "sensorcloud.microstrain.com"
@@ -22,10 +62,252 @@ public class SensorCloud {
 	 */
 	public SensorCloud (String authServer) {
 		this.authServer = authServer;
+		this.maxConnections = 0;
+		this.reservedForQueries = ConnectionPool.DEFAULT_RESERVED_FOR_QUERIES;
+		this.maxInFlight = GoverningRequester.DEFAULT_MAX_IN_FLIGHT;
+		this.idleTimeout = ConnectionPool.DEFAULT_IDLE_TIMEOUT;
+		this.tokenRefreshAge = SCRequester.DEFAULT_TOKEN_REFRESH_AGE;
+		this.connectTimeout = ConnectionPool.DEFAULT_CONNECT_TIMEOUT;
+		this.readTimeout = ConnectionPool.DEFAULT_READ_TIMEOUT;
+		this.retryPolicy = new RetryPolicy();
+		this.breakerThreshold = CircuitBreakerRequester.DEFAULT_FAILURE_THRESHOLD;
+		this.breakerOpenTime = CircuitBreakerRequester.DEFAULT_OPEN_TIME;
+		this.devices = new ConcurrentHashMap<String, Handle>();
+	}
+	
+	/**
+	 * Sets the number of persistent connections kept open to a server.
+	 * The connections are shared by every <b>Device</b> retrieved from this object, so devices on
+	 * the same server reuse each other's connections rather than each opening and handshaking their own.
+	 * By default the number grows with the devices retrieved, each one adding as many connections as it
+	 * may have requests in flight, so sharing never leaves a device with fewer than it would have had alone.
+	 * Only affects devices retrieved after the call.
+	 * 
+	 * @param maxConnections  connections per host, zero to grow with the devices
+	 */
+	public synchronized void setMaxConnectionsPerHost (int maxConnections) {
+		this.maxConnections = maxConnections;
+		this.pool = null;
+		devices.clear();
+	}
+	
+	/**
+	 * Sets how many of the connections to a server uploads cannot take, so that
+	 * reading data back is not held up by a backlog of uploads.
+	 * Only affects devices retrieved after the call.
+	 * 
+	 * @param reservedForQueries  connections per host held back for queries, zero to let uploads take them all
+	 */
+	public synchronized void setReservedForQueries (int reservedForQueries) {
+		this.reservedForQueries = reservedForQueries;
+		this.pool = null;
+		devices.clear();
+	}
+	
+	/**
+	 * Caps how many requests each <b>Device</b> has in flight at once, the rest wait their turn in a
+	 * <b>GoverningRequester</b> that shares the device between live uploads, queries, metadata and backfill.
+	 * The governor is on by default with <b>GoverningRequester.DEFAULT_MAX_IN_FLIGHT</b> requests per device,
+	 * which also sets how many connections each device adds to the shared pool.
+	 * Only affects devices retrieved after the call.
+	 * 
+	 * @param maxInFlight  requests per device, zero to let every request straight through
+	 */
+	public synchronized void setMaxRequestsInFlight (int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		devices.clear();
+	}
+	
+	/**
+	 * Sets how long an unused connection is kept open before it is closed.
+	 * Only affects devices retrieved after the call.
+	 * 
+	 * @param idleTimeout  time in milliseconds, zero opens a new connection for every request
+	 */
+	public synchronized void setIdleTimeout (long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		this.pool = null;
+		devices.clear();
+	}
+	
+	/**
+	 * Sets how long each <b>Device</b> waits on the network before a request fails.
+	 * To bound a whole call rather than each wait use a <b>Deadline</b>.
+	 * Only affects devices retrieved after the call.
+	 * 
+	 * @param connectTimeout  milliseconds to wait for a connection to open, zero to wait forever
+	 * @param readTimeout  milliseconds to wait for data from the server, zero to wait forever
+	 */
+	public synchronized void setTimeouts (int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.pool = null;
+		devices.clear();
+	}
+	
+	/**
+	 * Limits how fast each <b>Device</b> downloads data, each device gets its own limit.
+	 * Only affects devices retrieved after the call.
+	 * 
+	 * @param bytesPerSecond  download rate per device, zero for no limit
+	 */
+	public void setBandwidthLimit (long bytesPerSecond) {
+		this.bandwidthLimit = bytesPerSecond;
+		devices.clear();
+	}
+	
+	/**
+	 * Compresses the data sent to and received from SensorCloud.
+	 * Time-series data compresses well, this is worth turning on for links where bandwidth costs more than CPU.
+	 * Only affects devices retrieved after the call.
+	 * 
+	 * @param compression  true to compress traffic, false by default
+	 */
+	public void setCompression (boolean compression) {
+		this.compression = compression;
+		devices.clear();
+	}
+	
+	/**
+	 * Sets how old a device's authentication token may get before it is replaced in the background.
+	 * Only affects devices retrieved after the call.
+	 * 
+	 * @param refreshAge  age in milliseconds, zero to only replace a token once the server rejects it
+	 */
+	public void setTokenRefreshAge (long refreshAge) {
+		this.tokenRefreshAge = refreshAge;
+		devices.clear();
+	}
+	
+	/**
+	 * Sets how each <b>Device</b> retries requests that fail.
+	 * By default a read is retried on any transient failure, and an upload or other change
+	 * only when it never reached the server. Only affects devices retrieved after the call.
+	 * 
+	 * @param retryPolicy  policy for failed requests, null to never retry
+	 */
+	public void setRetryPolicy (RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		devices.clear();
+	}
+	
+	/**
+	 * Sets when each <b>Device</b> stops making requests because SensorCloud appears to be down.
+	 * Only affects devices retrieved after the call.
+	 * 
+	 * @param failureThreshold  consecutive failures before requests are suspended, zero to never suspend them
+	 * @param openTime  milliseconds requests are suspended for before one is tried again
+	 */
+	public void setCircuitBreaker (int failureThreshold, long openTime) {
+		this.breakerThreshold = failureThreshold;
+		this.breakerOpenTime = openTime;
+		devices.clear();
+	}
+	
+	/**
+	 * Merges identical GETs that each <b>Device</b> makes at the same time into a single request,
+	 * see <b>CoalescingRequester</b>. Worth turning on when many threads poll the same channels.
+	 * Only affects devices retrieved after the call.
+	 * 
+	 * @param coalescing  true to merge identical GETs, false by default
+	 */
+	public void setCoalescing (boolean coalescing) {
+		this.coalescing = coalescing;
+		devices.clear();
+	}
+	
+	/**
+	 * Records latency, traffic and status counts for every request each <b>Device</b> makes,
+	 * published over JMX as <b>microstrain.sensorcloud:type=RequestMetrics,name=&lt;serial&gt;</b>
+	 * along with the depth of the device's request queue as <b>microstrain.sensorcloud:type=RequestGovernor,name=&lt;serial&gt;</b>.
+	 * Only affects devices retrieved after the call.
+	 * 
+	 * @param metricsEnabled  true to record metrics, false by default
+	 */
+	public void setMetricsEnabled (boolean metricsEnabled) {
+		this.metricsEnabled = metricsEnabled;
+		devices.clear();
+	}
+	
+	/**
+	 * Sets the executor that the asynchronous calls and background token refreshes of every <b>Device</b> run on.
+	 * Only affects devices retrieved after the call.
+	 * 
+	 * @param executor  executor shared by the devices, null for the default shared by every <b>SensorCloud</b>
+	 */
+	public void setExecutor (Executor executor) {
+		this.executor = executor;
+		devices.clear();
+	}
+	
+	/**
+	 * Keeps the authentication tokens of the devices in a <b>TokenCache</b>, so that after a restart each
+	 * <b>Device</b> starts with its cached token and only authenticates once the server rejects it.
+	 * A device whose key has been revoked is then only found out on its first request, which fails with a 401.
+	 * Only affects devices retrieved after the call.
+	 * 
+	 * @param tokenCache  cache shared by the devices, null to authenticate every device as it is retrieved
+	 */
+	public void setTokenCache (TokenCache tokenCache) {
+		this.tokenCache = tokenCache;
+		devices.clear();
+	}
+	
+	/**
+	 * @return Cache the devices' tokens are kept in, null if there is none
+	 */
+	public TokenCache getTokenCache() {
+		return tokenCache;
+	}
+	
+	/**
+	 * @return Executor the next <b>Device</b> retrieved will run its asynchronous calls on
+	 */
+	public Executor getExecutor() {
+		Executor executor = this.executor;
+		return executor != null ? executor : ExecutorAsyncRequester.getDefaultExecutor();
 	}
 	
 	/**
-	 * Get an instance of your device
+	 * Devices retrieved from this object share the pool, changing a connection setting starts a new pool
+	 * for the devices retrieved after it while the earlier devices keep using the old one.
+	 * 
+	 * @return Pool of connections the next <b>Device</b> retrieved will use
+	 */
+	public synchronized ConnectionPool getConnectionPool() {
+		if (pool == null) {
+			int connections = maxConnections > 0 ? maxConnections : getConnectionsPerDevice();
+			// cap the reservation so a single connection per host is still usable for uploads
+			pool = new ConnectionPool( connections, idleTimeout, Math.min(reservedForQueries, Math.max(connections - 1, 0)) );
+			pool.setConnectTimeout(connectTimeout);
+			pool.setReadTimeout(readTimeout);
+			pooledDevices = new HashSet<String>();
+		}
+		return pool;
+	}
+	
+	/* the shared pool, grown by a device's worth of connections the first time the device uses it unless the size was set */
+	private synchronized ConnectionPool getConnectionPool (String serial) {
+		ConnectionPool pool = getConnectionPool();
+		if (maxConnections == 0 && pooledDevices.add(serial)) {
+			int connections = pooledDevices.size() * getConnectionsPerDevice();
+			if (connections > pool.getMaxConnections()) {
+				pool.setMaxConnections(connections);
+			}
+		}
+		return pool;
+	}
+	
+	/* as many as the governor lets a device have in flight, or the pool's default when it lets every request through */
+	private int getConnectionsPerDevice() {
+		return maxInFlight > 0 ? Math.max(maxInFlight, ConnectionPool.DEFAULT_MAX_CONNECTIONS) : ConnectionPool.DEFAULT_MAX_CONNECTIONS;
+	}
+	
+	/**
+	 * Get an instance of your device.
+	 * The device is authenticated the first time it is asked for, later calls with the same serial and key
+	 * return the same instance until a setting of this object is changed. Several threads asking for the same
+	 * device at once wait on a single authentication.
 	 * 
 	 * @param serial  device's serial
 	 * @param authKey  from your authentication credentials
@@ -35,8 +317,101 @@ public class SensorCloud {
 	 * @throws InvalidUserInputException 
 	 */
 	public Device getDevice (String serial, String authKey) throws IOException, InvalidUserInputException {
+		while (true) {
+			Handle handle = devices.get(serial);
+			if (handle != null && handle.authKey.equals(authKey)) {
+				return handle.await();
+			}
+			
+			Handle mine = new Handle(authKey);
+			boolean claimed = handle == null ? devices.putIfAbsent(serial, mine) == null : devices.replace(serial, handle, mine);
+			if (!claimed) {
+				continue; // another thread got there first, look again
+			}
+			
+			try {
+				Device device = createDevice(serial, authKey);
+				mine.device.complete(device);
+				return device;
+			} catch (IOException e) {
+				forget(serial, mine, e);
+				throw e;
+			} catch (InvalidUserInputException e) {
+				forget(serial, mine, e);
+				throw e;
+			} catch (RuntimeException e) {
+				forget(serial, mine, e);
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Drops a device from the cache, the next <b>getDevice</b> for the serial authenticates again.
+	 * Instances already handed out keep working.
+	 * 
+	 * @param serial  device's serial
+	 */
+	public void forgetDevice (String serial) {
+		devices.remove(serial);
+	}
+	
+	/* a failed retrieval is not cached, the callers waiting on it get the same failure */
+	private void forget (String serial, Handle handle, Exception e) {
+		devices.remove(serial, handle);
+		handle.device.fail(e);
+	}
+	
+	private Device createDevice (String serial, String authKey) throws IOException, InvalidUserInputException {
 		try {
-			return new Device( serial, new SCRequester(serial, authKey, authServer));
+			ConnectionPool pool = getConnectionPool(serial);
+			// the streams' uploads share the default scheduler, it keeps as many going as the pool has connections for
+			UploadScheduler.growDefault( pool.getMaxConnections() - pool.getReservedForQueries() );
+			SCRequester requester = new SCRequester(serial, authKey, authServer, pool, tokenCache);
+			if (bandwidthLimit > 0) {
+				requester.setBandwidthLimiter( new BandwidthLimiter(bandwidthLimit) );
+			}
+			requester.setCompression(compression);
+			requester.setTokenRefreshAge(tokenRefreshAge);
+			requester.setExecutor( getExecutor() );
+			
+			// the breaker sits under the retries so each attempt counts and an open circuit is not retried,
+			// the governor sits between them so a call waiting to be retried does not hold a place in flight
+			Requester decorated = requester;
+			RequestMetrics metrics = null;
+			if (metricsEnabled) {
+				// innermost so every attempt shows up, retried or not
+				metrics = new RequestMetrics();
+				requester.setMetrics(metrics);
+				decorated = new InstrumentedRequester(decorated, metrics);
+				try {
+					metrics.register(serial);
+				} catch (JMException e) {
+					// the metrics are still recorded, they just cannot be watched over JMX
+				}
+			}
+			if (breakerThreshold > 0) {
+				decorated = new CircuitBreakerRequester(decorated, breakerThreshold, breakerOpenTime);
+			}
+			if (maxInFlight > 0) {
+				GoverningRequester governor = new GoverningRequester(decorated, maxInFlight);
+				if (metrics != null) {
+					try {
+						governor.register(serial);
+					} catch (JMException e) {
+						// the queue still works, it just cannot be watched over JMX
+					}
+				}
+				decorated = governor;
+			}
+			if (retryPolicy != null) {
+				decorated = new RetryingRequester(decorated, retryPolicy);
+			}
+			if (coalescing) {
+				// outermost so the callers sharing a request share its retries too
+				decorated = new CoalescingRequester(decorated);
+			}
+			return new Device( serial, decorated );
 		} catch (SCHTTPException e) {
 			switch (e.getStatusCode()) {
 			case 401:
@@ -45,4 +420,35 @@ public class SensorCloud {
 			throw e;
 		}
 	}
+	
+	/**
+	 * A device that has been or is being retrieved, along with the key it was authenticated with
+	 */
+	private static class Handle {
+		final String authKey;
+		final SCFuture<Device> device = new SCFuture<Device>();
+		
+		Handle (String authKey) {
+			this.authKey = authKey;
+		}
+		
+		Device await() throws IOException, InvalidUserInputException {
+			try {
+				return device.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException( "Interrupted while waiting for the device to authenticate" );
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException)cause;
+				} else if (cause instanceof InvalidUserInputException) {
+					throw (InvalidUserInputException)cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException)cause;
+				}
+				throw new IOException( cause.getMessage() );
+			}
+		}
+	}
 }
@@ -0,0 +1,679 @@
+package microstrain.sensorcloud;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import microstrain.sensorcloud.exception.InvalidUserInputException;
+
+/**
+ * The part of an <b>UploadSpool</b> holding one stream's samples, a directory of memory mapped segment files.
+ * Samples are written to the mapped segment before they are queued for upload, so they survive the process
+ * ending as soon as they are added. Each segment is a run of records of up to <b>RECORD_SAMPLES</b> samples at
+ * one rate:
+ * <pre>
+ * header    count &lt;&lt; 32 | CRC32 of what follows it, written last and in one store
+ * rate      type, rate
+ * samples   timestamp, value for each sample
+ * </pre>
+ * A sample is added to the open record in place and the header rewritten, so a crash leaves either the record
+ * before or after the sample, never one that reads back wrong. Reading stops at the first record whose CRC does
+ * not match, anything after a torn write is discarded.
+ * <p>
+ * Positions count samples from the first one replayed, the same way the stream's <b>SampleQueue</b> counts them,
+ * so an acknowledged upload maps straight onto the segments it came from. Only the producing thread appends,
+ * the uploads acknowledge from theirs.
+ * <p>
+ * Next to the segments a small <b>MARK</b> file records, as a segment and an offset into it, how far SensorCloud
+ * has answered and where the upload in flight ends. A replay skips what was answered and ends its first upload where
+ * the one in flight ended, so an upload sent again holds exactly the samples it held before and a conflict on it
+ * cannot take samples that were never sent down with it. The file has two slots written in turn, each with a sequence
+ * number and a CRC32, so a torn write leaves the other one to read. An upload that is rejected is written whole to the
+ * <b>REJECTED</b> directory and counts as answered, it is not replayed.
+ */
+final class SpoolLog {
+	/** Most samples in a record, a record never spans two segments */
+	static final int RECORD_SAMPLES = 4096;
+
+	static final String SUFFIX = ".seg";
+
+	/** File the answered and in flight positions are kept in */
+	static final String MARK = "position";
+
+	/** Directory rejected uploads are kept in, one upload body per file */
+	static final String REJECTED = "rejected";
+
+	private static final int MAGIC = 0x53435350; // "SCSP"
+	private static final int VERSION = 1;
+	private static final int SEGMENT_HEADER = 8, RECORD_HEADER = 16, SAMPLE_SIZE = 12;
+
+	/* sequence, answered segment and offset, in flight segment and offset, CRC32 of those */
+	private static final int MARK_SLOT = 40, MARK_LENGTH = 32;
+
+	private final UploadSpool spool;
+	private final File directory;
+	private final String key;
+	private final int segmentSize;
+
+	/* producer only */
+	private MappedByteBuffer buffer;
+	private long position;
+	private long nextId;
+	private int recordAt, recordCount;
+	private SampleRate recordRate;
+	private final CRC32 crc = new CRC32();
+	private final byte [] scratch = new byte [8 + RECORD_SAMPLES * SAMPLE_SIZE];
+
+	/* segments that are full or were replayed, oldest first, and the one being written, guarded by this */
+	private final LinkedList<Segment> sealed = new LinkedList<Segment>();
+	private Segment active;
+	private final List<File> undeleted = new ArrayList<File>();
+	private long acked, inFlight;
+	private volatile boolean closed;
+
+	/* the mark file and the sequence of the last slot written, guarded by this */
+	private FileChannel mark;
+	private long markSequence;
+	private final CRC32 markCrc = new CRC32();
+
+	/* end of the upload that was in flight when the log was last written, read once replayed */
+	private long resendTo;
+
+	SpoolLog (UploadSpool spool, File directory, String key, int segmentSize) {
+		this.spool = spool;
+		this.directory = directory;
+		this.key = key;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @return Key the spool knows the log by
+	 */
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * Reads back the samples of the segments left in the directory and adds them to a queue, called once before any are appended
+	 *
+	 * @param queue  empty queue of the stream the samples were added to
+	 * @return Rate of the last sample replayed, null if there were none
+	 *
+	 * @throws IOException
+	 */
+	SampleRate replay (SampleQueue queue) throws IOException {
+		File [] files = directory.listFiles( new FileFilter() {
+			@Override
+			public boolean accept (File file) {
+				return file.isFile() && file.getName().endsWith(SUFFIX) && segmentId(file) >= 0;
+			}
+		});
+		if (files == null) {
+			return null;
+		}
+		long [] ids = new long [files.length];
+		for (int i = 0; i < files.length; i++) {
+			ids[i] = segmentId(files[i]);
+		}
+		Arrays.sort(ids);
+
+		// answered segment and offset, in flight segment and offset
+		long [] marked = readMark();
+		boolean resend = marked != null && (marked[2] > marked[0] || (marked[2] == marked[0] && marked[3] > marked[1]));
+		if (marked != null) {
+			// new segments are numbered past anything the mark points at, so a mark left behind can never skip them
+			nextId = Math.max( marked[0], marked[2] ) + 1;
+		}
+
+		SampleRate last = null;
+		long [] timestamps = new long [RECORD_SAMPLES];
+		float [] values = new float [RECORD_SAMPLES];
+		for (long id : ids) {
+			File file = segmentFile(id);
+			nextId = Math.max(nextId, id + 1);
+			if (marked != null && id < marked[0]) {
+				synchronized (this) {
+					delete(file); // answered in full, its delete must have failed
+				}
+				continue;
+			}
+
+			// samples of the segment that were answered are skipped, the rest are numbered as if they had not been
+			long skip = marked != null && id == marked[0] ? marked[1] : 0;
+			long start = position - skip, read = 0;
+
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			MappedByteBuffer segment;
+			try {
+				segment = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, raf.length() );
+			} finally {
+				raf.close();
+			}
+
+			int size = segment.capacity();
+			if (size >= SEGMENT_HEADER && segment.getInt(0) == MAGIC && segment.getInt(4) == VERSION) {
+				int at = SEGMENT_HEADER;
+				while (at <= size - RECORD_HEADER) {
+					long header = segment.getLong(at);
+					int count = (int)(header >>> 32);
+					if (count <= 0 || count > RECORD_SAMPLES || count > (size - at - RECORD_HEADER) / SAMPLE_SIZE) {
+						break;
+					}
+					int length = 8 + count * SAMPLE_SIZE;
+					segment.position(at + 8);
+					segment.get(scratch, 0, length);
+					crc.reset();
+					crc.update(scratch, 0, length);
+					if ((int)crc.getValue() != (int)header) {
+						break; // torn by a crash, nothing after it was acknowledged
+					}
+
+					SampleRate rate;
+					try {
+						rate = new SampleRate( segment.getInt(at + 12), segment.getInt(at + 8) );
+					} catch (InvalidUserInputException e) {
+						break;
+					}
+					int first = (int)Math.min( Math.max(skip - read, 0), count );
+					read += count;
+					if (first < count) {
+						for (int i = first, from = at + RECORD_HEADER + first * SAMPLE_SIZE; i < count; i++, from += SAMPLE_SIZE) {
+							timestamps[i] = segment.getLong(from);
+							values[i] = segment.getFloat(from + 8);
+						}
+						if (last == null || !last.equals(rate)) {
+							queue.mark(rate);
+							last = rate;
+						}
+						queue.add(timestamps, values, first, count - first);
+						position += count - first;
+					}
+					at += RECORD_HEADER + count * SAMPLE_SIZE;
+				}
+			}
+
+			segment = null;
+			if (resend && id == marked[2]) {
+				resendTo = Math.min( start + marked[3], position );
+			}
+			if (position == start + skip) {
+				synchronized (this) {
+					delete(file); // nothing in it survived or everything in it was answered
+				}
+			} else {
+				synchronized (this) {
+					sealed.add( new Segment(id, file, null, start, position) );
+				}
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * @return Position the first upload after the replay has to end at, to hold the samples of the upload that was
+	 * in flight when the log was last written, zero if there was none
+	 */
+	long getResendTo() {
+		return resendTo;
+	}
+
+	/**
+	 * Writes a sample to the spool, called by the producer before the sample is queued
+	 *
+	 * @param timestamp  timestamp in nanoseconds
+	 * @param value  value of the sample
+	 * @param rate  rate of the sample
+	 *
+	 * @throws IOException if a new segment could not be created
+	 */
+	void append (long timestamp, float value, SampleRate rate) throws IOException {
+		if (buffer == null || recordCount == RECORD_SAMPLES || (rate != recordRate && !rate.equals(recordRate))
+				|| recordAt + RECORD_HEADER + (recordCount + 1) * SAMPLE_SIZE > segmentSize) {
+			startRecord(rate);
+		}
+		int at = recordAt + RECORD_HEADER + recordCount * SAMPLE_SIZE;
+		buffer.putLong(at, timestamp);
+		buffer.putFloat(at + 8, value);
+		encode(scratch, 0, timestamp, value);
+		crc.update(scratch, 0, SAMPLE_SIZE);
+		recordCount++;
+		position++;
+		buffer.putLong( recordAt, ((long)recordCount << 32) | (crc.getValue() & 0xffffffffL) );
+	}
+
+	/**
+	 * Writes a run of samples at one rate to the spool, called by the producer before they are queued.
+	 * The samples go in as few records as fit, each written whole and then committed by its header.
+	 *
+	 * @param timestamps  timestamps in nanoseconds
+	 * @param values  values of the samples
+	 * @param off  index of the first sample in both arrays
+	 * @param len  number of samples
+	 * @param rate  rate of every sample
+	 *
+	 * @throws IOException if a new segment could not be created
+	 */
+	void append (long [] timestamps, float [] values, int off, int len, SampleRate rate) throws IOException {
+		int end = off + len;
+		while (off < end) {
+			int room = buffer == null ? 0 : Math.min( RECORD_SAMPLES - recordCount,
+					(segmentSize - recordAt - RECORD_HEADER) / SAMPLE_SIZE - recordCount );
+			if (room <= 0 || (rate != recordRate && !rate.equals(recordRate))) {
+				startRecord(rate);
+				continue;
+			}
+			int count = Math.min(room, end - off);
+			for (int i = 0; i < count; i++) {
+				encode(scratch, i * SAMPLE_SIZE, timestamps[off + i], values[off + i]);
+			}
+			int bytes = count * SAMPLE_SIZE;
+			crc.update(scratch, 0, bytes);
+			buffer.position( recordAt + RECORD_HEADER + recordCount * SAMPLE_SIZE );
+			buffer.put(scratch, 0, bytes);
+			recordCount += count;
+			position += count;
+			off += count;
+			buffer.putLong( recordAt, ((long)recordCount << 32) | (crc.getValue() & 0xffffffffL) );
+		}
+	}
+
+	/**
+	 * Records where the upload about to be sent ends, called by the uploads before it is sent
+	 *
+	 * @param to  position after the last sample in the upload
+	 */
+	synchronized void sending (long to) {
+		inFlight = to;
+		writeMark();
+	}
+
+	/**
+	 * Records that SensorCloud accepted the upload of a range of samples, called by the uploads.
+	 * Segments whose samples have all been answered are deleted.
+	 *
+	 * @param from  position of the first sample uploaded
+	 * @param to  position after the last sample uploaded
+	 */
+	synchronized void acknowledge (long from, long to) {
+		acked = Math.max(acked, to);
+		writeMark();
+		prune();
+	}
+
+	/**
+	 * Records that SensorCloud rejected the upload of a range of samples, called by the uploads.
+	 * The upload is written to the <b>REJECTED</b> directory and counts as answered, so it is not replayed
+	 * only to be rejected again. If it cannot be written there the segments holding it are moved there instead.
+	 *
+	 * @param from  position of the first sample uploaded
+	 * @param to  position after the last sample uploaded
+	 * @param upload  body of the upload as it was sent
+	 */
+	synchronized void reject (long from, long to, byte [] upload) {
+		try {
+			quarantine(upload);
+		} catch (IOException e) {
+			for (Segment segment : sealed) {
+				if (segment.start < to && segment.end > from) {
+					segment.retained = true;
+				}
+			}
+			if (active != null && active.start < to) {
+				active.retained = true;
+			}
+		}
+		acknowledge(from, to);
+	}
+
+	/**
+	 * Forces every segment written since the last sync that still holds samples to disk, so they also survive
+	 * the machine losing power. Replayed segments were read back from disk and need no forcing.
+	 *
+	 * @throws IOException
+	 */
+	void sync() throws IOException {
+		List<Segment> unforced = new ArrayList<Segment>();
+		MappedByteBuffer writing = null;
+		synchronized (this) {
+			for (Segment segment : sealed) {
+				if (segment.buffer != null) {
+					unforced.add(segment);
+				}
+			}
+			if (active != null) {
+				writing = active.buffer;
+			}
+		}
+		for (Segment segment : unforced) {
+			MappedByteBuffer mapped;
+			synchronized (this) {
+				mapped = segment.buffer; // null once pruned
+			}
+			if (mapped != null) {
+				mapped.force();
+				synchronized (this) {
+					// a sealed segment is not written again, its mapping is not needed any more
+					segment.buffer = null;
+				}
+			}
+		}
+		if (writing != null) {
+			writing.force();
+		}
+		FileChannel marked;
+		synchronized (this) {
+			marked = mark;
+		}
+		if (marked != null) {
+			marked.force(false);
+		}
+	}
+
+	/**
+	 * Stops the log taking samples. Segments with samples that were not acknowledged stay on disk for the next replay,
+	 * the rest are deleted.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			buffer = null;
+			if (active != null) {
+				active.end = position;
+				sealed.add(active);
+				active = null;
+			}
+			prune();
+			for (Segment segment : sealed) {
+				segment.close();
+			}
+			boolean empty = sealed.isEmpty();
+			sealed.clear();
+			closeMark();
+			if (empty) {
+				// nothing is left for the mark to point into
+				new File(directory, MARK).delete();
+			}
+		}
+		spool.closed(this);
+	}
+
+	/* starts a record at a new rate or once the open one is full, in a new segment if this one has no room */
+	private void startRecord (SampleRate rate) throws IOException {
+		if (closed) {
+			throw new IllegalStateException( "The upload spool has been closed" );
+		}
+		int at = buffer == null ? segmentSize : recordAt + RECORD_HEADER + recordCount * SAMPLE_SIZE;
+		if (at + RECORD_HEADER + SAMPLE_SIZE > segmentSize) {
+			roll();
+			at = SEGMENT_HEADER;
+		}
+		buffer.putInt(at + 8, rate.getType());
+		buffer.putInt(at + 12, rate.getRate());
+		crc.reset();
+		encodeInt(scratch, 0, rate.getType());
+		encodeInt(scratch, 4, rate.getRate());
+		crc.update(scratch, 0, 8);
+		recordAt = at;
+		recordCount = 0;
+		recordRate = rate;
+	}
+
+	/* seals the segment being written and maps a new one */
+	private void roll() throws IOException {
+		if (active == null) {
+			directory.mkdirs();
+		}
+		long id = nextId++;
+		File file = segmentFile(id);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		MappedByteBuffer mapped;
+		try {
+			mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} catch (IOException e) {
+			raf.close();
+			file.delete();
+			throw e;
+		}
+		mapped.putInt(0, MAGIC);
+		mapped.putInt(4, VERSION);
+
+		synchronized (this) {
+			if (active != null) {
+				active.end = position;
+				sealed.add(active);
+			}
+			active = new Segment(id, file, raf, position, Long.MAX_VALUE);
+			active.buffer = mapped;
+			prune();
+		}
+		buffer = mapped;
+	}
+
+	/* deletes the oldest segments once every sample in them has been answered, and any whose delete failed before */
+	private void prune() {
+		Iterator<File> files = undeleted.iterator();
+		while (files.hasNext()) {
+			if (files.next().delete()) {
+				files.remove();
+			}
+		}
+
+		Iterator<Segment> segments = sealed.iterator();
+		while (segments.hasNext()) {
+			Segment segment = segments.next();
+			if (segment.end > acked) {
+				break;
+			}
+			segments.remove();
+			segment.close();
+			if (!segment.retained) {
+				delete(segment.file);
+			} else {
+				File rejected = new File(directory, REJECTED);
+				rejected.mkdirs();
+				if (!segment.file.renameTo( new File(rejected, segment.file.getName()) )) {
+					// left in place, a replay skips it as answered and deletes it
+				}
+			}
+		}
+	}
+
+	/* writes a rejected upload to a file of its own and forces it to disk before the samples in it can be deleted */
+	private void quarantine (byte [] upload) throws IOException {
+		File rejected = new File(directory, REJECTED);
+		if (!rejected.isDirectory() && !rejected.mkdirs()) {
+			throw new IOException( "Could not create " + rejected );
+		}
+		File file;
+		for (long id = System.currentTimeMillis(); !(file = new File( rejected, String.format("%016x", id) + ".xdr" )).createNewFile(); id++) {
+			// named by the time it was rejected, the next free name if two land in the same millisecond
+		}
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(upload);
+			out.getFD().sync();
+		} catch (IOException e) {
+			out.close();
+			file.delete();
+			throw e;
+		}
+		out.close();
+	}
+
+	/* reads the newest intact slot of the mark file as answered segment and offset, in flight segment and offset, null if there is none */
+	private long [] readMark() throws IOException {
+		File file = new File(directory, MARK);
+		if (!file.isFile()) {
+			return null;
+		}
+		byte [] slots = new byte [MARK_SLOT * 2];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.readFully( slots, 0, (int)Math.min( raf.length(), slots.length ) );
+		} finally {
+			raf.close();
+		}
+
+		long [] newest = null;
+		ByteBuffer buffer = ByteBuffer.wrap(slots);
+		for (int at = 0; at < slots.length; at += MARK_SLOT) {
+			markCrc.reset();
+			markCrc.update(slots, at, MARK_LENGTH);
+			long sequence = buffer.getLong(at);
+			if (sequence > 0 && buffer.getInt(at + MARK_LENGTH) == (int)markCrc.getValue() && sequence > markSequence) {
+				markSequence = sequence;
+				newest = new long [] { buffer.getLong(at + 8), buffer.getInt(at + 16), buffer.getLong(at + 20), buffer.getInt(at + 28) };
+			}
+		}
+		return newest;
+	}
+
+	/* writes the answered and in flight positions to the older slot, a failed write only means a replay sends more than it has to */
+	private void writeMark() {
+		if (closed) {
+			return;
+		}
+		long [] answered = locate(acked), sending = locate( Math.max(inFlight, acked) );
+		if (answered == null) {
+			return;
+		}
+		ByteBuffer slot = ByteBuffer.allocate(MARK_SLOT);
+		slot.putLong(++markSequence).putLong(answered[0]).putInt((int)answered[1]).putLong(sending[0]).putInt((int)sending[1]);
+		markCrc.reset();
+		markCrc.update(slot.array(), 0, MARK_LENGTH);
+		slot.putInt( (int)markCrc.getValue() );
+		slot.flip();
+		try {
+			if (mark == null) {
+				mark = new RandomAccessFile( new File(directory, MARK), "rw" ).getChannel();
+			}
+			mark.write( slot, (markSequence & 1) * MARK_SLOT );
+		} catch (IOException e) {
+			closeMark();
+		}
+	}
+
+	/* a position as the segment it falls in and how far into the segment it is, null if the log has no segments */
+	private long [] locate (long position) {
+		Segment oldest = sealed.isEmpty() ? active : sealed.getFirst();
+		if (oldest == null) {
+			return null;
+		}
+		if (position <= oldest.start) {
+			return new long [] { oldest.id, 0 };
+		}
+		for (Segment segment : sealed) {
+			if (position <= segment.end) {
+				return new long [] { segment.id, position - segment.start };
+			}
+		}
+		Segment last = active != null ? active : sealed.getLast();
+		return new long [] { last.id, position - last.start };
+	}
+
+	private void closeMark() {
+		if (mark != null) {
+			try {
+				mark.close();
+			} catch (IOException e) {
+				// written through already, nothing to lose
+			}
+			mark = null;
+		}
+	}
+
+	/*
+	 * a file that is still mapped cannot be deleted on Windows until its mapping has been collected,
+	 * its header is cleared so a replay finds nothing in it, and the delete is tried again on later prunes
+	 */
+	private void delete (File file) {
+		if (file.delete()) {
+			return;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.writeInt(0);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			// replayed again then, SensorCloud answers the uploads with a conflict
+		}
+		undeleted.add(file);
+	}
+
+	private File segmentFile (long id) {
+		return new File( directory, String.format("%016x", id) + SUFFIX );
+	}
+
+	private static long segmentId (File file) {
+		String name = file.getName();
+		try {
+			return Long.parseLong( name.substring(0, name.length() - SUFFIX.length()), 16 );
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void encode (byte [] out, int at, long timestamp, float value) {
+		encodeInt(out, at, (int)(timestamp >>> 32));
+		encodeInt(out, at + 4, (int)timestamp);
+		encodeInt(out, at + 8, Float.floatToRawIntBits(value));
+	}
+
+	private static void encodeInt (byte [] out, int at, int value) {
+		out[at] = (byte)(value >>> 24);
+		out[at + 1] = (byte)(value >>> 16);
+		out[at + 2] = (byte)(value >>> 8);
+		out[at + 3] = (byte)value;
+	}
+
+	/**
+	 * One segment file and the positions of the samples in it
+	 */
+	private static class Segment {
+		final long id;
+		final File file;
+		final RandomAccessFile raf;
+		final long start;
+		long end;
+		MappedByteBuffer buffer;
+		boolean retained;
+
+		Segment (long id, File file, RandomAccessFile raf, long start, long end) {
+			this.id = id;
+			this.file = file;
+			this.raf = raf;
+			this.start = start;
+			this.end = end;
+		}
+
+		/* the mapping itself is released once the buffer is collected */
+		void close() {
+			buffer = null;
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					// read only from here on, nothing to lose
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package microstrain.sensorcloud;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * A <b>Requester</b> that can hand back a response body as it arrives instead of buffering it.
+ * The stream must be read to the end or closed to release the underlying connection.
+ * A <b>ReadableByteChannel</b> can be had with <b>java.nio.channels.Channels.newChannel</b>.
+ */
+public interface StreamingRequester extends Requester {
+	
+	/**
+	 * Performs an HTTP GET request at the given URL and returns the body unread
+	 * 
+	 * @param url  address for the request starting after /devices/<device_name>/
+	 * @return Stream of the response body
+	 * 
+	 * @throws IOException
+	 */
+	public InputStream getStream (String url) throws IOException;
+	
+	
+	/**
+	 * Performs an HTTP GET request at the given URL with the included parameters and returns the body unread
+	 * 
+	 * @param url  address for the request starting after /devices/<device_name>/
+	 * @param params  key-value pairs
+	 * @return Stream of the response body
+	 * 
+	 * @throws IOException
+	 */
+	public InputStream getStream (String url, Map <String,String> params) throws IOException;
+}
@@ -1,9 +1,14 @@
 package microstrain.sensorcloud;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
 
 import microstrain.sensorcloud.exception.DataDoesNotExistException;
@@ -11,19 +16,26 @@ import microstrain.sensorcloud.exception.EndTimeBeforeStartTimeException;
 import microstrain.sensorcloud.exception.InvalidRequestException;
 import microstrain.sensorcloud.exception.InvalidUserInputException;
 import microstrain.sensorcloud.exception.SCHTTPException;
-import microstrain.sensorcloud.exception.SensorContainsChannelsException;
+import microstrain.sensorcloud.exception.SensorCloudRuntimeException;
 import microstrain.sensorcloud.json.JSONException;
 import microstrain.sensorcloud.json.JSONObject;
+import microstrain.sensorcloud.xdr.XDRInStream;
 
 /**
- * An iterator for iterating over data from a <b>TimeSeriesStream</b>
+ * An iterator for iterating over data from a <b>TimeSeriesStream</b>.
+ * An iterator from <b>getData</b> holds the whole response in memory and nothing else,
+ * one from <b>streamData</b> decodes points as the response arrives and holds its
+ * connection until the last point has been read or <b>close</b> is called.
  * 
  * @author Colin Cavanaugh
  *
  */
-public class TimeSeriesIter implements Iterator<SampledPoint> {
-	private List <SampledPoint> points;
-	private Iterator<SampledPoint> itr;
+public class TimeSeriesIter implements Iterator<SampledPoint>, Closeable {
+	private InputStream in;
+	private XDRInStream xdrStream;
+	private SampleRate samplerate;
+	private SampledPoint next;
+	private boolean finished = false;
 	
 	/**
 	 * Class constructor.
@@ -36,26 +48,90 @@ public class TimeSeriesIter implements Iterator<SampledPoint> {
 	 * @param channelName  name of the parent <b>Channel</b>
 	 * @param sensorName  name of the parent <b>Sensor</b>
 	 * @param requester  authorized <b>Requester</b>
+	 * @param stream  whether to read the response as the iterator advances rather than all at once
 	 * 
 	 * @throws IOException
 	 * @throws InvalidUserInputException
 	 * @throws InvalidRequestException
 	 */
-	protected TimeSeriesIter (long startTime, long endTime, SampleRate samplerate, String channelName, String sensorName, Requester requester) throws IOException, InvalidUserInputException, InvalidRequestException {
-		String url = "sensors/" + sensorName + "/channels/" + channelName + "/streams/timeseries/data/";
+	protected TimeSeriesIter (long startTime, long endTime, SampleRate samplerate, String channelName, String sensorName, Requester requester, boolean stream) throws IOException, InvalidUserInputException, InvalidRequestException {
+		Map <String, String> params = getParams(startTime, endTime, samplerate);
+		
+		InputStream in;
+		try {
+			if (stream && requester instanceof StreamingRequester) {
+				in = new BufferedInputStream( ((StreamingRequester)requester).getStream(getURL(sensorName, channelName), params), 8192 );
+			} else {
+				in = new ByteArrayInputStream( requester.get(getURL(sensorName, channelName), params) );
+			}
+		} catch (SCHTTPException e) {
+			throw parseException(e, startTime, endTime, samplerate);
+		}
+		this.in = in;
+		this.xdrStream = new XDRInStream(in);
+	}
+	
+	private TimeSeriesIter (byte [] xdr) {
+		this.in = new ByteArrayInputStream(xdr);
+		this.xdrStream = new XDRInStream(in);
+	}
+	
+	/**
+	 * Asynchronously downloads the data for an iterator.
+	 * The same bounds apply as for the constructor.
+	 * 
+	 * @param startTime  timestamp for the start of the data
+	 * @param endTime  timestamp for the end of the data
+	 * @param samplerate  <b>SampleRate</b> of the data to be retrieved
+	 * @param channelName  name of the parent <b>Channel</b>
+	 * @param sensorName  name of the parent <b>Sensor</b>
+	 * @param requester  authorized <b>AsyncRequester</b>
+	 * @return Future for the iterator
+	 */
+	protected static SCFuture<TimeSeriesIter> getInstanceAsync (final long startTime, final long endTime, final SampleRate samplerate, String channelName, String sensorName, AsyncRequester requester) {
+		Map <String, String> params;
+		try {
+			params = getParams(startTime, endTime, samplerate);
+		} catch (EndTimeBeforeStartTimeException e) {
+			return SCFuture.failed(e);
+		}
+		
+		final SCFuture<TimeSeriesIter> future = new SCFuture<TimeSeriesIter>();
+		requester.get(getURL(sensorName, channelName), params).addCallback( new RequestCallback<byte []>() {
+			@Override
+			public void completed (byte [] xdr) {
+				future.complete( new TimeSeriesIter(xdr) );
+			}
+
+			@Override
+			public void failed (Exception e) {
+				if (e instanceof SCHTTPException) {
+					future.fail( parseException((SCHTTPException)e, startTime, endTime, samplerate) );
+				} else {
+					future.fail(e);
+				}
+			}
+		});
+		return future;
+	}
+	
+	private static String getURL (String sensorName, String channelName) {
+		return "sensors/" + sensorName + "/channels/" + channelName + "/streams/timeseries/data/";
+	}
+	
+	/* A negative start time is sent as zero and a negative end time as the maximum value */
+	private static Map <String, String> getParams (long startTime, long endTime, SampleRate samplerate) throws EndTimeBeforeStartTimeException {
 		Map <String, String> params = new TreeMap<String, String>();
 		
 		if (startTime > endTime) {
 			throw new EndTimeBeforeStartTimeException(startTime, endTime);
 		}else if (startTime < 0) {
-			startTime = 0;
 			params.put( "starttime", "0" );
 		} else {
 			params.put( "starttime", Long.toString(startTime) );
 		}
 		
 		if (endTime < 0) {
-			endTime = Long.MAX_VALUE;
 			params.put( "endtime", Long.toString( Long.MAX_VALUE ) );
 		} else {
 			params.put( "endtime", Long.toString(endTime) );
@@ -65,61 +141,128 @@ public class TimeSeriesIter implements Iterator<SampledPoint> {
 			params.put( "specificsamplerate", samplerate.toParam() );
 			params.put("showSampleRateBoundary", "false");
 		}
+		return params;
+	}
+	
+	/**
+	 * Parses HTTP exceptions from a download into specific <b>SensorCloudExceptions</b>
+	 * 
+	 * @param e  exception from the HTTP request
+	 * @param startTime  timestamp for the start of the data
+	 * @param endTime  timestamp for the end of the data
+	 * @param samplerate  <b>SampleRate</b> of the data, may be null
+	 * @return SensorCloud exception
+	 */
+	private static InvalidRequestException parseException (SCHTTPException e, long startTime, long endTime, SampleRate samplerate) {
+		startTime = Math.max(startTime, 0);
+		if (endTime < 0) {
+			endTime = Long.MAX_VALUE;
+		}
 		
 		try {
-			points = SampledPoint.getInstanceOfAll( requester.get(url, params) );
-		} catch (SCHTTPException e) {			
+			JSONObject json = new JSONObject( e.getMessage() );
 			
-			try {
-				JSONObject json = new JSONObject( e.getMessage() );
+			if (json.has( "errorcode" )) {
+				String code = json.getString( "errorcode" );
+				String [] codes = code.split("-");
+				int x = Integer.parseInt( codes[0] );
+				int y = Integer.parseInt( codes[1] );
 				
-				if (json.has( "errorcode" )) {
-					String code = json.getString( "errorcode" );
-					String [] codes = code.split("-");
-					int x = Integer.parseInt( codes[0] );
-					int y = Integer.parseInt( codes[1] );
-					
-					switch (x) {
-					case 404:
-						switch (y) {
-						case 3:
-							throw new DataDoesNotExistException( json.getString( "message" ) );
-						}
+				switch (x) {
+				case 404:
+					switch (y) {
+					case 3:
+						return new DataDoesNotExistException( json.getString( "message" ) );
 					}
 				}
-			} catch (JSONException excep) {
-				
 			}
+		} catch (JSONException excep) {
 			
-			switch (e.getStatusCode()) {
-			
-			case 404:
-				if (samplerate == null) {
-					throw new DataDoesNotExistException(startTime, endTime);
-				} else {
-					throw new DataDoesNotExistException(startTime, endTime, samplerate);
-				}
+		}
+		
+		switch (e.getStatusCode()) {
+		
+		case 404:
+			if (samplerate == null) {
+				return new DataDoesNotExistException(startTime, endTime);
+			} else {
+				return new DataDoesNotExistException(startTime, endTime, samplerate);
 			}
 		}
-		itr = points.iterator();
+		return new InvalidRequestException( e.getStatusCode() + ": " + e.getMessage() );
 	}
 	
 	@Override
 	public boolean hasNext() {
-		// TODO Auto-generated method stub
-		return itr.hasNext();
+		if (next == null && !finished) {
+			advance();
+		}
+		return next != null;
 	}
 
 	@Override
 	public SampledPoint next() {
-		// TODO Auto-generated method stub
-		return itr.next();
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		SampledPoint point = next;
+		next = null;
+		return point;
 	}
 
+	/**
+	 * Points belong to the server's copy of the data and cannot be removed.
+	 */
 	@Override
 	public void remove() {
-		// TODO Auto-generated method stub
-		itr.remove();
+		throw new UnsupportedOperationException( "Points cannot be removed from a TimeSeriesIter" );
+	}
+	
+	/**
+	 * Stops reading the data and releases the connection it was being streamed from, if any
+	 */
+	@Override
+	public void close() {
+		finished = true;
+		next = null;
+		try {
+			in.close();
+		} catch (IOException e) {
+			// the connection will be dropped rather than reused
+		}
+	}
+	
+	/* Reads up to the next point, a timestamp of zero marks a change in sample rate */
+	private void advance() {
+		try {
+			while (true) {
+				// only an end that falls between records is the end of the data, anywhere else it was cut short
+				in.mark(1);
+				if (in.read() == -1) {
+					close();
+					return;
+				}
+				in.reset();
+				
+				long timestamp = xdrStream.readHyper();
+				if (timestamp == 0) {
+					int type = xdrStream.readInt();
+					int rate = xdrStream.readInt();
+					samplerate = new SampleRate(rate, type);
+				} else {
+					next = new SampledPoint(timestamp, xdrStream.readFloat(), samplerate);
+					return;
+				}
+			}
+		} catch (EOFException e) {
+			close();
+			throw new SensorCloudRuntimeException( "Time series data was cut short" + (e.getMessage() != null ? ": " + e.getMessage() : ""), e );
+		} catch (IOException e) {
+			close();
+			throw new SensorCloudRuntimeException( "Failed to read time series data: " + e.getMessage(), e );
+		} catch (InvalidUserInputException e) {
+			close();
+			throw new SensorCloudRuntimeException( "Invalid time series data: " + e.getMessage(), e );
+		}
 	}
-
 }
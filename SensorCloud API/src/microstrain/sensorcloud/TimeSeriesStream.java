@@ -1,65 +1,96 @@
 package microstrain.sensorcloud;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import microstrain.sensorcloud.exception.CircuitOpenException;
+import microstrain.sensorcloud.exception.DeadlineExceededException;
 import microstrain.sensorcloud.exception.InvalidRequestException;
+import microstrain.sensorcloud.exception.InvalidTimestampException;
 import microstrain.sensorcloud.exception.InvalidUserInputException;
 import microstrain.sensorcloud.exception.SCHTTPException;
 import microstrain.sensorcloud.exception.SensorCloudRuntimeException;
 import microstrain.sensorcloud.exception.VersionNotSupportedException;
+import microstrain.sensorcloud.http.Deadline;
+import microstrain.sensorcloud.io.BufferPool;
+import microstrain.sensorcloud.io.PooledOutputStream;
 import microstrain.sensorcloud.xdr.XDRInStream;
 import microstrain.sensorcloud.xdr.XDROutStream;
 
 /**
  * A stream of data points. Each point has a timestamp and sample rate.
  * No two points can share the same timestamp.
+ * <p>
+ * Added points are uploaded in the background by an <b>UploadScheduler</b> shared with the other streams,
+ * a stream holds no thread of its own. <b>close</b> a stream that will not be added to again.
+ * An upload that cannot reach SensorCloud, or is turned away by an open <b>CircuitBreakerRequester</b>,
+ * is held and sent again later rather than stopping the stream. A batch that fails <b>MAX_RETRIES</b> times
+ * over stops the stream on the last failure, which <b>flush</b> and the next call adding data throw.
+ * <p>
+ * Data is added from one thread at a time. The samples are queued without a lock, so the <b>addData</b>
+ * and <b>bulkAddData</b> calls of threads sharing a stream have to be serialized by the caller,
+ * overlapping calls lose or corrupt samples.
  * 
  * @author Colin Cavanaugh
  *
  */
-public class TimeSeriesStream {
+public class TimeSeriesStream implements Closeable {
 	private String channelName, sensorName;
+	private String streamPath, dataPath; // built once, the data path is used by every upload
 	private Requester requester;
 	private long startTime, endTime;
-	private BlockingQueue<BlockingQueue<Point>> buffer;
-	private BlockingQueue<Point> curBuff;
-	private Map<Queue<Point>, SampleRate> rateMap;
-	private AsyncUpload sendThread;
+	private SampleQueue samples;
+	private Uploader uploader;
 	private SampleRate curRate = null;
-	private Semaphore bufferChange;
-	private int minBuffSize;
+	private volatile int minBuffSize;
+	private BufferPool bufferPool;
+	private volatile Priority priority = Priority.LIVE;
+	private volatile UploadScheduler scheduler;
+	private volatile boolean closed;
+	private SpoolLog spool;
+	
+	/** Sends uploads again once SensorCloud can be reached, shared by every stream */
+	private static final Timer retryTimer = new Timer( "SensorCloud upload retry", true );
+	
+	/** Times a held upload is sent again before the stream gives up on it, about a minute of an outage */
+	static final int MAX_RETRIES = 12;
 	
 	private TimeSeriesStream (long startTime, long endTime, String channelName, String sensorName, Requester requester) {
 		this.channelName = channelName;
 		this.sensorName = sensorName;
 		this.requester = requester;
+		this.streamPath = "sensors/" + sensorName + "/channels/" + channelName + "/streams/timeseries/";
+		this.dataPath = streamPath + "data/";
 		this.endTime = endTime;
 		this.startTime = startTime;
 		this.minBuffSize = 1000;
 		
-		buffer = new LinkedBlockingQueue<BlockingQueue<Point>>();
-		curBuff = new LinkedBlockingQueue<Point>();
-		rateMap = new HashMap<Queue<Point>, SampleRate>();
-		bufferChange = new Semaphore(5);
+		samples = new SampleQueue();
+		bufferPool = BufferPool.getDefault();
+		scheduler = UploadScheduler.getDefault();
 		
-		sendThread = new AsyncUpload(channelName, sensorName);
-		sendThread.start();
+		uploader = new Uploader();
 	}
 
 	/**
 	 * Add a single point of data to the buffer 
 	 * flushes the buffer to SensorCloud if it is full or if
-	 * the <b>SampleRate</b> provided is different from the current <b>SampleRate</b>
+	 * the <b>SampleRate</b> provided is different from the current <b>SampleRate</b>.
+	 * Must not overlap another call adding data to the stream.
 	 * 
 	 * @param point  point of data added to the buffer
 	 * @param samplerate  <b>SampleRate</b> at the given point
@@ -67,68 +98,149 @@ public class TimeSeriesStream {
 	 * @throws IOException 
 	 */
 	public void addData(Point point, SampleRate samplerate) throws InvalidUserInputException, IOException {		
-		if (sendThread.e != null) {
-			if (sendThread.e instanceof SCHTTPException) {
-				SCHTTPException except = (SCHTTPException)sendThread.e;
-				
-				if (except.getStatusCode() == 409) {
-					sendThread.e = null;
-					sendThread.interrupt();
-				} else {
-					sendThread.kill = true;
-					sendThread.interrupt();
-					throw except;
+		checkUpload();
+		setRate(samplerate);
+		if (spool != null) {
+			spool.append( point.getTimestamp(), point.getValue(), samplerate );
+		}
+		samples.add( point.getTimestamp(), point.getValue() );
+		checkFull();
+	}
+	
+	/**
+	 * Adds a single sample without a <b>Point</b> for it, for drivers pushing samples as they are read.
+	 * Behaves like <b>addData(Point, SampleRate)</b> and allocates nothing while the uploads keep up.
+	 * Must not overlap another call adding data to the stream.
+	 * 
+	 * @param timestamp  unix time in nanoseconds
+	 * @param value  data value at the given timestamp
+	 * @param samplerate  <b>SampleRate</b> at the given sample
+	 * @throws InvalidUserInputException if the timestamp is negative
+	 * @throws IOException 
+	 */
+	public void addData (long timestamp, float value, SampleRate samplerate) throws InvalidUserInputException, IOException {
+		if (timestamp < 0) {
+			throw new InvalidTimestampException( timestamp, "Timestamps cannot be less than zero" );
+		}
+		checkUpload();
+		setRate(samplerate);
+		if (spool != null) {
+			spool.append(timestamp, value, samplerate);
+		}
+		samples.add(timestamp, value);
+		checkFull();
+	}
+	
+	/**
+	 * Adds a run of samples at one rate from parallel arrays, copied in without a <b>Point</b> for each.
+	 * The timestamps are checked together before any sample is added, a negative one rejects the whole run.
+	 * Must not overlap another call adding data to the stream.
+	 * 
+	 * @param timestamps  unix times in nanoseconds
+	 * @param values  data values, one for each timestamp
+	 * @param off  index of the first sample in both arrays
+	 * @param len  number of samples
+	 * @param samplerate  <b>SampleRate</b> of every sample in the run
+	 * @throws InvalidUserInputException if any of the timestamps is negative
+	 * @throws IOException 
+	 */
+	public void addData (long [] timestamps, float [] values, int off, int len, SampleRate samplerate) throws InvalidUserInputException, IOException {
+		if (off < 0 || len < 0 || off > timestamps.length - len || off > values.length - len) {
+			throw new IndexOutOfBoundsException( "Samples " + off + " to " + (off + len) + " are outside the arrays" );
+		}
+		
+		// the sign bit survives the or if any timestamp is negative, the run is only searched if one is
+		long bits = 0;
+		for (int i = off; i < off + len; i++) {
+			bits |= timestamps[i];
+		}
+		if (bits < 0) {
+			int negative = 0, first = -1;
+			for (int i = off; i < off + len; i++) {
+				if (timestamps[i] < 0) {
+					if (first < 0) {
+						first = i;
+					}
+					negative++;
 				}
-			} else {
-				sendThread.kill = true;
-				sendThread.interrupt();
-				throw new SensorCloudRuntimeException(sendThread.e.getMessage());
 			}
+			throw new InvalidTimestampException( timestamps[first], "Timestamps cannot be less than zero, "
+					+ negative + " of the " + len + " samples are, the first at index " + first );
 		}
 		
-		if (curRate == null) {
-			curRate = samplerate;
-			rateMap.put(curBuff, curRate);
-			buffer.offer(curBuff);
-		} else if (!curRate.equals(samplerate)) {
-			curBuff = new LinkedBlockingQueue<Point>();
-			curRate = samplerate;
-			rateMap.put(curBuff, curRate);
-			buffer.offer(curBuff);
+		checkUpload();
+		setRate(samplerate);
+		if (spool != null) {
+			spool.append(timestamps, values, off, len, samplerate);
+		}
+		samples.add(timestamps, values, off, len);
+		checkFull();
+	}
+	
+	/* rethrows a failed upload, a conflict is never one as the points are on SensorCloud already */
+	private void checkUpload() {
+		if (closed) {
+			throw new IllegalStateException( "The stream has been closed" );
+		}
+		Exception e = uploader.e;
+		if (e != null) {
+			if (e instanceof SCHTTPException) {
+				SCHTTPException except = (SCHTTPException)e;
+				uploader.stop(except);
+				throw except;
+			} else {
+				uploader.stop(e);
+				throw new SensorCloudRuntimeException(e.getMessage());
+			}
+		}
+	}
+	
+	/* hands the stream to the scheduler once a full upload is waiting, unless it is already there */
+	private void checkFull() {
+		if (samples.waiting() >= minBuffSize && !uploader.scheduled.get()) {
+			uploader.schedule();
 		}
-		
-		curBuff.add( point );
 	}
 
 	/**
 	 * Adds a collection of data to the stream.
 	 * This method is intended for adding previously collected data.
-	 * The buffer is synchronously flushed when this method is called.
-	 * The user can assume that the data is on sensorcloud when this method finishes.
+	 * The points are uploaded right away rather than waiting for the buffer to fill, without waiting for them to be accepted.
+	 * Call <b>flush</b> to be sure the data is on SensorCloud, a rejected upload is thrown there and by the next call adding data.
+	 * Must not overlap another call adding data to the stream.
 	 * 
 	 * @param points  list of points to be added
 	 * @param samplerate  rate for all points in the list
 	 * @throws InvalidUserInputException 
+	 * @throws SensorCloudRuntimeException if the points could not be written to the upload spool
 	 */
 	public void bulkAddData(List <Point> points, SampleRate samplerate) throws InvalidUserInputException {
-		if (curRate == null) {
-			curRate = samplerate;
-			rateMap.put(curBuff, curRate);
-			buffer.offer(curBuff);
-		} else if (!curRate.equals(samplerate)) {
-			try {
-				bufferChange.acquire();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		checkUpload();
+		setRate(samplerate);
+		for (Point point : points) {
+			if (spool != null) {
+				try {
+					spool.append( point.getTimestamp(), point.getValue(), samplerate );
+				} catch (IOException e) {
+					throw new SensorCloudRuntimeException( "Could not spool the points for " + dataPath, e );
+				}
 			}
-			curBuff = new LinkedBlockingQueue<Point>();
+			samples.add( point.getTimestamp(), point.getValue() );
+		}
+		flushAsync();
+	}
+	
+	/* starts a new run of samples if the rate has changed, the uploads never mix rates */
+	private void setRate (SampleRate samplerate) {
+		if (curRate == null || !curRate.equals(samplerate)) {
+			boolean ended = curRate != null;
 			curRate = samplerate;
-			rateMap.put(curBuff, samplerate);
-			bufferChange.release();
+			samples.mark(samplerate);
+			if (ended) {
+				// the run at the old rate is complete and can go up
+				uploader.schedule();
+			}
 		}
-		
-		curBuff.addAll(points);
-		
 	}
 	
 	/**
@@ -189,7 +301,61 @@ public class TimeSeriesStream {
 		/*if (endTime < startTime) {
 			throw new EndTimeBeforeStartTimeException(startTime, endTime);
 		}*/
-		return new TimeSeriesIter(startTime, endTime, samplerate, channelName, sensorName, requester);
+		return new TimeSeriesIter(startTime, endTime, samplerate, channelName, sensorName, requester, false);
+	}
+	
+	/**
+	 * Stream all of the data in the stream
+	 * 
+	 * @return Iterator for all of the data, to be read to the end or closed
+	 * 
+	 * @throws IOException
+	 * @throws InvalidUserInputException
+	 * @throws InvalidRequestException
+	 */
+	public TimeSeriesIter streamData() throws IOException, InvalidUserInputException, InvalidRequestException {
+		return streamData((long)-1, (long)-1, null);
+	}
+	
+	/**
+	 * Stream the data between two timestamps at the given sample rate.
+	 * Unlike <b>getData</b> the points are decoded as they arrive, so a range of any size can be read,
+	 * but the iterator holds one of the requester's connections until it has been read to the end or
+	 * closed. An iterator that is dropped part way through is never closed on its own.
+	 * 
+	 * @param startTime  timestamp of the data's starting point
+	 * @param endTime  timestamp of the data's ending point
+	 * @param samplerate  sample rate of the data requested, null for every sample rate
+	 * @return Iterator for the requested data, to be read to the end or closed
+	 * 
+	 * @throws IOException
+	 * @throws InvalidUserInputException
+	 * @throws InvalidRequestException
+	 */
+	public TimeSeriesIter streamData (long startTime, long endTime, SampleRate samplerate) throws IOException, InvalidUserInputException, InvalidRequestException {
+		return new TimeSeriesIter(startTime, endTime, samplerate, channelName, sensorName, requester, true);
+	}
+	
+	/**
+	 * Asynchronously get all of the data in the stream
+	 * 
+	 * @return Future for the iterator over all of the data
+	 */
+	public SCFuture<TimeSeriesIter> getDataAsync() {
+		return getDataAsync((long)-1, (long)-1, null);
+	}
+	
+	/**
+	 * Asynchronously get the data between two timestamps at the given sample rate.
+	 * Failures are delivered through the future as they would be thrown by <b>getData</b>.
+	 * 
+	 * @param startTime  timestamp of the data's starting point
+	 * @param endTime  timestamp of the data's ending point
+	 * @param samplerate  sample rate of the data requested, null for every sample rate
+	 * @return Future for the iterator over the requested data
+	 */
+	public SCFuture<TimeSeriesIter> getDataAsync (long startTime, long endTime, SampleRate samplerate) {
+		return TimeSeriesIter.getInstanceAsync(startTime, endTime, samplerate, channelName, sensorName, ExecutorAsyncRequester.of(requester));
 	}
 	
 	/**
@@ -203,7 +369,83 @@ public class TimeSeriesStream {
 	 * @return Number of <b>Points</b> collected before data is uploaded to SensorCloud
 	 */
 	public int getBufferSize() {
-		return sendThread.buffSize;
+		return minBuffSize;
+	}
+	
+	/**
+	 * Moves the uploads of this stream to another scheduler, such as one with threads reserved for a group of streams.
+	 * Uploads already queued finish on the previous scheduler.
+	 * 
+	 * @param scheduler  scheduler the uploads run on, <b>UploadScheduler.getDefault</b> unless set
+	 */
+	public void setUploadScheduler (UploadScheduler scheduler) {
+		if (scheduler == null) {
+			throw new IllegalArgumentException( "The upload scheduler cannot be null" );
+		}
+		this.scheduler = scheduler;
+	}
+	
+	/**
+	 * @return Scheduler the uploads of this stream run on
+	 */
+	public UploadScheduler getUploadScheduler() {
+		return scheduler;
+	}
+	
+	/**
+	 * Writes every point added from here on to a spool on disk before it is queued, so it survives a crash until
+	 * SensorCloud has accepted it. Points an earlier process left in the spool for this channel are queued
+	 * first and start uploading straight away. Set the spool before adding any data, from the thread that adds it.
+	 * 
+	 * @param spool  spool the points are written to
+	 * 
+	 * @throws IllegalStateException if data has been added already or another stream is using the channel's spool
+	 * @throws IOException if the points left in the spool could not be read
+	 */
+	public void setUploadSpool (UploadSpool spool) throws IOException {
+		if (this.spool != null) {
+			throw new IllegalStateException( "The stream already has an upload spool" );
+		}
+		if (samples.published() > 0) {
+			throw new IllegalStateException( "An upload spool has to be set before data is added" );
+		}
+		
+		SpoolLog log = spool.open(requester.getSerial(), sensorName, channelName);
+		SampleRate replayed;
+		try {
+			replayed = log.replay(samples);
+		} catch (IOException e) {
+			log.close();
+			throw e;
+		}
+		if (replayed != null) {
+			curRate = replayed;
+		}
+		uploader.resendTo = log.getResendTo();
+		this.spool = log;
+		if (samples.published() > 0) {
+			flushAsync();
+		}
+	}
+	
+	/**
+	 * Sets the class the uploads of this stream are scheduled in by the device's <b>GoverningRequester</b>.
+	 * A stream loading data collected earlier should be <b>Priority.BACKFILL</b> so it does not hold up live data.
+	 * 
+	 * @param priority  class of the uploads, <b>Priority.LIVE</b> by default
+	 */
+	public void setPriority (Priority priority) {
+		if (priority == null) {
+			throw new IllegalArgumentException( "The priority cannot be null" );
+		}
+		this.priority = priority;
+	}
+	
+	/**
+	 * @return Class the uploads of this stream are scheduled in
+	 */
+	public Priority getPriority() {
+		return priority;
 	}
 	
 	/**
@@ -212,15 +454,7 @@ public class TimeSeriesStream {
 	 * @throws IOException
 	 */
 	public long getStartTime() throws IOException {
-		try {
-			return getInstanceOf(requester.get("sensors/" + sensorName + "/channels/" + channelName + "/streams/timeseries/"), sensorName, channelName, requester).startTime;
-		} catch (SCHTTPException e) {
-			switch (e.getStatusCode()) {
-			case 404:
-				return TimeSeriesStream.getEmptyInstanceOf(sensorName, channelName, requester).startTime;
-			}
-				throw e;
-		}
+		return getTimes()[0];
 	}
 	
 	/**
@@ -229,25 +463,127 @@ public class TimeSeriesStream {
 	 * @throws IOException
 	 */
 	public long getEndTime() throws IOException {
+		return getTimes()[1];
+	}
+	
+	/* the first and last timestamps on the server, both 0 if the channel has no stream yet */
+	private long [] getTimes() throws IOException {
 		try {
-			return getInstanceOf(requester.get("sensors/" + sensorName + "/channels/" + channelName + "/streams/timeseries/"), sensorName, channelName, requester).endTime;
+			return readTimes( requester.get(streamPath) );
 		} catch (SCHTTPException e) {
 			switch (e.getStatusCode()) {
 			case 404:
-				return TimeSeriesStream.getEmptyInstanceOf(sensorName, channelName, requester).startTime;
+				return new long [2];
 			}
 			throw e;
 		}
 	}
 	
 	/**
-	 * Perform a synchronous flush of added data to SensorCloud
+	 * Uploads every point added before the call and waits until SensorCloud has accepted all of them.
+	 * A <b>Deadline</b> in effect on the calling thread limits the wait.
+	 * An upload answered with a 409 counts as accepted, the points in it are on SensorCloud already.
+	 * 
+	 * @throws SCHTTPException if an upload holding any of the points was rejected
+	 * @throws DeadlineExceededException if the deadline passes before the points are accepted
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 * @throws IOException if the uploads of the stream have stopped on an earlier failure
+	 */
+	public void flush() throws IOException {
+		Deadline deadline = Deadline.current();
+		if (deadline == null) {
+			await(flushAsync(), -1);
+		} else if (!await( flushAsync(), TimeUnit.MILLISECONDS.toNanos( deadline.remainingMillis() ) )) {
+			throw new DeadlineExceededException( "Deadline passed while flushing " + dataPath );
+		}
+	}
+	
+	/**
+	 * Uploads every point added before the call and waits a limited time for SensorCloud to accept them.
+	 * The uploads carry on after a timeout, a later flush waits for them.
+	 * 
+	 * @param timeout  longest time to wait
+	 * @param unit  unit of the timeout
+	 * @return True if the points were accepted, false if the time ran out first
+	 * 
+	 * @throws SCHTTPException if an upload holding any of the points was rejected
+	 * @throws DeadlineExceededException if a <b>Deadline</b> in effect passes before the timeout
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 * @throws IOException if the uploads of the stream have stopped on an earlier failure
+	 */
+	public boolean flush (long timeout, TimeUnit unit) throws IOException {
+		long wait = unit.toNanos(timeout);
+		boolean deadlineFirst = false;
+		Deadline deadline = Deadline.current();
+		if (deadline != null) {
+			long remaining = TimeUnit.MILLISECONDS.toNanos( deadline.remainingMillis() );
+			if (remaining < wait) {
+				wait = remaining;
+				deadlineFirst = true;
+			}
+		}
+		
+		if (await( flushAsync(), Math.max(wait, 0) )) {
+			return true;
+		}
+		if (deadlineFirst) {
+			throw new DeadlineExceededException( "Deadline passed while flushing " + dataPath );
+		}
+		return false;
+	}
+	
+	/**
+	 * Uploads every point added before the call without waiting for them to be accepted.
+	 * The future completes with the number of those points uploaded after the call, zero if they
+	 * already were, and fails as <b>flush</b> would throw.
+	 * 
+	 * @return Future for the number of points uploaded
+	 */
+	public SCFuture<Integer> flushAsync() {
+		return uploader.flush( samples.published() );
+	}
+	
+	/* waits for a flush, a negative time waits for as long as it takes */
+	private static boolean await (SCFuture<Integer> flushed, long nanos) throws IOException {
+		try {
+			if (nanos < 0) {
+				flushed.get();
+			} else {
+				flushed.get(nanos, TimeUnit.NANOSECONDS);
+			}
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while waiting for a flush" );
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new IOException( cause.getMessage() );
+		}
+	}
+	
+	/**
+	 * Uploads the data added so far, waiting as <b>flush</b> does, and stops the stream taking more.
+	 * Adding data after this throws <b>IllegalStateException</b>, the stream can still be read.
+	 * 
+	 * @throws IOException if the data added was not all accepted
 	 */
-	public void flush() {
-		sendThread.flush = true;
-		while(sendThread.flush) {
-			long time = System.currentTimeMillis();
-			while (System.currentTimeMillis() < time + 10){}
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		try {
+			flush();
+		} finally {
+			if (spool != null) {
+				// whatever was not accepted stays on disk for the next replay
+				spool.close();
+			}
 		}
 	}
 
@@ -263,11 +599,15 @@ public class TimeSeriesStream {
 	 * @throws IOException
 	 */
 	public static TimeSeriesStream getInstanceOf (byte [] xdr, String sensorName, String channelName, Requester requester) throws IOException {
+		long [] times = readTimes(xdr);
+		return new TimeSeriesStream( times[0], times[1], channelName, sensorName, requester);
+	}
+	
+	/* the start and end time from a stream's XDR */
+	private static long [] readTimes (byte [] xdr) throws IOException {
 		ByteArrayInputStream inStream = new ByteArrayInputStream(xdr);
 		XDRInStream xdrStream = new XDRInStream(inStream);
 		
-		// create an empty timeseries if the channel does not have one
-		
 		// check the version number, also a weak check for improperly formatted data
 		int version = xdrStream.readInt();
 		if (version != 1) {
@@ -276,8 +616,7 @@ public class TimeSeriesStream {
 		
 		long startTime = xdrStream.readHyper();
 		long endTime = xdrStream.readHyper();
-		
-		return new TimeSeriesStream( startTime, endTime, channelName, sensorName, requester);
+		return new long [] { startTime, endTime };
 	}
 	
 	/**
@@ -293,137 +632,280 @@ public class TimeSeriesStream {
 		return new TimeSeriesStream(0, 0, channelName, sensorName, requester);
 	}
 	
-	/*protected void finalize() {
-		sendThread.kill = true;
-	}*/
-	
 	/**
-	 * Runnable for performing multi-threaded data uploading
-	 * 
-	 * @author Colin Cavanaugh
-	 *
+	 * Sends the uploads of the stream that are waiting, run by the <b>UploadScheduler</b>.
+	 * The stream is queued at most once, so its uploads go up in order and one at a time.
 	 */
-	private class AsyncUpload extends Thread{
-		String channelName, sensorName;
-		private SampleRate curSamplerate;
-		private BlockingQueue<Point> sendBuff; 
-		private boolean flushing = false;
-		private int buffSize;
+	private class Uploader implements Runnable {
+		private static final int HEADER_SIZE = 16, POINT_SIZE = 12;
 		
-		public Exception e;
-		public boolean flush = false;
-		public boolean kill = false;
-
-		public AsyncUpload (String channelName, String sensorName) {
-			this.channelName = channelName;
-			this.sensorName = sensorName;
-			e = null;
-			buffSize = minBuffSize;
+		/** Uploads sent before the stream goes to the back of the scheduler's queue */
+		private static final int UPLOADS_PER_TURN = 4;
+		
+		/** Time to wait before sending an upload again that failed while SensorCloud could not be reached */
+		private static final long RETRY_DELAY = 5000;
+		
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		volatile Exception e;
+		volatile boolean kill = false;
+		
+		/* an upload that could not reach SensorCloud, sent again before any other, and when to send it */
+		private Batch held;
+		private long retryAt;
+		private int retries;
+		
+		/* the replayed samples up to here were one upload before the restart and go up as one again */
+		long resendTo;
+		
+		/* samples up to here have to go up now rather than wait for a full upload */
+		private final AtomicLong flushTo = new AtomicLong();
+		
+		/* flushes waiting for their samples to be accepted, the position accepted up to and why uploads stopped */
+		private final List<Flush> pending = new ArrayList<Flush>();
+		private long acked;
+		private Exception failure;
+		
+		/* queues the stream unless it is queued or uploading already */
+		void schedule() {
+			if (kill || !scheduled.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				scheduler.execute(this);
+			} catch (RejectedExecutionException rejected) {
+				scheduled.set(false);
+				throw rejected;
+			}
 		}
 		
-		private void packPoint(Point point, XDROutStream xdrStream) throws IOException {
-			xdrStream.writeHyper( point.getTimestamp() );
-			xdrStream.writeFloat( point.getValue() );
+		private void writeHeader (XDROutStream xdrStream, SampleRate samplerate, int count) throws IOException {
+			xdrStream.writeInt(1);
+			xdrStream.writeInt( samplerate.getType() );
+			xdrStream.writeInt( samplerate.getRate() );
+			xdrStream.writeInt( count );
 		}
 		
-		private byte [] parseHeader (int pointCount) throws IOException {
-			ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-			XDROutStream xdrStream = new XDROutStream( outStream );
+		/* registers a flush of the samples before a position and makes sure the stream is queued to send them */
+		SCFuture<Integer> flush (long target) {
+			Flush flush;
+			synchronized (pending) {
+				if (failure != null) {
+					return SCFuture.failed(failure);
+				}
+				if (acked >= target) {
+					return SCFuture.completed(0);
+				}
+				flush = new Flush(target, acked);
+				pending.add(flush);
+			}
 			
-			xdrStream.writeInt(1);
-			xdrStream.writeInt( curSamplerate.getType() );
-			xdrStream.writeInt( curSamplerate.getRate() );
-			xdrStream.writeInt( pointCount );
+			long current;
+			while ((current = flushTo.get()) < target && !flushTo.compareAndSet(current, target)) {
+				// raced another flush, try again
+			}
+			try {
+				schedule();
+			} catch (RejectedExecutionException rejected) {
+				synchronized (pending) {
+					pending.remove(flush);
+				}
+				flush.future.fail( new IOException( "The upload scheduler of " + dataPath + " has been closed" ) );
+			}
+			return flush.future;
+		}
+		
+		/* stops the uploads for good, failing every flush still waiting */
+		void stop (Exception cause) {
+			List<Flush> failed;
+			synchronized (pending) {
+				kill = true;
+				if (failure == null) {
+					failure = cause;
+				}
+				failed = new ArrayList<Flush>(pending);
+				pending.clear();
+			}
+			for (Flush flush : failed) {
+				flush.future.fail(failure);
+			}
+		}
+		
+		/* records an upload the server answered, completing the flushes it was the last of */
+		private void acknowledge (Batch batch, SCHTTPException rejected) {
+			long from = batch.from, to = batch.from + batch.count;
+			SpoolLog log = spool;
+			if (log != null) {
+				if (rejected == null) {
+					log.acknowledge(from, to);
+				} else {
+					log.reject(from, to, batch.xdr);
+				}
+			}
 			
-			return outStream.toByteArray();
+			List<Flush> done = new ArrayList<Flush>();
+			synchronized (pending) {
+				acked = to;
+				Iterator<Flush> flushes = pending.iterator();
+				while (flushes.hasNext()) {
+					Flush flush = flushes.next();
+					if (rejected != null && flush.error == null && flush.target > from) {
+						flush.error = rejected;
+					}
+					if (flush.target <= to) {
+						flushes.remove();
+						done.add(flush);
+					}
+				}
+			}
+			for (Flush flush : done) {
+				if (flush.error != null) {
+					flush.future.fail(flush.error);
+				} else {
+					flush.future.complete( (int)(flush.target - flush.start) );
+				}
+			}
 		}
 		
 		@Override
 		public void run() {
-			boolean newSendBuff = true;
 			try {
-				while (!kill) {
-					if (newSendBuff) {
-						// take the next buffer of points
-						try {
-							sendBuff = buffer.poll(100, TimeUnit.MILLISECONDS);
-						} catch (InterruptedException e2) {
-							break;
-						}
-					}
+				if (held != null && !kill) {
+					send(held);
+				}
+				for (int turn = 0; turn < UPLOADS_PER_TURN && !kill; turn++) {
+					// the flush position is read first so every sample added before it was raised is counted
+					long flushing = flushTo.get();
+					int buffSize = minBuffSize;
+					long resend = resendTo - samples.taken();
+					int count = samples.ready( resend > 0 ? (int)resend : buffSize );
 					
-					if (sendBuff != null) {
-						if (newSendBuff) {
-							curSamplerate = rateMap.get(sendBuff);
-						}
-						
-						// reset the xdr stream
-						ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-						XDROutStream xdrStream = new XDROutStream( outStream );
-						Point point;
-						
-						newSendBuff = false;
-						int pointCount = 0; // number of points parsed
-						while (!kill && pointCount < buffSize) {
-							try {
-								point = sendBuff.poll(10, TimeUnit.MILLISECONDS);
-							} catch (InterruptedException e) {
-								break;
-							}
-							
-							// if there was no timeout
-							if (point != null) {
-								packPoint(point, xdrStream);
-								pointCount++;
-							} else {
-								if (buffer.size() > 0) {
-									newSendBuff = true;
-									break;
-								}
-								
-								if (flush) {
-									flushing = true;
-									break;
-								}
-							}
-						}
-		
-						byte [] data = outStream.toByteArray();
-						byte [] head = parseHeader(pointCount);
-						byte [] xdr = new byte [data.length + head.length];
-						System.arraycopy(head, 0, xdr, 0, head.length);
-						System.arraycopy(data, 0, xdr, head.length, data.length);
-						
-						
-						boolean success = false;
-						
-						while (!success & !kill) {
-							success = true;
-							try {
-								requester.post("sensors/" + sensorName + "/channels/" + channelName + "/streams/timeseries/data/", xdr);
-							} catch (SCHTTPException e) {
-								this.e = e;
-								try {
-									sleep(1500);
-								} catch (InterruptedException e1) {
-									e.printStackTrace();
-									success = false;
-								}
-							}
-						}
-						if (flushing) {
-							flushing = false;
-							flush = false;
-						}
+					// an upload sent before a restart, a full upload, the end of a run at one rate, or whatever is left to flush
+					if (count > 0 && resend > 0) {
+						upload(count);
+					} else if (count == buffSize || (count > 0 && (samples.taken() < flushing || samples.rateChangesAfter(count)))) {
+						upload(count);
 					} else {
-						if (flush) {
-							flush = false;
-						}
+						break;
 					}
 				}
 			} catch (IOException e) {
-				this.e = e;
+				if (isTransient(e) && ++retries <= MAX_RETRIES) {
+					// the batch is held rather than lost, and the stream waits out the outage instead of stopping
+					retryAt = e instanceof CircuitOpenException
+							? ((CircuitOpenException)e).getRetryAt()
+							: System.currentTimeMillis() + RETRY_DELAY;
+				} else {
+					// a spooled batch stays on disk and goes up again with the next replay
+					this.e = e;
+					stop(e);
+				}
+			} finally {
+				if (held != null && !kill) {
+					// the stream stays marked as queued until the retry, so nothing else sends ahead of the held batch
+					retryLater();
+				} else {
+					scheduled.set(false);
+				}
+				// a sample or flush that saw the stream still queued is picked up here
+				if (!kill && held == null && (samples.taken() < flushTo.get() || samples.hasWork(minBuffSize))) {
+					try {
+						schedule();
+					} catch (RejectedExecutionException rejected) {
+						// the scheduler was closed under the stream, what is left waits for a flush to report it
+					}
+				}
 			}
 		}
+		
+		private void upload (int count) throws IOException {
+			long from = samples.taken();
+			PooledOutputStream outStream = new PooledOutputStream( bufferPool, HEADER_SIZE + count * POINT_SIZE );
+			XDROutStream xdrStream = new XDROutStream( outStream );
+			writeHeader( xdrStream, samples.rate(), count );
+			samples.take(xdrStream, count);
+			held = new Batch( outStream.toByteArray(), from, count );
+			outStream.close();
+			
+			SpoolLog log = spool;
+			if (log != null) {
+				log.sending(from + count);
+			}
+			send(held);
+		}
+		
+		/* posts a batch, it stays held if SensorCloud could not be reached */
+		private void send (Batch batch) throws IOException {
+			// retries and backoff are left to the requester, see RetryingRequester
+			Priority previous = GoverningRequester.setThreadPriority(priority);
+			try {
+				requester.post(dataPath, batch.xdr);
+				held = null;
+				retries = 0;
+				acknowledge(batch, null);
+			} catch (SCHTTPException e) {
+				held = null;
+				retries = 0;
+				if (e.getStatusCode() == 409) {
+					// the points are on SensorCloud already, from a retried attempt that landed or an upload made before a crash
+					acknowledge(batch, null);
+				} else {
+					this.e = e;
+					acknowledge(batch, e);
+				}
+			} finally {
+				// the scheduler's threads are shared with other streams
+				GoverningRequester.setThreadPriority(previous);
+			}
+		}
+		
+		/* queues the stream again once the retry time has passed, it is still marked as queued */
+		private void retryLater() {
+			TimerTask retry = new TimerTask() {
+				@Override
+				public void run() {
+					try {
+						scheduler.execute(Uploader.this);
+					} catch (RejectedExecutionException rejected) {
+						// the scheduler was closed under the stream, what is left waits for a flush to report it
+						scheduled.set(false);
+					}
+				}
+			};
+			retryTimer.schedule( retry, Math.max(0, retryAt - System.currentTimeMillis()) );
+		}
+	}
+	
+	/* an open circuit or a network failure the requester gave up retrying, an interrupt or a passed deadline is not */
+	private static boolean isTransient (IOException e) {
+		return e instanceof CircuitOpenException || e instanceof SocketTimeoutException || !(e instanceof InterruptedIOException);
+	}
+	
+	/**
+	 * The samples of one upload, encoded and ready to post
+	 */
+	private static class Batch {
+		final byte [] xdr;
+		final long from;
+		final int count;
+		
+		Batch (byte [] xdr, long from, int count) {
+			this.xdr = xdr;
+			this.from = from;
+			this.count = count;
+		}
+	}
+	
+	/**
+	 * A flush waiting for the samples before its position to be accepted
+	 */
+	private static class Flush {
+		final long target, start;
+		final SCFuture<Integer> future = new SCFuture<Integer>();
+		Exception error;
+		
+		Flush (long target, long start) {
+			this.target = target;
+			this.start = start;
+		}
 	}
 }
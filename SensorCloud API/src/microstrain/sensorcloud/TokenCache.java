@@ -0,0 +1,382 @@
+package microstrain.sensorcloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import microstrain.sensorcloud.exception.SensorCloudRuntimeException;
+import microstrain.sensorcloud.xdr.XDRInStream;
+import microstrain.sensorcloud.xdr.XDROutStream;
+
+/**
+ * Remembers the authentication token and data server of each device in a file, so that a process
+ * that restarts can put its devices back to work without authenticating each of them first.
+ * A device retrieved with a cached token starts using it straight away and only authenticates
+ * once the server rejects it, each device on its own so the rejections are handled in parallel.
+ * <p>
+ * The file is encrypted with AES under a key derived from a passphrase with PBKDF2 and
+ * authenticated with an HMAC, a file that is tampered with or was written under another
+ * passphrase is ignored and replaced. A token is only handed to a device retrieved with the
+ * same serial, key, authentication server and scheme it was issued for. New tokens are written back
+ * shortly after they arrive, <b>save</b> writes them immediately.
+ * <pre>
+ * SensorCloud sensorcloud = new SensorCloud("sensorcloud.microstrain.com");
+ * sensorcloud.setTokenCache( new TokenCache(new File("tokens.sccache"), passphrase) );
+ * </pre>
+ */
+public class TokenCache {
+	/** Rounds of PBKDF2 the passphrase goes through, the cost is paid once per cache */
+	public static final int ITERATIONS = 20000;
+
+	/** Time in milliseconds a new token waits before the file is written, so a burst of them is written once */
+	private static final long SAVE_DELAY = 1000;
+
+	private static final int MAGIC = 0x53435443; // "SCTC"
+	private static final int VERSION = 2;
+	private static final int SALT_SIZE = 16, IV_SIZE = 16, MAC_SIZE = 32;
+
+	/** Waits out the save delay of every cache, the write itself runs on the shared executor */
+	private static final Timer saveTimer = new Timer( "SensorCloud token cache", true );
+
+	private final File file;
+	private final SecureRandom random = new SecureRandom();
+	private final Object writeLock = new Object();
+	private byte [] salt;
+	private SecretKeySpec cipherKey, macKey;
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+	private boolean saving;
+
+	/**
+	 * Reads the tokens already in the file, if there is one that opens with the passphrase
+	 *
+	 * @param file  file the tokens are kept in
+	 * @param passphrase  passphrase the file is encrypted under
+	 */
+	public TokenCache (File file, char [] passphrase) {
+		this.file = file;
+		if (!load(passphrase)) {
+			salt = new byte [SALT_SIZE];
+			random.nextBytes(salt);
+			deriveKeys(passphrase, salt);
+		}
+	}
+
+	/**
+	 * @return File the tokens are kept in
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return Number of devices with a token in the cache
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Forgets every token, the file is emptied on the next save
+	 */
+	public void clear() {
+		synchronized (this) {
+			entries.clear();
+		}
+		scheduleSave();
+	}
+
+	/**
+	 * Writes the cache to its file now rather than shortly after the last change.
+	 * The file is replaced in one step, a crash mid write leaves the previous one in place.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		synchronized (writeLock) {
+			List<Entry> snapshot;
+			synchronized (this) {
+				snapshot = new ArrayList<Entry>( entries.values() );
+			}
+
+			ByteArrayOutputStream plain = new ByteArrayOutputStream();
+			XDROutStream xdr = new XDROutStream(plain);
+			xdr.writeInt( snapshot.size() );
+			for (Entry entry : snapshot) {
+				xdr.writeString(entry.serial);
+				xdr.writeString(entry.authServer);
+				xdr.writeInt(entry.secure ? 1 : 0);
+				xdr.writeOpaque(entry.keyCheck);
+				xdr.writeString(entry.token);
+				xdr.writeString(entry.host);
+				xdr.writeInt(entry.port);
+				xdr.writeHyper(entry.issued);
+			}
+
+			byte [] iv = new byte [IV_SIZE];
+			random.nextBytes(iv);
+			ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(sealed);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(salt);
+			out.write(iv);
+			out.write( crypt(Cipher.ENCRYPT_MODE, iv, plain.toByteArray()) );
+			out.write( mac( sealed.toByteArray() ) );
+
+			File temp = new File( file.getPath() + ".tmp" );
+			FileOutputStream fos = new FileOutputStream(temp);
+			try {
+				sealed.writeTo(fos);
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+			if (!temp.renameTo(file)) {
+				// some platforms will not rename over an existing file
+				file.delete();
+				if (!temp.renameTo(file)) {
+					throw new IOException( "Could not replace " + file );
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param serial  device serial
+	 * @param authKey  key the device is being retrieved with
+	 * @param authServer  server the device authenticates with
+	 * @param secure  false if the device talks plain HTTP
+	 * @return The cached token, null if there is none for this serial, key, server and scheme
+	 */
+	TokenManager.Token get (String serial, String authKey, String authServer, boolean secure) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get( entryKey(serial, secure) );
+		}
+		if (entry == null || !entry.authServer.equals(authServer)
+				|| !MessageDigest.isEqual( entry.keyCheck, keyCheck(serial, authKey) )) {
+			return null;
+		}
+		return SCRequester.newToken(serial, entry.token, entry.host, entry.port, entry.issued);
+	}
+
+	/**
+	 * Remembers a token a device was just issued, the file is written shortly after
+	 */
+	void put (String serial, String authKey, String authServer, boolean secure, TokenManager.Token token) {
+		Entry entry = new Entry(serial, authServer, secure, keyCheck(serial, authKey), token.token, token.host, token.port, token.issued);
+		synchronized (this) {
+			entries.put( entryKey(serial, secure), entry );
+		}
+		scheduleSave();
+	}
+
+	/**
+	 * Forgets the token of a device whose key was rejected, unless it was issued for another key
+	 */
+	void remove (String serial, String authKey, boolean secure) {
+		byte [] keyCheck = keyCheck(serial, authKey);
+		String key = entryKey(serial, secure);
+		boolean removed = false;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && MessageDigest.isEqual(entry.keyCheck, keyCheck)) {
+				entries.remove(key);
+				removed = true;
+			}
+		}
+		if (removed) {
+			scheduleSave();
+		}
+	}
+
+	/* writes the file once the current burst of changes is over, a failed write is left for the next change */
+	private void scheduleSave() {
+		synchronized (this) {
+			if (saving) {
+				return;
+			}
+			saving = true;
+		}
+
+		final Runnable write = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (TokenCache.this) {
+					saving = false;
+				}
+				try {
+					save();
+				} catch (IOException e) {
+					// the tokens are only a shortcut, the devices authenticate again without them
+				}
+			}
+		};
+		saveTimer.schedule( new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					ExecutorAsyncRequester.getDefaultExecutor().execute(write);
+				} catch (RejectedExecutionException e) {
+					write.run();
+				}
+			}
+		}, SAVE_DELAY);
+	}
+
+	/* true if the file was there and opened with the passphrase */
+	private boolean load (char [] passphrase) {
+		if (!file.isFile()) {
+			return false;
+		}
+		try {
+			byte [] sealed = readFile(file);
+			if (sealed.length < 8 + SALT_SIZE + IV_SIZE + MAC_SIZE) {
+				return false;
+			}
+			DataInputStream in = new DataInputStream( new ByteArrayInputStream(sealed) );
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return false;
+			}
+			byte [] salt = new byte [SALT_SIZE], iv = new byte [IV_SIZE];
+			in.readFully(salt);
+			in.readFully(iv);
+			deriveKeys(passphrase, salt);
+
+			int macAt = sealed.length - MAC_SIZE;
+			byte [] expected = new byte [MAC_SIZE];
+			System.arraycopy(sealed, macAt, expected, 0, MAC_SIZE);
+			byte [] body = new byte [macAt];
+			System.arraycopy(sealed, 0, body, 0, macAt);
+			if (!MessageDigest.isEqual( expected, mac(body) )) {
+				return false; // another passphrase, or not left as it was written
+			}
+
+			int dataAt = 8 + SALT_SIZE + IV_SIZE;
+			byte [] ciphertext = new byte [macAt - dataAt];
+			System.arraycopy(sealed, dataAt, ciphertext, 0, ciphertext.length);
+			XDRInStream xdr = new XDRInStream( new ByteArrayInputStream( crypt(Cipher.DECRYPT_MODE, iv, ciphertext) ));
+			Map<String, Entry> entries = new HashMap<String, Entry>();
+			for (int count = xdr.readInt(); count > 0; count--) {
+				Entry entry = new Entry( xdr.readString(), xdr.readString(), xdr.readInt() != 0, xdr.readOpaque(),
+						xdr.readString(), xdr.readString(), xdr.readInt(), xdr.readHyper() );
+				entries.put( entryKey(entry.serial, entry.secure), entry );
+			}
+
+			this.salt = salt;
+			this.entries = entries;
+			return true;
+		} catch (IOException e) {
+			return false;
+		} catch (SensorCloudRuntimeException e) {
+			return false;
+		}
+	}
+
+	private void deriveKeys (char [] passphrase, byte [] salt) {
+		try {
+			// PBKDF2 with SHA-1 is the variant every Java 6 runtime has
+			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+			byte [] keys = factory.generateSecret( new PBEKeySpec(passphrase, salt, ITERATIONS, (16 + 32) * 8) ).getEncoded();
+			cipherKey = new SecretKeySpec(keys, 0, 16, "AES");
+			macKey = new SecretKeySpec(keys, 16, 32, "HmacSHA256");
+		} catch (GeneralSecurityException e) {
+			throw new SensorCloudRuntimeException( "Token cache key could not be derived", e );
+		}
+	}
+
+	private byte [] crypt (int mode, byte [] iv, byte [] data) {
+		try {
+			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			cipher.init( mode, cipherKey, new IvParameterSpec(iv) );
+			return cipher.doFinal(data);
+		} catch (GeneralSecurityException e) {
+			throw new SensorCloudRuntimeException( "Token cache could not be " + (mode == Cipher.ENCRYPT_MODE ? "encrypted" : "decrypted"), e );
+		}
+	}
+
+	private byte [] mac (byte [] data) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(macKey);
+			return mac.doFinal(data);
+		} catch (GeneralSecurityException e) {
+			throw new SensorCloudRuntimeException( "Token cache could not be authenticated", e );
+		}
+	}
+
+	/* a token and data server port issued over https are never handed to a device using plain http, or the other way round */
+	private static String entryKey (String serial, boolean secure) {
+		return (secure ? "https " : "http ") + serial;
+	}
+
+	/* ties an entry to the key it was issued for without keeping the key itself */
+	private byte [] keyCheck (String serial, String authKey) {
+		try {
+			return mac( (serial + '\n' + authKey).getBytes("UTF-8") );
+		} catch (IOException e) {
+			throw new SensorCloudRuntimeException( "UTF-8 is not supported", e );
+		}
+	}
+
+	private static byte [] readFile (File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream( (int)file.length() );
+			byte [] buf = new byte [8192];
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				out.write(buf, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The token of one device and what it was issued for
+	 */
+	private static class Entry {
+		final String serial, authServer;
+		final boolean secure;
+		final byte [] keyCheck;
+		final String token, host;
+		final int port;
+		final long issued;
+
+		Entry (String serial, String authServer, boolean secure, byte [] keyCheck, String token, String host, int port, long issued) {
+			this.serial = serial;
+			this.authServer = authServer;
+			this.secure = secure;
+			this.keyCheck = keyCheck;
+			this.token = token;
+			this.host = host;
+			this.port = port;
+			this.issued = issued;
+		}
+	}
+}
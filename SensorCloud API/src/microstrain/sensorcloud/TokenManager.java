@@ -0,0 +1,251 @@
+package microstrain.sensorcloud;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import microstrain.sensorcloud.exception.DeadlineExceededException;
+import microstrain.sensorcloud.http.Deadline;
+
+/**
+ * Holds the authentication token of a device and refreshes it.
+ * Reading the token is a single volatile read. At most one refresh is ever in flight,
+ * threads whose requests were rejected with a stale token wait on that refresh and
+ * then replay their request with the token it produced. Once a token reaches the
+ * refresh age a new one is fetched in the background while the old one stays in use.
+ */
+abstract class TokenManager {
+	/** Time to wait before trying a failed proactive refresh again */
+	private static final long RETRY_DELAY = 30000;
+
+	private volatile Token current;
+	private volatile long proactiveAfter = Long.MAX_VALUE;
+	private long refreshAge;
+	private SCFuture<Token> inFlight;
+	private boolean seeded;
+	private volatile Executor executor;
+
+	/**
+	 * @param refreshAge  milliseconds after which a token is refreshed ahead of time, zero to only refresh once rejected
+	 */
+	TokenManager (long refreshAge) {
+		this.refreshAge = refreshAge;
+	}
+
+	/**
+	 * @param executor  executor background refreshes run on, null to start a thread for each
+	 */
+	void setExecutor (Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Authenticates with the server, called by at most one thread at a time
+	 *
+	 * @return A new token
+	 *
+	 * @throws IOException
+	 */
+	protected abstract Token fetch() throws IOException;
+
+	/**
+	 * Starts out with a token that was issued earlier. However old it is, the server is not
+	 * asked for a new one until it rejects this one
+	 *
+	 * @param token  token kept from an earlier authentication
+	 */
+	synchronized void seed (Token token) {
+		if (current == null) {
+			current = token;
+			seeded = true;
+		}
+	}
+
+	/**
+	 * Current token, starting a background refresh if it has reached the refresh age
+	 *
+	 * @return The token to send with a request, null if none has been fetched yet
+	 */
+	Token get() {
+		Token token = current;
+		if (token != null && System.currentTimeMillis() >= proactiveAfter) {
+			refreshInBackground(token);
+		}
+		return token;
+	}
+
+	/**
+	 * Replaces a token the server rejected.
+	 * If the token has already been replaced the newer one is returned straight away,
+	 * if a refresh is already in flight the caller waits for it rather than starting another.
+	 *
+	 * @param stale  token that was rejected, null for the first authentication
+	 * @return The new token
+	 *
+	 * @throws IOException
+	 */
+	Token refresh (Token stale) throws IOException {
+		SCFuture<Token> flight;
+		boolean leader = false;
+		synchronized (this) {
+			if (current != stale) {
+				return current;
+			}
+			if (inFlight == null) {
+				inFlight = new SCFuture<Token>();
+				leader = true;
+			}
+			flight = inFlight;
+		}
+
+		if (leader) {
+			lead(flight);
+		}
+		return await(flight);
+	}
+
+	/**
+	 * @param refreshAge  milliseconds after which a token is refreshed ahead of time, zero to only refresh once rejected
+	 */
+	synchronized void setRefreshAge (long refreshAge) {
+		this.refreshAge = refreshAge;
+		if (current != null && !seeded) {
+			schedule( current.issued );
+		}
+	}
+
+	private void refreshInBackground (final Token token) {
+		final SCFuture<Token> flight;
+		synchronized (this) {
+			if (current != token || inFlight != null) {
+				return;
+			}
+			flight = inFlight = new SCFuture<Token>();
+		}
+
+		Runnable refresh = new Runnable() {
+			@Override
+			public void run() {
+				lead(flight);
+			}
+		};
+		Executor executor = this.executor;
+		if (executor != null) {
+			try {
+				executor.execute(refresh);
+			} catch (RejectedExecutionException e) {
+				failed( flight, new IOException( "Token refresh could not be started: " + e.getMessage() ) );
+			}
+			return;
+		}
+		Thread thread = new Thread(refresh, "SensorCloud token refresh");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/* performs the refresh and wakes everyone parked on it */
+	private void lead (SCFuture<Token> flight) {
+		Token token;
+		try {
+			token = fetch();
+		} catch (Exception e) {
+			failed(flight, e);
+			return;
+		} catch (Error e) {
+			// the waiters must not stay parked on a refresh that will never finish
+			failed(flight, new IOException( "Authentication failed: " + e, e ));
+			throw e;
+		}
+
+		synchronized (this) {
+			current = token;
+			seeded = false;
+			inFlight = null;
+			schedule( token.issued );
+		}
+		flight.complete(token);
+	}
+
+	private void failed (SCFuture<Token> flight, Exception e) {
+		synchronized (this) {
+			inFlight = null;
+			// with no refresh age the next refresh waits for a rejection, as the first one did
+			if (refreshAge > 0) {
+				proactiveAfter = System.currentTimeMillis() + RETRY_DELAY;
+			}
+		}
+		flight.fail(e);
+	}
+
+	private void schedule (long issued) {
+		proactiveAfter = refreshAge > 0 ? issued + refreshAge : Long.MAX_VALUE;
+	}
+
+	private static Token await (SCFuture<Token> flight) throws IOException {
+		Deadline deadline = Deadline.current();
+		try {
+			if (deadline == null) {
+				return flight.get();
+			}
+			return flight.get( deadline.remainingMillis(), TimeUnit.MILLISECONDS );
+		} catch (TimeoutException e) {
+			throw new DeadlineExceededException( "Deadline passed while waiting for authentication" );
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while waiting for authentication" );
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new IOException( cause.getMessage() );
+		}
+	}
+
+	/**
+	 * An authentication token along with the server it is valid for, and the path prefix
+	 * and query it is sent with so that they are not rebuilt for every request
+	 */
+	static class Token {
+		final String token;
+		final String host;
+		final int port;
+		final String basePath;
+		final String authQuery;
+		final long issued;
+
+		/**
+		 * @param token  token returned by the server
+		 * @param host  host of the server the token is valid for
+		 * @param port  port of that server
+		 * @param basePath  path of the device on that server
+		 * @param authQuery  query string that authorizes a request with the token
+		 */
+		Token (String token, String host, int port, String basePath, String authQuery) {
+			this(token, host, port, basePath, authQuery, System.currentTimeMillis());
+		}
+
+		/**
+		 * @param token  token returned by the server
+		 * @param host  host of the server the token is valid for
+		 * @param port  port of that server
+		 * @param basePath  path of the device on that server
+		 * @param authQuery  query string that authorizes a request with the token
+		 * @param issued  time the token was issued in milliseconds since the epoch
+		 */
+		Token (String token, String host, int port, String basePath, String authQuery, long issued) {
+			this.token = token;
+			this.host = host;
+			this.port = port;
+			this.basePath = basePath;
+			this.authQuery = authQuery;
+			this.issued = issued;
+		}
+	}
+}
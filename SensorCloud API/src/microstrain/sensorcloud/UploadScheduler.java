@@ -0,0 +1,131 @@
+package microstrain.sensorcloud;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the uploads of <b>TimeSeriesStream</b>s on a fixed number of threads, so a device with hundreds
+ * of channels needs a handful of threads rather than one for each stream. A stream is only handed to
+ * the scheduler when it has a full upload, reaches the end of a run at one sample rate or is flushed,
+ * and each stream has at most one upload running at a time so its data still goes up in order.
+ * A stream with several uploads waiting sends a few and goes to the back of the queue, a stream
+ * backfilling a large buffer does not hold up the live ones.
+ * <p>
+ * Every stream uses the shared default scheduler unless given another with <b>TimeSeriesStream.setUploadScheduler</b>.
+ * The default scheduler starts with <b>DEFAULT_THREADS</b> threads and grows as devices are retrieved from a
+ * <b>SensorCloud</b>, to as many threads as its <b>ConnectionPool</b> has connections for uploads, up to <b>MAX_DEFAULT_THREADS</b>.
+ * Threads that have been idle for a minute stop and are started again when there is work.
+ */
+public class UploadScheduler implements Executor {
+	/** Threads the default scheduler starts with */
+	public static final int DEFAULT_THREADS = 4;
+
+	/** Most threads the default scheduler grows to, however many connections there are for uploads */
+	public static final int MAX_DEFAULT_THREADS = 64;
+
+	private static UploadScheduler defaultScheduler;
+
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Creates a scheduler with <b>DEFAULT_THREADS</b> threads
+	 */
+	public UploadScheduler() {
+		this(DEFAULT_THREADS);
+	}
+
+	/**
+	 * @param threads  most uploads run at once, across every stream using the scheduler
+	 */
+	public UploadScheduler (int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException( "An upload scheduler needs at least one thread" );
+		}
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread (Runnable r) {
+				Thread thread = new Thread(r, "SensorCloud upload " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return The scheduler shared by every stream that has not been given one
+	 */
+	public static synchronized UploadScheduler getDefault() {
+		if (defaultScheduler == null) {
+			defaultScheduler = new UploadScheduler();
+		}
+		return defaultScheduler;
+	}
+
+	/* grows the default scheduler to run as many uploads at once as there are connections for */
+	static void growDefault (int uploads) {
+		getDefault().grow( Math.min(uploads, MAX_DEFAULT_THREADS) );
+	}
+
+	/* raises the number of threads, never lowering it as the streams already using the scheduler count on them */
+	synchronized void grow (int threads) {
+		if (threads > executor.getMaximumPoolSize()) {
+			// the maximum goes up first, the core size may not pass it
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		}
+	}
+
+	/**
+	 * Queues a stream's uploads, called by the streams
+	 *
+	 * @param uploads  task sending a stream's waiting uploads
+	 * @throws RejectedExecutionException if the scheduler has been closed
+	 */
+	@Override
+	public void execute (Runnable uploads) {
+		executor.execute(uploads);
+	}
+
+	/**
+	 * @return Most uploads run at once
+	 */
+	public int getThreadCount() {
+		return executor.getMaximumPoolSize();
+	}
+
+	/**
+	 * @return Streams waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Stops the threads once the uploads already queued have been sent.
+	 * Streams using the scheduler can no longer upload, close them first. The default scheduler cannot be closed.
+	 *
+	 * @param timeout  longest time to wait for the queued uploads
+	 * @param unit  unit of the timeout
+	 * @return True if every queued upload was sent in time
+	 *
+	 * @throws InterruptedException
+	 */
+	public boolean close (long timeout, TimeUnit unit) throws InterruptedException {
+		synchronized (UploadScheduler.class) {
+			if (this == defaultScheduler) {
+				throw new IllegalStateException( "The default upload scheduler is shared and cannot be closed" );
+			}
+		}
+		executor.shutdown();
+		return executor.awaitTermination(timeout, unit);
+	}
+}
@@ -0,0 +1,222 @@
+package microstrain.sensorcloud;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import microstrain.sensorcloud.exception.InvalidRequestException;
+import microstrain.sensorcloud.exception.SensorCloudRuntimeException;
+
+/**
+ * A write-ahead spool on disk for the points of <b>TimeSeriesStream</b>s, so points that have not reached
+ * SensorCloud survive a crash, a restart or an outage that outlasts the process. A stream given a spool with
+ * <b>TimeSeriesStream.setUploadSpool</b> writes each point to a memory mapped segment file before queuing it
+ * for upload, and a segment is deleted once SensorCloud has accepted every point in it. Segments left behind
+ * are replayed when the same channel's stream is next given the spool, or for a whole device with <b>replay</b>.
+ * <pre>
+ * UploadSpool spool = new UploadSpool(new File("spool"));
+ * spool.replay(device);
+ * TimeSeriesStream stream = channel.getTimeSeriesStream();
+ * stream.setUploadSpool(spool);
+ * </pre>
+ * A point is in the spool once it has been added, a process that dies loses nothing it added. Surviving the machine
+ * losing power needs the pages on disk as well, the operating system writes them back on its own or <b>sync</b>
+ * forces them. An upload answered with a conflict counts as accepted, its points are on SensorCloud already.
+ * An upload rejected for any other reason is not replayed, where it would only be rejected again, but is kept
+ * as sent in a <code>rejected</code> directory next to the channel's segments, one file per upload.
+ * A replay sends the upload that was in flight when the process ended with exactly the points it held,
+ * and skips the points SensorCloud had already answered.
+ */
+public class UploadSpool implements Closeable {
+	/** Size of each segment file in bytes, about 1.3 million points */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+	private final File directory;
+	private final int segmentSize;
+	private final Map<String, SpoolLog> open = new HashMap<String, SpoolLog>();
+	private boolean closed;
+
+	/**
+	 * @param directory  directory the segments are kept in, created if it does not exist
+	 *
+	 * @throws IOException if the directory cannot be created
+	 */
+	public UploadSpool (File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param directory  directory the segments are kept in, created if it does not exist
+	 * @param segmentSize  size of each segment file in bytes, at least 64 KiB
+	 *
+	 * @throws IOException if the directory cannot be created
+	 */
+	public UploadSpool (File directory, int segmentSize) throws IOException {
+		if (segmentSize < MIN_SEGMENT_SIZE) {
+			throw new IllegalArgumentException( "Segments have to be at least " + MIN_SEGMENT_SIZE + " bytes" );
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException( "Could not create the spool directory " + directory );
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @return Directory the segments are kept in
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return Size of each segment file in bytes
+	 */
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Gives every channel of a device that has points left in the spool a stream using the spool,
+	 * which queues those points for upload again. Channels whose stream already uses the spool are skipped.
+	 *
+	 * @param device  device the points were added for
+	 * @return Streams of the channels that had points in the spool, keep adding to these rather than new ones
+	 *
+	 * @throws IOException
+	 * @throws InvalidRequestException
+	 */
+	public List<TimeSeriesStream> replay (Device device) throws IOException, InvalidRequestException {
+		List<TimeSeriesStream> streams = new ArrayList<TimeSeriesStream>();
+		File [] sensors = new File( directory, encode( device.getSerial() ) ).listFiles(DIRECTORIES);
+		if (sensors == null) {
+			return streams;
+		}
+		for (File sensor : sensors) {
+			File [] channels = sensor.listFiles(DIRECTORIES);
+			if (channels == null) {
+				continue;
+			}
+			for (File channel : channels) {
+				File [] segments = channel.listFiles(SEGMENTS);
+				String sensorName = decode( sensor.getName() ), channelName = decode( channel.getName() );
+				if (segments == null || segments.length == 0 || isOpen( device.getSerial(), sensorName, channelName )) {
+					continue;
+				}
+				TimeSeriesStream stream = device.getSensor(sensorName).getChannel(channelName).getTimeSeriesStream();
+				stream.setUploadSpool(this);
+				streams.add(stream);
+			}
+		}
+		return streams;
+	}
+
+	/**
+	 * Forces every segment holding points that have not been accepted to disk, so the points added so far
+	 * also survive the machine losing power
+	 *
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		List<SpoolLog> logs;
+		synchronized (this) {
+			logs = new ArrayList<SpoolLog>( open.values() );
+		}
+		for (SpoolLog log : logs) {
+			log.sync();
+		}
+	}
+
+	/**
+	 * Stops the streams using the spool adding to it, what they have not uploaded stays on disk for the next replay.
+	 * Close or flush the streams first for their points to be uploaded and their segments deleted.
+	 */
+	@Override
+	public void close() {
+		List<SpoolLog> logs;
+		synchronized (this) {
+			closed = true;
+			logs = new ArrayList<SpoolLog>( open.values() );
+		}
+		for (SpoolLog log : logs) {
+			log.close();
+		}
+	}
+
+	/**
+	 * Opens the log of a channel's stream, a channel can only be spooled by one stream at a time
+	 *
+	 * @throws IllegalStateException if the spool is closed or another stream is using the channel's log
+	 */
+	synchronized SpoolLog open (String serial, String sensorName, String channelName) {
+		if (closed) {
+			throw new IllegalStateException( "The upload spool has been closed" );
+		}
+		String key = key(serial, sensorName, channelName);
+		if (open.containsKey(key)) {
+			throw new IllegalStateException( "Another stream is spooling " + sensorName + "/" + channelName + " of " + serial );
+		}
+		File logDirectory = new File( directory, encode(serial) + File.separator + encode(sensorName) + File.separator + encode(channelName) );
+		SpoolLog log = new SpoolLog(this, logDirectory, key, segmentSize);
+		open.put(key, log);
+		return log;
+	}
+
+	/**
+	 * Forgets a log that was closed, the channel can be opened again
+	 */
+	synchronized void closed (SpoolLog log) {
+		if (open.get( log.getKey() ) == log) {
+			open.remove( log.getKey() );
+		}
+	}
+
+	private synchronized boolean isOpen (String serial, String sensorName, String channelName) {
+		return open.containsKey( key(serial, sensorName, channelName) );
+	}
+
+	private static String key (String serial, String sensorName, String channelName) {
+		return serial + '/' + sensorName + '/' + channelName;
+	}
+
+	/* names are encoded so any of them makes a safe file name */
+	private static String encode (String name) {
+		try {
+			return URLEncoder.encode(name, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new SensorCloudRuntimeException( "UTF-8 is not supported", e );
+		}
+	}
+
+	private static String decode (String name) {
+		try {
+			return URLDecoder.decode(name, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new SensorCloudRuntimeException( "UTF-8 is not supported", e );
+		}
+	}
+
+	private static final FileFilter DIRECTORIES = new FileFilter() {
+		@Override
+		public boolean accept (File file) {
+			return file.isDirectory();
+		}
+	};
+
+	private static final FileFilter SEGMENTS = new FileFilter() {
+		@Override
+		public boolean accept (File file) {
+			return file.isFile() && file.getName().endsWith(SpoolLog.SUFFIX);
+		}
+	};
+}
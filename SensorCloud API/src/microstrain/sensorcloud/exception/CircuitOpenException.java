@@ -0,0 +1,28 @@
+package microstrain.sensorcloud.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of making a request while SensorCloud is considered to be down.
+ * Requests are let through again once the retry time has passed.
+ */
+@SuppressWarnings("serial")
+public class CircuitOpenException extends IOException {
+	private long retryAt;
+
+	/**
+	 * @param retryAt  time in milliseconds at which a request will next be let through
+	 */
+	public CircuitOpenException (long retryAt) {
+		super( "SensorCloud is unavailable, requests are suspended for another "
+				+ Math.max(0, retryAt - System.currentTimeMillis()) + " ms" );
+		this.retryAt = retryAt;
+	}
+
+	/**
+	 * @return Time in milliseconds at which a request will next be let through
+	 */
+	public long getRetryAt() {
+		return retryAt;
+	}
+}
@@ -0,0 +1,27 @@
+package microstrain.sensorcloud.exception;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when a call is abandoned because its <b>Deadline</b> passed.
+ * The request may or may not have reached SensorCloud before it was cut off.
+ * Unlike a read timeout this is never retried, the caller has given up on the call.
+ */
+@SuppressWarnings("serial")
+public class DeadlineExceededException extends InterruptedIOException {
+	/**
+	 * @param message  what was happening when the deadline passed
+	 */
+	public DeadlineExceededException (String message) {
+		super(message);
+	}
+
+	/**
+	 * @param message  what was happening when the deadline passed
+	 * @param cause  failure the deadline caused, usually the socket being closed underneath a read
+	 */
+	public DeadlineExceededException (String message, Throwable cause) {
+		super(message);
+		initCause(cause);
+	}
+}
@@ -16,4 +16,12 @@ public class SensorCloudRuntimeException extends RuntimeException {
 	public SensorCloudRuntimeException (String message) {
 		super(message);
 	}
+	
+	/**
+	 * @param message  description of what cause the exception
+	 * @param cause  underlying exception
+	 */
+	public SensorCloudRuntimeException (String message, Throwable cause) {
+		super(message, cause);
+	}
 }
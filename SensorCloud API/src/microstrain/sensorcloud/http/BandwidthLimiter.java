@@ -0,0 +1,118 @@
+package microstrain.sensorcloud.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket limiting the number of bytes per second read through it.
+ * Bytes are taken from the bucket as they are read and the reading thread sleeps
+ * once the bucket runs dry, so a limited download does not burn CPU while it waits.
+ * One limiter can be shared by several streams to cap their combined rate.
+ */
+public class BandwidthLimiter {
+	private long bytesPerSecond;
+	private long capacity;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Creates a limiter that allows bursts of up to one second worth of data
+	 *
+	 * @param bytesPerSecond  sustained rate
+	 */
+	public BandwidthLimiter (long bytesPerSecond) {
+		this(bytesPerSecond, bytesPerSecond);
+	}
+
+	/**
+	 * @param bytesPerSecond  sustained rate
+	 * @param capacity  largest number of bytes that can be read in a burst
+	 */
+	public BandwidthLimiter (long bytesPerSecond, long capacity) {
+		if (bytesPerSecond <= 0 || capacity <= 0) {
+			throw new IllegalArgumentException( "Rate and capacity must be positive" );
+		}
+		this.bytesPerSecond = bytesPerSecond;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * @return Sustained rate in bytes per second
+	 */
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * Takes bytes from the bucket, sleeping until they are available.
+	 * The bytes are reserved before sleeping so concurrent readers queue up behind each other.
+	 *
+	 * @param bytes  number of bytes that were read
+	 *
+	 * @throws InterruptedIOException
+	 */
+	public void acquire (int bytes) throws InterruptedIOException {
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			tokens = Math.min( capacity, tokens + (now - lastRefill) * bytesPerSecond / 1e9 );
+			lastRefill = now;
+			tokens -= bytes;
+			wait = tokens < 0 ? (long)(-tokens * 1e9 / bytesPerSecond) : 0;
+		}
+
+		if (wait > 0) {
+			try {
+				Thread.sleep( wait / 1000000, (int)(wait % 1000000) );
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException( "Interrupted while throttling" );
+			}
+		}
+	}
+
+	/**
+	 * @param in  stream to be throttled
+	 * @return A stream that reads from <b>in</b> no faster than this limiter allows
+	 */
+	public InputStream wrap (InputStream in) {
+		return new ThrottledInputStream(in);
+	}
+
+	private class ThrottledInputStream extends FilterInputStream {
+		ThrottledInputStream (InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1) {
+				acquire(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read (byte [] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if (read > 0) {
+				acquire(read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip (long n) throws IOException {
+			long skipped = in.skip(n);
+			if (skipped > 0) {
+				acquire( (int)skipped );
+			}
+			return skipped;
+		}
+	}
+}
@@ -0,0 +1,511 @@
+package microstrain.sensorcloud.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import microstrain.sensorcloud.exception.DeadlineExceededException;
+
+/**
+ * A pool of persistent HTTP connections.
+ * Each host gets at most a set number of connections, requests beyond that wait for one to be released.
+ * The number can be raised or lowered while the pool is in use.
+ * Requests that carry a body, uploads, may only take some of those connections, the rest are held back
+ * for requests without one so that a query is never stuck behind a queue of uploads to the same host.
+ * Connections that sit idle longer than the idle timeout are closed.
+ * A pool can be shared by any number of devices, connections to the same server are shared between them.
+ * Connections go through whatever proxy the <b>ProxySelector</b> picks, by default the JVM's own, which honours
+ * the <code>https.proxyHost</code>, <code>http.proxyHost</code> and <code>socksProxyHost</code> system properties.
+ */
+public class ConnectionPool {
+	/** Default number of connections kept to a single host */
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+	/** Default number of connections to a host that uploads cannot take */
+	public static final int DEFAULT_RESERVED_FOR_QUERIES = 1;
+
+	/** Default time in milliseconds an unused connection is kept open */
+	public static final long DEFAULT_IDLE_TIMEOUT = 15000;
+
+	/** Default milliseconds to wait for a connection to open */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	/** Default milliseconds to wait for data from the server before giving up on a request */
+	public static final int DEFAULT_READ_TIMEOUT = 60000;
+
+	/** Shared daemon thread that evicts idle connections for every pool */
+	private static final Timer reaper = new Timer( "SensorCloud connection reaper", true );
+
+	private volatile int maxConnections;
+	private int reservedForQueries;
+	private long idleTimeout;
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	private volatile ProxySelector proxySelector;
+	private Map<String, Route> routes;
+	private TimerTask evictTask;
+	private AtomicLong opened, requests;
+
+	/**
+	 * Creates a pool using the default connection count and idle timeout
+	 */
+	public ConnectionPool() {
+		this(DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Holds back the default number of connections to each host for queries, as long as that leaves uploads at least one
+	 *
+	 * @param maxConnections  maximum number of connections open to a single host
+	 * @param idleTimeout  milliseconds an unused connection is kept open, zero disables reuse
+	 */
+	public ConnectionPool (int maxConnections, long idleTimeout) {
+		this(maxConnections, idleTimeout, Math.min( DEFAULT_RESERVED_FOR_QUERIES, maxConnections - 1 ));
+	}
+
+	/**
+	 * @param maxConnections  maximum number of connections open to a single host
+	 * @param idleTimeout  milliseconds an unused connection is kept open, zero disables reuse
+	 * @param reservedForQueries  connections to a host that requests with a body cannot take, zero to let uploads take them all
+	 */
+	public ConnectionPool (int maxConnections, long idleTimeout, int reservedForQueries) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException( "At least one connection per host is required" );
+		}
+		if (reservedForQueries < 0 || reservedForQueries >= maxConnections) {
+			throw new IllegalArgumentException( "Uploads need at least one of the " + maxConnections + " connections per host" );
+		}
+
+		this.maxConnections = maxConnections;
+		this.reservedForQueries = reservedForQueries;
+		this.idleTimeout = idleTimeout;
+		this.routes = new HashMap<String, Route>();
+		this.opened = new AtomicLong();
+		this.requests = new AtomicLong();
+
+		if (idleTimeout > 0) {
+			evictTask = new EvictTask(this);
+			long period = Math.max( idleTimeout / 2, 1000 );
+			reaper.schedule(evictTask, period, period);
+		}
+	}
+
+	/**
+	 * Sends a request on a pooled connection.
+	 * If a reused connection turns out to have been dropped by the server the request is sent once more on a new connection,
+	 * but only if the server cannot have acted on it or acting on it twice does no harm: the server closed the connection
+	 * without answering, the request failed while it was being written, or the method is a GET, HEAD or OPTIONS.
+	 * A request with a body waits for one of the connections uploads may take.
+	 *
+	 * @param host  server host name
+	 * @param port  server port
+	 * @param secure  true to use TLS
+	 * @param method  HTTP method
+	 * @param target  request target including the query string
+	 * @param headers  additional request headers, may be null
+	 * @param body  request body, may be null
+	 * @return Response from the server, its body must be consumed or closed to release the connection
+	 *
+	 * @throws IOException
+	 */
+	public HttpResponse execute (String host, int port, boolean secure, String method, String target, Map<String, String> headers, byte [] body) throws IOException {
+		Route route = getRoute(host, port, secure);
+		boolean upload = body != null;
+
+		HttpConnection conn = acquire(route, upload, true);
+		boolean reused = conn.getRequestCount() > 0;
+		requests.incrementAndGet();
+		try {
+			return conn.execute(method, target, headers, body);
+		} catch (IOException e) {
+			release(conn, false);
+			if (!reused || !canResend(conn, method, e)) {
+				throw e;
+			}
+		}
+
+		// the server closed the idle connection, try again on a new one
+		conn = acquire(route, upload, false);
+		try {
+			return conn.execute(method, target, headers, body);
+		} catch (IOException e) {
+			release(conn, false);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Maximum number of connections open to a single host
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Changes the number of connections to each host, requests already waiting get any new connections straight away.
+	 * When the number is lowered the connections in use above it are closed or kept idle as they are released.
+	 *
+	 * @param maxConnections  maximum number of connections open to a single host
+	 */
+	public void setMaxConnections (int maxConnections) {
+		if (maxConnections <= reservedForQueries) {
+			throw new IllegalArgumentException( "Uploads need at least one of the " + maxConnections + " connections per host" );
+		}
+		synchronized (routes) {
+			int change = maxConnections - this.maxConnections;
+			this.maxConnections = maxConnections;
+			for (Route route : routes.values()) {
+				route.permits.resize(change);
+				route.uploadPermits.resize(change);
+			}
+		}
+	}
+
+	/**
+	 * @return Number of connections to a single host that uploads cannot take
+	 */
+	public int getReservedForQueries() {
+		return reservedForQueries;
+	}
+
+	/**
+	 * @return Milliseconds an unused connection is kept open
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets how long to wait for a new connection to open, including the TLS handshake
+	 *
+	 * @param connectTimeout  time in milliseconds, zero to wait forever
+	 */
+	public void setConnectTimeout (int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @return Milliseconds to wait for a new connection to open
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Sets how long a request waits for data from the server, a stalled server fails the request with a <b>SocketTimeoutException</b>.
+	 * Only affects connections opened after the call.
+	 *
+	 * @param readTimeout  time in milliseconds, zero to wait forever
+	 */
+	public void setReadTimeout (int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * @return Milliseconds a request waits for data from the server
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Sets how connections pick a proxy. Only affects connections opened after the call.
+	 *
+	 * @param proxySelector  selector to ask, null for <b>ProxySelector.getDefault()</b>
+	 */
+	public void setProxySelector (ProxySelector proxySelector) {
+		this.proxySelector = proxySelector;
+	}
+
+	/**
+	 * @return Selector connections pick a proxy with, null if the JVM's default is used
+	 */
+	public ProxySelector getProxySelector() {
+		return proxySelector;
+	}
+
+	/**
+	 * Each new connection over TLS costs a full handshake, so this is also the number of handshakes performed.
+	 *
+	 * @return Number of connections opened by the pool
+	 */
+	public long getConnectionsOpened() {
+		return opened.get();
+	}
+
+	/**
+	 * @return Number of requests sent through the pool
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return Number of connections currently waiting to be reused
+	 */
+	public int getIdleCount() {
+		int count = 0;
+		for (Route route : getRoutes()) {
+			synchronized (route) {
+				count += route.idle.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Closes every connection that has been idle longer than the idle timeout
+	 */
+	public void evictIdle() {
+		long expired = System.currentTimeMillis() - idleTimeout;
+
+		for (Route route : getRoutes()) {
+			List<HttpConnection> stale = new ArrayList<HttpConnection>();
+			synchronized (route) {
+				Iterator<HttpConnection> itr = route.idle.iterator();
+				while (itr.hasNext()) {
+					HttpConnection conn = itr.next();
+					if (conn.getLastUsed() < expired || !conn.isOpen()) {
+						itr.remove();
+						stale.add(conn);
+					}
+				}
+			}
+			for (HttpConnection conn : stale) {
+				conn.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes all idle connections and stops evicting.
+	 * Connections that are in use are closed once they are released.
+	 */
+	public void close() {
+		if (evictTask != null) {
+			evictTask.cancel();
+		}
+		idleTimeout = 0;
+
+		for (Route route : getRoutes()) {
+			List<HttpConnection> idle;
+			synchronized (route) {
+				idle = new ArrayList<HttpConnection>(route.idle);
+				route.idle.clear();
+			}
+			for (HttpConnection conn : idle) {
+				conn.close();
+			}
+		}
+	}
+
+	/* called by a connection once the body of its response has been consumed */
+	void release (HttpConnection conn, boolean reusable) {
+		Route route = getRoute( conn.getHost(), conn.getPort(), conn.isSecure() );
+		boolean upload = conn.upload;
+		conn.upload = false;
+
+		if (reusable && idleTimeout > 0 && conn.isOpen()) {
+			conn.touch();
+			synchronized (route) {
+				// most recently used first, it is the least likely to have been dropped
+				route.idle.addFirst(conn);
+			}
+		} else {
+			conn.close();
+		}
+		route.permits.release();
+		if (upload) {
+			route.uploadPermits.release();
+		}
+	}
+
+	private HttpConnection acquire (Route route, boolean upload, boolean allowIdle) throws IOException {
+		// an upload takes an upload permit first so it never holds a connection a query could have used while it waits
+		if (upload) {
+			take(route, route.uploadPermits);
+		}
+		try {
+			take(route, route.permits);
+		} catch (IOException e) {
+			if (upload) {
+				route.uploadPermits.release();
+			}
+			throw e;
+		}
+
+		try {
+			HttpConnection conn = open(route, allowIdle);
+			conn.upload = upload;
+			return conn;
+		} catch (IOException e) {
+			route.permits.release();
+			if (upload) {
+				route.uploadPermits.release();
+			}
+			throw e;
+		}
+	}
+
+	/* an idle connection if there is one still open, otherwise a new one */
+	private HttpConnection open (Route route, boolean allowIdle) throws IOException {
+		if (allowIdle) {
+			long expired = System.currentTimeMillis() - idleTimeout;
+			while (true) {
+				HttpConnection conn;
+				synchronized (route) {
+					conn = route.idle.poll();
+				}
+				if (conn == null) {
+					break;
+				}
+				if (conn.getLastUsed() >= expired && conn.isOpen()) {
+					return conn;
+				}
+				conn.close();
+			}
+		}
+
+		ProxySelector selector = proxySelector != null ? proxySelector : ProxySelector.getDefault();
+		URI uri = null;
+		Proxy proxy = Proxy.NO_PROXY;
+		if (selector != null) {
+			try {
+				uri = new URI( route.secure ? "https" : "http", null, route.host, route.port, "/", null, null );
+				List<Proxy> proxies = selector.select(uri);
+				if (proxies != null && !proxies.isEmpty()) {
+					proxy = proxies.get(0);
+				}
+			} catch (URISyntaxException e) {
+				// not a host a proxy could be chosen for, connect directly
+			}
+		}
+
+		HttpConnection conn;
+		try {
+			conn = new HttpConnection(this, route.host, route.port, route.secure, proxy, connectTimeout, readTimeout);
+		} catch (IOException e) {
+			if (proxy.type() != Proxy.Type.DIRECT && !(e instanceof DeadlineExceededException)) {
+				selector.connectFailed(uri, proxy.address(), e);
+			}
+			throw e;
+		}
+		opened.incrementAndGet();
+		return conn;
+	}
+
+	private static void take (Route route, Semaphore permits) throws IOException {
+		Deadline deadline = Deadline.current();
+		try {
+			if (deadline == null) {
+				permits.acquire();
+			} else if (!permits.tryAcquire( deadline.remainingMillis(), TimeUnit.MILLISECONDS )) {
+				throw new DeadlineExceededException( "Deadline passed while waiting for a connection to " + route.host );
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while waiting for a connection to " + route.host );
+		}
+	}
+
+	private Route getRoute (String host, int port, boolean secure) {
+		String key = (secure ? "https://" : "http://") + host + ":" + port;
+		synchronized (routes) {
+			Route route = routes.get(key);
+			if (route == null) {
+				route = new Route(host, port, secure);
+				routes.put(key, route);
+			}
+			return route;
+		}
+	}
+
+	private List<Route> getRoutes() {
+		synchronized (routes) {
+			return new ArrayList<Route>( routes.values() );
+		}
+	}
+
+	/* a reset once the request is out may come after the server applied it, only a safe method is sent twice then */
+	private static boolean canResend (HttpConnection conn, String method, IOException e) {
+		if (e instanceof HttpResponse.NoResponseException) {
+			return true;
+		}
+		return e instanceof SocketException && (!conn.isRequestWritten() || HttpConnection.isSafe(method));
+	}
+
+	/**
+	 * The connections open to a single host
+	 */
+	private class Route {
+		String host;
+		int port;
+		boolean secure;
+		Permits permits, uploadPermits;
+		LinkedList<HttpConnection> idle;
+
+		Route (String host, int port, boolean secure) {
+			this.host = host;
+			this.port = port;
+			this.secure = secure;
+			this.permits = new Permits(maxConnections);
+			this.uploadPermits = new Permits(maxConnections - reservedForQueries);
+			this.idle = new LinkedList<HttpConnection>();
+		}
+	}
+
+	/**
+	 * A fair semaphore whose number of permits can be changed while some are held
+	 */
+	private static class Permits extends Semaphore {
+		Permits (int permits) {
+			super(permits, true);
+		}
+
+		/* a reduction can leave fewer than none available, the holders give theirs back before anyone else gets one */
+		void resize (int change) {
+			if (change > 0) {
+				release(change);
+			} else if (change < 0) {
+				reducePermits(-change);
+			}
+		}
+	}
+
+	/**
+	 * Holds the pool weakly so that an abandoned pool can still be collected
+	 */
+	private static class EvictTask extends TimerTask {
+		private WeakReference<ConnectionPool> pool;
+
+		EvictTask (ConnectionPool pool) {
+			this.pool = new WeakReference<ConnectionPool>(pool);
+		}
+
+		@Override
+		public void run() {
+			ConnectionPool pool = this.pool.get();
+			if (pool == null) {
+				cancel();
+			} else {
+				pool.evictIdle();
+			}
+		}
+	}
+}
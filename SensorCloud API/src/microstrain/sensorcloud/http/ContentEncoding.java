@@ -0,0 +1,128 @@
+package microstrain.sensorcloud.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import microstrain.sensorcloud.io.BufferPool;
+import microstrain.sensorcloud.io.PooledOutputStream;
+
+/**
+ * Compression of HTTP message bodies with the gzip and deflate content codings.
+ * Response bodies are inflated as they are read so a compressed download never has to be held in memory whole.
+ */
+public class ContentEncoding {
+	/** Value of the Accept-Encoding header sent when compression is enabled */
+	public static final String ACCEPTED = "gzip, deflate";
+
+	/** Coding used for compressed request bodies */
+	public static final String GZIP = "gzip";
+
+	private ContentEncoding() {}
+
+	/**
+	 * Wraps a body in a stream that undoes its content coding.
+	 * If the coding is not supported <b>in</b> is closed before the exception is thrown.
+	 *
+	 * @param contentEncoding  value of the Content-Encoding header, may be null
+	 * @param in  body as read off the wire
+	 * @return Stream of the decoded body
+	 *
+	 * @throws IOException
+	 */
+	public static InputStream decode (String contentEncoding, InputStream in) throws IOException {
+		if (contentEncoding == null) {
+			return in;
+		}
+
+		String coding = contentEncoding.trim().toLowerCase();
+		try {
+			if (coding.length() == 0 || coding.equals("identity")) {
+				return in;
+			} else if (coding.equals("gzip") || coding.equals("x-gzip")) {
+				return new GZIPInputStream(in, 8192);
+			} else if (coding.equals("deflate")) {
+				return inflate(in);
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+
+		in.close();
+		throw new IOException( "Unsupported content encoding: " + contentEncoding );
+	}
+
+	/**
+	 * Gzips a request body into a buffer taken from <b>pool</b>.
+	 * The fastest compression level is used, the delta encoded timestamps of time-series data
+	 * compress nearly as well at it as they do at the default level.
+	 *
+	 * @param data  body to compress
+	 * @param pool  pool the working buffer is taken from
+	 * @return The compressed body
+	 *
+	 * @throws IOException
+	 */
+	public static byte [] gzip (byte [] data, BufferPool pool) throws IOException {
+		PooledOutputStream buffer = new PooledOutputStream(pool, data.length / 4 + 64);
+		GZIPOutputStream gzip = new GZIPOutputStream(buffer, 8192) {
+			{
+				def.setLevel( Deflater.BEST_SPEED );
+			}
+		};
+		try {
+			gzip.write(data);
+			gzip.finish();
+			return buffer.toByteArray();
+		} finally {
+			// ends the deflater now rather than at finalization and hands the buffer back
+			gzip.close();
+		}
+	}
+
+	/*
+	 * The deflate coding is meant to be a zlib stream, but some servers send a raw deflate stream.
+	 * A zlib header has compression method 8 in its low nibble and is a multiple of 31.
+	 */
+	private static InputStream inflate (InputStream in) throws IOException {
+		PushbackInputStream pushback = new PushbackInputStream(in, 2);
+		int cmf = pushback.read();
+		if (cmf == -1) {
+			return pushback;
+		}
+		int flg = pushback.read();
+		if (flg != -1) {
+			pushback.unread(flg);
+		}
+		pushback.unread(cmf);
+
+		boolean zlib = flg != -1 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+		return new InflaterStream( pushback, new Inflater(!zlib) );
+	}
+
+	/**
+	 * Ends its inflater on close, InflaterInputStream only does so for an inflater it created itself
+	 */
+	private static class InflaterStream extends InflaterInputStream {
+		private boolean closed = false;
+
+		InflaterStream (InputStream in, Inflater inflater) {
+			super(in, inflater, 8192);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				inf.end();
+			}
+			super.close();
+		}
+	}
+}
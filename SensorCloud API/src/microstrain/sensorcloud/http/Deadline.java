@@ -0,0 +1,104 @@
+package microstrain.sensorcloud.http;
+
+import java.util.concurrent.TimeUnit;
+
+import microstrain.sensorcloud.exception.DeadlineExceededException;
+
+/**
+ * A point in time by which every request made on the current thread has to finish.
+ * While a deadline is in effect each request's socket is closed once the deadline passes,
+ * which cuts off a stalled read or write and fails the call with a <b>DeadlineExceededException</b>.
+ * Deadlines nest, an inner deadline never extends an outer one.
+ * <pre>
+ * Deadline deadline = Deadline.start(5, TimeUnit.SECONDS);
+ * try {
+ *     channel.getTimeSeriesStream().getData();
+ * } finally {
+ *     deadline.end();
+ * }
+ * </pre>
+ * A response body streamed back is covered until it has been read or closed.
+ */
+public final class Deadline {
+	private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+	private long expiresAt;
+	private Deadline outer;
+
+	private Deadline (long expiresAt, Deadline outer) {
+		this.expiresAt = expiresAt;
+		this.outer = outer;
+	}
+
+	/**
+	 * Puts a deadline in effect on the current thread until <b>end</b> is called
+	 *
+	 * @param timeout  time from now the calls have to finish in
+	 * @param unit  unit of the timeout
+	 * @return The deadline
+	 */
+	public static Deadline start (long timeout, TimeUnit unit) {
+		long expiresAt = System.nanoTime() + unit.toNanos(timeout);
+		Deadline outer = current.get();
+		if (outer != null && outer.expiresAt - expiresAt < 0) {
+			expiresAt = outer.expiresAt;
+		}
+
+		Deadline deadline = new Deadline(expiresAt, outer);
+		current.set(deadline);
+		return deadline;
+	}
+
+	/**
+	 * @return The deadline in effect on the current thread, null if there is none
+	 */
+	public static Deadline current() {
+		return current.get();
+	}
+
+	/**
+	 * Puts this same deadline in effect on the current thread, used to carry a
+	 * deadline over to the thread that makes a call on another's behalf
+	 *
+	 * @return The deadline in effect on this thread, <b>end</b> it once the call is done
+	 */
+	public Deadline inherit() {
+		long remaining = expiresAt - System.nanoTime();
+		return start( Math.max(remaining, 0), TimeUnit.NANOSECONDS );
+	}
+
+	/**
+	 * Takes the deadline out of effect, restoring whichever one was in effect before it
+	 */
+	public void end() {
+		if (current.get() == this) {
+			current.set(outer);
+		}
+	}
+
+	/**
+	 * @return Whole milliseconds left, rounded up, zero or less once the deadline has passed
+	 */
+	public long remainingMillis() {
+		long remaining = expiresAt - System.nanoTime();
+		return remaining <= 0 ? 0 : (remaining + 999999) / 1000000;
+	}
+
+	/**
+	 * @return True once the deadline has passed
+	 */
+	public boolean isExpired() {
+		return expiresAt - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * @param action  what is about to be done, used in the exception message
+	 *
+	 * @throws DeadlineExceededException if the deadline has already passed
+	 */
+	public void check (String action) throws DeadlineExceededException {
+		if (isExpired()) {
+			throw new DeadlineExceededException( "Deadline passed before " + action );
+		}
+	}
+}
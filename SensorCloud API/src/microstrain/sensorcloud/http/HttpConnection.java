@@ -0,0 +1,522 @@
+package microstrain.sensorcloud.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.IDN;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.security.auth.x500.X500Principal;
+
+import microstrain.sensorcloud.exception.DeadlineExceededException;
+
+/**
+ * A single persistent HTTP/1.1 connection to a host.
+ * Connections are handed out by a <b>ConnectionPool</b> and returned to it once the
+ * body of the response has been consumed, so that the TCP connection and TLS session
+ * can be reused by the next request.
+ */
+public class HttpConnection {
+	/** Closes the sockets of requests whose deadline has passed */
+	private static final Timer watchdog = new Timer( "SensorCloud deadline watchdog", true );
+	private static int cancelled = 0;
+
+	/* subject alternative name types, RFC 5280 */
+	private static final int DNS_NAME = 2, IP_ADDRESS = 7;
+
+	private static final Set<String> COUNTRY_SECOND_LEVEL = new HashSet<String>( Arrays.asList(
+			"ac", "co", "com", "ed", "edu", "go", "gouv", "gov", "info", "lg", "ne", "net", "or", "org" ));
+	
+	private ConnectionPool pool;
+	private String host;
+	private int port;
+	private boolean secure;
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+	private long lastUsed;
+	private int requestCount;
+	private int readTimeout;
+	private Deadline deadline;
+	private TimerTask expiry;
+	private volatile boolean expired;
+	private boolean written;
+	private boolean forwardProxy;
+	
+	/* set by the pool while the connection holds one of the connections uploads may take */
+	boolean upload;
+
+	/**
+	 * Opens a new connection to the given host.
+	 * For secure connections the TLS handshake is performed and the server's
+	 * certificate is verified against the host name before this constructor returns.
+	 * Through an HTTP proxy a secure connection is tunnelled with CONNECT, a plain one sends its requests to the proxy.
+	 *
+	 * @param pool  pool the connection is returned to, may be null
+	 * @param host  server host name
+	 * @param port  server port
+	 * @param secure  true to use TLS
+	 * @param proxy  proxy to connect through, <b>Proxy.NO_PROXY</b> to connect directly
+	 * @param connectTimeout  milliseconds to wait for the connection to open, zero to wait forever
+	 * @param readTimeout  milliseconds to wait for data to arrive, zero to wait forever
+	 *
+	 * @throws IOException
+	 */
+	HttpConnection (ConnectionPool pool, String host, int port, boolean secure, Proxy proxy, int connectTimeout, int readTimeout) throws IOException {
+		this.pool = pool;
+		this.host = host;
+		this.port = port;
+		this.secure = secure;
+		this.readTimeout = readTimeout;
+
+		Deadline deadline = Deadline.current();
+		if (deadline != null) {
+			deadline.check( "connecting to " + host );
+			connectTimeout = (int)limit( connectTimeout, deadline.remainingMillis() );
+		}
+
+		InetSocketAddress address;
+		if (proxy.type() == Proxy.Type.HTTP) {
+			socket = new Socket();
+			address = (InetSocketAddress)proxy.address();
+			if (address.isUnresolved()) {
+				address = new InetSocketAddress( address.getHostName(), address.getPort() );
+			}
+		} else if (proxy.type() == Proxy.Type.SOCKS) {
+			// the proxy resolves the host
+			socket = new Socket(proxy);
+			address = InetSocketAddress.createUnresolved(host, port);
+		} else {
+			socket = new Socket();
+			address = new InetSocketAddress(host, port);
+		}
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			// the handshake gets the same bound as the connect
+			socket.setSoTimeout( connectTimeout > 0 ? connectTimeout : readTimeout );
+			socket.connect(address, connectTimeout);
+
+			if (proxy.type() == Proxy.Type.HTTP) {
+				if (secure) {
+					tunnel();
+				} else {
+					forwardProxy = true;
+				}
+			}
+			if (secure) {
+				SSLSocketFactory factory = (SSLSocketFactory)SSLSocketFactory.getDefault();
+				SSLSocket sslSocket = (SSLSocket)factory.createSocket(socket, host, port, true);
+				socket = sslSocket;
+				sslSocket.startHandshake();
+				verifyHostname( sslSocket.getSession(), host );
+			}
+
+			in = new BufferedInputStream( socket.getInputStream(), 8192 );
+			out = new BufferedOutputStream( socket.getOutputStream(), 8192 );
+		} catch (IOException e) {
+			close();
+			if (deadline != null && deadline.isExpired()) {
+				throw new DeadlineExceededException( "Deadline passed while connecting to " + host, e );
+			}
+			throw e;
+		}
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Writes a request to the connection and reads back the response headers.
+	 * The body of the response must be read or closed before the connection can be reused.
+	 * If a <b>Deadline</b> is in effect the socket is closed once it passes, up until the body is released.
+	 *
+	 * @param method  HTTP method, e.g. GET
+	 * @param target  request target including the query string
+	 * @param headers  additional request headers, may be null
+	 * @param body  request body, may be null
+	 * @return Response from the server
+	 *
+	 * @throws IOException
+	 */
+	public HttpResponse execute (String method, String target, Map<String, String> headers, byte [] body) throws IOException {
+		arm( Deadline.current(), method, target );
+		try {
+			return send(method, target, headers, body);
+		} catch (IOException e) {
+			IOException failure = translate(e);
+			disarm();
+			throw failure;
+		}
+	}
+	
+	private HttpResponse send (String method, String target, Map<String, String> headers, byte [] body) throws IOException {
+		String authority = port != (secure ? 443 : 80) ? host + ":" + port : host;
+		StringBuilder request = new StringBuilder(256);
+		request.append(method).append(' ');
+		if (forwardProxy) {
+			// a proxy is sent the whole URL
+			request.append("http://").append(authority);
+		}
+		request.append(target).append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(authority).append("\r\n");
+
+		if (headers != null) {
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+		}
+
+		if (body != null) {
+			request.append("Content-Length: ").append(body.length).append("\r\n");
+		} else if (!method.equals("GET") && !method.equals("DELETE")) {
+			request.append("Content-Length: 0\r\n");
+		}
+		request.append("\r\n");
+
+		written = false;
+		out.write( request.toString().getBytes("US-ASCII") );
+		if (body != null) {
+			out.write(body);
+		}
+		out.flush();
+		written = true;
+		requestCount++;
+
+		return HttpResponse.read(this, method, in);
+	}
+
+	/* asks an HTTP proxy for a tunnel to the host, the TLS handshake then runs through it */
+	private void tunnel() throws IOException {
+		String authority = host + ":" + port;
+		OutputStream out = socket.getOutputStream();
+		out.write( ("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n").getBytes("US-ASCII") );
+		out.flush();
+
+		// read unbuffered, nothing past the proxy's headers may be taken from the handshake
+		InputStream in = socket.getInputStream();
+		String statusLine = HttpResponse.readLine(in, true);
+		HttpResponse.readHeaders(in);
+		String [] status = statusLine.split(" ", 3);
+		if (status.length < 2 || status[1].length() != 3 || status[1].charAt(0) != '2') {
+			throw new IOException( "Proxy refused a tunnel to " + authority + ": " + statusLine );
+		}
+	}
+
+	/**
+	 * @return Host this connection is open to
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return Port this connection is open to
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return True if the connection is using TLS
+	 */
+	public boolean isSecure() {
+		return secure;
+	}
+
+	/**
+	 * @return Number of requests that have been sent over this connection
+	 */
+	public int getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * Once the request has gone out in full the server may have acted on it, even if no response ever comes back
+	 *
+	 * @return True if the last request was written out in full
+	 */
+	public boolean isRequestWritten() {
+		return written;
+	}
+
+	/**
+	 * @return Time in milliseconds the connection was last returned to its pool
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/* called by the response once its body has been consumed or abandoned */
+	void release (boolean reusable) {
+		disarm();
+		reusable &= !expired;
+		if (pool != null) {
+			pool.release(this, reusable);
+		} else if (!reusable) {
+			close();
+		}
+	}
+
+	void touch() {
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return True if the socket is still open
+	 */
+	public boolean isOpen() {
+		return !socket.isClosed();
+	}
+
+	/**
+	 * Closes the underlying socket
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing can be done about a socket that will not close
+		}
+	}
+
+	/**
+	 * Reports a failure caused by the deadline passing as such
+	 * 
+	 * @param e  failure reading or writing the connection
+	 * @return <b>DeadlineExceededException</b> if the deadline caused the failure, otherwise <b>e</b>
+	 */
+	IOException translate (IOException e) {
+		if (e instanceof DeadlineExceededException) {
+			return e;
+		}
+		Deadline deadline = this.deadline;
+		if (expired || (deadline != null && deadline.isExpired())) {
+			return new DeadlineExceededException( "Deadline passed during request to " + host, e );
+		}
+		return e;
+	}
+	
+	/* bounds the socket by the deadline, the read timeout covers a stall and the watchdog covers a slow trickle */
+	private void arm (Deadline deadline, String method, String target) throws IOException {
+		this.deadline = deadline;
+		if (deadline == null) {
+			socket.setSoTimeout(readTimeout);
+			return;
+		}
+		
+		deadline.check( method + " " + target );
+		long remaining = deadline.remainingMillis();
+		socket.setSoTimeout( (int)limit(readTimeout, remaining) );
+		
+		TimerTask task = new TimerTask() {
+			@Override
+			public void run() {
+				expired = true;
+				close();
+			}
+		};
+		synchronized (this) {
+			expiry = task;
+		}
+		watchdog.schedule(task, remaining);
+	}
+	
+	private void disarm() {
+		TimerTask task;
+		synchronized (this) {
+			task = expiry;
+			expiry = null;
+		}
+		deadline = null;
+		
+		if (task != null && task.cancel()) {
+			// cancelled tasks stay in the timer's queue until purged
+			synchronized (watchdog) {
+				if (++cancelled >= 1000) {
+					cancelled = 0;
+					watchdog.purge();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @param method  HTTP method
+	 * @return True if the method changes nothing on the server, so sending a request twice does no harm
+	 */
+	public static boolean isSafe (String method) {
+		return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS");
+	}
+
+	/* the smaller of a timeout where zero means none and a limit */
+	private static long limit (long timeout, long limit) {
+		limit = Math.max( Math.min(limit, Integer.MAX_VALUE), 1 );
+		return timeout > 0 ? Math.min(timeout, limit) : limit;
+	}
+	
+	/* HttpsURLConnection performs this check for us, a raw SSLSocket or SSLEngine does not, the rules are those of RFC 6125 */
+	static void verifyHostname (SSLSession session, String host) throws SSLException {
+		Certificate [] certs = session.getPeerCertificates();
+		if (certs.length == 0 || !(certs[0] instanceof X509Certificate)) {
+			throw new SSLPeerUnverifiedException( "No X509 certificate presented by " + host );
+		}
+		X509Certificate cert = (X509Certificate)certs[0];
+
+		if (host.startsWith("[") && host.endsWith("]")) {
+			host = host.substring(1, host.length() - 1);
+		}
+		if (host.endsWith(".")) {
+			host = host.substring(0, host.length() - 1);
+		}
+		// an address is only ever checked against the address entries, never a name
+		boolean address = isAddress(host);
+		if (!address) {
+			// certificates hold internationalized names in their ASCII form
+			try {
+				host = IDN.toASCII(host);
+			} catch (IllegalArgumentException e) {
+				throw new SSLPeerUnverifiedException( "Host " + host + " is not a valid domain name" );
+			}
+		}
+
+		boolean hasDnsNames = false;
+		try {
+			Collection<List<?>> altNames = cert.getSubjectAlternativeNames();
+			if (altNames != null) {
+				for (List<?> altName : altNames) {
+					int type = ((Integer)altName.get(0)).intValue();
+					if (type == DNS_NAME) {
+						hasDnsNames = true;
+						if (!address && matches( (String)altName.get(1), host )) {
+							return;
+						}
+					} else if (type == IP_ADDRESS) {
+						if (address && sameAddress( (String)altName.get(1), host )) {
+							return;
+						}
+					}
+				}
+			}
+		} catch (CertificateParsingException e) {
+			throw new SSLPeerUnverifiedException( "Unable to parse certificate for " + host );
+		}
+
+		// only fall back to the most specific common name if there are no dns names
+		if (!hasDnsNames && !address) {
+			String commonName = commonName(cert, host);
+			if (commonName != null && matches(commonName, host)) {
+				return;
+			}
+		}
+
+		throw new SSLPeerUnverifiedException( "Certificate does not match host " + host );
+	}
+
+	/* the last CN in the subject, parsed properly so an escaped comma cannot smuggle one in */
+	private static String commonName (X509Certificate cert, String host) throws SSLPeerUnverifiedException {
+		List<Rdn> rdns;
+		try {
+			rdns = new LdapName( cert.getSubjectX500Principal().getName(X500Principal.RFC2253) ).getRdns();
+		} catch (InvalidNameException e) {
+			throw new SSLPeerUnverifiedException( "Unable to parse certificate subject for " + host );
+		}
+
+		// the list runs from the least specific name to the most
+		for (int i = rdns.size() - 1; i >= 0; i--) {
+			Attribute cn = rdns.get(i).toAttributes().get("CN");
+			if (cn != null) {
+				try {
+					Object value = cn.get();
+					return value instanceof String ? (String)value : null;
+				} catch (NamingException e) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static boolean matches (String pattern, String host) {
+		pattern = pattern.toLowerCase();
+		host = host.toLowerCase();
+		if (pattern.endsWith(".")) {
+			pattern = pattern.substring(0, pattern.length() - 1);
+		}
+
+		if (pattern.startsWith("*.")) {
+			String domain = pattern.substring(2);
+			if (!isWildcardDomain(domain)) {
+				return false;
+			}
+			// a wildcard only covers a single label
+			int dot = host.indexOf('.');
+			return dot > 0 && host.substring(dot + 1).equals(domain);
+		}
+		// partial wildcards such as f*.example.com are not honoured
+		return pattern.indexOf('*') < 0 && pattern.equals(host);
+	}
+
+	/* a wildcard may not stand in for the registrable part of a name, as in *.com or *.co.uk */
+	private static boolean isWildcardDomain (String domain) {
+		if (domain.indexOf('*') >= 0) {
+			return false;
+		}
+		String [] labels = domain.split("\\.");
+		if (labels.length < 2) {
+			return false;
+		}
+		for (String label : labels) {
+			if (label.length() == 0) {
+				return false;
+			}
+		}
+		if (labels.length == 2 && labels[1].length() == 2) {
+			// without a public suffix list, the usual second level registries under country codes
+			return !COUNTRY_SECOND_LEVEL.contains( labels[0] );
+		}
+		return true;
+	}
+
+	/* a literal IPv4 or IPv6 address rather than a name */
+	private static boolean isAddress (String host) {
+		return host.indexOf(':') >= 0 || host.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+	}
+
+	private static boolean sameAddress (String certAddress, String host) {
+		if (!isAddress(certAddress)) {
+			return false;
+		}
+		try {
+			// literals are parsed, no lookup is made
+			return InetAddress.getByName(certAddress).equals( InetAddress.getByName(host) );
+		} catch (UnknownHostException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,455 @@
+package microstrain.sensorcloud.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The status, headers and body of a response read from an <b>HttpConnection</b>.
+ * The body must be read to the end or closed, at which point the connection is
+ * handed back to its pool for reuse.
+ */
+public class HttpResponse {
+	/** Largest remaining body that will be drained on close rather than dropping the connection */
+	private static final int MAX_DRAIN = 64 * 1024;
+
+	private HttpConnection conn;
+	private int statusCode;
+	private String message;
+	private Map<String, String> headers;
+	private BodyStream body;
+
+	private HttpResponse (HttpConnection conn, int statusCode, String message, Map<String, String> headers) {
+		this.conn = conn;
+		this.statusCode = statusCode;
+		this.message = message;
+		this.headers = headers;
+	}
+
+	/**
+	 * @return HTTP status code
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return Reason phrase from the status line
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @param name  header name, case insensitive
+	 * @return Value of the header or null if it was not sent
+	 */
+	public String getHeader (String name) {
+		return headers.get( name.toLowerCase() );
+	}
+
+	/**
+	 * @return Length of the body from the Content-Length header, -1 if it is not known up front
+	 */
+	public long getContentLength() {
+		String length = getHeader("Content-Length");
+		String transferEncoding = getHeader("Transfer-Encoding");
+		if (length == null || transferEncoding != null) {
+			return -1;
+		}
+		try {
+			return Math.max( Long.parseLong( length.trim() ), -1 );
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The stream returned releases the connection when it reaches the end of the body or is closed.
+	 *
+	 * @return Body of the response
+	 */
+	public InputStream getBody() {
+		return body;
+	}
+
+	/**
+	 * Discards whatever is left of the body and releases the connection
+	 */
+	public void close() {
+		try {
+			body.close();
+		} catch (IOException e) {
+			// the connection has already been dropped
+		}
+	}
+
+	/**
+	 * Reads the whole body as a string, used for error messages
+	 *
+	 * @return Body of the response
+	 *
+	 * @throws IOException
+	 */
+	public String readString() throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte [] buf = new byte [1024];
+		int read;
+
+		try {
+			while ((read = body.read(buf, 0, buf.length)) != -1) {
+				buffer.write(buf, 0, read);
+			}
+		} finally {
+			body.close();
+		}
+		return buffer.toString("UTF-8");
+	}
+
+	/**
+	 * Parses the status line and headers of a response
+	 *
+	 * @param conn  connection the response is read from
+	 * @param method  method of the request, a HEAD response never has a body
+	 * @param in  input stream of the connection
+	 * @return The response
+	 *
+	 * @throws IOException
+	 */
+	static HttpResponse read (HttpConnection conn, String method, InputStream in) throws IOException {
+		String statusLine = readLine(in, true);
+		String [] status;
+		int code;
+
+		// skip any informational responses
+		while (true) {
+			status = statusLine.split(" ", 3);
+			if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+				throw new IOException( "Malformed status line: " + statusLine );
+			}
+			try {
+				code = Integer.parseInt( status[1] );
+			} catch (NumberFormatException e) {
+				throw new IOException( "Malformed status line: " + statusLine );
+			}
+
+			Map<String, String> headers = readHeaders(in);
+			if (code >= 200) {
+				HttpResponse response = new HttpResponse(conn, code, status.length > 2 ? status[2] : "", headers);
+				response.body = response.new BodyStream( response.openBody(method, status[0], in) );
+				return response;
+			}
+			statusLine = readLine(in, false);
+		}
+	}
+
+	/**
+	 * Wraps a response whose body has already been read in full, as an <b>NioTransport</b> reads them.
+	 * There is no connection behind it, closing it only discards the body.
+	 *
+	 * @param statusCode  HTTP status code
+	 * @param message  reason phrase from the status line
+	 * @param headers  response headers keyed by lower case name
+	 * @param body  array holding the body
+	 * @param length  number of bytes of the array that belong to the body
+	 * @return The response
+	 */
+	static HttpResponse buffered (int statusCode, String message, Map<String, String> headers, byte [] body, int length) {
+		HttpResponse response = new HttpResponse(null, statusCode, message, headers);
+		response.body = response.new BodyStream( new ByteArrayInputStream(body, 0, length) );
+		return response;
+	}
+
+	private InputStream openBody (String method, String version, InputStream in) {
+		String connection = getHeader("Connection");
+		boolean keepAlive = version.equals("HTTP/1.1")
+				? !"close".equalsIgnoreCase(connection)
+				: "keep-alive".equalsIgnoreCase(connection);
+
+		if (method.equals("HEAD") || statusCode == 204 || statusCode == 304) {
+			return new FixedLengthInputStream(in, 0, keepAlive);
+		}
+
+		String transferEncoding = getHeader("Transfer-Encoding");
+		if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+			return new ChunkedInputStream(in, keepAlive);
+		}
+
+		long length = getContentLength();
+		if (length >= 0) {
+			return new FixedLengthInputStream(in, length, keepAlive);
+		}
+		// a missing, malformed or negative length, read until the server closes the connection
+		return new FixedLengthInputStream(in, -1, false);
+	}
+
+	static Map<String, String> readHeaders (InputStream in) throws IOException {
+		Map<String, String> headers = new HashMap<String, String>();
+		String line;
+		while ((line = readLine(in, false)).length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				String name = line.substring(0, colon).trim().toLowerCase();
+				String value = line.substring(colon + 1).trim();
+				String prev = headers.get(name);
+				headers.put( name, prev == null ? value : prev + ", " + value );
+			}
+		}
+		return headers;
+	}
+
+	/* reads a single CRLF terminated line */
+	static String readLine (InputStream in, boolean first) throws IOException {
+		StringBuilder line = new StringBuilder(64);
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int len = line.length();
+				if (len > 0 && line.charAt(len - 1) == '\r') {
+					line.setLength(len - 1);
+				}
+				return line.toString();
+			}
+			line.append((char)c);
+		}
+
+		if (first && line.length() == 0) {
+			// the server closed the connection before sending anything back
+			throw new NoResponseException();
+		}
+		throw new EOFException( "Connection closed mid response" );
+	}
+
+	/**
+	 * Thrown when the server closes a connection without sending any part of a response.
+	 * This is how an idle keep-alive connection that the server has dropped shows up.
+	 */
+	@SuppressWarnings("serial")
+	static class NoResponseException extends IOException {
+		NoResponseException() {
+			super( "Server closed the connection without a response" );
+		}
+	}
+
+	/**
+	 * Body stream that hands the connection back once the body is consumed, if there is one
+	 */
+	private class BodyStream extends InputStream {
+		private InputStream decoder;
+		private boolean released = false;
+
+		BodyStream (InputStream decoder) {
+			this.decoder = decoder;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (released) {
+				return -1;
+			}
+			int b;
+			try {
+				b = decoder.read();
+			} catch (IOException e) {
+				IOException failure = conn != null ? conn.translate(e) : e;
+				release(false);
+				throw failure;
+			}
+			if (b == -1) {
+				release(true);
+			}
+			return b;
+		}
+
+		@Override
+		public int read (byte [] b, int off, int len) throws IOException {
+			if (released) {
+				return -1;
+			}
+			int read;
+			try {
+				read = decoder.read(b, off, len);
+			} catch (IOException e) {
+				IOException failure = conn != null ? conn.translate(e) : e;
+				release(false);
+				throw failure;
+			}
+			if (read == -1) {
+				release(true);
+			}
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return released ? 0 : decoder.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (released) {
+				return;
+			}
+
+			// drain a small remainder so the connection can be reused
+			byte [] buf = new byte [1024];
+			int drained = 0;
+			try {
+				int read;
+				while (drained < MAX_DRAIN && (read = decoder.read(buf, 0, buf.length)) != -1) {
+					drained += read;
+				}
+				release( drained < MAX_DRAIN );
+			} catch (IOException e) {
+				release(false);
+			}
+		}
+
+		private void release (boolean complete) {
+			if (released) {
+				return;
+			}
+			released = true;
+
+			boolean reusable = complete;
+			if (decoder instanceof FixedLengthInputStream) {
+				reusable &= ((FixedLengthInputStream)decoder).keepAlive;
+			} else if (decoder instanceof ChunkedInputStream) {
+				reusable &= ((ChunkedInputStream)decoder).keepAlive;
+			}
+			if (conn != null) {
+				conn.release(reusable);
+			}
+		}
+	}
+
+	/**
+	 * Reads a body with a known length, or until the connection closes if the length is negative
+	 */
+	private static class FixedLengthInputStream extends InputStream {
+		private InputStream in;
+		private long remaining;
+		private boolean keepAlive;
+
+		FixedLengthInputStream (InputStream in, long length, boolean keepAlive) {
+			this.in = in;
+			this.remaining = length;
+			this.keepAlive = keepAlive;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b == -1) {
+				if (remaining > 0) {
+					throw new EOFException( "Connection closed with " + remaining + " bytes of the body remaining" );
+				}
+				return -1;
+			}
+			if (remaining > 0) {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read (byte [] b, int off, int len) throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			if (remaining > 0 && len > remaining) {
+				len = (int)remaining;
+			}
+			int read = in.read(b, off, len);
+			if (read == -1) {
+				if (remaining > 0) {
+					throw new EOFException( "Connection closed with " + remaining + " bytes of the body remaining" );
+				}
+				return -1;
+			}
+			if (remaining > 0) {
+				remaining -= read;
+			}
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			int available = in.available();
+			return remaining >= 0 && available > remaining ? (int)remaining : available;
+		}
+	}
+
+	/**
+	 * Decodes a chunked transfer encoded body
+	 */
+	private static class ChunkedInputStream extends InputStream {
+		private InputStream in;
+		private long chunkRemaining = 0;
+		private boolean eof = false;
+		private boolean keepAlive;
+		private byte [] single = new byte [1];
+
+		ChunkedInputStream (InputStream in, boolean keepAlive) {
+			this.in = in;
+			this.keepAlive = keepAlive;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read (byte [] b, int off, int len) throws IOException {
+			if (eof) {
+				return -1;
+			}
+
+			if (chunkRemaining == 0) {
+				String line = readLine(in, false);
+				int semi = line.indexOf(';');
+				if (semi >= 0) {
+					line = line.substring(0, semi);
+				}
+				try {
+					chunkRemaining = Long.parseLong( line.trim(), 16 );
+				} catch (NumberFormatException e) {
+					throw new IOException( "Malformed chunk size: " + line );
+				}
+				if (chunkRemaining < 0) {
+					throw new IOException( "Malformed chunk size: " + line );
+				}
+
+				if (chunkRemaining == 0) {
+					// skip any trailers
+					readHeaders(in);
+					eof = true;
+					return -1;
+				}
+			}
+
+			int read = in.read(b, off, (int)Math.min(len, chunkRemaining));
+			if (read == -1) {
+				throw new EOFException( "Connection closed mid chunk" );
+			}
+			chunkRemaining -= read;
+			if (chunkRemaining == 0) {
+				readLine(in, false); // CRLF after the chunk data
+			}
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return eof ? 0 : (int)Math.min( in.available(), chunkRemaining );
+		}
+	}
+}
@@ -0,0 +1,443 @@
+package microstrain.sensorcloud.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import microstrain.sensorcloud.exception.DeadlineExceededException;
+
+/**
+ * A single non-blocking HTTP/1.1 connection driven by one of the event loops of an <b>NioTransport</b>.
+ * The request is gathered straight from the buffers holding its head and body, the response is parsed
+ * as it arrives. A secure connection runs the same way through an <b>SSLEngine</b>, with the handshake
+ * done a step at a time as the socket becomes ready. Every method is only ever called on the loop's thread.
+ */
+final class NioConnection {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	static final int CONNECTING = 0, HANDSHAKING = 1, IDLE = 2, WRITING = 3, READING = 4, CLOSED = 5;
+
+	final NioTransport.EventLoop loop;
+	final NioTransport.Route route;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private SSLEngine engine;
+	private ByteBuffer netIn, netOut, appIn;
+	private ByteBuffer [] out;
+	private ResponseParser parser;
+
+	private int state;
+	private NioTransport.Exchange exchange;
+	private long lastActivity;
+	private long connectBy;
+	private int requestCount;
+
+	/**
+	 * @param loop  event loop the connection is driven by
+	 * @param route  host the connection is open to
+	 * @param channel  channel that has started connecting
+	 * @param engine  engine in client mode for a secure connection, null for plain HTTP
+	 * @param exchange  request the connection is being opened for
+	 * @param connectTimeout  milliseconds the connection and handshake may take, zero to wait forever
+	 */
+	NioConnection (NioTransport.EventLoop loop, NioTransport.Route route, SocketChannel channel, SSLEngine engine, NioTransport.Exchange exchange, int connectTimeout) {
+		this.loop = loop;
+		this.route = route;
+		this.channel = channel;
+		this.engine = engine;
+		this.exchange = exchange;
+		this.parser = new ResponseParser();
+		this.state = CONNECTING;
+		this.lastActivity = System.currentTimeMillis();
+		this.connectBy = connectTimeout > 0 ? lastActivity + connectTimeout : Long.MAX_VALUE;
+
+		if (engine != null) {
+			netIn = ByteBuffer.allocate( engine.getSession().getPacketBufferSize() );
+			netOut = ByteBuffer.allocate( engine.getSession().getPacketBufferSize() );
+			appIn = ByteBuffer.allocate( engine.getSession().getApplicationBufferSize() );
+		} else {
+			appIn = ByteBuffer.allocate(16384);
+		}
+	}
+
+	void setKey (SelectionKey key) {
+		this.key = key;
+	}
+
+	int getState() {
+		return state;
+	}
+
+	int getRequestCount() {
+		return requestCount;
+	}
+
+	long getLastActivity() {
+		return lastActivity;
+	}
+
+	NioTransport.Exchange getExchange() {
+		return exchange;
+	}
+
+	/**
+	 * @return True if the request in flight has had any part of its response back
+	 */
+	boolean hasReceived() {
+		return parser.hasReceived();
+	}
+
+	/**
+	 * Sends a request over the connection, which must be idle
+	 *
+	 * @param exchange  request to send
+	 *
+	 * @throws IOException
+	 */
+	void start (NioTransport.Exchange exchange) throws IOException {
+		this.exchange = exchange;
+		parser.reset(exchange.method);
+		out = exchange.buffers();
+		requestCount++;
+		state = WRITING;
+		lastActivity = System.currentTimeMillis();
+		write();
+	}
+
+	/**
+	 * Handles the socket becoming ready
+	 *
+	 * @param ready  operations the socket is ready for
+	 *
+	 * @throws IOException if the connection failed, the caller closes it
+	 */
+	void handle (int ready) throws IOException {
+		switch (state) {
+		case CONNECTING:
+			if ((ready & SelectionKey.OP_CONNECT) != 0 && channel.finishConnect()) {
+				connected();
+			}
+			break;
+		case HANDSHAKING:
+			if (handshake()) {
+				start(exchange);
+			}
+			break;
+		default:
+			if ((ready & SelectionKey.OP_WRITE) != 0 && state == WRITING) {
+				write();
+			}
+			if ((ready & SelectionKey.OP_READ) != 0 && state != CLOSED) {
+				read();
+			}
+		}
+	}
+
+	/**
+	 * Fails the request in flight if it has run out of time
+	 *
+	 * @param now  current time in milliseconds
+	 * @param readTimeout  milliseconds the server may go quiet for, zero to wait forever
+	 * @return The failure to report, null if there is still time
+	 */
+	IOException checkTimeout (long now, int readTimeout) {
+		switch (state) {
+		case CONNECTING:
+		case HANDSHAKING:
+			if (exchange.isExpired()) {
+				return new DeadlineExceededException( "Deadline passed while connecting to " + route.host );
+			}
+			if (now >= connectBy) {
+				return new SocketTimeoutException( "Timed out connecting to " + route.host );
+			}
+			return null;
+		case WRITING:
+		case READING:
+			if (exchange.isExpired()) {
+				return new DeadlineExceededException( "Deadline passed during request to " + route.host );
+			}
+			if (readTimeout > 0 && now - lastActivity >= readTimeout) {
+				return new SocketTimeoutException( "Read timed out waiting for " + route.host );
+			}
+			return null;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Closes the socket, the exchange in flight is left for the caller to fail
+	 */
+	void close() {
+		if (state == CLOSED) {
+			return;
+		}
+		state = CLOSED;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing can be done about a socket that will not close
+		}
+		if (engine != null) {
+			engine.closeOutbound();
+		}
+	}
+
+	private void connected() throws IOException {
+		lastActivity = System.currentTimeMillis();
+		if (engine == null) {
+			start(exchange);
+			return;
+		}
+		state = HANDSHAKING;
+		engine.beginHandshake();
+		if (handshake()) {
+			start(exchange);
+		}
+	}
+
+	/* takes the handshake as far as it can go without blocking, true once it is done */
+	private boolean handshake() throws IOException {
+		while (true) {
+			SSLEngineResult result;
+			switch (engine.getHandshakeStatus()) {
+			case NEED_TASK:
+				runTasks();
+				break;
+			case NEED_WRAP:
+				result = engine.wrap(EMPTY, netOut);
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new SSLException( "Connection to " + route.host + " closed during the handshake" );
+				}
+				if (!flush()) {
+					interest(SelectionKey.OP_WRITE);
+					return false;
+				}
+				break;
+			case FINISHED:
+			case NOT_HANDSHAKING:
+				if (!flush()) {
+					interest(SelectionKey.OP_WRITE);
+					return false;
+				}
+				HttpConnection.verifyHostname( engine.getSession(), route.host );
+				return true;
+			default:
+				// waiting on the server, including any status newer than this code
+				netIn.flip();
+				try {
+					result = engine.unwrap(netIn, appIn);
+				} finally {
+					netIn.compact();
+				}
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new SSLException( "Connection to " + route.host + " closed during the handshake" );
+				}
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW || (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+						&& result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP)) {
+					int read = channel.read(netIn);
+					if (read < 0) {
+						throw new EOFException( "Connection to " + route.host + " closed during the handshake" );
+					}
+					if (read == 0) {
+						interest(SelectionKey.OP_READ);
+						return false;
+					}
+					lastActivity = System.currentTimeMillis();
+				}
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	/* writes as much of the request as the socket takes, then waits for the response */
+	private void write() throws IOException {
+		if (engine == null) {
+			long written = channel.write(out);
+			if (written > 0) {
+				lastActivity = System.currentTimeMillis();
+			}
+			if (remaining(out)) {
+				interest(SelectionKey.OP_WRITE);
+				return;
+			}
+		} else {
+			while (remaining(out)) {
+				SSLEngineResult result = engine.wrap(out, netOut);
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new SSLException( "Connection to " + route.host + " closed" );
+				}
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !flush()) {
+					interest(SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			if (!flush()) {
+				interest(SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		out = null;
+		state = READING;
+		interest(SelectionKey.OP_READ);
+	}
+
+	/* reads whatever has arrived and feeds it to the parser */
+	private void read() throws IOException {
+		while (state != CLOSED) {
+			int read = channel.read( engine == null ? appIn : netIn );
+			if (read < 0) {
+				end();
+				return;
+			}
+			if (read > 0) {
+				lastActivity = System.currentTimeMillis();
+			}
+			if (engine == null ? deliver() : unwrap()) {
+				return;
+			}
+			if (read == 0) {
+				return;
+			}
+		}
+	}
+
+	/* decrypts what has arrived, true once the response is complete or the connection has ended */
+	private boolean unwrap() throws IOException {
+		while (true) {
+			SSLEngineResult result;
+			netIn.flip();
+			try {
+				result = engine.unwrap(netIn, appIn);
+			} finally {
+				netIn.compact();
+			}
+
+			switch (result.getStatus()) {
+			case CLOSED:
+				// the server sent close_notify
+				end();
+				return true;
+			case BUFFER_OVERFLOW:
+				if (appIn.position() == 0) {
+					ByteBuffer grown = ByteBuffer.allocate( engine.getSession().getApplicationBufferSize() + appIn.capacity() );
+					appIn = grown;
+				} else if (deliver()) {
+					return true;
+				}
+				continue;
+			default:
+			}
+
+			// anything after the handshake, such as a key update, is dealt with as it comes
+			SSLEngineResult.HandshakeStatus handshake = result.getHandshakeStatus();
+			if (handshake == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				runTasks();
+			} else if (handshake == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+				engine.wrap(EMPTY, netOut);
+				flush();
+			}
+
+			if (result.bytesProduced() > 0 && deliver()) {
+				return true;
+			}
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+					|| (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+				return false;
+			}
+		}
+	}
+
+	/* feeds the decrypted bytes to the parser, true once the response is complete */
+	private boolean deliver() throws IOException {
+		boolean complete, leftover;
+		appIn.flip();
+		try {
+			if (state != READING) {
+				if (appIn.hasRemaining()) {
+					throw new IOException( "Unexpected data from " + route.host );
+				}
+				return false;
+			}
+			complete = parser.feed(appIn);
+			leftover = appIn.hasRemaining();
+		} finally {
+			appIn.compact();
+		}
+		if (complete) {
+			// anything past the response means the connection can no longer be trusted
+			complete( parser.isKeepAlive() && !leftover );
+		}
+		return complete;
+	}
+
+	/* the server closed the connection */
+	private void end() throws IOException {
+		if (state == READING && parser.finish()) {
+			complete(false);
+			return;
+		}
+		if (state == IDLE) {
+			loop.closed(this);
+			return;
+		}
+		if (state == READING) {
+			parser.finish(); // throws the reason the response is incomplete
+		}
+		throw new EOFException( "Connection to " + route.host + " closed" );
+	}
+
+	private void complete (boolean reusable) {
+		NioTransport.Exchange done = exchange;
+		exchange = null;
+		state = IDLE;
+		lastActivity = System.currentTimeMillis();
+		HttpResponse response = parser.toResponse();
+		interest(SelectionKey.OP_READ); // an idle connection only listens for the server closing it
+		loop.completed(this, done, response, reusable);
+	}
+
+	/* writes out encrypted bytes, true once none are left waiting */
+	private boolean flush() throws IOException {
+		netOut.flip();
+		try {
+			if (netOut.hasRemaining() && channel.write(netOut) > 0) {
+				lastActivity = System.currentTimeMillis();
+			}
+			return !netOut.hasRemaining();
+		} finally {
+			netOut.compact();
+		}
+	}
+
+	private void interest (int ops) {
+		if (key != null && key.isValid() && key.interestOps() != ops) {
+			key.interestOps(ops);
+		}
+	}
+
+	private static boolean remaining (ByteBuffer [] buffers) {
+		for (ByteBuffer buffer : buffers) {
+			if (buffer.hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,833 @@
+package microstrain.sensorcloud.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import microstrain.sensorcloud.exception.DeadlineExceededException;
+
+/**
+ * Sends HTTP/1.1 requests over non-blocking sockets driven by a small, fixed number of event loop threads,
+ * so that thousands of requests can be in flight without a thread waiting on each one.
+ * Like a <b>ConnectionPool</b> it keeps persistent connections to each host, up to a limit, and queues
+ * requests when they are all busy. Secure connections use TLS through an <b>SSLEngine</b> and check the
+ * server's certificate against the host name as <b>HttpConnection</b> does.
+ * <p>
+ * Requests are made either asynchronously, with a <b>ResponseHandler</b> told the outcome on a loop thread,
+ * or blocking. Each response is read in full before it is handed over. A <b>Deadline</b> in effect when a
+ * request is made bounds it, including any time it spends queued.
+ * Unlike a <b>ConnectionPool</b> it always connects directly, any proxy settings are ignored.
+ */
+public class NioTransport {
+	/** Default number of event loop threads */
+	public static final int DEFAULT_THREADS = 2;
+
+	/** Default number of connections kept to a single host */
+	public static final int DEFAULT_MAX_CONNECTIONS = 16;
+
+	/* how often the loops look for requests that have run out of time and connections that sat idle too long */
+	private static final long SWEEP_INTERVAL = 50;
+
+	private EventLoop [] loops;
+	private AtomicInteger nextLoop;
+	private int maxConnections;
+	private volatile int connectTimeout = ConnectionPool.DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = ConnectionPool.DEFAULT_READ_TIMEOUT;
+	private volatile long idleTimeout = ConnectionPool.DEFAULT_IDLE_TIMEOUT;
+	private volatile SSLContext sslContext;
+	private ConcurrentMap<String, Route> routes;
+	private AtomicLong opened, requests;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a transport using the default number of threads and connections
+	 *
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public NioTransport() throws IOException {
+		this(DEFAULT_THREADS, DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * @param threads  number of event loop threads
+	 * @param maxConnections  most connections open to a single host
+	 *
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public NioTransport (int threads, int maxConnections) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException( "At least one event loop thread is required" );
+		}
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException( "At least one connection per host is required" );
+		}
+		this.maxConnections = maxConnections;
+		this.nextLoop = new AtomicInteger();
+		this.routes = new ConcurrentHashMap<String, Route>();
+		this.opened = new AtomicLong();
+		this.requests = new AtomicLong();
+
+		loops = new EventLoop [threads];
+		try {
+			for (int i = 0; i < threads; i++) {
+				loops[i] = new EventLoop( "SensorCloud NIO " + (i + 1), i == 0 );
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		for (EventLoop loop : loops) {
+			loop.thread.start();
+		}
+	}
+
+	/**
+	 * Sends a request without waiting for the response.
+	 * The handler is called on one of the transport's threads and must not block.
+	 *
+	 * @param host  server host name
+	 * @param port  server port
+	 * @param secure  true to use TLS
+	 * @param method  HTTP method
+	 * @param target  request target including the query string
+	 * @param headers  additional request headers, may be null
+	 * @param body  request body, may be null
+	 * @param handler  told the response or the failure, exactly once
+	 */
+	public void execute (String host, int port, boolean secure, String method, String target, Map<String, String> headers, byte [] body, ResponseHandler handler) {
+		submit( newExchange(host, port, secure, method, target, headers, body, handler) );
+	}
+
+	/**
+	 * Sends a request and waits for the response
+	 *
+	 * @param host  server host name
+	 * @param port  server port
+	 * @param secure  true to use TLS
+	 * @param method  HTTP method
+	 * @param target  request target including the query string
+	 * @param headers  additional request headers, may be null
+	 * @param body  request body, may be null
+	 * @return Response from the server, read in full
+	 *
+	 * @throws IOException
+	 */
+	public HttpResponse execute (String host, int port, boolean secure, String method, String target, Map<String, String> headers, byte [] body) throws IOException {
+		BlockingHandler handler = new BlockingHandler();
+		Exchange exchange = newExchange(host, port, secure, method, target, headers, body, handler);
+		submit(exchange);
+		try {
+			return handler.await();
+		} catch (InterruptedException e) {
+			exchange.cancelled = true;
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted during " + method + " request to " + host );
+		}
+	}
+
+	/**
+	 * Sets the context secure connections are made with, for example to trust a private certificate authority
+	 *
+	 * @param sslContext  context to create engines from, null for the default context
+	 */
+	public void setSSLContext (SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * @param connectTimeout  milliseconds to wait for a connection and its handshake, zero to wait forever
+	 */
+	public void setConnectTimeout (int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @return Milliseconds to wait for a connection and its handshake
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * @param readTimeout  milliseconds the server may go quiet for during a request, zero to wait forever
+	 */
+	public void setReadTimeout (int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * @return Milliseconds the server may go quiet for during a request
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * @param idleTimeout  milliseconds an unused connection is kept open
+	 */
+	public void setIdleTimeout (long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return Milliseconds an unused connection is kept open
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @return Most connections open to a single host
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @return Number of event loop threads
+	 */
+	public int getThreadCount() {
+		return loops.length;
+	}
+
+	/**
+	 * @return Number of connections opened since the transport was created
+	 */
+	public long getConnectionsOpened() {
+		return opened.get();
+	}
+
+	/**
+	 * @return Number of requests sent since the transport was created
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return Number of connections currently open, busy or idle
+	 */
+	public int getOpenCount() {
+		int open = 0;
+		for (Route route : routes.values()) {
+			synchronized (route) {
+				open += route.open;
+			}
+		}
+		return open;
+	}
+
+	/**
+	 * Closes every connection and stops the event loops, requests still in flight or queued fail
+	 */
+	public void close() {
+		closed = true;
+		for (EventLoop loop : loops) {
+			if (loop != null) {
+				loop.selector.wakeup();
+			}
+		}
+	}
+
+	private Exchange newExchange (String host, int port, boolean secure, String method, String target, Map<String, String> headers, byte [] body, ResponseHandler handler) {
+		StringBuilder request = new StringBuilder(256);
+		request.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(host);
+		if (port != (secure ? 443 : 80)) {
+			request.append(':').append(port);
+		}
+		request.append("\r\n");
+
+		if (headers != null) {
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+		}
+
+		if (body != null) {
+			request.append("Content-Length: ").append(body.length).append("\r\n");
+		} else if (!method.equals("GET") && !method.equals("DELETE")) {
+			request.append("Content-Length: 0\r\n");
+		}
+		request.append("\r\n");
+
+		// the head is plain ASCII, copied across without going through a charset encoder
+		byte [] head = new byte [request.length()];
+		for (int i = 0; i < head.length; i++) {
+			head[i] = (byte)request.charAt(i);
+		}
+
+		Deadline deadline = Deadline.current();
+		long expiresAt = deadline != null ? System.currentTimeMillis() + deadline.remainingMillis() : 0;
+		return new Exchange( getRoute(host, port, secure), method, head, body, handler, expiresAt );
+	}
+
+	private void submit (Exchange exchange) {
+		if (closed) {
+			exchange.fail( new IOException( "Transport has been closed" ) );
+			return;
+		}
+		if (exchange.isExpired()) {
+			exchange.fail( new DeadlineExceededException( "Deadline passed before " + exchange.method + " request to " + exchange.route.host ) );
+			return;
+		}
+		requests.incrementAndGet();
+		exchange.route.submit(exchange);
+	}
+
+	/* sends a request again after the connection it went out on was found to be dead */
+	private void resubmit (Exchange exchange) {
+		if (closed) {
+			exchange.fail( new IOException( "Transport has been closed" ) );
+			return;
+		}
+		exchange.route.submit(exchange);
+	}
+
+	private Route getRoute (String host, int port, boolean secure) {
+		String key = (secure ? "https://" : "http://") + host + ":" + port;
+		Route route = routes.get(key);
+		if (route == null) {
+			Route created = new Route(host, port, secure);
+			route = routes.putIfAbsent(key, created);
+			if (route == null) {
+				route = created;
+			}
+		}
+		return route;
+	}
+
+	private EventLoop nextLoop() {
+		return loops[ (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length ];
+	}
+
+	private SSLEngine createEngine (String host, int port) throws IOException {
+		SSLContext context = sslContext;
+		if (context == null) {
+			try {
+				context = SSLContext.getDefault();
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException( "TLS is not available: " + e.getMessage() );
+			}
+		}
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		return engine;
+	}
+
+	/**
+	 * A request along with where its response goes
+	 */
+	static final class Exchange {
+		final Route route;
+		final String method;
+		final byte [] head, body;
+		final long expiresAt;
+		private ResponseHandler handler;
+		volatile boolean cancelled;
+		boolean retried;
+
+		Exchange (Route route, String method, byte [] head, byte [] body, ResponseHandler handler, long expiresAt) {
+			this.route = route;
+			this.method = method;
+			this.head = head;
+			this.body = body;
+			this.handler = handler;
+			this.expiresAt = expiresAt;
+		}
+
+		/* fresh buffers over the request each time it is sent, in case it has to be sent again */
+		ByteBuffer [] buffers() {
+			if (body == null) {
+				return new ByteBuffer [] { ByteBuffer.wrap(head) };
+			}
+			return new ByteBuffer [] { ByteBuffer.wrap(head), ByteBuffer.wrap(body) };
+		}
+
+		boolean isExpired() {
+			return expiresAt != 0 && System.currentTimeMillis() >= expiresAt;
+		}
+
+		void complete (HttpResponse response) {
+			ResponseHandler handler = take();
+			if (handler != null && !cancelled) {
+				try {
+					handler.completed(response);
+				} catch (RuntimeException e) {
+					// a handler that throws must not take the event loop down with it
+				}
+			}
+		}
+
+		void fail (IOException e) {
+			ResponseHandler handler = take();
+			if (handler != null && !cancelled) {
+				try {
+					handler.failed(e);
+				} catch (RuntimeException e2) {
+					// a handler that throws must not take the event loop down with it
+				}
+			}
+		}
+
+		/* the handler is only ever told once */
+		private synchronized ResponseHandler take() {
+			ResponseHandler handler = this.handler;
+			this.handler = null;
+			return handler;
+		}
+	}
+
+	/**
+	 * The connections open to a single host and the requests waiting for one of them.
+	 * Shared by every loop, connections to the host are spread across the loops.
+	 */
+	final class Route {
+		final String host;
+		final int port;
+		final boolean secure;
+		private volatile InetSocketAddress address;
+		private LinkedList<Exchange> pending = new LinkedList<Exchange>();
+		private LinkedList<NioConnection> idle = new LinkedList<NioConnection>();
+		int open;
+
+		Route (String host, int port, boolean secure) {
+			this.host = host;
+			this.port = port;
+			this.secure = secure;
+		}
+
+		/* hands the request to an idle connection, opens a new one or queues it */
+		void submit (Exchange exchange) {
+			// resolved on the caller's thread so that a DNS lookup never holds up a loop
+			if (address == null || address.isUnresolved()) {
+				address = new InetSocketAddress(host, port);
+				if (address.isUnresolved()) {
+					exchange.fail( new UnknownHostException(host) );
+					return;
+				}
+			}
+
+			NioConnection conn = null;
+			synchronized (this) {
+				if (!exchange.retried) {
+					conn = idle.pollLast();
+				}
+				if (conn == null) {
+					if (open >= maxConnections) {
+						pending.add(exchange);
+						return;
+					}
+					open++;
+				}
+			}
+
+			if (conn != null) {
+				conn.loop.start(conn, exchange);
+			} else {
+				nextLoop().connect(this, exchange);
+			}
+		}
+
+		/* the next request for a connection that has finished one, null leaves it idle */
+		synchronized Exchange next (NioConnection conn) {
+			Exchange exchange;
+			while ((exchange = pending.poll()) != null && exchange.cancelled) {
+				// dropped by a caller that stopped waiting
+			}
+			if (exchange == null) {
+				idle.add(conn);
+			}
+			return exchange;
+		}
+
+		/* a connection has closed, its place goes to the next request waiting */
+		void closed (NioConnection conn) {
+			Exchange exchange;
+			synchronized (this) {
+				open--;
+				idle.remove(conn);
+				exchange = pending.poll();
+				if (exchange == null) {
+					return;
+				}
+				open++;
+			}
+			nextLoop().connect(this, exchange);
+		}
+
+		/* fails the queued requests whose deadline has passed or that were dropped */
+		void sweep() {
+			List<Exchange> expired = null;
+			synchronized (this) {
+				Iterator<Exchange> waiting = pending.iterator();
+				while (waiting.hasNext()) {
+					Exchange exchange = waiting.next();
+					if (exchange.cancelled || exchange.isExpired()) {
+						waiting.remove();
+						if (expired == null) {
+							expired = new ArrayList<Exchange>();
+						}
+						expired.add(exchange);
+					}
+				}
+			}
+			if (expired != null) {
+				for (Exchange exchange : expired) {
+					exchange.fail( new DeadlineExceededException( "Deadline passed while " + exchange.method + " request to " + host + " was queued" ) );
+				}
+			}
+		}
+
+		/* everything still queued once the transport closes */
+		synchronized List<Exchange> drain() {
+			List<Exchange> drained = new ArrayList<Exchange>(pending);
+			pending.clear();
+			return drained;
+		}
+	}
+
+	/**
+	 * A selector and the thread that runs it, driving the connections registered with it
+	 */
+	final class EventLoop implements Runnable {
+		final Selector selector;
+		final Thread thread;
+		private boolean sweepsRoutes;
+		private ConcurrentLinkedQueue<Runnable> tasks;
+		private Set<NioConnection> connections;
+		private long nextSweep;
+
+		EventLoop (String name, boolean sweepsRoutes) throws IOException {
+			this.selector = Selector.open();
+			this.sweepsRoutes = sweepsRoutes;
+			this.tasks = new ConcurrentLinkedQueue<Runnable>();
+			this.connections = new HashSet<NioConnection>();
+			this.thread = new Thread(this, name);
+			thread.setDaemon(true);
+		}
+
+		/* runs a task on the loop's thread */
+		void execute (Runnable task) {
+			tasks.add(task);
+			if (Thread.currentThread() != thread) {
+				selector.wakeup();
+			}
+		}
+
+		/* sends a request over an idle connection of this loop */
+		void start (final NioConnection conn, final Exchange exchange) {
+			if (Thread.currentThread() == thread) {
+				send(conn, exchange);
+				return;
+			}
+			execute( new Runnable() {
+				@Override
+				public void run() {
+					send(conn, exchange);
+				}
+			});
+		}
+
+		/* opens a new connection for a request */
+		void connect (final Route route, final Exchange exchange) {
+			execute( new Runnable() {
+				@Override
+				public void run() {
+					open(route, exchange);
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!closed) {
+					runTasks();
+					long now = System.currentTimeMillis();
+					if (now >= nextSweep) {
+						sweep(now);
+						nextSweep = now + SWEEP_INTERVAL;
+					}
+
+					selector.select( Math.max(nextSweep - now, 1) );
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						NioConnection conn = (NioConnection)key.attachment();
+						try {
+							if (key.isValid()) {
+								conn.handle( key.readyOps() );
+							}
+						} catch (IOException e) {
+							failed(conn, e);
+						} catch (RuntimeException e) {
+							failed(conn, new IOException( "Request to " + conn.route.host + " failed: " + e, e ));
+						}
+					}
+				}
+			} catch (IOException e) {
+				// the selector itself failed, nothing more can be done on this loop
+			} finally {
+				shutdown();
+			}
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					// one bad task must not take the loop, and every request on it, down
+				}
+			}
+		}
+
+		private void send (NioConnection conn, Exchange exchange) {
+			if (exchange.cancelled) {
+				// the caller stopped waiting, pass the connection on
+				release(conn, true);
+				return;
+			}
+			if (conn.getState() != NioConnection.IDLE) {
+				// closed while it sat idle, send the request on a new connection
+				exchange.retried = true;
+				resubmit(exchange);
+				return;
+			}
+			try {
+				conn.start(exchange);
+			} catch (IOException e) {
+				failed(conn, e);
+			}
+		}
+
+		private void open (Route route, Exchange exchange) {
+			NioConnection conn = null;
+			boolean connected;
+			try {
+				if (closed) {
+					throw new IOException( "Transport has been closed" );
+				}
+				SocketChannel channel = SocketChannel.open();
+				SSLEngine engine = null;
+				try {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					channel.socket().setKeepAlive(true);
+					if (route.secure) {
+						engine = createEngine(route.host, route.port);
+					}
+					NioConnection opening = new NioConnection(this, route, channel, engine, exchange, connectTimeout);
+					connected = channel.connect(route.address);
+					opening.setKey( channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, opening) );
+					conn = opening;
+				} catch (IOException e) {
+					channel.close();
+					throw e;
+				} catch (RuntimeException e) {
+					// such as an UnresolvedAddressException for a host that does not resolve
+					channel.close();
+					throw new IOException( "Unable to connect to " + route.host + ": " + e, e );
+				}
+				connections.add(conn);
+				opened.incrementAndGet();
+				if (connected) {
+					conn.handle(SelectionKey.OP_CONNECT);
+				}
+			} catch (IOException e) {
+				failedToOpen(route, exchange, conn, e);
+			} catch (RuntimeException e) {
+				failedToOpen(route, exchange, conn, new IOException( "Request to " + route.host + " failed: " + e, e ));
+			}
+		}
+
+		/* a connection that never got as far as the selector gives its place back itself */
+		private void failedToOpen (Route route, Exchange exchange, NioConnection conn, IOException e) {
+			if (conn == null) {
+				route.closed(null);
+				exchange.fail(e);
+			} else {
+				failed(conn, e);
+			}
+		}
+
+		/* a response has been read in full */
+		void completed (NioConnection conn, Exchange exchange, HttpResponse response, boolean reusable) {
+			release(conn, reusable);
+			exchange.complete(response);
+		}
+
+		/*
+		 * the connection is closed and its request failed, or sent again if the server had dropped a reused connection,
+		 * as long as the server cannot have acted on the request or acting on it twice does no harm
+		 */
+		void failed (NioConnection conn, IOException e) {
+			Exchange exchange = conn.getExchange();
+			boolean stale = exchange != null && conn.getRequestCount() > 1 && !conn.hasReceived() && !(e instanceof DeadlineExceededException)
+					&& (e instanceof HttpResponse.NoResponseException || conn.getState() == NioConnection.WRITING || HttpConnection.isSafe(exchange.method));
+			closed(conn);
+			if (exchange == null) {
+				return;
+			}
+			if (stale && !exchange.retried && !exchange.cancelled) {
+				exchange.retried = true;
+				resubmit(exchange);
+			} else {
+				exchange.fail(e);
+			}
+		}
+
+		/* closes a connection, the caller deals with its request */
+		void closed (NioConnection conn) {
+			if (conn.getState() == NioConnection.CLOSED) {
+				return;
+			}
+			conn.close();
+			connections.remove(conn);
+			conn.route.closed(conn);
+		}
+
+		/* passes the connection to the next request waiting for one, or leaves it idle */
+		private void release (NioConnection conn, boolean reusable) {
+			if (!reusable || closed) {
+				closed(conn);
+				return;
+			}
+			Exchange next = conn.route.next(conn);
+			if (next != null) {
+				send(conn, next);
+			}
+		}
+
+		private void sweep (long now) {
+			List<NioConnection> idle = new ArrayList<NioConnection>();
+			List<NioConnection> late = new ArrayList<NioConnection>();
+			List<IOException> failures = new ArrayList<IOException>();
+			int readTimeout = NioTransport.this.readTimeout;
+			for (NioConnection conn : connections) {
+				if (conn.getState() == NioConnection.IDLE) {
+					if (now - conn.getLastActivity() >= idleTimeout) {
+						idle.add(conn);
+					}
+					continue;
+				}
+				IOException failure = conn.checkTimeout(now, readTimeout);
+				if (failure != null) {
+					late.add(conn);
+					failures.add(failure);
+				}
+			}
+
+			for (NioConnection conn : idle) {
+				evict(conn);
+			}
+			for (int i = 0; i < late.size(); i++) {
+				// out of time, not worth sending again
+				NioConnection conn = late.get(i);
+				Exchange exchange = conn.getExchange();
+				closed(conn);
+				exchange.fail( failures.get(i) );
+			}
+			if (sweepsRoutes) {
+				for (Route route : routes.values()) {
+					route.sweep();
+				}
+			}
+		}
+
+		/* an idle connection can only be closed if it has not just been handed a request */
+		private void evict (NioConnection conn) {
+			boolean wasIdle;
+			synchronized (conn.route) {
+				wasIdle = conn.route.idle.remove(conn);
+			}
+			if (wasIdle) {
+				closed(conn);
+			}
+		}
+
+		private void shutdown() {
+			IOException failure = new IOException( "Transport has been closed" );
+			for (NioConnection conn : new ArrayList<NioConnection>(connections)) {
+				Exchange exchange = conn.getExchange();
+				closed(conn);
+				if (exchange != null) {
+					exchange.fail(failure);
+				}
+			}
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run(); // anything left opens nothing now, it fails its request
+			}
+			if (sweepsRoutes) {
+				for (Route route : routes.values()) {
+					for (Exchange exchange : route.drain()) {
+						exchange.fail(failure);
+					}
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// nothing left to do with it
+			}
+		}
+	}
+
+	/**
+	 * Parks the calling thread until the response arrives
+	 */
+	private static class BlockingHandler implements ResponseHandler {
+		private HttpResponse response;
+		private IOException failure;
+		private boolean done;
+
+		@Override
+		public synchronized void completed (HttpResponse response) {
+			this.response = response;
+			done = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void failed (IOException e) {
+			this.failure = e;
+			done = true;
+			notifyAll();
+		}
+
+		synchronized HttpResponse await() throws IOException, InterruptedException {
+			while (!done) {
+				wait();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return response;
+		}
+	}
+}
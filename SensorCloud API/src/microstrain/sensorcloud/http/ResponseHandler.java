@@ -0,0 +1,21 @@
+package microstrain.sensorcloud.http;
+
+import java.io.IOException;
+
+/**
+ * Told the outcome of a request sent through an <b>NioTransport</b>.
+ * Exactly one of the methods is called, on one of the transport's event loop threads,
+ * so an implementation must hand anything slow or blocking off to another thread.
+ */
+public interface ResponseHandler {
+	
+	/**
+	 * @param response  response from the server, whatever its status, with the body read in full
+	 */
+	public void completed (HttpResponse response);
+	
+	/**
+	 * @param e  reason no response was received
+	 */
+	public void failed (IOException e);
+}
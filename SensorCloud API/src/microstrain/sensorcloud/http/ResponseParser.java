@@ -0,0 +1,295 @@
+package microstrain.sensorcloud.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses an HTTP/1.1 response as its bytes arrive, in whatever pieces the network hands them over.
+ * The status line and headers are parsed a byte at a time, the body is copied across in bulk
+ * whether it has a length, is chunked, or runs until the connection closes.
+ * Informational responses are skipped. One parser reads one response, <b>reset</b> readies it for the next.
+ */
+final class ResponseParser {
+	/** Longest status, header or chunk size line accepted */
+	private static final int MAX_LINE = 8192;
+
+	/** Largest body accepted */
+	private static final long MAX_BODY = Integer.MAX_VALUE - 8;
+
+	/** Largest array sized from the Content-Length up front, past that it grows as the body arrives */
+	private static final int MAX_PRESIZED_BODY = 1024 * 1024;
+
+	private static final int STATUS = 0, HEADERS = 1, BODY = 2, CHUNK_SIZE = 3, CHUNK_DATA = 4,
+			CHUNK_END = 5, TRAILERS = 6, UNTIL_CLOSE = 7, DONE = 8;
+
+	private int state;
+	private boolean noBody;
+	private StringBuilder line = new StringBuilder(64);
+	private boolean received;
+
+	private String version, message;
+	private int statusCode;
+	private Map<String, String> headers;
+	private boolean keepAlive;
+
+	private long remaining;
+	private byte [] body;
+	private int length;
+
+	/**
+	 * Readies the parser for the response to a request
+	 *
+	 * @param method  method of the request, a HEAD response never has a body
+	 */
+	void reset (String method) {
+		state = STATUS;
+		noBody = method.equals("HEAD");
+		line.setLength(0);
+		received = false;
+		headers = null;
+		body = null;
+		length = 0;
+	}
+
+	/**
+	 * Consumes bytes of the response, leaving anything past its end in the buffer
+	 *
+	 * @param in  bytes received, read from its position to its limit
+	 * @return True once the whole response has been read
+	 *
+	 * @throws IOException if the response is malformed
+	 */
+	boolean feed (ByteBuffer in) throws IOException {
+		if (in.hasRemaining()) {
+			received = true;
+		}
+		while (state != DONE && in.hasRemaining()) {
+			switch (state) {
+			case STATUS:
+				if (readLine(in)) {
+					parseStatus();
+					headers = new HashMap<String, String>();
+					state = HEADERS;
+				}
+				break;
+			case HEADERS:
+				if (readLine(in)) {
+					if (line.length() > 0) {
+						parseHeader(headers);
+					} else if (statusCode < 200) {
+						// an informational response, the real one follows
+						state = STATUS;
+					} else {
+						startBody();
+					}
+					line.setLength(0);
+				}
+				break;
+			case BODY:
+			case CHUNK_DATA:
+				copy( in, (int)Math.min(remaining, in.remaining()) );
+				if (remaining == 0) {
+					state = state == BODY ? DONE : CHUNK_END;
+				}
+				break;
+			case UNTIL_CLOSE:
+				copy( in, in.remaining() );
+				break;
+			case CHUNK_SIZE:
+				if (readLine(in)) {
+					startChunk();
+				}
+				break;
+			case CHUNK_END:
+				if (readLine(in)) {
+					if (line.length() > 0) {
+						throw new IOException( "Malformed chunk, missing CRLF" );
+					}
+					state = CHUNK_SIZE;
+				}
+				break;
+			case TRAILERS:
+				if (readLine(in)) {
+					if (line.length() == 0) {
+						state = DONE;
+					}
+					line.setLength(0);
+				}
+				break;
+			}
+		}
+		return state == DONE;
+	}
+
+	/**
+	 * Called when the server closes the connection
+	 *
+	 * @return True if the close marks the end of a body that runs until the connection closes
+	 *
+	 * @throws IOException if the response was cut short
+	 */
+	boolean finish() throws IOException {
+		if (state == UNTIL_CLOSE) {
+			state = DONE;
+			return true;
+		}
+		if (state == DONE) {
+			return true;
+		}
+		if (!received) {
+			throw new HttpResponse.NoResponseException();
+		}
+		throw new EOFException( "Connection closed mid response" );
+	}
+
+	/**
+	 * @return True if any part of the response has arrived
+	 */
+	boolean hasReceived() {
+		return received;
+	}
+
+	/**
+	 * @return True if the connection can carry another request once the response is read
+	 */
+	boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * @return The response read, only once <b>feed</b> has returned true
+	 */
+	HttpResponse toResponse() {
+		byte [] body = this.body != null ? this.body : new byte [0];
+		return HttpResponse.buffered(statusCode, message, headers, body, length);
+	}
+
+	/* collects a CRLF terminated line, true once the whole line is in */
+	private boolean readLine (ByteBuffer in) throws IOException {
+		while (in.hasRemaining()) {
+			char c = (char)(in.get() & 0xff);
+			if (c == '\n') {
+				int len = line.length();
+				if (len > 0 && line.charAt(len - 1) == '\r') {
+					line.setLength(len - 1);
+				}
+				return true;
+			}
+			if (line.length() >= MAX_LINE) {
+				throw new IOException( "Response line longer than " + MAX_LINE + " bytes" );
+			}
+			line.append(c);
+		}
+		return false;
+	}
+
+	private void parseStatus() throws IOException {
+		String statusLine = line.toString();
+		line.setLength(0);
+		String [] status = statusLine.split(" ", 3);
+		if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+			throw new IOException( "Malformed status line: " + statusLine );
+		}
+		try {
+			statusCode = Integer.parseInt( status[1] );
+		} catch (NumberFormatException e) {
+			throw new IOException( "Malformed status line: " + statusLine );
+		}
+		version = status[0];
+		message = status.length > 2 ? status[2] : "";
+	}
+
+	private void parseHeader (Map<String, String> headers) {
+		int colon = line.indexOf(":");
+		if (colon > 0) {
+			String name = line.substring(0, colon).trim().toLowerCase();
+			String value = line.substring(colon + 1).trim();
+			String prev = headers.get(name);
+			headers.put( name, prev == null ? value : prev + ", " + value );
+		}
+	}
+
+	/* works out how the body is framed, as HttpResponse does for a blocking connection */
+	private void startBody() throws IOException {
+		String connection = headers.get("connection");
+		keepAlive = version.equals("HTTP/1.1")
+				? !"close".equalsIgnoreCase(connection)
+				: "keep-alive".equalsIgnoreCase(connection);
+
+		if (noBody || statusCode == 204 || statusCode == 304) {
+			state = DONE;
+			return;
+		}
+
+		String transferEncoding = headers.get("transfer-encoding");
+		if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+			state = CHUNK_SIZE;
+			return;
+		}
+
+		String contentLength = headers.get("content-length");
+		if (contentLength != null) {
+			try {
+				remaining = Long.parseLong( contentLength.trim() );
+			} catch (NumberFormatException e) {
+				remaining = -1;
+			}
+			if (remaining >= 0) {
+				if (remaining > MAX_BODY) {
+					throw new IOException( "Response body of " + remaining + " bytes is too large" );
+				}
+				// the size is known, read straight into an array of that size unless the server claims more than it is trusted with
+				body = new byte [(int)Math.min(remaining, MAX_PRESIZED_BODY)];
+				state = remaining == 0 ? DONE : BODY;
+				return;
+			}
+		}
+
+		keepAlive = false;
+		state = UNTIL_CLOSE;
+	}
+
+	private void startChunk() throws IOException {
+		String size = line.toString();
+		line.setLength(0);
+		int semi = size.indexOf(';');
+		if (semi >= 0) {
+			size = size.substring(0, semi); // chunk extensions are ignored
+		}
+		try {
+			remaining = Long.parseLong( size.trim(), 16 );
+		} catch (NumberFormatException e) {
+			throw new IOException( "Malformed chunk size: " + size );
+		}
+		if (remaining < 0 || length + remaining > MAX_BODY) {
+			throw new IOException( "Malformed chunk size: " + size );
+		}
+		state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+	}
+
+	/* moves body bytes across, growing the array if the size was not known up front */
+	private void copy (ByteBuffer in, int count) throws IOException {
+		if (body == null) {
+			body = new byte [Math.max(count, 8192)];
+		} else if (length + count > body.length) {
+			long size = Math.max( (long)body.length * 2, (long)length + count );
+			if (size > MAX_BODY) {
+				if ((long)length + count > MAX_BODY) {
+					throw new IOException( "Response body is too large" );
+				}
+				size = MAX_BODY;
+			}
+			byte [] grown = new byte [(int)size];
+			System.arraycopy(body, 0, grown, 0, length);
+			body = grown;
+		}
+		in.get(body, length, count);
+		length += count;
+		if (state != UNTIL_CLOSE) {
+			remaining -= count;
+		}
+	}
+}
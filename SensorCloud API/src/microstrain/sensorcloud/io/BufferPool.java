@@ -0,0 +1,143 @@
+package microstrain.sensorcloud.io;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable byte arrays grouped in power of two size classes,
+ * from 1 KB up to 4 MB. Requests larger than the biggest class are allocated directly and
+ * are not kept when released. Each class keeps a bounded number of free arrays so an idle
+ * pool never holds more than a few megabytes.
+ */
+public class BufferPool {
+	private static final int MIN_SHIFT = 10;
+	private static final int MAX_SHIFT = 22;
+	private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+	/** Default number of bytes kept free in each size class */
+	public static final int DEFAULT_RETAINED = 1 << 20;
+
+	private static BufferPool defaultPool;
+
+	private SizeClass [] classes;
+	private AtomicLong allocated, reused;
+
+	/**
+	 * Creates a pool that keeps up to <b>DEFAULT_RETAINED</b> bytes free per size class
+	 */
+	public BufferPool() {
+		this(DEFAULT_RETAINED);
+	}
+
+	/**
+	 * @param retained  bytes kept free per size class, at least two arrays of each size are kept
+	 */
+	public BufferPool (int retained) {
+		this.classes = new SizeClass [CLASSES];
+		this.allocated = new AtomicLong();
+		this.reused = new AtomicLong();
+
+		for (int i = 0; i < CLASSES; i++) {
+			classes[i] = new SizeClass( Math.max( 2, retained >> (MIN_SHIFT + i) ) );
+		}
+	}
+
+	/**
+	 * @return Pool shared by every part of the API that is not given its own
+	 */
+	public static synchronized BufferPool getDefault() {
+		if (defaultPool == null) {
+			defaultPool = new BufferPool();
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * The array returned may be larger than requested
+	 *
+	 * @param size  minimum length of the array
+	 * @return An array that should be released once it is no longer used
+	 */
+	public byte [] acquire (int size) {
+		int index = sizeClass(size);
+		if (index < 0) {
+			allocated.incrementAndGet();
+			return new byte [size];
+		}
+
+		SizeClass sizeClass = classes[index];
+		byte [] array = sizeClass.arrays.poll();
+		if (array != null) {
+			sizeClass.free.decrementAndGet();
+			reused.incrementAndGet();
+			return array;
+		}
+		allocated.incrementAndGet();
+		return new byte [1 << (MIN_SHIFT + index)];
+	}
+
+	/**
+	 * Returns an array to the pool, arrays whose length is not one of the size classes are ignored
+	 *
+	 * @param array  array that is no longer used
+	 */
+	public void release (byte [] array) {
+		int index = exactClass(array.length);
+		if (index < 0) {
+			return;
+		}
+		SizeClass sizeClass = classes[index];
+		if (sizeClass.free.incrementAndGet() <= sizeClass.maxFree) {
+			sizeClass.arrays.offer(array);
+		} else {
+			sizeClass.free.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return Number of arrays that had to be allocated
+	 */
+	public long getAllocationCount() {
+		return allocated.get();
+	}
+
+	/**
+	 * @return Number of requests served with a pooled array
+	 */
+	public long getReuseCount() {
+		return reused.get();
+	}
+
+	/* smallest class that fits, -1 if the size is larger than every class */
+	private static int sizeClass (int size) {
+		if (size <= 1 << MIN_SHIFT) {
+			return 0;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+	}
+
+	/* class of an array of exactly this length, -1 if it is not one of ours */
+	private static int exactClass (int length) {
+		if (Integer.bitCount(length) != 1) {
+			return -1;
+		}
+		int shift = Integer.numberOfTrailingZeros(length);
+		return shift < MIN_SHIFT || shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+	}
+
+	/**
+	 * The free arrays of one size
+	 */
+	private static class SizeClass {
+		final int maxFree;
+		final Queue<byte []> arrays = new ConcurrentLinkedQueue<byte []>();
+		final AtomicInteger free = new AtomicInteger();
+
+		SizeClass (int maxFree) {
+			this.maxFree = maxFree;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package microstrain.sensorcloud.io;
+
+import java.io.OutputStream;
+
+/**
+ * An in-memory output stream, like <b>ByteArrayOutputStream</b>, whose storage comes from a <b>BufferPool</b>.
+ * Growing swaps the array for one of the next size class and releases the old one.
+ * Closing the stream hands its array back to the pool, it must not be used afterwards.
+ */
+public class PooledOutputStream extends OutputStream {
+	private BufferPool pool;
+	private byte [] buf;
+	private int count;
+
+	/**
+	 * @param pool  pool the storage is taken from
+	 * @param size  expected number of bytes, the stream grows past it if needed
+	 */
+	public PooledOutputStream (BufferPool pool, int size) {
+		this.pool = pool;
+		this.buf = pool.acquire(size);
+		this.count = 0;
+	}
+
+	@Override
+	public void write (int b) {
+		if (count == buf.length) {
+			grow(count + 1);
+		}
+		buf[count++] = (byte)b;
+	}
+
+	@Override
+	public void write (byte [] b, int off, int len) {
+		if (count + len > buf.length) {
+			grow(count + len);
+		}
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * Overwrites four bytes that have already been written with a big endian integer.
+	 * Used to fill in a count in a header once the data after it is known.
+	 *
+	 * @param pos  offset of the integer
+	 * @param v  integer value
+	 */
+	public void setInt (int pos, int v) {
+		if (pos < 0 || pos + 4 > count) {
+			throw new IndexOutOfBoundsException( "No integer written at " + pos );
+		}
+		buf[pos] = (byte)(v >>> 24);
+		buf[pos + 1] = (byte)(v >>> 16);
+		buf[pos + 2] = (byte)(v >>> 8);
+		buf[pos + 3] = (byte)v;
+	}
+
+	/**
+	 * @return Number of bytes written
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * The array is still owned by the stream and is only valid up to <b>size</b>
+	 *
+	 * @return Array the data is written to
+	 */
+	public byte [] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * @return Copy of the bytes written
+	 */
+	public byte [] toByteArray() {
+		byte [] copy = new byte [count];
+		System.arraycopy(buf, 0, copy, 0, count);
+		return copy;
+	}
+
+	/**
+	 * Discards everything written so the storage can be reused
+	 */
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * Releases the storage back to the pool
+	 */
+	@Override
+	public void close() {
+		if (buf != null) {
+			pool.release(buf);
+			buf = null;
+		}
+	}
+
+	private void grow (int size) {
+		byte [] bigger = pool.acquire( Math.max(size, buf.length * 2) );
+		System.arraycopy(buf, 0, bigger, 0, count);
+		pool.release(buf);
+		buf = bigger;
+	}
+}
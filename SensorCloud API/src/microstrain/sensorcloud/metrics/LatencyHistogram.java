@@ -0,0 +1,128 @@
+package microstrain.sensorcloud.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds that can be recorded into from many threads without locking.
+ * Buckets are logarithmic with eight sub-buckets per power of two, so a percentile read back is
+ * within 12.5% of the true value anywhere from a microsecond up to several days.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+	private AtomicLongArray counts;
+	private AtomicLong count, sum, max;
+
+	/**
+	 * Creates an empty histogram
+	 */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new AtomicLong();
+		sum = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * @param micros  latency in microseconds
+	 */
+	public void record (long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+		counts.incrementAndGet( bucketOf(micros) );
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+
+		long current;
+		while (micros > (current = max.get())) {
+			if (max.compareAndSet(current, micros)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return Number of latencies recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return Mean latency in microseconds, zero if nothing has been recorded
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double)sum.get() / n;
+	}
+
+	/**
+	 * @return Largest latency recorded in microseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile  percentile between 0 and 100
+	 * @return Upper bound of the bucket holding the percentile in microseconds, zero if nothing has been recorded
+	 */
+	public long getPercentile (double percentile) {
+		long [] snapshot = new long [BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long)Math.ceil( total * Math.min(100, Math.max(0, percentile)) / 100 );
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= Math.max(rank, 1)) {
+				return Math.min( upperBound(i), max.get() );
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Clears the histogram. Latencies recorded while it is being cleared may be partly kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/* values below SUB_BUCKETS get a bucket each, above that each power of two is split into SUB_BUCKETS */
+	private static int bucketOf (long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int)micros;
+		}
+		int exponent = Math.min( 63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT );
+		int sub = (int)(micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound (int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BITS);
+		return (1L << exponent) + (sub + 1) * width - 1;
+	}
+}
@@ -0,0 +1,38 @@
+package microstrain.sensorcloud.metrics;
+
+/**
+ * The kinds of call that metrics are kept for
+ */
+public enum Operation {
+	/** Uploads of time-series data */
+	DATA_POST,
+	
+	/** Downloads of time-series data */
+	DATA_GET,
+	
+	/** Reads and writes of sensors, channels and streams */
+	METADATA,
+	
+	/** Reads and writes of device, sensor and channel attributes */
+	ATTRIBUTES,
+	
+	/** Authentication with the server */
+	AUTH;
+	
+	/**
+	 * Works out the kind of call from its method and url
+	 * 
+	 * @param method  HTTP method
+	 * @param url  address relative to the device
+	 * @return Kind of call
+	 */
+	public static Operation of (String method, String url) {
+		if (url.contains("/timeseries/data")) {
+			return method.equals("GET") ? DATA_GET : DATA_POST;
+		}
+		if (url.startsWith("attributes/") || url.contains("/attributes/")) {
+			return ATTRIBUTES;
+		}
+		return METADATA;
+	}
+}
@@ -0,0 +1,142 @@
+package microstrain.sensorcloud.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency, traffic and status counts for one kind of call.
+ * Recording a call touches only a handful of atomic counters.
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+	private static final int MAX_STATUS = 600;
+
+	private LatencyHistogram latency;
+	private AtomicLong errors, bytesIn, bytesOut;
+	private AtomicLongArray statuses;
+
+	/**
+	 * Creates empty metrics
+	 */
+	public OperationMetrics() {
+		latency = new LatencyHistogram();
+		errors = new AtomicLong();
+		bytesIn = new AtomicLong();
+		bytesOut = new AtomicLong();
+		statuses = new AtomicLongArray(MAX_STATUS);
+	}
+
+	/**
+	 * Records a finished call
+	 *
+	 * @param nanos  time the call took in nanoseconds
+	 * @param status  HTTP status the call ended with, 0 if the connection failed
+	 * @param sent  bytes sent in the request body
+	 * @param received  bytes received in the response body
+	 */
+	public void record (long nanos, int status, long sent, long received) {
+		latency.record( nanos / 1000 );
+		if (status >= 0 && status < MAX_STATUS) {
+			statuses.incrementAndGet(status);
+		}
+		if (status == 0 || status >= 400) {
+			errors.incrementAndGet();
+		}
+		if (sent > 0) {
+			bytesOut.addAndGet(sent);
+		}
+		if (received > 0) {
+			bytesIn.addAndGet(received);
+		}
+	}
+
+	/**
+	 * Counts bytes of a streamed response body as they are read
+	 *
+	 * @param received  bytes received
+	 */
+	public void addBytesIn (long received) {
+		bytesIn.addAndGet(received);
+	}
+
+	/**
+	 * @return Histogram of call latencies
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	@Override
+	public long getCount() {
+		return latency.getCount();
+	}
+
+	@Override
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return latency.getMean() / 1000;
+	}
+
+	@Override
+	public double getP50Millis() {
+		return latency.getPercentile(50) / 1000.0;
+	}
+
+	@Override
+	public double getP90Millis() {
+		return latency.getPercentile(90) / 1000.0;
+	}
+
+	@Override
+	public double getP99Millis() {
+		return latency.getPercentile(99) / 1000.0;
+	}
+
+	@Override
+	public double getP999Millis() {
+		return latency.getPercentile(99.9) / 1000.0;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return latency.getMax() / 1000.0;
+	}
+
+	@Override
+	public Map<Integer, Long> getStatusCounts() {
+		Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+		for (int i = 0; i < MAX_STATUS; i++) {
+			long count = statuses.get(i);
+			if (count > 0) {
+				counts.put(i, count);
+			}
+		}
+		return counts;
+	}
+
+	@Override
+	public void reset() {
+		latency.reset();
+		errors.set(0);
+		bytesIn.set(0);
+		bytesOut.set(0);
+		for (int i = 0; i < MAX_STATUS; i++) {
+			statuses.set(i, 0);
+		}
+	}
+}
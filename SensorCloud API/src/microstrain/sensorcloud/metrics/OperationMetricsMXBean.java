@@ -0,0 +1,71 @@
+package microstrain.sensorcloud.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics kept for one kind of call
+ */
+public interface OperationMetricsMXBean {
+	
+	/**
+	 * @return Number of calls made
+	 */
+	public long getCount();
+	
+	/**
+	 * @return Number of calls that failed
+	 */
+	public long getErrorCount();
+	
+	/**
+	 * @return Bytes received in response bodies
+	 */
+	public long getBytesIn();
+	
+	/**
+	 * @return Bytes sent in request bodies
+	 */
+	public long getBytesOut();
+	
+	/**
+	 * @return Mean latency in milliseconds
+	 */
+	public double getMeanMillis();
+	
+	/**
+	 * @return Median latency in milliseconds
+	 */
+	public double getP50Millis();
+	
+	/**
+	 * @return 90th percentile latency in milliseconds
+	 */
+	public double getP90Millis();
+	
+	/**
+	 * @return 99th percentile latency in milliseconds
+	 */
+	public double getP99Millis();
+	
+	/**
+	 * @return 99.9th percentile latency in milliseconds
+	 */
+	public double getP999Millis();
+	
+	/**
+	 * @return Largest latency in milliseconds
+	 */
+	public double getMaxMillis();
+	
+	/**
+	 * Connection failures are counted under status 0
+	 * 
+	 * @return Number of calls that ended with each HTTP status
+	 */
+	public Map<Integer, Long> getStatusCounts();
+	
+	/**
+	 * Clears every count and the latency histogram
+	 */
+	public void reset();
+}
@@ -0,0 +1,90 @@
+package microstrain.sensorcloud.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of every kind of call made for one device.
+ * Each kind can be published as an MBean named
+ * <b>microstrain.sensorcloud:type=RequestMetrics,name=&lt;name&gt;,operation=&lt;operation&gt;</b>
+ * so that it can be watched from JConsole or any other JMX client.
+ */
+public class RequestMetrics {
+	private Map<Operation, OperationMetrics> operations;
+	private List<ObjectName> registered;
+
+	/**
+	 * Creates empty metrics for every <b>Operation</b>
+	 */
+	public RequestMetrics() {
+		operations = new EnumMap<Operation, OperationMetrics>(Operation.class);
+		for (Operation operation : Operation.values()) {
+			operations.put( operation, new OperationMetrics() );
+		}
+		registered = new ArrayList<ObjectName>();
+	}
+
+	/**
+	 * @param operation  kind of call
+	 * @return Metrics for that kind of call
+	 */
+	public OperationMetrics get (Operation operation) {
+		return operations.get(operation);
+	}
+
+	/**
+	 * Publishes the metrics on the platform MBean server, replacing any that were published under the same name
+	 *
+	 * @param name  name identifying these metrics, usually the device serial
+	 *
+	 * @throws JMException
+	 */
+	public synchronized void register (String name) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		unregister();
+
+		for (Map.Entry<Operation, OperationMetrics> entry : operations.entrySet()) {
+			ObjectName objectName = new ObjectName( "microstrain.sensorcloud:type=RequestMetrics,name="
+					+ ObjectName.quote(name) + ",operation=" + entry.getKey() );
+			try {
+				server.registerMBean( entry.getValue(), objectName );
+			} catch (InstanceAlreadyExistsException e) {
+				server.unregisterMBean(objectName);
+				server.registerMBean( entry.getValue(), objectName );
+			}
+			registered.add(objectName);
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server if they were published
+	 */
+	public synchronized void unregister() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName objectName : registered) {
+			try {
+				server.unregisterMBean(objectName);
+			} catch (JMException e) {
+				// already gone
+			}
+		}
+		registered.clear();
+	}
+
+	/**
+	 * Clears the metrics of every kind of call
+	 */
+	public void reset() {
+		for (OperationMetrics metrics : operations.values()) {
+			metrics.reset();
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package microstrain.sensorcloud;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class DeviceSnapshotTest {
+
+	@Test
+	public void snapshotFollowsTheGovernorUnderTheDecorators() {
+		Requester governed = new CoalescingRequester( new RetryingRequester( new GoverningRequester(null, 3) ) );
+		assertEquals(3, DeviceSnapshot.concurrencyOf(governed));
+	}
+
+	@Test
+	public void snapshotWithoutAGovernorUsesTheDefault() {
+		Requester ungoverned = new RetryingRequester(null);
+		assertEquals(DeviceSnapshot.DEFAULT_CONCURRENCY, DeviceSnapshot.concurrencyOf(ungoverned));
+	}
+}
@@ -0,0 +1,196 @@
+package microstrain.sensorcloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import microstrain.sensorcloud.exception.DeadlineExceededException;
+import microstrain.sensorcloud.http.Deadline;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GoverningRequesterTest {
+	private static final String BLOCK = "sensors/s/channels/block/attributes/";
+
+	private CallLog inner;
+	private GoverningRequester governor;
+	private List<Thread> threads;
+
+	@Before
+	public void createGovernor() throws Exception {
+		inner = new CallLog();
+		governor = new GoverningRequester(inner, 1);
+		threads = new ArrayList<Thread>();
+
+		// holds the only place in flight so everything after it queues
+		start(null, BLOCK);
+		assertTrue( inner.blocked.await(5, TimeUnit.SECONDS) );
+	}
+
+	@After
+	public void releaseGovernor() throws InterruptedException {
+		inner.gate.countDown();
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void classesAreServedInProportionToTheirWeights() throws Exception {
+		for (int i = 0; i < 8; i++) {
+			queue(Priority.BACKFILL, "sensors/s/channels/old" + i + "/streams/timeseries/data/");
+		}
+		for (int i = 0; i < 8; i++) {
+			queue(null, "sensors/s/channels/live" + i + "/streams/timeseries/data/");
+		}
+		assertEquals(8, governor.getBackfillQueueDepth());
+		assertEquals(8, governor.getLiveQueueDepth());
+
+		List<String> order = finish(16);
+		int live = 0;
+		for (String url : order.subList(0, 9)) {
+			if (url.contains("/live")) {
+				live++;
+			}
+		}
+		// live weighs 8 to backfill's 1, and backfill still gets its turn rather than starving
+		assertEquals(8, live);
+		assertTrue( order.subList(0, 9).toString(), order.get(1).contains("/old") );
+	}
+
+	@Test(timeout = 10000)
+	public void channelsTakeTurnsWithinAClass() throws Exception {
+		queue(null, "sensors/s/channels/a/attributes/1");
+		queue(null, "sensors/s/channels/a/attributes/2");
+		queue(null, "sensors/s/channels/a/attributes/3");
+		queue(null, "sensors/s/channels/b/attributes/1");
+		assertEquals(4, governor.getMetadataQueueDepth());
+
+		assertEquals( Arrays.asList(
+				"sensors/s/channels/a/attributes/1",
+				"sensors/s/channels/b/attributes/1",
+				"sensors/s/channels/a/attributes/2",
+				"sensors/s/channels/a/attributes/3"), finish(4) );
+	}
+
+	@Test(timeout = 10000)
+	public void queriesGoAheadOfMetadata() throws Exception {
+		queue(null, "sensors/s/channels/a/attributes/");
+		queue(null, "sensors/s/channels/a/streams/timeseries/data/");
+		assertEquals(1, governor.getQueryQueueDepth());
+
+		assertEquals( Arrays.asList(
+				"sensors/s/channels/a/streams/timeseries/data/",
+				"sensors/s/channels/a/attributes/"), finish(2) );
+	}
+
+	@Test(timeout = 10000)
+	public void deadlineGivesUpTheQueuedPlace() throws Exception {
+		Deadline deadline = Deadline.start(50, TimeUnit.MILLISECONDS);
+		try {
+			governor.get("sensors/s/channels/a/attributes/");
+			fail("the call should not have been let through");
+		} catch (DeadlineExceededException e) {
+			// expected
+		} finally {
+			deadline.end();
+		}
+		assertEquals(0, governor.getQueueDepth());
+		assertEquals(1, governor.getInFlight());
+	}
+
+	@Test
+	public void urlsAreGroupedByChannel() {
+		assertEquals( "sensors/s/channels/a", GoverningRequester.laneOf("sensors/s/channels/a/streams/timeseries/data/") );
+		assertEquals( "sensors/s", GoverningRequester.laneOf("sensors/s/attributes/") );
+		assertEquals( "", GoverningRequester.laneOf("attributes/") );
+	}
+
+	/* starts a call on its own thread, uploads for live and backfill urls and reads for the rest */
+	private void start (final Priority priority, final String url) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				GoverningRequester.setThreadPriority(priority);
+				try {
+					if (priority != null || url.contains("/live")) {
+						governor.post(url, new byte [0]);
+					} else {
+						governor.get(url);
+					}
+				} catch (IOException e) {
+					// reported by the order the calls were made in
+				}
+			}
+		};
+		thread.start();
+		threads.add(thread);
+	}
+
+	/* starts a call and waits until it is queued, so the calls queue in a known order */
+	private void queue (Priority priority, String url) throws InterruptedException {
+		int depth = governor.getQueueDepth();
+		start(priority, url);
+		while (governor.getQueueDepth() == depth) {
+			Thread.sleep(1);
+		}
+	}
+
+	/* lets the blocking call finish and returns the urls of the calls queued behind it in the order they ran */
+	private List<String> finish (int count) throws InterruptedException {
+		inner.gate.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		List<String> order = inner.urls();
+		assertEquals(count + 1, order.size());
+		return order.subList(1, order.size());
+	}
+
+	/**
+	 * Records the url of every call, the first call to the blocking url waits until released
+	 */
+	private static class CallLog extends RequesterDecorator {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch gate = new CountDownLatch(1);
+		private final List<String> urls = new ArrayList<String>();
+
+		CallLog() {
+			super(null);
+		}
+
+		@Override
+		protected <T> T invoke (Call<T> call) throws IOException {
+			synchronized (this) {
+				urls.add( call.getUrl() );
+			}
+			if (call.getUrl().equals(BLOCK)) {
+				blocked.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+			}
+			return null;
+		}
+
+		synchronized List<String> urls() {
+			return new ArrayList<String>(urls);
+		}
+
+		@Override
+		public String getSerial() {
+			return "serial";
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package microstrain.sensorcloud;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import microstrain.sensorcloud.exception.CircuitOpenException;
+import microstrain.sensorcloud.exception.SCHTTPException;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+	private final RetryPolicy policy = new RetryPolicy();
+
+	@Test
+	public void readsAreRetriedOnTransientFailures() {
+		assertTrue( policy.shouldRetry("GET", new ConnectException("refused"), 1) );
+		assertTrue( policy.shouldRetry("GET", new SocketTimeoutException("read timed out"), 1) );
+		assertTrue( policy.shouldRetry("GET", new SocketException("reset"), 1) );
+		assertTrue( policy.shouldRetry("GET", status(503), 1) );
+		assertFalse( policy.shouldRetry("GET", status(404), 1) );
+	}
+
+	@Test
+	public void changesAreOnlyRetriedWhenTheyNeverReachedTheServer() {
+		for (String method : new String [] { "POST", "PUT", "DELETE" }) {
+			assertTrue( policy.shouldRetry(method, new ConnectException("refused"), 1) );
+			assertTrue( policy.shouldRetry(method, status(429), 1) );
+			assertTrue( policy.shouldRetry(method, status(408), 1) );
+
+			assertFalse( policy.shouldRetry(method, new SocketTimeoutException("read timed out"), 1) );
+			assertFalse( policy.shouldRetry(method, new SocketException("reset"), 1) );
+			assertFalse( policy.shouldRetry(method, status(500), 1) );
+			assertFalse( policy.shouldRetry(method, status(503), 1) );
+		}
+	}
+
+	@Test
+	public void changesCanBeRetriedLikeReads() {
+		policy.setRetryUnsafe(true);
+		assertTrue( policy.shouldRetry("POST", new SocketTimeoutException("read timed out"), 1) );
+		assertTrue( policy.shouldRetry("POST", status(503), 1) );
+		assertFalse( policy.shouldRetry("POST", status(400), 1) );
+	}
+
+	@Test
+	public void givingUpIsFinal() {
+		assertFalse( policy.shouldRetry("GET", new ConnectException("refused"), RetryPolicy.DEFAULT_MAX_ATTEMPTS) );
+		assertFalse( policy.shouldRetry("GET", new CircuitOpenException(0), 1) );
+		assertFalse( policy.shouldRetry("GET", new InterruptedIOException("interrupted"), 1) );
+		assertFalse( policy.shouldRetry("GET", new IllegalStateException(), 1) );
+	}
+
+	@Test
+	public void delaysStayWithinTheirBounds() {
+		RetryPolicy bounded = new RetryPolicy(10, 100, 1000);
+		for (int attempt = 1; attempt < 10; attempt++) {
+			long bound = Math.min(100L << (attempt - 1), 1000);
+			for (int i = 0; i < 100; i++) {
+				long delay = bounded.getDelay(attempt);
+				assertTrue( delay >= 0 && delay < bound );
+			}
+		}
+	}
+
+	private static SCHTTPException status (int code) {
+		return new SCHTTPException(code, "status " + code);
+	}
+}
@@ -0,0 +1,232 @@
+package microstrain.sensorcloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import microstrain.sensorcloud.xdr.XDRInStream;
+import microstrain.sensorcloud.xdr.XDROutStream;
+
+import org.junit.Test;
+
+public class SampleQueueTest {
+	private static final int CHUNK = SampleQueue.CHUNK_SIZE;
+
+	private final SampleRate hertz = rate(10, SampleRate.HERTZ);
+	private final SampleRate seconds = rate(5, SampleRate.SECONDS);
+
+	@Test
+	public void emptyQueueHasNothingReady() {
+		SampleQueue queue = new SampleQueue();
+		assertEquals(0, queue.ready(100));
+		assertNull( queue.rate() );
+		assertFalse( queue.hasWork(1) );
+	}
+
+	@Test
+	public void samplesComeOutInOrderAcrossChunks() throws IOException {
+		SampleQueue queue = new SampleQueue();
+		queue.mark(hertz);
+		int total = CHUNK * 3 + 7;
+		for (int i = 0; i < total; i++) {
+			queue.add(i * 100L, i);
+		}
+		assertEquals(total, queue.published());
+
+		long next = 0;
+		while (queue.size() > 0) {
+			int count = queue.ready(1000);
+			next = expect( take(queue, count), next );
+		}
+		assertEquals(total, next);
+		assertEquals(total, queue.taken());
+	}
+
+	@Test
+	public void rateMarkEndsTheBatchBeforeIt() throws IOException {
+		SampleQueue queue = new SampleQueue();
+		queue.mark(hertz);
+		for (int i = 0; i < 5; i++) {
+			queue.add(i * 100L, i);
+		}
+		queue.mark(seconds);
+		for (int i = 5; i < 8; i++) {
+			queue.add(i * 100L, i);
+		}
+
+		assertEquals(5, queue.ready(100));
+		assertEquals( hertz, queue.rate() );
+		assertTrue( queue.rateChangesAfter(5) );
+		assertTrue( queue.hasWork(100) );
+		long next = expect( take(queue, 5), 0 );
+
+		assertEquals(3, queue.ready(100));
+		assertEquals( seconds, queue.rate() );
+		assertFalse( queue.rateChangesAfter(3) );
+		assertFalse( "an open run is only sent once full", queue.hasWork(100) );
+		assertEquals(8, expect( take(queue, 3), next ));
+	}
+
+	@Test
+	public void readyIsCappedAtTheBatchSize() {
+		SampleQueue queue = new SampleQueue();
+		queue.mark(hertz);
+		for (int i = 0; i < 50; i++) {
+			queue.add(i, i);
+		}
+		assertEquals(20, queue.ready(20));
+		assertTrue( queue.hasWork(20) );
+		assertFalse( queue.hasWork(51) );
+	}
+
+	@Test
+	public void bulkAddMatchesSingleAdds() throws IOException {
+		int total = CHUNK * 2 + 300;
+		long [] timestamps = new long [total + 10];
+		float [] values = new float [total + 10];
+		for (int i = 0; i < total; i++) {
+			timestamps[i + 10] = i * 100L;
+			values[i + 10] = i;
+		}
+
+		SampleQueue queue = new SampleQueue();
+		queue.mark(hertz);
+		queue.add(timestamps, values, 10, 100);
+		queue.add(timestamps[110], values[110]);
+		queue.add(timestamps, values, 111, total - 101);
+		assertEquals(total, queue.published());
+		assertEquals(total, queue.waiting());
+
+		long next = 0;
+		while (queue.size() > 0) {
+			next = expect( take(queue, queue.ready(777)), next );
+		}
+		assertEquals(total, next);
+	}
+
+	@Test
+	public void bulkAddAfterARateChange() throws IOException {
+		SampleQueue queue = new SampleQueue();
+		queue.mark(hertz);
+		queue.add(0, 0);
+		queue.mark(seconds);
+		queue.add(new long [] { 100, 200, 300 }, new float [] { 1, 2, 3 }, 0, 3);
+
+		assertEquals(1, queue.ready(10));
+		assertEquals( hertz, queue.rate() );
+		long next = expect( take(queue, 1), 0 );
+		assertEquals(3, queue.ready(10));
+		assertEquals( seconds, queue.rate() );
+		assertEquals(4, expect( take(queue, 3), next ));
+	}
+
+	@Test
+	public void drainedChunksAreReused() throws IOException {
+		SampleQueue queue = new SampleQueue();
+		queue.mark(hertz);
+		for (int i = 0; i < CHUNK * 3; i++) {
+			queue.add(i * 100L, i);
+		}
+		long next = expect( take(queue, CHUNK * 3), 0 );
+		// the consumer lets go of a chunk once it moves past it, the last one is still its head
+		assertEquals(2, queue.spareChunks());
+
+		for (int i = 0; i < CHUNK; i++) {
+			queue.add(next * 100 + i * 100L, next + i);
+		}
+		assertEquals(1, queue.spareChunks());
+		assertEquals(CHUNK * 4, expect( take(queue, CHUNK), next ));
+		assertEquals(2, queue.spareChunks());
+	}
+
+	@Test
+	public void spareChunksAreBounded() throws IOException {
+		SampleQueue queue = new SampleQueue();
+		queue.mark(hertz);
+		int total = CHUNK * (SampleQueue.MAX_SPARE + 4);
+		for (int i = 0; i < total; i++) {
+			queue.add(i * 100L, i);
+		}
+		expect( take(queue, total), 0 );
+		assertEquals(SampleQueue.MAX_SPARE, queue.spareChunks());
+	}
+
+	@Test
+	public void steadyStateRoundsStayInOrder() throws IOException {
+		SampleQueue queue = new SampleQueue();
+		queue.mark(hertz);
+		long added = 0, next = 0;
+		for (int round = 0; round < 50; round++) {
+			for (int i = 0; i < 700; i++, added++) {
+				queue.add(added * 100, added);
+			}
+			next = expect( take(queue, queue.ready(1000)), next );
+			assertTrue( queue.spareChunks() <= SampleQueue.MAX_SPARE );
+		}
+		assertEquals(added, next);
+	}
+
+	@Test
+	public void consumerOnAnotherThreadSeesEverySample() throws Exception {
+		final SampleQueue queue = new SampleQueue();
+		final int total = CHUNK * 40;
+		queue.mark(hertz);
+
+		final long [] next = new long [1];
+		final Exception [] failure = new Exception [1];
+		Thread consumer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (next[0] < total) {
+						int count = queue.ready(500);
+						if (count > 0) {
+							next[0] = expect( take(queue, count), next[0] );
+						} else {
+							Thread.yield();
+						}
+					}
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		consumer.start();
+		for (int i = 0; i < total; i++) {
+			queue.add(i * 100L, i);
+		}
+		consumer.join(30000);
+		assertFalse( consumer.isAlive() );
+		assertNull( failure[0] );
+		assertEquals(total, next[0]);
+	}
+
+	private static byte [] take (SampleQueue queue, int count) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		queue.take(new XDROutStream(out), count);
+		return out.toByteArray();
+	}
+
+	/* checks that samples numbered from next were taken, the timestamp of each is its number times 100 */
+	private static long expect (byte [] xdr, long next) throws IOException {
+		XDRInStream in = new XDRInStream( new ByteArrayInputStream(xdr) );
+		for (int i = 0; i < xdr.length / 12; i++, next++) {
+			assertEquals(next * 100, in.readHyper());
+			assertEquals((float)next, in.readFloat(), 0);
+		}
+		return next;
+	}
+
+	private static SampleRate rate (int rate, int type) {
+		try {
+			return new SampleRate(rate, type);
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package microstrain.sensorcloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import microstrain.sensorcloud.exception.SCHTTPException;
+import microstrain.sensorcloud.xdr.XDRInStream;
+import microstrain.sensorcloud.xdr.XDROutStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpoolLogTest {
+	private static final int SEGMENT_SIZE = 64 * 1024;
+
+	/* samples in more than two segments */
+	private static final int MANY = 12000;
+
+	private final SampleRate hertz = rate(10, SampleRate.HERTZ);
+	private final SampleRate seconds = rate(5, SampleRate.SECONDS);
+
+	private File directory;
+	private UploadSpool spool;
+
+	@Before
+	public void createSpool() throws IOException {
+		directory = File.createTempFile("spool", "");
+		directory.delete();
+		spool = new UploadSpool(directory, SEGMENT_SIZE);
+	}
+
+	@After
+	public void deleteSpool() {
+		spool.close();
+		delete(directory);
+	}
+
+	@Test
+	public void emptySpoolReplaysNothing() throws IOException {
+		SpoolLog log = open();
+		SampleQueue queue = new SampleQueue();
+		assertNull( log.replay(queue) );
+		assertEquals(0, queue.published());
+		log.close();
+	}
+
+	@Test
+	public void unacknowledgedSamplesAreReplayed() throws IOException {
+		SpoolLog log = open();
+		log.replay( new SampleQueue() );
+		for (int i = 0; i < 10; i++) {
+			log.append(i * 100L, i, hertz);
+		}
+		appendRun(log, 10, MANY, seconds);
+		log.sync();
+		log.close();
+		assertTrue( segments().size() > 2 );
+
+		SampleQueue queue = new SampleQueue();
+		assertEquals( seconds, open().replay(queue) );
+		assertEquals(10 + MANY, queue.published());
+
+		assertEquals(10, queue.ready(100));
+		assertEquals( hertz, queue.rate() );
+		long next = expect(queue, 10, 0);
+		assertEquals( MANY, queue.ready(Integer.MAX_VALUE) );
+		assertEquals( seconds, queue.rate() );
+		assertEquals( 10 + MANY, expect(queue, MANY, next) );
+	}
+
+	@Test
+	public void acknowledgedSegmentsAreDeleted() throws IOException {
+		SpoolLog log = open();
+		log.replay( new SampleQueue() );
+		appendRun(log, 0, MANY, hertz);
+		int written = segments().size();
+		assertTrue(written > 2);
+
+		log.acknowledge(0, MANY / 2);
+		int left = segments().size();
+		assertTrue( "the first segment is answered in full", left < written );
+		assertTrue( "the segment being written is kept", left > 0 );
+
+		log.acknowledge(MANY / 2, MANY);
+		log.close();
+		assertEquals(0, segments().size());
+
+		SampleQueue queue = new SampleQueue();
+		assertNull( open().replay(queue) );
+		assertEquals(0, queue.published());
+	}
+
+	@Test
+	public void rejectedUploadsAreSetAsideRatherThanReplayed() throws IOException {
+		SpoolLog log = open();
+		log.replay( new SampleQueue() );
+		appendRun(log, 0, 100, hertz);
+		byte [] upload = { 1, 2, 3, 4 };
+		log.sending(60);
+		log.reject(0, 60, upload);
+		log.close();
+		assertEquals(1, segments().size());
+
+		File [] rejected = new File( logDirectory(), SpoolLog.REJECTED ).listFiles();
+		assertEquals(1, rejected.length);
+		assertTrue( Arrays.equals( upload, read(rejected[0]) ) );
+
+		SampleQueue queue = new SampleQueue();
+		assertEquals( hertz, open().replay(queue) );
+		assertEquals(40, queue.published());
+		assertEquals( 100, expect(queue, queue.ready(1000), 60) );
+	}
+
+	@Test
+	public void answeredSamplesAreNotReplayed() throws IOException {
+		SpoolLog log = open();
+		log.replay( new SampleQueue() );
+		appendRun(log, 0, MANY, hertz);
+		log.sending(MANY - 10);
+		log.acknowledge(0, MANY - 10);
+		log.close();
+		assertEquals(1, segments().size());
+
+		SampleQueue queue = new SampleQueue();
+		SpoolLog again = open();
+		assertEquals( hertz, again.replay(queue) );
+		assertEquals(10, queue.published());
+		assertEquals(0, again.getResendTo());
+		assertEquals( MANY, expect(queue, queue.ready(1000), MANY - 10) );
+
+		// answering the rest leaves nothing, the mark included
+		again.acknowledge(0, 10);
+		again.close();
+		assertEquals(0, segments().size());
+		assertFalse( new File( logDirectory(), SpoolLog.MARK ).exists() );
+	}
+
+	@Test
+	public void uploadInFlightIsReplayedWithItsOwnBoundaries() throws IOException {
+		SpoolLog log = open();
+		log.replay( new SampleQueue() );
+		appendRun(log, 0, 250, hertz);
+		log.sending(100);
+		log.acknowledge(0, 100);
+		log.sending(200);
+		log.close();
+
+		SampleQueue queue = new SampleQueue();
+		SpoolLog again = open();
+		again.replay(queue);
+		assertEquals(150, queue.published());
+		assertEquals(100, again.getResendTo());
+		again.close();
+	}
+
+	@Test
+	public void conflictOnAReplayedUploadKeepsTheSamplesSentAfterIt() throws IOException {
+		SpoolLog log = open();
+		log.replay( new SampleQueue() );
+		appendRun(log, 0, 250, hertz);
+		log.sending(100);
+		log.acknowledge(0, 100);
+		log.sending(200);
+		log.close();
+
+		// the upload in flight had landed before the process ended
+		UploadLog server = new UploadLog(409);
+		TimeSeriesStream stream = TimeSeriesStream.getEmptyInstanceOf("sensor", "channel", server);
+		stream.setUploadSpool(spool);
+		stream.close();
+		assertEquals( Arrays.asList(100, 50), server.counts );
+		assertEquals(0, segments().size());
+	}
+
+	@Test
+	public void tornMarkFallsBackToTheSlotBeforeIt() throws IOException {
+		SpoolLog log = open();
+		log.replay( new SampleQueue() );
+		appendRun(log, 0, 100, hertz);
+		log.sending(20);
+		log.acknowledge(0, 20);
+		log.sending(40);
+		log.close();
+
+		// three writes, the last went to the second slot and the one before it, without the upload in flight, to the first
+		RandomAccessFile raf = new RandomAccessFile( new File( logDirectory(), SpoolLog.MARK ), "rw" );
+		try {
+			raf.seek(40 + 10);
+			raf.write(0xff);
+		} finally {
+			raf.close();
+		}
+
+		SampleQueue queue = new SampleQueue();
+		SpoolLog again = open();
+		again.replay(queue);
+		assertEquals(80, queue.published());
+		assertEquals(0, again.getResendTo());
+		again.close();
+	}
+
+	@Test
+	public void replayedSamplesAreCountedFromZero() throws IOException {
+		SpoolLog log = open();
+		log.replay( new SampleQueue() );
+		appendRun(log, 0, 50, hertz);
+		log.close();
+
+		// positions of the second run line up with the queue it replayed into
+		SpoolLog again = open();
+		SampleQueue queue = new SampleQueue();
+		again.replay(queue);
+		appendRun(again, 50, 50, hertz);
+		again.acknowledge(0, 100);
+		again.close();
+		assertEquals(0, segments().size());
+	}
+
+	@Test
+	public void tornRecordIsDiscarded() throws IOException {
+		SpoolLog log = open();
+		log.replay( new SampleQueue() );
+		for (int i = 0; i < 5; i++) {
+			log.append(i * 100L, i, hertz);
+		}
+		for (int i = 5; i < 10; i++) {
+			log.append(i * 100L, i, seconds);
+		}
+		log.close();
+
+		// segment header, then the first record's header, rate and five samples, then the second record's
+		List<File> files = segments();
+		assertEquals(1, files.size());
+		int second = 8 + 16 + 5 * 12;
+		RandomAccessFile raf = new RandomAccessFile(files.get(0), "rw");
+		try {
+			raf.seek(second + 16);
+			int b = raf.read();
+			raf.seek(second + 16);
+			raf.write(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+
+		SampleQueue queue = new SampleQueue();
+		assertEquals( hertz, open().replay(queue) );
+		assertEquals(5, queue.published());
+		assertEquals( 5, expect(queue, queue.ready(100), 0) );
+	}
+
+	@Test
+	public void segmentWithNothingIntactIsDeleted() throws IOException {
+		SpoolLog log = open();
+		log.replay( new SampleQueue() );
+		log.append(100, 1, hertz);
+		log.close();
+
+		List<File> files = segments();
+		RandomAccessFile raf = new RandomAccessFile(files.get(0), "rw");
+		try {
+			raf.writeInt(0);
+		} finally {
+			raf.close();
+		}
+
+		SampleQueue queue = new SampleQueue();
+		assertNull( open().replay(queue) );
+		assertEquals(0, segments().size());
+	}
+
+	private SpoolLog open() {
+		return spool.open("serial", "sensor", "channel");
+	}
+
+	private File logDirectory() {
+		return new File( directory, "serial" + File.separator + "sensor" + File.separator + "channel" );
+	}
+
+	private static byte [] read (File file) throws IOException {
+		byte [] bytes = new byte [(int)file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < bytes.length) {
+				read += in.read(bytes, read, bytes.length - read);
+			}
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	private static void appendRun (SpoolLog log, int from, int count, SampleRate rate) throws IOException {
+		long [] timestamps = new long [count];
+		float [] values = new float [count];
+		for (int i = 0; i < count; i++) {
+			timestamps[i] = (from + i) * 100L;
+			values[i] = from + i;
+		}
+		log.append(timestamps, values, 0, count, rate);
+	}
+
+	/* takes samples numbered from next, the timestamp of each is its number times 100 */
+	private static long expect (SampleQueue queue, int count, long next) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		queue.take(new XDROutStream(out), count);
+		XDRInStream in = new XDRInStream( new ByteArrayInputStream( out.toByteArray() ));
+		for (int i = 0; i < count; i++, next++) {
+			assertEquals(next * 100, in.readHyper());
+			assertEquals((float)next, in.readFloat(), 0);
+		}
+		return next;
+	}
+
+	private List<File> segments() {
+		List<File> found = new ArrayList<File>();
+		collect(directory, found);
+		return found;
+	}
+
+	private static void collect (File file, List<File> found) {
+		File [] children = file.listFiles();
+		if (children == null) {
+			if (file.getName().endsWith(SpoolLog.SUFFIX)) {
+				found.add(file);
+			}
+			return;
+		}
+		for (File child : children) {
+			collect(child, found);
+		}
+	}
+
+	private static void delete (File file) {
+		File [] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Records the number of points in each upload, answering the first ones with the given statuses
+	 */
+	private static class UploadLog implements Requester {
+		final List<Integer> counts = new ArrayList<Integer>();
+		private final LinkedList<Integer> statuses = new LinkedList<Integer>();
+
+		UploadLog (Integer... statuses) {
+			this.statuses.addAll( Arrays.asList(statuses) );
+		}
+
+		@Override
+		public synchronized void post (String url, byte [] data) {
+			counts.add( ((data[12] & 0xff) << 24) | ((data[13] & 0xff) << 16) | ((data[14] & 0xff) << 8) | (data[15] & 0xff) );
+			if (!statuses.isEmpty()) {
+				int status = statuses.removeFirst();
+				throw new SCHTTPException(status, "status " + status);
+			}
+		}
+
+		@Override
+		public void post (String url, Map<String, String> params, byte [] data) {
+			post(url, data);
+		}
+
+		@Override
+		public byte [] get (String url) throws IOException {
+			throw new IOException( "not served" );
+		}
+
+		@Override
+		public byte [] get (String url, Map<String, String> params) throws IOException {
+			throw new IOException( "not served" );
+		}
+
+		@Override
+		public void put (String url, byte [] data) {
+		}
+
+		@Override
+		public void put (String url, Map<String, String> params, byte [] data) {
+		}
+
+		@Override
+		public void delete (String url) {
+		}
+
+		@Override
+		public String getSerial() {
+			return "serial";
+		}
+	}
+
+	private static SampleRate rate (int rate, int type) {
+		try {
+			return new SampleRate(rate, type);
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
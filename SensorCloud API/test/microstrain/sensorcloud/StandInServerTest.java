@@ -0,0 +1,80 @@
+package microstrain.sensorcloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import microstrain.sensorcloud.exception.SCHTTPException;
+import microstrain.sensorcloud.http.ConnectionPool;
+import microstrain.sensorcloud.xdr.XDROutStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandInServerTest {
+	private static final String DATA = "sensors/sensor/channels/channel/streams/timeseries/data/";
+
+	private StandInServer server;
+	private ConnectionPool pool;
+	private Requester requester;
+
+	@Before
+	public void createChannel() throws Exception {
+		server = new StandInServer();
+		server.start();
+		server.addDevice("STANDIN", "key");
+		pool = new ConnectionPool();
+		requester = server.getRequester("STANDIN", "key", pool);
+		new Device("STANDIN", requester).createSensor("sensor", "Sensor", "test", "test sensor").createChannel("channel", "Channel", "test channel");
+	}
+
+	@After
+	public void stopServer() {
+		pool.close();
+		server.stop();
+	}
+
+	@Test
+	public void overlappingUploadIsAConflict() throws IOException {
+		requester.post( DATA, upload(100, 10) );
+		expectConflict( upload(100, 10) );
+		expectConflict( upload(50, 51) );
+		expectConflict( upload(109, 5) );
+		assertEquals(10, server.getPointCount("STANDIN", "sensor", "channel"));
+	}
+
+	@Test
+	public void adjacentUploadsAreStored() throws IOException {
+		requester.post( DATA, upload(100, 10) );
+		requester.post( DATA, upload(110, 10) );
+		requester.post( DATA, upload(90, 10) );
+		assertEquals(30, server.getPointCount("STANDIN", "sensor", "channel"));
+	}
+
+	private void expectConflict (byte [] upload) throws IOException {
+		try {
+			requester.post(DATA, upload);
+			fail("the upload should have been turned away");
+		} catch (SCHTTPException e) {
+			assertEquals(409, e.getStatusCode());
+		}
+	}
+
+	/* points one nanosecond apart from the first timestamp */
+	private static byte [] upload (long first, int count) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		XDROutStream xdr = new XDROutStream(bytes);
+		xdr.writeInt(1);
+		xdr.writeInt(SampleRate.HERTZ);
+		xdr.writeInt(10);
+		xdr.writeInt(count);
+		for (int i = 0; i < count; i++) {
+			xdr.writeHyper(first + i);
+			xdr.writeFloat(i);
+		}
+		return bytes.toByteArray();
+	}
+}
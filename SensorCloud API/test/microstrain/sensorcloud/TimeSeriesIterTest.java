@@ -0,0 +1,121 @@
+package microstrain.sensorcloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import microstrain.sensorcloud.http.ConnectionPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimeSeriesIterTest {
+	private static final long START = 1356998400000000000L;
+	private static final long INTERVAL = 10000000L;
+
+	/* several responses' worth of buffer */
+	private static final int POINTS = 5000;
+
+	private StandInServer server;
+	private ConnectionPool pool;
+	private TimeSeriesStream stream;
+
+	@Before
+	public void uploadData() throws Exception {
+		server = new StandInServer();
+		server.start();
+		server.addDevice("ITER", "key");
+		pool = new ConnectionPool(ConnectionPool.DEFAULT_MAX_CONNECTIONS, ConnectionPool.DEFAULT_IDLE_TIMEOUT);
+
+		Device device = new Device( "ITER", server.getRequester("ITER", "key", pool) );
+		Channel channel = device.createSensor("sensor", "Sensor", "test", "test sensor").createChannel("channel", "Channel", "test channel");
+		stream = channel.getTimeSeriesStream();
+		SampleRate rate = new SampleRate(100, SampleRate.HERTZ);
+		for (int i = 0; i < POINTS; i++) {
+			stream.addData(START + i * INTERVAL, i, rate);
+		}
+		stream.flush();
+		assertEquals(POINTS, server.getPointCount("ITER", "sensor", "channel"));
+	}
+
+	@After
+	public void stopServer() {
+		pool.close();
+		server.stop();
+	}
+
+	@Test
+	public void iteratorReadsEveryPoint() throws Exception {
+		TimeSeriesIter itr = stream.getData();
+		int count = 0;
+		while (itr.hasNext()) {
+			SampledPoint point = itr.next();
+			assertEquals(START + count * INTERVAL, point.getTimestamp());
+			assertEquals((float)count, point.getValue(), 0);
+			count++;
+		}
+		assertEquals(POINTS, count);
+	}
+
+	@Test(timeout = 30000)
+	public void abandonedIteratorsHoldNoConnections() throws Exception {
+		for (int i = 0; i < ConnectionPool.DEFAULT_MAX_CONNECTIONS + 2; i++) {
+			assertTrue( stream.getData().hasNext() );
+		}
+		assertNull( readAllElsewhere() );
+	}
+
+	@Test
+	public void closedStreamsGiveTheirConnectionsBack() throws Exception {
+		for (int i = 0; i < ConnectionPool.DEFAULT_MAX_CONNECTIONS + 2; i++) {
+			TimeSeriesIter itr = stream.streamData();
+			assertTrue( itr.hasNext() );
+			itr.close();
+			assertFalse( itr.hasNext() );
+		}
+		assertNull( readAllElsewhere() );
+	}
+
+	@Test
+	public void streamReadToTheEndGivesItsConnectionBack() throws Exception {
+		for (int i = 0; i < ConnectionPool.DEFAULT_MAX_CONNECTIONS + 2; i++) {
+			TimeSeriesIter itr = stream.streamData();
+			int count = 0;
+			while (itr.hasNext()) {
+				itr.next();
+				count++;
+			}
+			assertEquals(POINTS, count);
+		}
+		assertNull( readAllElsewhere() );
+	}
+
+	/* reads the data on another thread so that a request stuck waiting for a connection fails the test rather than hanging it */
+	private Exception readAllElsewhere() throws InterruptedException {
+		final Exception [] failure = { new IOException("timed out waiting for a connection") };
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					TimeSeriesIter itr = stream.getData();
+					int count = 0;
+					while (itr.hasNext()) {
+						itr.next();
+						count++;
+					}
+					failure[0] = count == POINTS ? null : new IOException("read " + count + " points");
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+		reader.join(10000);
+		return failure[0];
+	}
+}
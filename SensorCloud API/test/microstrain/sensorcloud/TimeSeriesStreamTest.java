@@ -0,0 +1,359 @@
+package microstrain.sensorcloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import microstrain.sensorcloud.exception.CircuitOpenException;
+import microstrain.sensorcloud.exception.InvalidTimestampException;
+import microstrain.sensorcloud.exception.SCHTTPException;
+import microstrain.sensorcloud.exception.SensorCloudRuntimeException;
+import microstrain.sensorcloud.xdr.XDRInStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TimeSeriesStreamTest {
+	private final SampleRate hertz = rate(10, SampleRate.HERTZ);
+	private final SampleRate seconds = rate(5, SampleRate.SECONDS);
+
+	private final HeldUploads server = new HeldUploads();
+	private final TimeSeriesStream stream = TimeSeriesStream.getEmptyInstanceOf("sensor", "channel", server);
+
+	@After
+	public void releaseUploads() {
+		server.gate.countDown();
+	}
+
+	@Test(timeout = 10000)
+	public void flushWaitsUntilTheUploadIsAccepted() throws Exception {
+		add(0, 10);
+		assertFalse( "the upload has not been answered", stream.flush(100, TimeUnit.MILLISECONDS) );
+		assertTrue( server.posted.await(5, TimeUnit.SECONDS) );
+
+		server.gate.countDown();
+		stream.flush();
+		assertEquals( Arrays.asList(10), server.counts() );
+		assertTrue( stream.flush(0, TimeUnit.MILLISECONDS) );
+	}
+
+	@Test(timeout = 10000)
+	public void bulkAddDataReturnsWithoutWaitingForTheUpload() throws Exception {
+		List<Point> points = new ArrayList<Point>();
+		for (int i = 0; i < 10; i++) {
+			points.add( new Point(i * 100L, i) );
+		}
+		stream.bulkAddData(points, hertz);
+
+		// sent at once though far short of a full buffer, and still held by the server
+		assertTrue( server.posted.await(5, TimeUnit.SECONDS) );
+		assertFalse( stream.flush(50, TimeUnit.MILLISECONDS) );
+
+		server.gate.countDown();
+		stream.flush();
+		assertEquals( Arrays.asList(10), server.counts() );
+	}
+
+	@Test(timeout = 10000)
+	public void rejectedUploadIsThrownByFlushAndTheNextAdd() throws Exception {
+		server.answer(400);
+		server.gate.countDown();
+		add(0, 10);
+		try {
+			stream.flush();
+			fail("the rejected upload should have been reported");
+		} catch (SCHTTPException e) {
+			assertEquals(400, e.getStatusCode());
+		}
+		try {
+			add(10, 1);
+			fail("the stream should have stopped on the rejected upload");
+		} catch (SCHTTPException e) {
+			assertEquals(400, e.getStatusCode());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void conflictCountsAsAccepted() throws Exception {
+		server.answer(409);
+		server.gate.countDown();
+		add(0, 10);
+		stream.flush();
+		add(10, 5);
+		stream.flush();
+		assertEquals( Arrays.asList(10, 5), server.counts() );
+	}
+
+	@Test(timeout = 10000)
+	public void flushOnlyWaitsForThePointsAddedBeforeIt() throws Exception {
+		assertTrue( "nothing added, nothing to wait for", stream.flush(0, TimeUnit.MILLISECONDS) );
+		add(0, 10);
+		SCFuture<Integer> first = stream.flushAsync();
+		assertTrue( server.posted.await(5, TimeUnit.SECONDS) );
+		add(10, 5);
+
+		server.gate.countDown();
+		assertEquals(10, (int)first.get());
+		stream.flush();
+		assertEquals( Arrays.asList(10, 5), server.counts() );
+	}
+
+	@Test(timeout = 10000)
+	public void heldUploadGivesUpAfterTheLastRetry() throws Exception {
+		// an open circuit asks to be tried again at once, so the retries run without a delay
+		server.unreachable(TimeSeriesStream.MAX_RETRIES + 1);
+		server.gate.countDown();
+		add(0, 10);
+		try {
+			stream.flush();
+			fail("the stream should have given up on the upload");
+		} catch (CircuitOpenException e) {
+			// expected
+		}
+		assertEquals(TimeSeriesStream.MAX_RETRIES + 1, server.attempts());
+		assertTrue( server.counts().isEmpty() );
+		try {
+			add(10, 1);
+			fail("the stream should have stopped");
+		} catch (SensorCloudRuntimeException e) {
+			// expected
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void acceptedUploadStartsTheRetriesOver() throws Exception {
+		server.unreachable(TimeSeriesStream.MAX_RETRIES);
+		server.gate.countDown();
+		add(0, 10);
+		stream.flush();
+
+		server.unreachable(TimeSeriesStream.MAX_RETRIES);
+		add(10, 5);
+		stream.flush();
+		assertEquals( Arrays.asList(10, 5), server.counts() );
+		assertEquals(TimeSeriesStream.MAX_RETRIES * 2 + 2, server.attempts());
+	}
+
+	@Test(timeout = 10000)
+	public void primitiveAddsGoUpInOrder() throws Exception {
+		server.gate.countDown();
+		add(0, 10);
+		stream.flush();
+		assertEquals( Arrays.asList(10), server.counts() );
+		assertEquals(10, expect( server.uploads().get(0), 0 ));
+	}
+
+	@Test(timeout = 10000)
+	public void bulkArraysAreTakenFromTheirOffset() throws Exception {
+		server.gate.countDown();
+		long [] timestamps = new long [12];
+		float [] values = new float [12];
+		for (int i = 0; i < 10; i++) {
+			timestamps[i + 2] = i * 100L;
+			values[i + 2] = i;
+		}
+		stream.addData(timestamps, values, 2, 4, hertz);
+		add(4, 1);
+		stream.addData(timestamps, values, 7, 5, hertz);
+		stream.flush();
+
+		// the three calls make one run at one rate, so one upload
+		assertEquals( Arrays.asList(10), server.counts() );
+		assertEquals(10, expect( server.uploads().get(0), 0 ));
+	}
+
+	@Test(timeout = 10000)
+	public void rateChangeAtABulkCallEndsTheRunBeforeIt() throws Exception {
+		server.gate.countDown();
+		add(0, 4);
+		stream.addData(new long [] { 400, 500, 600 }, new float [] { 4, 5, 6 }, 0, 3, seconds);
+		stream.bulkAddData( Arrays.asList( new Point(700, 7), new Point(800, 8) ), hertz );
+		stream.flush();
+
+		assertEquals( Arrays.asList(4, 3, 2), server.counts() );
+		assertEquals( Arrays.asList(10, 5, 10), server.rates() );
+		long next = 0;
+		for (byte [] upload : server.uploads()) {
+			next = expect(upload, next);
+		}
+		assertEquals(9, next);
+	}
+
+	@Test(timeout = 10000)
+	public void arraysAreBoundsChecked() throws Exception {
+		server.gate.countDown();
+		long [] timestamps = new long [10];
+		float [] values = new float [8];
+		int [][] runs = { { -1, 2 }, { 0, -1 }, { 9, 2 }, { 0, 9 }, { Integer.MAX_VALUE, 2 } };
+		for (int [] run : runs) {
+			try {
+				stream.addData(timestamps, values, run[0], run[1], hertz);
+				fail("samples " + run[0] + " to " + (run[0] + run[1]) + " are outside the arrays");
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+		}
+		stream.addData(timestamps, values, 8, 0, hertz);
+		stream.flush();
+		assertTrue( "nothing was added", server.counts().isEmpty() );
+	}
+
+	@Test(timeout = 10000)
+	public void negativeTimestampRejectsTheWholeRun() throws Exception {
+		server.gate.countDown();
+		try {
+			stream.addData(new long [] { 0, 100, -200, 300 }, new float [4], 0, 4, hertz);
+			fail("a negative timestamp should have been rejected");
+		} catch (InvalidTimestampException e) {
+			assertTrue( e.getMessage(), e.getMessage().contains("index 2") );
+		}
+		try {
+			stream.addData(-1, 0, hertz);
+			fail("a negative timestamp should have been rejected");
+		} catch (InvalidTimestampException e) {
+			// expected
+		}
+
+		// a negative timestamp outside the run does not count
+		stream.addData(new long [] { -100, 0, 100 }, new float [3], 1, 2, hertz);
+		stream.flush();
+		assertEquals( Arrays.asList(2), server.counts() );
+	}
+
+	private void add (int from, int count) throws Exception {
+		for (int i = from; i < from + count; i++) {
+			stream.addData(i * 100L, i, hertz);
+		}
+	}
+
+	/* checks that samples numbered from next were uploaded, the timestamp of each is its number times 100 */
+	private static long expect (byte [] upload, long next) throws IOException {
+		XDRInStream in = new XDRInStream( new ByteArrayInputStream(upload) );
+		assertEquals(1, in.readInt());
+		in.readInt();
+		in.readInt();
+		for (int count = in.readInt(); count > 0; count--, next++) {
+			assertEquals(next * 100, in.readHyper());
+			assertEquals((float)next, in.readFloat(), 0);
+		}
+		return next;
+	}
+
+	/**
+	 * Holds every upload until released, turning the first ones away as unreachable or answering them with the given statuses
+	 */
+	private static class HeldUploads implements Requester {
+		final CountDownLatch posted = new CountDownLatch(1);
+		final CountDownLatch gate = new CountDownLatch(1);
+		private final List<byte []> uploads = new ArrayList<byte []>();
+		private final LinkedList<Integer> statuses = new LinkedList<Integer>();
+		private int unreachable, attempts;
+
+		synchronized void unreachable (int times) {
+			unreachable = times;
+		}
+
+		synchronized int attempts() {
+			return attempts;
+		}
+
+		synchronized void answer (Integer... statuses) {
+			this.statuses.addAll( Arrays.asList(statuses) );
+		}
+
+		synchronized List<byte []> uploads() {
+			return new ArrayList<byte []>(uploads);
+		}
+
+		/* the number of points in each upload */
+		synchronized List<Integer> counts() {
+			return header(12);
+		}
+
+		/* the sample rate of each upload */
+		synchronized List<Integer> rates() {
+			return header(8);
+		}
+
+		private List<Integer> header (int at) {
+			List<Integer> values = new ArrayList<Integer>();
+			for (byte [] data : uploads) {
+				values.add( ((data[at] & 0xff) << 24) | ((data[at + 1] & 0xff) << 16) | ((data[at + 2] & 0xff) << 8) | (data[at + 3] & 0xff) );
+			}
+			return values;
+		}
+
+		@Override
+		public void post (String url, byte [] data) throws IOException {
+			posted.countDown();
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+			synchronized (this) {
+				attempts++;
+				if (unreachable > 0) {
+					unreachable--;
+					throw new CircuitOpenException( System.currentTimeMillis() );
+				}
+				uploads.add(data);
+				if (!statuses.isEmpty()) {
+					int status = statuses.removeFirst();
+					throw new SCHTTPException(status, "status " + status);
+				}
+			}
+		}
+
+		@Override
+		public void post (String url, Map<String, String> params, byte [] data) throws IOException {
+			post(url, data);
+		}
+
+		@Override
+		public byte [] get (String url) throws IOException {
+			throw new IOException( "not served" );
+		}
+
+		@Override
+		public byte [] get (String url, Map<String, String> params) throws IOException {
+			throw new IOException( "not served" );
+		}
+
+		@Override
+		public void put (String url, byte [] data) {
+		}
+
+		@Override
+		public void put (String url, Map<String, String> params, byte [] data) {
+		}
+
+		@Override
+		public void delete (String url) {
+		}
+
+		@Override
+		public String getSerial() {
+			return "serial";
+		}
+	}
+
+	private static SampleRate rate (int rate, int type) {
+		try {
+			return new SampleRate(rate, type);
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
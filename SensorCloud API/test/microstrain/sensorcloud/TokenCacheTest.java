@@ -0,0 +1,163 @@
+package microstrain.sensorcloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TokenCacheTest {
+	private static final String SERVER = "sensorcloud.microstrain.com";
+	private static final char [] PASSPHRASE = "correct horse".toCharArray();
+
+	private File file;
+
+	@Before
+	public void createFile() throws IOException {
+		file = File.createTempFile("tokens", ".sccache");
+		file.delete();
+	}
+
+	@After
+	public void deleteFile() {
+		file.delete();
+		new File( file.getPath() + ".tmp" ).delete();
+	}
+
+	@Test
+	public void savedTokensAreReadBack() throws IOException {
+		TokenCache cache = new TokenCache(file, PASSPHRASE);
+		cache.put("SERIAL1", "key1", SERVER, true, token("token1", "dsx.sensorcloud.com", 443, 1000));
+		cache.put("SERIAL2", "key2", SERVER, false, token("token2", "dsx.sensorcloud.com", 80, 2000));
+		cache.save();
+
+		TokenCache reopened = new TokenCache(file, PASSPHRASE);
+		assertEquals(2, reopened.size());
+		TokenManager.Token token = reopened.get("SERIAL1", "key1", SERVER, true);
+		assertNotNull(token);
+		assertEquals("token1", token.token);
+		assertEquals("dsx.sensorcloud.com", token.host);
+		assertEquals(443, token.port);
+		assertEquals(1000, token.issued);
+		assertEquals("token2", reopened.get("SERIAL2", "key2", SERVER, false).token);
+	}
+
+	@Test
+	public void wrongPassphraseStartsAnEmptyCache() throws IOException {
+		TokenCache cache = new TokenCache(file, PASSPHRASE);
+		cache.put("SERIAL", "key", SERVER, true, token("token", "host", 443, 0));
+		cache.save();
+
+		char [] other = "wrong horse".toCharArray();
+		TokenCache wrong = new TokenCache(file, other);
+		assertEquals(0, wrong.size());
+		assertNull( wrong.get("SERIAL", "key", SERVER, true) );
+
+		// the file is replaced under the new passphrase rather than left unreadable
+		wrong.put("SERIAL", "key", SERVER, true, token("newer", "host", 443, 0));
+		wrong.save();
+		assertEquals("newer", new TokenCache(file, other).get("SERIAL", "key", SERVER, true).token);
+		assertEquals(0, new TokenCache(file, PASSPHRASE).size());
+	}
+
+	@Test
+	public void tamperedFileIsIgnored() throws IOException {
+		TokenCache cache = new TokenCache(file, PASSPHRASE);
+		cache.put("SERIAL", "key", SERVER, true, token("token", "host", 443, 0));
+		cache.save();
+		long length = file.length();
+
+		// the encrypted entries, then the mac itself
+		for (long at : new long [] { length - 40, length - 1 }) {
+			flip(at);
+			assertEquals(0, new TokenCache(file, PASSPHRASE).size());
+			flip(at);
+			assertEquals(1, new TokenCache(file, PASSPHRASE).size());
+		}
+	}
+
+	@Test
+	public void truncatedOrForeignFileIsIgnored() throws IOException {
+		TokenCache cache = new TokenCache(file, PASSPHRASE);
+		cache.put("SERIAL", "key", SERVER, true, token("token", "host", 443, 0));
+		cache.save();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(20);
+		} finally {
+			raf.close();
+		}
+		assertEquals(0, new TokenCache(file, PASSPHRASE).size());
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write( new byte [256] );
+		} finally {
+			out.close();
+		}
+		assertEquals(0, new TokenCache(file, PASSPHRASE).size());
+	}
+
+	@Test
+	public void tokenIsOnlyHandedOutForWhatItWasIssuedFor() throws IOException {
+		TokenCache cache = new TokenCache(file, PASSPHRASE);
+		cache.put("SERIAL", "key", SERVER, true, token("token", "host", 443, 0));
+
+		assertNotNull( cache.get("SERIAL", "key", SERVER, true) );
+		assertNull( "another scheme", cache.get("SERIAL", "key", SERVER, false) );
+		assertNull( "another key", cache.get("SERIAL", "other key", SERVER, true) );
+		assertNull( "another server", cache.get("SERIAL", "key", "localhost:8080", true) );
+		assertNull( "another device", cache.get("OTHER", "key", SERVER, true) );
+	}
+
+	@Test
+	public void schemesKeepTheirOwnTokens() throws IOException {
+		TokenCache cache = new TokenCache(file, PASSPHRASE);
+		cache.put("SERIAL", "key", SERVER, true, token("secure", "host", 443, 0));
+		cache.put("SERIAL", "key", SERVER, false, token("plain", "host", 80, 0));
+		cache.save();
+
+		TokenCache reopened = new TokenCache(file, PASSPHRASE);
+		assertEquals("secure", reopened.get("SERIAL", "key", SERVER, true).token);
+		assertEquals(80, reopened.get("SERIAL", "key", SERVER, false).port);
+	}
+
+	@Test
+	public void rejectedKeyOnlyRemovesItsOwnToken() {
+		TokenCache cache = new TokenCache(file, PASSPHRASE);
+		cache.put("SERIAL", "new key", SERVER, true, token("token", "host", 443, 0));
+
+		// a late rejection of the old key does not throw away the token of the new one
+		cache.remove("SERIAL", "old key", true);
+		assertNotNull( cache.get("SERIAL", "new key", SERVER, true) );
+		cache.remove("SERIAL", "new key", false);
+		assertEquals(1, cache.size());
+
+		cache.remove("SERIAL", "new key", true);
+		assertEquals(0, cache.size());
+	}
+
+	private void flip (long at) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(at);
+			int b = raf.read();
+			raf.seek(at);
+			raf.write(b ^ 0x01);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static TokenManager.Token token (String token, String host, int port, long issued) {
+		return new TokenManager.Token(token, host, port, "/", "?auth_token=" + token, issued);
+	}
+}
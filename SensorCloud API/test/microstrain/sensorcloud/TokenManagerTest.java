@@ -0,0 +1,173 @@
+package microstrain.sensorcloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TokenManagerTest {
+	private static final int THREADS = 8;
+
+	@Test(timeout = 10000)
+	public void concurrentRefreshesShareOneFetch() throws Exception {
+		final BlockingManager manager = new BlockingManager();
+		final TokenManager.Token [] tokens = new TokenManager.Token [THREADS];
+		final Exception [] failures = new Exception [THREADS];
+		Thread [] threads = new Thread [THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						tokens[index] = manager.refresh(null);
+					} catch (Exception e) {
+						failures[index] = e;
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		assertTrue( manager.started.await(5, TimeUnit.SECONDS) );
+		// give the others time to find the refresh in flight and park on it
+		Thread.sleep(200);
+		manager.release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(1, manager.fetches.get());
+		for (int i = 0; i < THREADS; i++) {
+			assertNull( failures[i] );
+			assertSame( tokens[0], tokens[i] );
+		}
+		assertSame( tokens[0], manager.get() );
+	}
+
+	@Test
+	public void staleTokenThatWasReplacedIsNotFetchedAgain() throws IOException {
+		CountingManager manager = new CountingManager();
+		TokenManager.Token first = manager.refresh(null);
+		TokenManager.Token second = manager.refresh(first);
+		assertEquals(2, manager.fetches.get());
+
+		// a request that was sent with the first token comes back rejected after the second arrived
+		assertSame( second, manager.refresh(first) );
+		assertEquals(2, manager.fetches.get());
+	}
+
+	@Test
+	public void failedRefreshIsReportedAndTriedAgain() throws IOException {
+		CountingManager manager = new CountingManager();
+		manager.failNext = true;
+		try {
+			manager.refresh(null);
+			fail("the refresh should have failed");
+		} catch (IOException e) {
+			assertEquals("rejected", e.getMessage());
+		}
+		assertNull( manager.get() );
+
+		TokenManager.Token token = manager.refresh(null);
+		assertSame( token, manager.get() );
+		assertEquals(2, manager.fetches.get());
+	}
+
+	@Test
+	public void errorInFetchDoesNotLeaveTheRefreshInFlight() throws IOException {
+		CountingManager manager = new CountingManager();
+		manager.errorNext = true;
+		try {
+			manager.refresh(null);
+			fail("the error should have been rethrown");
+		} catch (AssertionError e) {
+			assertEquals("broken", e.getMessage());
+		}
+
+		TokenManager.Token token = manager.refresh(null);
+		assertSame( token, manager.get() );
+	}
+
+	@Test
+	public void seededTokenIsUsedUntilRejected() throws IOException {
+		CountingManager manager = new CountingManager(1);
+		TokenManager.Token seeded = new TokenManager.Token("old", "host", 443, "/", "?auth_token=old", 0);
+		manager.seed(seeded);
+
+		// however old, a seeded token does not trigger a background refresh
+		assertSame( seeded, manager.get() );
+		assertEquals(0, manager.fetches.get());
+
+		TokenManager.Token fresh = manager.refresh(seeded);
+		assertEquals(1, manager.fetches.get());
+		assertSame( fresh, manager.get() );
+	}
+
+	private static TokenManager.Token token (int n) {
+		return new TokenManager.Token("token" + n, "host", 443, "/", "?auth_token=token" + n);
+	}
+
+	/**
+	 * Hands out numbered tokens, failing a fetch when told to
+	 */
+	private static class CountingManager extends TokenManager {
+		final AtomicInteger fetches = new AtomicInteger();
+		volatile boolean failNext, errorNext;
+
+		CountingManager() {
+			this(0);
+		}
+
+		CountingManager (long refreshAge) {
+			super(refreshAge);
+		}
+
+		@Override
+		protected Token fetch() throws IOException {
+			int n = fetches.incrementAndGet();
+			if (failNext) {
+				failNext = false;
+				throw new IOException("rejected");
+			}
+			if (errorNext) {
+				errorNext = false;
+				throw new AssertionError("broken");
+			}
+			return token(n);
+		}
+	}
+
+	/**
+	 * Holds its fetch until released, so other threads pile up on it
+	 */
+	private static class BlockingManager extends TokenManager {
+		final AtomicInteger fetches = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		BlockingManager() {
+			super(0);
+		}
+
+		@Override
+		protected Token fetch() throws IOException {
+			int n = fetches.incrementAndGet();
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+			return token(n);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package microstrain.sensorcloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class UploadSchedulerTest {
+
+	@Test
+	public void growingNeverLowersTheThreads() throws InterruptedException {
+		UploadScheduler scheduler = new UploadScheduler(2);
+		try {
+			scheduler.grow(6);
+			assertEquals(6, scheduler.getThreadCount());
+			scheduler.grow(3);
+			assertEquals(6, scheduler.getThreadCount());
+		} finally {
+			scheduler.close(5, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void grownSchedulerRunsThatManyUploadsAtOnce() throws InterruptedException {
+		UploadScheduler scheduler = new UploadScheduler(1);
+		scheduler.grow(3);
+		final CountDownLatch running = new CountDownLatch(3);
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			for (int i = 0; i < 3; i++) {
+				scheduler.execute( new Runnable() {
+					@Override
+					public void run() {
+						running.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							// the test is over
+						}
+					}
+				});
+			}
+			assertTrue( running.await(5, TimeUnit.SECONDS) );
+		} finally {
+			release.countDown();
+			scheduler.close(5, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void defaultSchedulerGrowsNoFurtherThanItsCap() {
+		UploadScheduler.growDefault( UploadScheduler.MAX_DEFAULT_THREADS * 10 );
+		assertEquals(UploadScheduler.MAX_DEFAULT_THREADS, UploadScheduler.getDefault().getThreadCount());
+	}
+}
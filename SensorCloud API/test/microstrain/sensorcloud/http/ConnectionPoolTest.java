@@ -0,0 +1,100 @@
+package microstrain.sensorcloud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import microstrain.sensorcloud.StandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+	private static final String TARGET = "/SensorCloud/devices/POOL/";
+
+	private StandInServer server;
+	private int port;
+	private ConnectionPool pool;
+	private List<HttpResponse> held;
+
+	@Before
+	public void startServer() throws IOException {
+		server = new StandInServer();
+		server.start();
+		port = Integer.parseInt( server.getAddress().substring( server.getAddress().indexOf(':') + 1 ));
+		pool = new ConnectionPool(2, ConnectionPool.DEFAULT_IDLE_TIMEOUT);
+		held = new ArrayList<HttpResponse>();
+	}
+
+	@After
+	public void stopServer() {
+		for (HttpResponse response : held) {
+			response.close();
+		}
+		pool.close();
+		server.stop();
+	}
+
+	@Test(timeout = 10000)
+	public void raisingTheLimitLetsAWaitingRequestThrough() throws Exception {
+		hold(2);
+		Thread waiting = request();
+		waiting.join(200);
+		assertTrue( "every connection is held", waiting.isAlive() );
+
+		pool.setMaxConnections(3);
+		waiting.join(5000);
+		assertFalse( waiting.isAlive() );
+		assertEquals(3, pool.getMaxConnections());
+	}
+
+	@Test(timeout = 10000)
+	public void loweringTheLimitWaitsForHeldConnections() throws Exception {
+		pool.setMaxConnections(3);
+		hold(3);
+		pool.setMaxConnections(2);
+
+		held.remove(0).close();
+		Thread waiting = request();
+		waiting.join(200);
+		assertTrue( "two connections are still held", waiting.isAlive() );
+
+		held.remove(0).close();
+		waiting.join(5000);
+		assertFalse( waiting.isAlive() );
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void uploadsKeepAConnection() {
+		pool.setMaxConnections( pool.getReservedForQueries() );
+	}
+
+	/* sends requests and holds their responses, and the connections with them, until the test closes them */
+	private void hold (int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			held.add( pool.execute("localhost", port, false, "GET", TARGET, null, null) );
+		}
+	}
+
+	/* a request that reads its whole response on another thread */
+	private Thread request() {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					pool.execute("localhost", port, false, "GET", TARGET, null, null).close();
+				} catch (IOException e) {
+					// the thread ends either way
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,266 @@
+package microstrain.sensorcloud.http;
+
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.security.Principal;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.security.auth.x500.X500Principal;
+
+import org.junit.Test;
+
+public class HttpConnectionTest {
+	private static final int DNS_NAME = 2, IP_ADDRESS = 7;
+
+	@Test
+	public void exactNameMatchesWhateverTheCase() throws SSLException {
+		verify( cert(null, dns("Sensorcloud.Microstrain.com")), "sensorcloud.microstrain.com" );
+		verify( cert(null, dns("sensorcloud.microstrain.com.")), "sensorcloud.microstrain.com." );
+		reject( cert(null, dns("sensorcloud.microstrain.com")), "dsx.sensorcloud.microstrain.com" );
+	}
+
+	@Test
+	public void wildcardCoversASingleLabel() throws SSLException {
+		X509Certificate cert = cert(null, dns("*.sensorcloud.com"));
+		verify( cert, "dsx.sensorcloud.com" );
+		reject( cert, "a.dsx.sensorcloud.com" );
+		reject( cert, "sensorcloud.com" );
+	}
+
+	@Test
+	public void wildcardCannotStandInForARegistry() throws SSLException {
+		reject( cert(null, dns("*.com")), "sensorcloud.com" );
+		reject( cert(null, dns("*.co.uk")), "sensorcloud.co.uk" );
+		verify( cert(null, dns("*.sensorcloud.co.uk")), "dsx.sensorcloud.co.uk" );
+		reject( cert(null, dns("f*.sensorcloud.com")), "foo.sensorcloud.com" );
+	}
+
+	@Test
+	public void addressOnlyMatchesAnAddressEntry() throws SSLException {
+		verify( cert(null, ip("192.168.1.10")), "192.168.1.10" );
+		verify( cert(null, ip("0:0:0:0:0:0:0:1")), "[::1]" );
+		reject( cert(null, ip("192.168.1.11")), "192.168.1.10" );
+		reject( cert(null, dns("192.168.1.10")), "192.168.1.10" );
+		reject( cert("CN=192.168.1.10"), "192.168.1.10" );
+	}
+
+	@Test
+	public void internationalizedNameMatchesItsAsciiForm() throws SSLException {
+		verify( cert(null, dns("xn--bcher-kva.example.com")), "b\u00fccher.example.com" );
+		verify( cert(null, dns("*.xn--bcher-kva.example")), "dsx.b\u00fccher.example" );
+		reject( cert(null, dns("bucher.example.com")), "b\u00fccher.example.com" );
+	}
+
+	@Test
+	public void commonNameOnlyCountsWithoutDnsNames() throws SSLException {
+		verify( cert("CN=sensorcloud.microstrain.com, O=MicroStrain"), "sensorcloud.microstrain.com" );
+		verify( cert("CN=sensorcloud.microstrain.com, OU=CN\\=other.com"), "sensorcloud.microstrain.com" );
+		reject( cert("CN=sensorcloud.microstrain.com", dns("other.microstrain.com")), "sensorcloud.microstrain.com" );
+		reject( cert("O=MicroStrain"), "sensorcloud.microstrain.com" );
+	}
+
+	private static void verify (X509Certificate cert, String host) throws SSLException {
+		HttpConnection.verifyHostname( session(cert), host );
+	}
+
+	private static void reject (X509Certificate cert, String host) throws SSLException {
+		try {
+			HttpConnection.verifyHostname( session(cert), host );
+			fail( host + " should not have matched" );
+		} catch (SSLPeerUnverifiedException e) {
+			// expected
+		}
+	}
+
+	private static List<?> dns (String name) {
+		return Arrays.asList(DNS_NAME, name);
+	}
+
+	private static List<?> ip (String address) {
+		return Arrays.asList(IP_ADDRESS, address);
+	}
+
+	private static X509Certificate cert (String subject, List<?>... altNames) {
+		return new NamedCertificate( subject != null ? subject : "O=MicroStrain", altNames.length > 0 ? Arrays.asList(altNames) : null );
+	}
+
+	/* a session whose only use is handing over the peer's certificate */
+	private static SSLSession session (final X509Certificate cert) {
+		return (SSLSession)Proxy.newProxyInstance( SSLSession.class.getClassLoader(), new Class<?> [] { SSLSession.class }, new InvocationHandler() {
+			@Override
+			public Object invoke (Object proxy, Method method, Object [] args) {
+				if (method.getName().equals("getPeerCertificates")) {
+					return new Certificate [] { cert };
+				}
+				throw new UnsupportedOperationException( method.getName() );
+			}
+		});
+	}
+
+	/**
+	 * A certificate that only has a subject and subject alternative names, which is all the hostname check reads
+	 */
+	@SuppressWarnings("serial")
+	private static class NamedCertificate extends X509Certificate {
+		private final X500Principal subject;
+		private final Collection<List<?>> altNames;
+
+		NamedCertificate (String subject, List<List<?>> altNames) {
+			this.subject = new X500Principal(subject);
+			this.altNames = altNames != null ? new ArrayList<List<?>>(altNames) : null;
+		}
+
+		@Override
+		public X500Principal getSubjectX500Principal() {
+			return subject;
+		}
+
+		@Override
+		public Collection<List<?>> getSubjectAlternativeNames() {
+			return altNames;
+		}
+
+		@Override
+		public void checkValidity() {
+		}
+
+		@Override
+		public void checkValidity (Date date) {
+		}
+
+		@Override
+		public int getVersion() {
+			return 3;
+		}
+
+		@Override
+		public BigInteger getSerialNumber() {
+			return BigInteger.ONE;
+		}
+
+		@Override
+		public Principal getIssuerDN() {
+			return subject;
+		}
+
+		@Override
+		public Principal getSubjectDN() {
+			return subject;
+		}
+
+		@Override
+		public Date getNotBefore() {
+			return new Date(0);
+		}
+
+		@Override
+		public Date getNotAfter() {
+			return new Date(Long.MAX_VALUE);
+		}
+
+		@Override
+		public byte [] getTBSCertificate() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public byte [] getSignature() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String getSigAlgName() {
+			return "NONE";
+		}
+
+		@Override
+		public String getSigAlgOID() {
+			return "0.0";
+		}
+
+		@Override
+		public byte [] getSigAlgParams() {
+			return null;
+		}
+
+		@Override
+		public boolean [] getIssuerUniqueID() {
+			return null;
+		}
+
+		@Override
+		public boolean [] getSubjectUniqueID() {
+			return null;
+		}
+
+		@Override
+		public boolean [] getKeyUsage() {
+			return null;
+		}
+
+		@Override
+		public int getBasicConstraints() {
+			return -1;
+		}
+
+		@Override
+		public byte [] getEncoded() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void verify (PublicKey key) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void verify (PublicKey key, String sigProvider) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String toString() {
+			return subject + " " + altNames;
+		}
+
+		@Override
+		public PublicKey getPublicKey() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean hasUnsupportedCriticalExtension() {
+			return false;
+		}
+
+		@Override
+		public Set<String> getCriticalExtensionOIDs() {
+			return null;
+		}
+
+		@Override
+		public Set<String> getNonCriticalExtensionOIDs() {
+			return null;
+		}
+
+		@Override
+		public byte [] getExtensionValue (String oid) {
+			return null;
+		}
+	}
+}
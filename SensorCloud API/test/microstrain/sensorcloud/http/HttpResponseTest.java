@@ -0,0 +1,184 @@
+package microstrain.sensorcloud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HttpResponseTest {
+
+	@Test
+	public void contentLengthBodyStopsAtItsLength() throws IOException {
+		InputStream in = stream("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello, and the next response");
+		HttpResponse response = HttpResponse.read(null, "GET", in);
+		assertEquals(200, response.getStatusCode());
+		assertEquals("OK", response.getMessage());
+		assertEquals(5, response.getContentLength());
+		assertEquals("hello", response.readString());
+		assertEquals(", and the next response", rest(in));
+	}
+
+	@Test
+	public void bodyCutShortByTheServerIsAnError() throws IOException {
+		HttpResponse response = HttpResponse.read(null, "GET", stream("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nhello"));
+		try {
+			response.readString();
+			fail("the missing bytes should have been noticed");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void malformedOrNegativeLengthIsReadUntilClose() throws IOException {
+		HttpResponse response = HttpResponse.read(null, "GET", stream("HTTP/1.1 200 OK\r\nContent-Length: five\r\n\r\nhello"));
+		assertEquals(-1, response.getContentLength());
+		assertEquals("hello", response.readString());
+
+		response = HttpResponse.read(null, "GET", stream("HTTP/1.1 200 OK\r\nContent-Length: -3\r\n\r\nhello"));
+		assertEquals(-1, response.getContentLength());
+		assertEquals("hello", response.readString());
+	}
+
+	@Test
+	public void headAndNoContentHaveNoBody() throws IOException {
+		InputStream in = stream("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nHTTP/1.1 204 No Content\r\n\r\nnext");
+		assertEquals("", HttpResponse.read(null, "HEAD", in).readString());
+		HttpResponse response = HttpResponse.read(null, "GET", in);
+		assertEquals(204, response.getStatusCode());
+		assertEquals("", response.readString());
+		assertEquals("next", rest(in));
+	}
+
+	@Test
+	public void informationalResponsesAreSkipped() throws IOException {
+		HttpResponse response = HttpResponse.read(null, "POST", stream(
+				"HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 201 Created\r\nContent-Length: 2\r\n\r\nok"));
+		assertEquals(201, response.getStatusCode());
+		assertEquals("ok", response.readString());
+	}
+
+	@Test
+	public void chunkedBodyIsJoinedAndTrailersSkipped() throws IOException {
+		InputStream in = stream("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nContent-Length: 99\r\n\r\n"
+				+ "5\r\nhello\r\n"
+				+ "7;name=value\r\n, world\r\n"
+				+ "A\r\n and more!\r\n"
+				+ "0\r\nTrailer: ignored\r\n\r\n"
+				+ "next");
+		HttpResponse response = HttpResponse.read(null, "GET", in);
+		assertEquals(-1, response.getContentLength());
+		assertEquals("hello, world and more!", response.readString());
+		assertEquals("next", rest(in));
+	}
+
+	@Test
+	public void chunkedBodyReadsByteByByte() throws IOException {
+		HttpResponse response = HttpResponse.read(null, "GET", stream(
+				"HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nab\r\n1\r\nc\r\n0\r\n\r\n"));
+		InputStream body = response.getBody();
+		StringBuilder read = new StringBuilder();
+		int b;
+		while ((b = body.read()) != -1) {
+			read.append((char)b);
+		}
+		assertEquals("abc", read.toString());
+	}
+
+	@Test
+	public void malformedChunkSizesAreErrors() throws IOException {
+		for (String size : new String [] { "zz", "", "-5", "12345678901234567890" }) {
+			HttpResponse response = HttpResponse.read(null, "GET", stream(
+					"HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" + size + "\r\nhello\r\n0\r\n\r\n"));
+			try {
+				response.readString();
+				fail("chunk size '" + size + "' should have been rejected");
+			} catch (IOException e) {
+				assertTrue( e.getMessage(), e.getMessage().startsWith("Malformed chunk size") );
+			}
+		}
+	}
+
+	@Test
+	public void chunkCutShortByTheServerIsAnError() throws IOException {
+		HttpResponse response = HttpResponse.read(null, "GET", stream(
+				"HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nA\r\nhello"));
+		try {
+			response.readString();
+			fail("the missing bytes should have been noticed");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void malformedStatusLineIsAnError() throws IOException {
+		for (String status : new String [] { "HTTP/1.1\r\n", "SPDY 200 OK\r\n", "HTTP/1.1 OK 200\r\n" }) {
+			try {
+				HttpResponse.read(null, "GET", stream(status + "\r\n"));
+				fail("status line '" + status.trim() + "' should have been rejected");
+			} catch (IOException e) {
+				assertTrue( e.getMessage(), e.getMessage().startsWith("Malformed status line") );
+			}
+		}
+	}
+
+	@Test
+	public void closedBeforeAnyResponseIsToldApart() throws IOException {
+		try {
+			HttpResponse.read(null, "GET", stream(""));
+			fail("there was no response");
+		} catch (HttpResponse.NoResponseException e) {
+			// expected
+		}
+		try {
+			HttpResponse.read(null, "GET", stream("HTTP/1.1 200"));
+			fail("the response was cut short");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void repeatedHeadersAreJoinedAndNamesFolded() throws IOException {
+		Map<String, String> headers = HttpResponse.readHeaders( stream("Set-Cookie: a=1\r\nSET-COOKIE: b=2\nX-Plain:  value \r\nnot a header\r\n\r\n") );
+		assertEquals("a=1, b=2", headers.get("set-cookie"));
+		assertEquals("value", headers.get("x-plain"));
+		assertNull( headers.get("not a header") );
+		assertEquals(2, headers.size());
+	}
+
+	@Test
+	public void lineEndsAtABareLineFeedToo() throws IOException {
+		InputStream in = stream("first\r\nsecond\nthird");
+		assertEquals("first", HttpResponse.readLine(in, true));
+		assertEquals("second", HttpResponse.readLine(in, false));
+		try {
+			HttpResponse.readLine(in, false);
+			fail("the last line has no end");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	private static InputStream stream (String data) throws IOException {
+		return new ByteArrayInputStream( data.getBytes("ISO-8859-1") );
+	}
+
+	private static String rest (InputStream in) throws IOException {
+		StringBuilder rest = new StringBuilder();
+		int b;
+		while ((b = in.read()) != -1) {
+			rest.append((char)b);
+		}
+		return rest.toString();
+	}
+}
@@ -0,0 +1,218 @@
+package microstrain.sensorcloud.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import microstrain.sensorcloud.AsyncRequester;
+import microstrain.sensorcloud.NioRequester;
+import microstrain.sensorcloud.RequestCallback;
+import microstrain.sensorcloud.StandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NioTransportTest {
+	private static final int CALLS = 100;
+
+	private StandInServer server;
+	private NioTransport transport;
+
+	@Before
+	public void startServer() throws IOException {
+		server = new StandInServer();
+		server.start();
+		server.addDevice("NIO", "key");
+	}
+
+	@After
+	public void stopServer() {
+		if (transport != null) {
+			transport.close();
+		}
+		server.stop();
+	}
+
+	@Test(timeout = 30000)
+	public void oneLoopCarriesManyCallsOverAFewConnections() throws Exception {
+		transport = new NioTransport(1, 4);
+		NioRequester requester = server.getNioRequester("NIO", "key", transport);
+		AsyncRequester async = requester.async();
+		server.setLatency(20);
+
+		final CountDownLatch done = new CountDownLatch(CALLS);
+		final AtomicInteger failures = new AtomicInteger();
+		RequestCallback<byte []> callback = new RequestCallback<byte []>() {
+			@Override
+			public void completed (byte [] result) {
+				done.countDown();
+			}
+
+			@Override
+			public void failed (Exception e) {
+				failures.incrementAndGet();
+				done.countDown();
+			}
+		};
+		// far more calls than connections, the rest wait in the transport rather than on a thread each
+		for (int i = 0; i < CALLS; i++) {
+			async.get("sensors/").addCallback(callback);
+		}
+
+		assertTrue( done.await(20, TimeUnit.SECONDS) );
+		assertEquals(0, failures.get());
+		assertTrue( transport.getConnectionsOpened() + " connections", transport.getConnectionsOpened() <= 4 );
+		assertTrue( transport.getOpenCount() <= 4 );
+		assertTrue( transport.getRequestCount() >= CALLS );
+	}
+
+	@Test(timeout = 30000)
+	public void failedConnectGivesItsPlaceBack() throws Exception {
+		transport = new NioTransport(1, 1);
+		ServerSocket unused = new ServerSocket(0);
+		int closedPort = unused.getLocalPort();
+		unused.close();
+
+		// the only place on the route is taken and given back by each attempt
+		for (int i = 0; i < 3; i++) {
+			try {
+				transport.execute("localhost", closedPort, false, "GET", "/", null, null);
+				fail("nothing is listening on port " + closedPort);
+			} catch (IOException e) {
+				// expected
+			}
+			assertEquals(0, transport.getOpenCount());
+		}
+
+		// with a single place on the route this only gets through if every failed attempt gave it back
+		ResettingServer listening = new ResettingServer(closedPort, 0);
+		try {
+			assertEquals("ok", transport.execute("localhost", closedPort, false, "GET", "/", null, null).readString());
+		} finally {
+			listening.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void safeRequestIsSentAgainWhenAReusedConnectionIsReset() throws Exception {
+		transport = new NioTransport(1, 1);
+		ResettingServer reset = new ResettingServer(0, 2);
+		try {
+			assertEquals("ok", transport.execute("localhost", reset.port(), false, "GET", "/", null, null).readString());
+			// the second request goes out on the reused connection, which is reset once it has been read
+			assertEquals("ok", transport.execute("localhost", reset.port(), false, "GET", "/", null, null).readString());
+			assertEquals(3, reset.requests.get());
+			assertEquals(2, transport.getConnectionsOpened());
+		} finally {
+			reset.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void unsafeRequestIsNotSentAgainOnceItReachedTheServer() throws Exception {
+		transport = new NioTransport(1, 1);
+		ResettingServer reset = new ResettingServer(0, 2);
+		try {
+			assertEquals("ok", transport.execute("localhost", reset.port(), false, "GET", "/", null, null).readString());
+			try {
+				transport.execute("localhost", reset.port(), false, "POST", "/", null, new byte [] { 1, 2, 3 });
+				fail("the reset should have been reported");
+			} catch (IOException e) {
+				// expected, the server may have acted on the upload
+			}
+			assertEquals(2, reset.requests.get());
+			assertEquals(0, transport.getOpenCount());
+		} finally {
+			reset.close();
+		}
+	}
+
+	/**
+	 * Answers every request with "ok" on a persistent connection, except that it resets
+	 * the connection of one request after reading it in full, without a word of response
+	 */
+	private static class ResettingServer implements Runnable {
+		final AtomicInteger requests = new AtomicInteger();
+		private final ServerSocket socket;
+		private final int resetAt;
+
+		/* a zero port picks a free one, and a request numbered zero is never reset */
+		ResettingServer (int port, int resetAt) throws IOException {
+			this.resetAt = resetAt;
+			socket = new ServerSocket(port);
+			Thread thread = new Thread(this, "Resetting server");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		int port() {
+			return socket.getLocalPort();
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Socket conn = socket.accept();
+					Thread thread = new Thread() {
+						@Override
+						public void run() {
+							serve(conn);
+						}
+					};
+					thread.setDaemon(true);
+					thread.start();
+				}
+			} catch (IOException e) {
+				// closed by the test
+			}
+		}
+
+		private void serve (Socket conn) {
+			try {
+				InputStream in = new BufferedInputStream( conn.getInputStream() );
+				OutputStream out = conn.getOutputStream();
+				while (true) {
+					HttpResponse.readLine(in, true);
+					Map<String, String> headers = HttpResponse.readHeaders(in);
+					String length = headers.get("content-length");
+					for (int i = length != null ? Integer.parseInt(length) : 0; i > 0; i--) {
+						in.read();
+					}
+
+					if (requests.incrementAndGet() == resetAt) {
+						conn.setSoLinger(true, 0);
+						conn.close();
+						return;
+					}
+					out.write( "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes("ISO-8859-1") );
+					out.flush();
+				}
+			} catch (IOException e) {
+				// the client closed the connection
+			} finally {
+				try {
+					conn.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+		}
+	}
+}